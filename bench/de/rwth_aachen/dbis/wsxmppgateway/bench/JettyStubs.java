@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.jetty.websocket.WebSocket.FrameConnection;
+
+/**
+ * Stubs of the Jetty side of a session, shared by the benchmarks that drive connection handlers in-process
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class JettyStubs {
+
+	/**
+	 * Receives what a connection handler sends to a stub connection
+	 */
+	public interface Client {
+
+		/**
+		 * Called for every message sent to the client
+		 * @param message the text of the message
+		 * @param frame true if the message has been sent as a frame, false if it has been sent with sendMessage()
+		 */
+		void sent(String message, boolean frame);
+
+		/**
+		 * Called once the handler has disconnected the client
+		 */
+		void disconnected();
+	}
+
+	/**
+	 * Create the servlet request that performed the (simulated) upgrade
+	 * @param remoteHost the hostname and address of the client
+	 * @param parameters the request parameters, e.g. xmpphost and xmppport
+	 * @return the request
+	 */
+	public static HttpServletRequest newRequest(final String remoteHost, final Map<String, String> parameters) {
+		return (HttpServletRequest)Proxy.newProxyInstance(JettyStubs.class.getClassLoader(), new Class<?>[] {HttpServletRequest.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if ("getParameter".equals(name))
+					return parameters.get(args[0]);
+				if ("getRemoteHost".equals(name) || "getRemoteAddr".equals(name))
+					return remoteHost;
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	/**
+	 * Create a WebSocket connection that hands everything sent to the client to a listener
+	 * @param client the listener, null to discard everything
+	 * @return the connection, it stays open
+	 */
+	public static FrameConnection newConnection(final Client client) {
+		return (FrameConnection)Proxy.newProxyInstance(JettyStubs.class.getClassLoader(), new Class<?>[] {FrameConnection.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if ("isOpen".equals(name))
+					return Boolean.TRUE;
+				if (client != null) {
+					if ("sendMessage".equals(name) && args.length == 1)
+						client.sent((String)args[0], false);
+					else if ("sendFrame".equals(name))
+						client.sent(new String((byte[])args[2], (Integer)args[3], (Integer)args[4]), true);
+					else if ("disconnect".equals(name))
+						client.disconnected();
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class)
+			return Boolean.FALSE;
+		if (type == int.class)
+			return Integer.valueOf(0);
+		if (type == long.class)
+			return Long.valueOf(0);
+		if (type == byte.class)
+			return Byte.valueOf((byte)0);
+		return null;
+	}
+}
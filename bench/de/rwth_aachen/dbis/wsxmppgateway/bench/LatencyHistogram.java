@@ -0,0 +1,114 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds that can be recorded concurrently without locking.
+ * Values below 128 are counted exactly, larger values in buckets with a relative width of less than 2%,
+ * so the reported percentiles are accurate to 2%.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 6; //64 buckets per power of two
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong(0);
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**
+	 * Record a latency
+	 * @param micros the latency in microseconds, negative values are counted as 0
+	 */
+	public void record(long micros) {
+		long value = Math.max(0, micros);
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value));
+	}
+
+	/**
+	 * Add all values recorded by another histogram
+	 * @param other the histogram to be added
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long c = other.counts.get(i);
+			if (c > 0)
+				counts.addAndGet(i, c);
+		}
+		count.addAndGet(other.count.get());
+		long value = other.max.get();
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value));
+	}
+
+	/**
+	 * Get the number of recorded values
+	 * @return the number of values
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Get the largest recorded value
+	 * @return the maximum in microseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Get a percentile of the recorded values
+	 * @param percentile the percentile, e.g. 99.9
+	 * @return the smallest value of the bucket containing the percentile in microseconds, 0 if nothing has been recorded
+	 */
+	public long getPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long)Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(value(i), max.get());
+		}
+		return max.get();
+	}
+
+	private static int index(long value) {
+		if (value < 2 * SUB_BUCKETS)
+			return (int)value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int)(value >>> shift) - SUB_BUCKETS;
+	}
+
+	private static long value(int index) {
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		return (long)(index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+	}
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.jetty.websocket.WebSocket;
+import org.eclipse.jetty.websocket.WebSocketClient;
+import org.eclipse.jetty.websocket.WebSocketClientFactory;
+
+/**
+ * Load generator for a running gateway. It opens WebSocket sessions, authenticates them, sends stanzas at a fixed
+ * total rate and measures the round trip time of the stanzas echoed by the XMPP server, e.g. a {@link StubXMPPServer}.
+ * Stanzas are sent on schedule even if the gateway falls behind and the round trip time is measured from the time a
+ * stanza was due, so queueing delays are part of the reported latency.
+ *
+ * Usage: LoadGenerator &lt;ws url&gt; [sessions] [stanzas/s] [seconds] [stanza size] [gateway pid]
+ * (default is 1000 sessions, 1000 stanzas/s, 30 s and 128 bytes). Every 5 seconds and at the end it reports throughput,
+ * p50/p99/p99.9 round trip time and, if the pid of the gateway is given, its resident set size and thread count.
+ * The opening stream tag is addressed to "localhost", set -Dxmppdomain to change it.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class LoadGenerator {
+
+	private static final String AUTH = "<auth xmlns='urn:ietf:params:xml:ns:xmpp-sasl' mechanism='PLAIN'>AGxvYWQAbG9hZA==</auth>";
+	private static final String CLOSING_TAG = "</stream:stream>";
+	private static final String ID_PREFIX = " id='t"; //the id of a stanza is the time it was due in ns
+	private static final int REPORT_INTERVAL = 5000; //ms
+	private static final int CONNECT_THREADS = 32;
+	private static final long TIMEOUT = 60; //sec
+
+	private static final int CONNECTING = 0;
+	private static final int AUTHENTICATING = 1;
+	private static final int RESTARTING = 2;
+	private static final int READY = 3;
+	private static final int CLOSED = 4;
+
+	private final URI uri;
+	private final String openingTag;
+	private final Session[] sessions;
+	private final CountDownLatch ready;
+	private final AtomicLong sent = new AtomicLong(0);
+	private final AtomicLong received = new AtomicLong(0);
+	private final AtomicInteger failedConnects = new AtomicInteger(0);
+	private final AtomicInteger streamErrors = new AtomicInteger(0);
+	private final AtomicInteger closes = new AtomicInteger(0);
+	private final LatencyHistogram total = new LatencyHistogram();
+	private volatile LatencyHistogram interval = new LatencyHistogram();
+	private volatile boolean stopping = false;
+
+	private LoadGenerator(URI uri, int sessions) {
+		this.uri = uri;
+		this.openingTag = "<stream:stream to='" + System.getProperty("xmppdomain", "localhost") + "' xmlns='jabber:client' " +
+				"xmlns:stream='http://etherx.jabber.org/streams' version='1.0'>";
+		this.sessions = new Session[sessions];
+		this.ready = new CountDownLatch(sessions);
+	}
+
+	public static void main(String... args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: LoadGenerator <ws url> [sessions] [stanzas/s] [seconds] [stanza size] [gateway pid]");
+			System.exit(1);
+		}
+		URI uri = new URI(args[0]);
+		int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int rate = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+		int size = args.length > 4 ? Integer.parseInt(args[4]) : 128;
+		String pid = args.length > 5 ? args[5] : null;
+
+		WebSocketClientFactory factory = new WebSocketClientFactory();
+		factory.start();
+		LoadGenerator generator = new LoadGenerator(uri, sessions);
+		generator.run(factory, rate, seconds, size, pid);
+		factory.stop();
+		System.exit(0);
+	}
+
+	/**
+	 * Open the sessions, send stanzas for the given time and close the sessions again
+	 */
+	private void run(WebSocketClientFactory factory, int rate, int seconds, int size, String pid) throws InterruptedException {
+		System.out.println("url=" + uri + " sessions=" + sessions.length + " stanzas/s=" + rate + " duration=" + seconds + "s stanza size=" + size);
+		long setupStart = System.nanoTime();
+		connect(factory);
+		boolean complete = ready.await(TIMEOUT, TimeUnit.SECONDS);
+		int readySessions = sessions.length - (int)ready.getCount();
+		System.out.println("sessions ready=" + readySessions + " failed=" + failedConnects.get() + " setup=" +
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - setupStart) + "ms" + (complete ? "" : " (timed out)") +
+				" gateway " + formatProcStatus(pid));
+		if (readySessions == 0) {
+			close();
+			return;
+		}
+
+		System.out.println("time (s)\tsent/s\treceived/s\tp50 (ms)\tp99 (ms)\tp99.9 (ms)\tmax (ms)\trss (MB)\tthreads");
+		int senders = Math.min(4, Runtime.getRuntime().availableProcessors());
+		final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+		final long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		final String padding = padding(size);
+		Thread[] threads = new Thread[senders];
+		for (int t = 0; t < senders; t++) {
+			final int first = t;
+			final int step = senders;
+			final double period = 1e9 * senders / rate; //ns between two stanzas of this sender
+			threads[t] = new Thread("load-sender-" + t) {
+				@Override
+				public void run() {
+					send(first, step, start, end, period, padding);
+				}
+			};
+			threads[t].start();
+		}
+
+		long lastSent = 0;
+		long lastReceived = 0;
+		long lastReport = System.nanoTime();
+		while (System.nanoTime() < end) {
+			Thread.sleep(Math.min(REPORT_INTERVAL, Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+			long now = System.nanoTime();
+			LatencyHistogram histogram = interval;
+			interval = new LatencyHistogram();
+			double elapsed = (now - lastReport) / 1e9;
+			long sentNow = sent.get();
+			long receivedNow = received.get();
+			System.out.println(report((now - start) / 1e9, (sentNow - lastSent) / elapsed, (receivedNow - lastReceived) / elapsed, histogram, pid));
+			lastSent = sentNow;
+			lastReceived = receivedNow;
+			lastReport = now;
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		//wait for the stanzas still in flight
+		long deadline = System.currentTimeMillis() + 5000;
+		while (received.get() < sent.get() && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		String status = formatProcStatus(pid);
+		close();
+
+		System.out.println("total: sent=" + sent.get() + " received=" + received.get() + " lost=" + (sent.get() - received.get()) +
+				" stream errors=" + streamErrors.get() + " throughput=" + received.get() / (seconds > 0 ? seconds : 1) + "/s");
+		System.out.println("round trip: p50=" + millis(total.getPercentile(50)) + "ms p99=" + millis(total.getPercentile(99)) +
+				"ms p99.9=" + millis(total.getPercentile(99.9)) + "ms max=" + millis(total.getMax()) + "ms");
+		System.out.println("gateway " + status);
+	}
+
+	/**
+	 * Open all sessions, several at a time
+	 */
+	private void connect(final WebSocketClientFactory factory) throws InterruptedException {
+		Thread[] threads = new Thread[Math.min(CONNECT_THREADS, sessions.length)];
+		for (int t = 0; t < threads.length; t++) {
+			final int first = t;
+			final int step = threads.length;
+			threads[t] = new Thread("load-connect-" + t) {
+				@Override
+				public void run() {
+					for (int i = first; i < sessions.length; i += step) {
+						sessions[i] = new Session();
+						WebSocketClient client = factory.newWebSocketClient();
+						client.setProtocol("xmpp");
+						try {
+							client.open(uri, sessions[i], 10, TimeUnit.SECONDS);
+						} catch (Exception e) {
+							failedConnects.incrementAndGet();
+							ready.countDown();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+	}
+
+	/**
+	 * Send stanzas through every step-th session at a fixed rate until the end time
+	 * @param first the first session of this sender
+	 * @param step the number of senders
+	 * @param start the time the first stanza is due in ns
+	 * @param end the time sending stops in ns
+	 * @param period the time between two stanzas in ns
+	 * @param padding the body of the stanzas
+	 */
+	private void send(int first, int step, long start, long end, double period, String padding) {
+		int next = first;
+		for (long n = 0; ; n++) {
+			long due = start + (long)(n * period);
+			if (due >= end)
+				return;
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0)
+				LockSupport.parkNanos(wait);
+			//send through the next ready session, skip sessions that failed
+			for (int tries = 0; tries < sessions.length; tries += step) {
+				Session session = sessions[next];
+				next += step;
+				if (next >= sessions.length)
+					next = first;
+				if (session != null && session.state == READY) {
+					session.send("<message" + ID_PREFIX + due + "' to='echo@localhost' type='chat'><body>" + padding + "</body></message>");
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close all sessions and wait until the gateway has closed them
+	 */
+	private void close() throws InterruptedException {
+		stopping = true;
+		int open = 0;
+		for (Session session : sessions) {
+			if (session != null && session.state != CLOSED && session.connection != null) {
+				open++;
+				session.send(CLOSING_TAG);
+			}
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (closes.get() < open && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+	}
+
+	/**
+	 * Record the round trip times of the echoed stanzas in a message
+	 */
+	private void receivedStanzas(String message) {
+		long now = System.nanoTime();
+		for (int i = message.indexOf(ID_PREFIX); i >= 0; i = message.indexOf(ID_PREFIX, i + 1)) {
+			int start = i + ID_PREFIX.length();
+			int end = message.indexOf('\'', start);
+			if (end < 0)
+				break;
+			long micros = TimeUnit.NANOSECONDS.toMicros(now - Long.parseLong(message.substring(start, end)));
+			total.record(micros);
+			interval.record(micros);
+			received.incrementAndGet();
+		}
+	}
+
+	/**
+	 * A single client session
+	 */
+	private class Session implements WebSocket.OnTextMessage {
+		private volatile WebSocket.Connection connection;
+		private volatile int state = CONNECTING;
+
+		@Override
+		public void onOpen(Connection connection) {
+			this.connection = connection;
+			send(openingTag);
+		}
+
+		@Override
+		public void onMessage(String data) {
+			if (state == READY) {
+				receivedStanzas(data);
+				if (data.startsWith("<stream:error"))
+					streamErrors.incrementAndGet();
+			}
+			else if (data.contains("<success")) {
+				state = RESTARTING;
+				send(openingTag);
+			}
+			else if (data.contains("<stream:features")) {
+				if (state == CONNECTING) {
+					state = AUTHENTICATING;
+					send(AUTH);
+				}
+				else if (state == RESTARTING) {
+					state = READY;
+					ready.countDown();
+				}
+			}
+			else if (data.startsWith("<stream:error")) {
+				streamErrors.incrementAndGet();
+			}
+		}
+
+		@Override
+		public void onClose(int closeCode, String message) {
+			if (state != READY && state != CLOSED)
+				ready.countDown(); //session has failed during setup
+			state = CLOSED;
+			closes.incrementAndGet();
+			if (!stopping)
+				System.out.println("session closed by gateway: " + closeCode + " " + (message != null ? message : ""));
+		}
+
+		void send(String data) {
+			try {
+				connection.sendMessage(data);
+				if (data.startsWith("<message"))
+					sent.incrementAndGet();
+			} catch (IOException e) {
+				//session is closed, onClose() records it
+			}
+		}
+	}
+
+	private static String report(double time, double sentRate, double receivedRate, LatencyHistogram histogram, String pid) {
+		String[] status = readProcStatus(pid);
+		return String.format("%.0f\t%.0f\t%.0f\t%s\t%s\t%s\t%s\t%s\t%s", time, sentRate, receivedRate,
+				millis(histogram.getPercentile(50)), millis(histogram.getPercentile(99)), millis(histogram.getPercentile(99.9)),
+				millis(histogram.getMax()), status[0], status[1]);
+	}
+
+	private static String millis(long micros) {
+		return String.format("%.2f", micros / 1000.0);
+	}
+
+	private static String padding(int size) {
+		StringBuilder padding = new StringBuilder();
+		for (int i = 0; i < size - 100; i++)
+			padding.append((char)('a' + i % 26));
+		return padding.toString();
+	}
+
+	private static String formatProcStatus(String pid) {
+		String[] status = readProcStatus(pid);
+		return "rss=" + status[0] + "MB threads=" + status[1];
+	}
+
+	/**
+	 * Read resident set size and number of OS threads of a process (Linux only)
+	 * @param pid the process id, null if unknown
+	 * @return the resident set size in MB and the number of threads, "n/a" if not available
+	 */
+	private static String[] readProcStatus(String pid) {
+		String[] status = {"n/a", "n/a"};
+		if (pid != null) {
+			try {
+				BufferedReader reader = new BufferedReader(new FileReader("/proc/" + pid + "/status"));
+				try {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						if (line.startsWith("VmRSS:"))
+							status[0] = String.valueOf(Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024);
+						else if (line.startsWith("Threads:"))
+							status[1] = line.replaceAll("[^0-9]", "");
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (IOException e) {
+				//not running on Linux or process has gone
+			}
+		}
+		return status;
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal DNS server for tests of the SRV resolution. It answers A and SRV queries from a fixed set of records
+ * and counts the queries it has received. Records are given as "name=A address" or
+ * "name=SRV priority weight port target", every record has the same TTL.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class StubDnsServer implements Runnable {
+
+	private static final int TYPE_A = 1;
+	private static final int TYPE_SRV = 33;
+
+	private final DatagramSocket socket;
+	private final int ttl;
+	private final Map<String, List<String[]>> records = new HashMap<String, List<String[]>>();
+	private final AtomicInteger queries = new AtomicInteger(0);
+	private volatile boolean running = false;
+
+	/**
+	 * Creates a stub DNS server bound to the loopback interface
+	 * @param port the port to listen on, 0 to choose a free port
+	 * @param ttl the TTL of all records in seconds
+	 * @param definitions the records to be served
+	 * @throws IOException if the socket cannot be bound
+	 */
+	public StubDnsServer(int port, int ttl, String... definitions) throws IOException {
+		this.ttl = ttl;
+		for (String definition : definitions) {
+			int separator = definition.indexOf('=');
+			String[] record = definition.substring(separator + 1).trim().split("\\s+");
+			String key = record[0].toUpperCase() + " " + definition.substring(0, separator).toLowerCase();
+			if (!records.containsKey(key))
+				records.put(key, new ArrayList<String[]>());
+			records.get(key).add(record);
+		}
+		socket = new DatagramSocket(new InetSocketAddress("127.0.0.1", port));
+	}
+
+	/**
+	 * Start serving queries in a daemon thread
+	 */
+	public void start() {
+		running = true;
+		Thread thread = new Thread(this, "stub-dns-server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop serving queries
+	 */
+	public void stop() {
+		running = false;
+		socket.close();
+	}
+
+	/**
+	 * Get the port the server listens on
+	 * @return the local port
+	 */
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Get the number of queries received
+	 * @return the number of queries
+	 */
+	public int getQueries() {
+		return queries.get();
+	}
+
+	@Override
+	public void run() {
+		byte[] buffer = new byte[512];
+		while (running) {
+			try {
+				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+				socket.receive(packet);
+				queries.incrementAndGet();
+				byte[] response = answer(buffer, packet.getLength());
+				if (response != null)
+					socket.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+			} catch (SocketException e) {
+				return; //socket has been closed
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Build the response to a query
+	 * @return the response, null if the query is malformed
+	 */
+	private byte[] answer(byte[] query, int length) throws IOException {
+		if (length < 17)
+			return null;
+		StringBuilder name = new StringBuilder();
+		int pos = 12;
+		while (pos < length && query[pos] != 0) {
+			int len = query[pos] & 0xff;
+			if (name.length() > 0)
+				name.append('.');
+			name.append(new String(query, pos + 1, len, "US-ASCII"));
+			pos += len + 1;
+		}
+		int questionEnd = pos + 5;
+		if (questionEnd > length)
+			return null;
+		int type = (query[pos + 1] & 0xff) << 8 | (query[pos + 2] & 0xff);
+		String typeName = type == TYPE_A ? "A" : type == TYPE_SRV ? "SRV" : "";
+		List<String[]> answers = records.get(typeName + " " + name.toString().toLowerCase());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(query, 0, 2); //id
+		writeShort(out, 0x8180 | (answers == null ? 3 : 0)); //response, recursion available, NXDOMAIN if unknown
+		writeShort(out, 1);
+		writeShort(out, answers == null ? 0 : answers.size());
+		writeShort(out, 0);
+		writeShort(out, 0);
+		out.write(query, 12, questionEnd - 12);
+		if (answers != null) {
+			for (String[] record : answers) {
+				writeShort(out, 0xc00c); //pointer to the name in the question
+				writeShort(out, type);
+				writeShort(out, 1);
+				writeShort(out, ttl >> 16);
+				writeShort(out, ttl);
+				if (type == TYPE_A) {
+					writeShort(out, 4);
+					out.write(InetAddress.getByName(record[1]).getAddress());
+				}
+				else {
+					byte[] target = encodeName(record[4]);
+					writeShort(out, 6 + target.length);
+					writeShort(out, Integer.parseInt(record[1]));
+					writeShort(out, Integer.parseInt(record[2]));
+					writeShort(out, Integer.parseInt(record[3]));
+					out.write(target);
+				}
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] encodeName(String name) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (String label : name.split("\\.")) {
+			if (label.length() == 0)
+				continue;
+			out.write(label.length());
+			out.write(label.getBytes("US-ASCII"));
+		}
+		out.write(0);
+		return out.toByteArray();
+	}
+
+	private static void writeShort(ByteArrayOutputStream out, int value) {
+		out.write(value >> 8);
+		out.write(value);
+	}
+
+	/**
+	 * Run a stub DNS server until the process is killed
+	 * @param args the port followed by the records to be served
+	 * @throws Exception if the server cannot be started
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: StubDnsServer <port> [name=A address | name=SRV priority weight port target]...");
+			System.exit(1);
+		}
+		String[] definitions = new String[args.length - 1];
+		System.arraycopy(args, 1, definitions, 0, definitions.length);
+		StubDnsServer server = new StubDnsServer(Integer.parseInt(args[0]), 60, definitions);
+		System.out.println("Stub DNS server listening on 127.0.0.1:" + server.getPort());
+		server.run();
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The behaviour of the {@link StubXMPPServer}. A script is a list of rules, the first rule whose element name matches
+ * a stanza received decides how the stub answers it. Every line of a script is one of
+ * <pre>
+ * &lt;element name | *&gt; echo | drop | close | reply &lt;xml&gt;
+ * delay &lt;ms&gt;
+ * features &lt;xml&gt;
+ * </pre>
+ * "echo" sends the stanza back, "drop" ignores it, "close" closes the stream and "reply" sends the given XML.
+ * "{id}" in a reply is replaced by the id attribute of the stanza, a reply starting with "&lt;success" restarts the stream.
+ * "delay" delays everything the stub sends, "features" replaces the stream features sent after every stream header.
+ * Stanzas no rule matches are dropped, lines starting with '#' are comments.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class StubScript {
+
+	public static final int ECHO = 0;
+	public static final int DROP = 1;
+	public static final int CLOSE = 2;
+	public static final int REPLY = 3;
+
+	private static final String SASL_SUCCESS = "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>";
+	private static final String DEFAULT_FEATURES = "<stream:features><mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'>" +
+			"<mechanism>PLAIN</mechanism></mechanisms></stream:features>";
+	private static final Pattern ID = Pattern.compile("\\sid=['\"]([^'\"]*)['\"]");
+
+	/** accepts every authentication and echoes all other stanzas */
+	public static final StubScript ECHO_ALL = parseDefault("auth reply " + SASL_SUCCESS + "\n* echo");
+	/** accepts every authentication and drops all other stanzas */
+	public static final StubScript DROP_ALL = parseDefault("auth reply " + SASL_SUCCESS + "\n* drop");
+
+	private final List<Rule> rules = new ArrayList<Rule>();
+	private int delay = 0; //ms
+	private String features = DEFAULT_FEATURES;
+
+	private StubScript() {
+	}
+
+	/**
+	 * Read a script
+	 * @param reader the source of the script, it is not closed
+	 * @return the script
+	 * @throws IOException if the script cannot be read
+	 * @throws IllegalArgumentException if a line of the script is malformed
+	 */
+	public static StubScript parse(Reader reader) throws IOException {
+		StubScript script = new StubScript();
+		BufferedReader lines = new BufferedReader(reader);
+		String line;
+		int number = 0;
+		while ((line = lines.readLine()) != null) {
+			number++;
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#"))
+				continue;
+			String[] fields = line.split("\\s+", 3);
+			try {
+				if ("delay".equals(fields[0]))
+					script.delay = Integer.parseInt(fields[1]);
+				else if ("features".equals(fields[0]))
+					script.features = line.substring("features".length()).trim();
+				else
+					script.rules.add(new Rule(fields));
+			} catch (RuntimeException e) {
+				throw new IllegalArgumentException("Invalid line " + number + " in stub script: " + line);
+			}
+		}
+		return script;
+	}
+
+	/**
+	 * Read a script from a file
+	 * @param file the path of the script
+	 * @return the script
+	 * @throws IOException if the file cannot be read
+	 * @throws IllegalArgumentException if a line of the script is malformed
+	 */
+	public static StubScript load(String file) throws IOException {
+		Reader reader = new FileReader(file);
+		try {
+			return parse(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static StubScript parseDefault(String script) {
+		try {
+			return parse(new StringReader(script));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Find the rule for a stanza
+	 * @param name the element name of the stanza
+	 * @return the first matching rule, null if the stanza is to be dropped
+	 */
+	public Rule match(String name) {
+		for (Rule rule : rules) {
+			if (rule.name.equals("*") || rule.name.equals(name))
+				return rule;
+		}
+		return null;
+	}
+
+	/**
+	 * Get the delay of everything sent by the stub
+	 * @return the delay in ms, 0 if data is sent immediately
+	 */
+	public int getDelay() {
+		return delay;
+	}
+
+	/**
+	 * Get the stream features sent after every stream header
+	 * @return the serialized stream features
+	 */
+	public String getFeatures() {
+		return features;
+	}
+
+	/**
+	 * A single rule of the script
+	 */
+	public static class Rule {
+		private final String name;
+		private final int action;
+		private final String reply;
+
+		private Rule(String[] fields) {
+			name = fields[0];
+			String action = fields[1];
+			if ("echo".equals(action))
+				this.action = ECHO;
+			else if ("drop".equals(action))
+				this.action = DROP;
+			else if ("close".equals(action))
+				this.action = CLOSE;
+			else if ("reply".equals(action) && fields.length == 3)
+				this.action = REPLY;
+			else
+				throw new IllegalArgumentException(action);
+			reply = this.action == REPLY ? fields[2] : null;
+		}
+
+		/**
+		 * Get the action of the rule
+		 * @return one of ECHO, DROP, CLOSE and REPLY
+		 */
+		public int getAction() {
+			return action;
+		}
+
+		/**
+		 * Build the reply to a stanza
+		 * @param stanza the stanza received
+		 * @return the reply with "{id}" replaced by the id of the stanza
+		 */
+		public String getReply(String stanza) {
+			if (reply.indexOf("{id}") < 0)
+				return reply;
+			Matcher matcher = ID.matcher(stanza.substring(0, Math.max(stanza.indexOf('>'), 0)));
+			return reply.replace("{id}", matcher.find() ? matcher.group(1) : "");
+		}
+
+		/**
+		 * Check if the reply restarts the stream
+		 * @return true if the reply is a SASL success
+		 */
+		public boolean isRestart() {
+			return action == REPLY && reply.startsWith("<success");
+		}
+	}
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.bench;
+
+import i5.simpleXML.XMLSyntaxException;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+
+import de.rwth_aachen.dbis.wsxmppgateway.xml.XMLStreamFramer;
+
+/**
+ * A minimal XMPP server for benchmarks. It answers every opening stream tag with a stream header and stream features,
+ * answers stanzas as defined by a {@link StubScript} and closes the stream when the client does.
+ * By default every SASL authentication is accepted and all other stanzas are echoed.
+ * All connections are served by a single selector thread.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class StubXMPPServer implements Runnable {
+
+	private static final String STREAM_HEADER = "<?xml version='1.0'?><stream:stream xmlns='jabber:client' " +
+			"xmlns:stream='http://etherx.jabber.org/streams' id='stub' from='localhost' version='1.0'>";
+	private static final String STREAM_CLOSE = "</stream:stream>";
+
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64*1024);
+	private volatile boolean running = false;
+	private final StubScript script;
+	private final Queue<DelayedWrite> delayedWrites = new LinkedList<DelayedWrite>(); //ordered by due time since the delay is fixed
+
+	/**
+	 * Creates a stub server bound to the loopback interface that echoes stanzas
+	 * @param port the port to listen on, 0 to choose a free port
+	 * @throws IOException if the server socket cannot be bound
+	 */
+	public StubXMPPServer(int port) throws IOException {
+		this(port, true);
+	}
+
+	/**
+	 * Creates a stub server bound to the loopback interface
+	 * @param port the port to listen on, 0 to choose a free port
+	 * @param echo true to echo stanzas, false to drop them
+	 * @throws IOException if the server socket cannot be bound
+	 */
+	public StubXMPPServer(int port, boolean echo) throws IOException {
+		this(port, echo ? StubScript.ECHO_ALL : StubScript.DROP_ALL);
+	}
+
+	/**
+	 * Creates a stub server bound to the loopback interface
+	 * @param port the port to listen on, 0 to choose a free port
+	 * @param script defines how the stub answers stanzas
+	 * @throws IOException if the server socket cannot be bound
+	 */
+	public StubXMPPServer(int port, StubScript script) throws IOException {
+		this.script = script;
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress("127.0.0.1", port), 4096);
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Start serving connections in a daemon thread
+	 */
+	public void start() {
+		running = true;
+		Thread thread = new Thread(this, "stub-xmpp-server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop serving connections
+	 */
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Get the port the server listens on
+	 * @return the local port
+	 */
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				DelayedWrite next = delayedWrites.peek();
+				if (next == null)
+					selector.select();
+				else
+					selector.select(Math.max(1, next.due - System.currentTimeMillis()));
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else {
+						StubSession session = (StubSession)key.attachment();
+						try {
+							if (key.isReadable())
+								session.read();
+							if (key.isValid() && key.isWritable())
+								session.flush();
+						} catch (IOException e) {
+							session.close();
+						} catch (XMLSyntaxException e) {
+							session.close();
+						}
+					}
+				}
+				writeDelayed();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		for (SelectionKey key : selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			key.attach(new StubSession(key));
+		}
+	}
+
+	/**
+	 * Hand the delayed data that is due to the sessions
+	 */
+	private void writeDelayed() {
+		long now = System.currentTimeMillis();
+		DelayedWrite write;
+		while ((write = delayedWrites.peek()) != null && write.due <= now) {
+			delayedWrites.poll();
+			StubSession session = write.session;
+			if (!session.key.isValid())
+				continue; //connection has been closed in the meantime
+			if (write.data != null)
+				session.writeQueue.add(write.data);
+			else
+				session.closeAfterFlush = true;
+			try {
+				session.flush();
+			} catch (IOException e) {
+				session.close();
+			}
+		}
+	}
+
+	/**
+	 * Data to be written to a session once the delay of the script has elapsed
+	 */
+	private static class DelayedWrite {
+		private final long due;
+		private final StubSession session;
+		private final ByteBuffer data; //null to close the session
+
+		DelayedWrite(long due, StubSession session, ByteBuffer data) {
+			this.due = due;
+			this.session = session;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * State of a single connection to the stub server
+	 */
+	private class StubSession {
+		private final SelectionKey key;
+		private final SocketChannel channel;
+		private final XMLStreamFramer framer = new XMLStreamFramer();
+		private final Queue<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+		private boolean closeAfterFlush = false;
+
+		StubSession(SelectionKey key) {
+			this.key = key;
+			this.channel = (SocketChannel)key.channel();
+		}
+
+		void read() throws IOException, XMLSyntaxException {
+			readBuffer.clear();
+			if (channel.read(readBuffer) < 0) {
+				close();
+				return;
+			}
+			readBuffer.flip();
+			framer.feed(readBuffer);
+			int event;
+			while ((event = framer.next()) != XMLStreamFramer.NONE) {
+				switch (event) {
+				case XMLStreamFramer.ROOT_OPENED:
+					write(STREAM_HEADER + script.getFeatures());
+					break;
+				case XMLStreamFramer.STANZA:
+					StubScript.Rule rule = script.match(framer.getFrameName());
+					if (rule == null || rule.getAction() == StubScript.DROP)
+						break;
+					if (rule.getAction() == StubScript.ECHO) {
+						//copy the stanza since the framer reuses its buffer
+						byte[] stanza = new byte[framer.getFrameLength()];
+						System.arraycopy(framer.getBuffer(), framer.getFrameOffset(), stanza, 0, stanza.length);
+						send(ByteBuffer.wrap(stanza));
+					}
+					else if (rule.getAction() == StubScript.REPLY) {
+						write(rule.getReply(framer.getFrame()));
+						if (rule.isRestart())
+							framer.reset();
+					}
+					else {
+						write(STREAM_CLOSE);
+						send(null);
+					}
+					break;
+				case XMLStreamFramer.ROOT_CLOSED:
+					write(STREAM_CLOSE);
+					send(null);
+					break;
+				default:
+					break;
+				}
+			}
+			flush();
+		}
+
+		void write(String xml) throws UnsupportedEncodingException {
+			send(ByteBuffer.wrap(xml.getBytes("UTF-8")));
+		}
+
+		/**
+		 * Queue data to be written, delayed if the script says so
+		 * @param data the data, null to close the session after all data has been written
+		 */
+		void send(ByteBuffer data) {
+			if (script.getDelay() > 0)
+				delayedWrites.add(new DelayedWrite(System.currentTimeMillis() + script.getDelay(), this, data));
+			else if (data != null)
+				writeQueue.add(data);
+			else
+				closeAfterFlush = true;
+		}
+
+		void flush() throws IOException {
+			ByteBuffer buffer;
+			while ((buffer = writeQueue.peek()) != null) {
+				channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				writeQueue.poll();
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			if (closeAfterFlush)
+				close();
+		}
+
+		void close() {
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Run the stub server standalone
+	 * @param args the port to listen on (default is 5222) and the path of a {@link StubScript} (default echoes all stanzas)
+	 * @throws IOException if the server socket cannot be bound or the script cannot be read
+	 */
+	public static void main(String... args) throws IOException {
+		StubScript script = args.length > 1 ? StubScript.load(args[1]) : StubScript.ECHO_ALL;
+		StubXMPPServer server = new StubXMPPServer(args.length > 0 ? Integer.parseInt(args[0]) : 5222, script);
+		System.out.println("Stub XMPP server listening on 127.0.0.1:" + server.getPort());
+		server.running = true;
+		server.run();
+	}
+}
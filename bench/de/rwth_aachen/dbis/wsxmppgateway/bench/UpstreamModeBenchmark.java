@@ -0,0 +1,218 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.jetty.websocket.WebSocket.FrameConnection;
+
+import de.rwth_aachen.dbis.wsxmppgateway.connection.WsXMPPConnectionHandler;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamEngine;
+
+/**
+ * Compares the upstream engine modes. The benchmark drives WebSocket connection handlers in-process against a
+ * {@link StubXMPPServer} and reports thread count, resident set size and stanza throughput per number of sessions.
+ * The WebSocket side is replaced by stubs, so the numbers only contain the cost of the upstream engine.
+ *
+ * Usage: UpstreamModeBenchmark &lt;thread|virtual|nio&gt; [sessions,...] [stanzas per session]
+ * (default is 1000,10000,50000 sessions and 20 stanzas). Every session uses two file descriptors,
+ * so the open files limit (ulimit -n) has to be raised accordingly. Run each mode in a fresh JVM.
+ * Start with -Dxmppbatch=true to let the sessions accept several stanzas per message.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class UpstreamModeBenchmark {
+
+	private static final String OPENING_TAG = "<stream:stream to='localhost' xmlns='jabber:client' " +
+			"xmlns:stream='http://etherx.jabber.org/streams' version='1.0'>";
+	private static final String STANZA = "<message to='juliet@localhost' type='chat'><body>Wherefore art thou, Romeo?</body></message>";
+	private static final String CLOSING_TAG = "</stream:stream>";
+	private static final long TIMEOUT = 120; //sec
+
+	private final AtomicInteger streamsOpened = new AtomicInteger(0);
+	private final AtomicInteger stanzasReceived = new AtomicInteger(0);
+	private final AtomicInteger disconnects = new AtomicInteger(0);
+	private final AtomicInteger frames = new AtomicInteger(0);
+	private final int port;
+
+	private UpstreamModeBenchmark(int port) {
+		this.port = port;
+	}
+
+	public static void main(String... args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: UpstreamModeBenchmark <thread|virtual|nio> [sessions,...] [stanzas per session]");
+			System.exit(1);
+		}
+		String mode = args[0];
+		String[] sessionCounts = (args.length > 1 ? args[1] : "1000,10000,50000").split(",");
+		int stanzas = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+		StubXMPPServer server = new StubXMPPServer(0);
+		server.start();
+		UpstreamEngine.start(mode, 0);
+		System.out.println("mode=" + UpstreamEngine.getMode() + " stanzas/session=" + stanzas);
+		System.out.println("sessions\tos threads\tjava threads\trss (MB)\tsetup (ms)\tstanzas/s\tstanzas/frame");
+		for (String count : sessionCounts) {
+			UpstreamModeBenchmark benchmark = new UpstreamModeBenchmark(server.getPort());
+			benchmark.run(Integer.parseInt(count.trim()), stanzas);
+			System.gc();
+		}
+		UpstreamEngine.stop();
+		server.stop();
+		System.exit(0);
+	}
+
+	/**
+	 * Open the given number of sessions, send stanzas through all of them and close them again
+	 * @param sessions the number of concurrent sessions
+	 * @param stanzas the number of stanzas sent per session
+	 * @throws InterruptedException if the benchmark is interrupted
+	 */
+	private void run(int sessions, int stanzas) throws InterruptedException {
+		final WsXMPPConnectionHandler[] handlers = new WsXMPPConnectionHandler[sessions];
+		long setupStart = System.nanoTime();
+		for (int i = 0; i < sessions; i++) {
+			handlers[i] = new WsXMPPConnectionHandler(newRequest(i));
+			FrameConnection connection = newConnection();
+			handlers[i].onHandshake(connection);
+			handlers[i].onOpen(connection);
+			handlers[i].onMessage(OPENING_TAG);
+		}
+		if (!await(streamsOpened, sessions)) {
+			System.out.println(sessions + "\tfailed: only " + streamsOpened.get() + " streams opened");
+			return;
+		}
+		long setupTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - setupStart);
+		String[] status = readProcStatus();
+		int javaThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		//every driver thread sends the stanzas of its share of sessions, like a Jetty worker would
+		int drivers = Runtime.getRuntime().availableProcessors();
+		final int stanzasPerSession = stanzas;
+		final CountDownLatch done = new CountDownLatch(drivers);
+		int framesBefore = frames.get();
+		long sendStart = System.nanoTime();
+		for (int d = 0; d < drivers; d++) {
+			final int first = d;
+			final int step = drivers;
+			new Thread() {
+				@Override
+				public void run() {
+					for (int s = 0; s < stanzasPerSession; s++)
+						for (int i = first; i < handlers.length; i += step)
+							handlers[i].onMessage(STANZA);
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+		boolean complete = await(stanzasReceived, sessions * stanzas);
+		double seconds = (System.nanoTime() - sendStart) / 1e9;
+
+		System.out.println(sessions + "\t" + status[1] + "\t" + javaThreads + "\t" + status[0] + "\t" + setupTime + "\t" +
+				(complete ? String.valueOf((long)(sessions * stanzas / seconds)) : "failed: " + stanzasReceived.get() + " received") + "\t" +
+				String.format("%.1f", (double)stanzasReceived.get() / Math.max(1, frames.get() - framesBefore)));
+
+		for (WsXMPPConnectionHandler handler : handlers)
+			handler.onMessage(CLOSING_TAG);
+		await(disconnects, sessions);
+	}
+
+	/**
+	 * Wait until a counter reaches the expected value
+	 * @return true if the value has been reached before the timeout
+	 */
+	private boolean await(AtomicInteger counter, int expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT);
+		while (counter.get() < expected) {
+			if (System.currentTimeMillis() > deadline)
+				return false;
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	/**
+	 * Read resident set size and number of OS threads of this process (Linux only)
+	 * @return the resident set size in MB and the number of threads, "n/a" if not available
+	 */
+	private static String[] readProcStatus() {
+		String[] status = {"n/a", "n/a"};
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith("VmRSS:"))
+						status[0] = String.valueOf(Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024);
+					else if (line.startsWith("Threads:"))
+						status[1] = line.replaceAll("[^0-9]", "");
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			//not running on Linux
+		}
+		return status;
+	}
+
+	/**
+	 * Create the servlet request that performed the (simulated) upgrade. It directs the session to the stub server.
+	 */
+	private HttpServletRequest newRequest(int session) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("xmpphost", "127.0.0.1");
+		parameters.put("xmppport", String.valueOf(port));
+		if (System.getProperty("xmppbatch") != null)
+			parameters.put("xmppbatch", System.getProperty("xmppbatch"));
+		return JettyStubs.newRequest("session-" + session, parameters);
+	}
+
+	/**
+	 * Create a WebSocket connection that counts the messages sent to the client
+	 */
+	private FrameConnection newConnection() {
+		return JettyStubs.newConnection(new JettyStubs.Client() {
+			@Override
+			public void sent(String message, boolean frame) {
+				//stanzas are sent as text frames, possibly several in one frame
+				if (frame)
+					frames.incrementAndGet();
+				for (int i = message.indexOf("<message"); i >= 0; i = message.indexOf("<message", i + 1))
+					stanzasReceived.incrementAndGet();
+				if (message.startsWith("<stream:features"))
+					streamsOpened.incrementAndGet();
+			}
+
+			@Override
+			public void disconnected() {
+				disconnects.incrementAndGet();
+			}
+		});
+	}
+}
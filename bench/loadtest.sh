@@ -0,0 +1,55 @@
+#!/bin/bash
+#
+# End-to-end load test on the local machine: starts a stub XMPP server and a gateway that forwards all sessions
+# to it and runs the load generator against the gateway. Compile the gateway and the benchmarks first (ant bench).
+#
+# Usage: bench/loadtest.sh [sessions] [stanzas/s] [seconds] [stanza size] [upstream engine] [stub script]
+# (default is 1000 sessions, 1000 stanzas/s, 30 s, 128 bytes and engine nio)
+#
+# Every session uses three file descriptors in the gateway, raise the open files limit (ulimit -n) for large
+# session counts. Set JAVA_OPTS to pass options to the gateway JVM, e.g. JAVA_OPTS=-Xmx2g.
+
+SESSIONS=${1:-1000}
+RATE=${2:-1000}
+DURATION=${3:-30}
+SIZE=${4:-128}
+ENGINE=${5:-nio}
+SCRIPT=$6
+WS_PORT=${WS_PORT:-18080}
+XMPP_PORT=${XMPP_PORT:-15222}
+
+HOME_DIR=$(cd "$(dirname "$0")/.." && pwd)
+WORK=$HOME_DIR/temp/loadtest
+CP=$HOME_DIR/temp/classes:$HOME_DIR/temp/bench-classes:$HOME_DIR/lib/*
+
+if [ ! -d "$HOME_DIR/temp/bench-classes" ]; then
+	echo "Benchmarks not compiled, run 'ant bench' first" >&2
+	exit 1
+fi
+
+#gateway configuration: plain WebSocket port only, every domain is forwarded to the stub, little logging
+rm -rf "$WORK"
+mkdir -p "$WORK/conf" "$WORK/log"
+sed -e "s#<entry key=\"Port\">[^<]*<#<entry key=\"Port\">$WS_PORT<#" \
+	-e "s#<entry key=\"SSLport\">[^<]*<#<entry key=\"SSLport\">-1<#" \
+	-e "s#<entry key=\"UpstreamEngine\">[^<]*<#<entry key=\"UpstreamEngine\">$ENGINE<#" \
+	-e "s#<entry key=\"AliasesReload\">[^<]*<#<entry key=\"AliasesReload\">0<#" \
+	"$HOME_DIR/conf/server.xml" > "$WORK/conf/server.xml"
+echo "*=127.0.0.1:$XMPP_PORT" > "$WORK/conf/aliases.conf"
+sed -e "s#^log4j.rootLogger=.*#log4j.rootLogger=WARN, file#" "$HOME_DIR/conf/log4j.properties" > "$WORK/conf/log4j.properties"
+
+cd "$WORK"
+java -cp "$CP" de.rwth_aachen.dbis.wsxmppgateway.bench.StubXMPPServer $XMPP_PORT $SCRIPT > stub.out 2>&1 &
+STUB_PID=$!
+java $JAVA_OPTS -cp "$CP:$WORK/conf" de.rwth_aachen.dbis.wsxmppgateway.WebSocketXmppGateway > gateway.out 2>&1 &
+GATEWAY_PID=$!
+trap 'kill $STUB_PID $GATEWAY_PID 2>/dev/null' EXIT INT TERM
+
+#wait until the gateway accepts connections
+for i in $(seq 1 50); do
+	(echo > /dev/tcp/127.0.0.1/$WS_PORT) 2>/dev/null && break
+	sleep 0.2
+done
+
+java -cp "$CP:$WORK/conf" de.rwth_aachen.dbis.wsxmppgateway.bench.LoadGenerator "ws://127.0.0.1:$WS_PORT/" \
+	$SESSIONS $RATE $DURATION $SIZE $GATEWAY_PID
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.check;
+
+import i5.simpleXML.XMLSyntaxException;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.rwth_aachen.dbis.wsxmppgateway.xml.StanzaChecker;
+import de.rwth_aachen.dbis.wsxmppgateway.xml.XMLStreamFramer;
+
+/**
+ * Table-driven checks of the XML scanners on the stanza path. {@link StanzaChecker} is run against stanzas that
+ * have to be accepted and stanzas that have to be rejected. {@link XMLStreamFramer} is fed streams byte by byte,
+ * so every frame kind is split at every possible position, and in a single chunk. Both runs have to report the
+ * same frames. Exits with status 1 if a check fails.
+ *
+ * Usage: XmlChecks
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class XmlChecks {
+
+	private static final String HEADER = "<?xml version='1.0'?>";
+	private static final String OPENING_TAG = "<stream:stream to='localhost' xmlns='jabber:client' " +
+			"xmlns:stream='http://etherx.jabber.org/streams' version='1.0'>";
+	private static final String CLOSING_TAG = "</stream:stream>";
+
+	//stanzas StanzaChecker has to accept
+	private static final String[] WELL_FORMED = {
+		"<presence/>",
+		"  <presence/>\r\n\t",
+		"<message to='juliet@localhost' type=\"chat\"><body>Wherefore art thou, Romeo?</body></message>",
+		"<iq type='get' id='1'><query xmlns='jabber:iq:roster'/></iq>",
+		"<message><body>a &amp; b &lt; c &gt; d &quot;&apos; &#60; &#x3C;</body></message>",
+		"<message><body><![CDATA[<not a tag> & </message>]]></body></message>",
+		"<a b='&quot;&#x27;' c=\"'\" d='\"'/>",
+		"<a\n\tb = '1'\n/>",
+		"<stream:features xmlns:stream='http://etherx.jabber.org/streams'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/></stream:features>",
+		"<a></a >",
+		"<\u00fc b='\u00f6'>\u00e4\u20ac</\u00fc>",
+		"<a_-.1 x:y='1'/>",
+		nested(40),
+		"<a a1='' a2='' a3='' a4='' a5='' a6='' a7='' a8='' a9='' a10='' a11=''/>",
+	};
+
+	//stanzas StanzaChecker has to reject
+	private static final String[] MALFORMED = {
+		"",
+		"   ",
+		"text",
+		"<a>",
+		"<a",
+		"<a></b>",
+		"<a><b></a></b>",
+		"</a>",
+		"<a/><b/>",
+		"<a/>text",
+		"text<a/>",
+		"<a b=1/>",
+		"<a b/>",
+		"<a b='1'c='2'/>",
+		"<a b='1' b='2'/>",
+		"<a b='<'/>",
+		"<a b='1/>",
+		"<a / >",
+		"<1a/>",
+		"<a>&foo;</a>",
+		"<a>&amp</a>",
+		"<a>&#;</a>",
+		"<a>&#x;</a>",
+		"<a>&#12a;</a>",
+		"<a><!-- comment --></a>",
+		"<a><?pi data?></a>",
+		"<?xml version='1.0'?><a/>",
+		"<!DOCTYPE a><a/>",
+		"<![CDATA[x]]>",
+		"<a><![CDATA[x</a>",
+		nested(40).substring(1),
+	};
+
+	//streams fed to XMLStreamFramer and the frames it has to report, each as event, frame, name and namespace
+	private static final Object[][] STREAMS = {
+		{
+			HEADER + OPENING_TAG + "<presence/>" + CLOSING_TAG,
+			new Object[] {XMLStreamFramer.HEADER, HEADER, null, null},
+			new Object[] {XMLStreamFramer.ROOT_OPENED, OPENING_TAG, null, null},
+			new Object[] {XMLStreamFramer.STANZA, "<presence/>", "presence", null},
+			new Object[] {XMLStreamFramer.ROOT_CLOSED, CLOSING_TAG, null, null},
+		},
+		{
+			//whitespace keep-alives between frames and a comment before a stanza are not reported
+			" \n" + HEADER + "\n" + OPENING_TAG + " \r\n\t<!-- c -- > -->" +
+			"<message type='chat'><body>a &amp; b</body></message>\n \n" +
+			"<iq type='get' id='1'><query xmlns='jabber:iq:roster'/></iq>" +
+			"<auth xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\" mechanism='PLAIN'>AGp1bGlldAByMG0zMA==</auth>" +
+			"<stream:features><starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'><required/></starttls></stream:features>" +
+			" " + CLOSING_TAG,
+			new Object[] {XMLStreamFramer.HEADER, HEADER, null, null},
+			new Object[] {XMLStreamFramer.ROOT_OPENED, OPENING_TAG, null, null},
+			new Object[] {XMLStreamFramer.STANZA, "<message type='chat'><body>a &amp; b</body></message>", "message", null},
+			new Object[] {XMLStreamFramer.STANZA, "<iq type='get' id='1'><query xmlns='jabber:iq:roster'/></iq>", "iq", null},
+			new Object[] {XMLStreamFramer.STANZA, "<auth xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\" mechanism='PLAIN'>AGp1bGlldAByMG0zMA==</auth>",
+					"auth", "urn:ietf:params:xml:ns:xmpp-sasl"},
+			new Object[] {XMLStreamFramer.STANZA, "<stream:features><starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'><required/></starttls></stream:features>",
+					"stream:features", null},
+			new Object[] {XMLStreamFramer.ROOT_CLOSED, CLOSING_TAG, null, null},
+		},
+		{
+			//markup characters in attribute values, CDATA sections and nested processing instructions do not end a stanza
+			OPENING_TAG +
+			"<message to='a>b' xmlns='jabber:client' id=\"x'/>\"><body><![CDATA[</message> ]] > ]]></body><?pi ?></message>" +
+			"<r xmlns='urn:xmpp:sm:3' h='1'/>",
+			new Object[] {XMLStreamFramer.ROOT_OPENED, OPENING_TAG, null, null},
+			new Object[] {XMLStreamFramer.STANZA, "<message to='a>b' xmlns='jabber:client' id=\"x'/>\"><body><![CDATA[</message> ]] > ]]></body><?pi ?></message>",
+					"message", "jabber:client"},
+			new Object[] {XMLStreamFramer.STANZA, "<r xmlns='urn:xmpp:sm:3' h='1'/>", "r", "urn:xmpp:sm:3"},
+		},
+		{
+			//multi-byte UTF-8 characters are split between feeds as well
+			OPENING_TAG + "<message><body>\u00fc\u20ac\ud83d\ude00</body></message><pr\u00e4sence/>",
+			new Object[] {XMLStreamFramer.ROOT_OPENED, OPENING_TAG, null, null},
+			new Object[] {XMLStreamFramer.STANZA, "<message><body>\u00fc\u20ac\ud83d\ude00</body></message>", "message", null},
+			new Object[] {XMLStreamFramer.STANZA, "<pr\u00e4sence/>", "pr\u00e4sence", null},
+		},
+	};
+
+	//streams XMLStreamFramer has to reject
+	private static final String[] MALFORMED_STREAMS = {
+		"text" + OPENING_TAG,
+		"</stream:stream>",
+		"<stream:stream/>",
+		"<!DOCTYPE stream>" + OPENING_TAG,
+		OPENING_TAG + "text<presence/>",
+		OPENING_TAG + "<presence/>text",
+		OPENING_TAG + "<![CDATA[x]]>",
+	};
+
+	private static int checks = 0;
+	private static final List<String> failures = new ArrayList<String>();
+
+	public static void main(String[] args) throws XMLSyntaxException {
+		for (String stanza : WELL_FORMED)
+			checkStanza(stanza, true);
+		for (String stanza : MALFORMED)
+			checkStanza(stanza, false);
+		for (Object[] stream : STREAMS) {
+			byte[] bytes = encode((String) stream[0]);
+			List<Object[]> expected = new ArrayList<Object[]>();
+			for (int i = 1; i < stream.length; i++)
+				expected.add((Object[]) stream[i]);
+			checkFrames(bytes, 1, expected);
+			checkFrames(bytes, bytes.length, expected);
+		}
+		for (String stream : MALFORMED_STREAMS) {
+			byte[] bytes = encode(stream);
+			checkRejected(bytes, 1);
+			checkRejected(bytes, bytes.length);
+		}
+		checkRestart();
+
+		for (String failure : failures)
+			System.out.println("FAILED: " + failure);
+		System.out.println(checks + " checks, " + failures.size() + " failed");
+		if (!failures.isEmpty())
+			System.exit(1);
+	}
+
+	//******************** StanzaChecker ********************//
+
+	private static void checkStanza(String stanza, boolean wellFormed) {
+		checks++;
+		try {
+			StanzaChecker.check(stanza);
+			if (!wellFormed)
+				failures.add("StanzaChecker accepted " + quote(stanza));
+		} catch (XMLSyntaxException e) {
+			if (wellFormed)
+				failures.add("StanzaChecker rejected " + quote(stanza) + ": " + e.getMessage());
+		}
+	}
+
+	//******************** XMLStreamFramer ********************//
+
+	/**
+	 * Feed a stream in chunks and compare the reported frames with the expected ones
+	 * @param bytes the stream
+	 * @param chunk the number of bytes fed at once
+	 * @param expected event, frame, name and namespace of every expected frame
+	 */
+	private static void checkFrames(byte[] bytes, int chunk, List<Object[]> expected) {
+		checks++;
+		String stream = decode(bytes);
+		List<Object[]> frames = new ArrayList<Object[]>();
+		XMLStreamFramer framer = new XMLStreamFramer(16); //small capacity to check growing and compacting as well
+		try {
+			for (int offset = 0; offset < bytes.length; offset += chunk) {
+				framer.feed(bytes, offset, Math.min(chunk, bytes.length - offset));
+				int event;
+				while ((event = framer.next()) != XMLStreamFramer.NONE)
+					frames.add(frame(framer, event));
+			}
+		} catch (XMLSyntaxException e) {
+			failures.add("XMLStreamFramer rejected " + quote(stream) + " fed in chunks of " + chunk + " bytes: " + e.getMessage());
+			return;
+		}
+		if (frames.size() != expected.size()) {
+			failures.add("XMLStreamFramer reported " + frames.size() + " instead of " + expected.size() + " frames for " + quote(stream) +
+					" fed in chunks of " + chunk + " bytes");
+			return;
+		}
+		for (int i = 0; i < frames.size(); i++) {
+			if (!equals(frames.get(i), expected.get(i)))
+				failures.add("XMLStreamFramer reported " + describe(frames.get(i)) + " instead of " + describe(expected.get(i)) +
+						" fed in chunks of " + chunk + " bytes");
+		}
+	}
+
+	/**
+	 * Feed a malformed stream in chunks and check that it is rejected
+	 * @param bytes the stream
+	 * @param chunk the number of bytes fed at once
+	 */
+	private static void checkRejected(byte[] bytes, int chunk) {
+		checks++;
+		XMLStreamFramer framer = new XMLStreamFramer(16);
+		try {
+			for (int offset = 0; offset < bytes.length; offset += chunk) {
+				framer.feed(bytes, offset, Math.min(chunk, bytes.length - offset));
+				while (framer.next() != XMLStreamFramer.NONE);
+			}
+		} catch (XMLSyntaxException e) {
+			return;
+		}
+		failures.add("XMLStreamFramer accepted " + quote(decode(bytes)) + " fed in chunks of " + chunk + " bytes");
+	}
+
+	/**
+	 * Restart the stream like after SASL authentication, bytes of the new stream fed with the old one are kept
+	 */
+	private static void checkRestart() throws XMLSyntaxException {
+		checks++;
+		byte[] bytes = encode(OPENING_TAG + "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>" + OPENING_TAG + "<presence/>");
+		XMLStreamFramer framer = new XMLStreamFramer(16);
+		framer.feed(bytes, 0, bytes.length);
+		int[] events = new int[4];
+		events[0] = framer.next();
+		events[1] = framer.next();
+		if (framer.isFrameName("success") && framer.isFrameNamespace("urn:ietf:params:xml:ns:xmpp-sasl"))
+			framer.reset();
+		events[2] = framer.next();
+		events[3] = framer.next();
+		if (events[0] != XMLStreamFramer.ROOT_OPENED || events[1] != XMLStreamFramer.STANZA || events[2] != XMLStreamFramer.ROOT_OPENED ||
+				events[3] != XMLStreamFramer.STANZA || !framer.isFrameName("presence") || framer.getDepth() != 1)
+			failures.add("XMLStreamFramer did not restart the stream after reset()");
+	}
+
+	private static Object[] frame(XMLStreamFramer framer, int event) {
+		if (event != XMLStreamFramer.STANZA)
+			return new Object[] {event, framer.getFrame(), null, null};
+		//the ASCII comparison must agree with the decoded name
+		if (isAscii(framer.getFrameName()) && !framer.isFrameName(framer.getFrameName()))
+			failures.add("XMLStreamFramer.isFrameName() does not match " + framer.getFrameName());
+		return new Object[] {event, framer.getFrame(), framer.getFrameName(), framer.getFrameNamespace()};
+	}
+
+	//******************** Helper ********************//
+
+	/**
+	 * Build a stanza nested deeper than the initial capacity of the element stack of StanzaChecker
+	 */
+	private static String nested(int depth) {
+		StringBuilder stanza = new StringBuilder();
+		for (int i = 0; i < depth; i++)
+			stanza.append("<e").append(i).append('>');
+		for (int i = depth - 1; i >= 0; i--)
+			stanza.append("</e").append(i).append('>');
+		return stanza.toString();
+	}
+
+	private static boolean equals(Object[] a, Object[] b) {
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] == null ? b[i] != null : !a[i].equals(b[i]))
+				return false;
+		}
+		return true;
+	}
+
+	private static String describe(Object[] frame) {
+		return "(" + frame[0] + ", " + quote((String) frame[1]) + ", " + frame[2] + ", " + frame[3] + ")";
+	}
+
+	private static String quote(String s) {
+		return "\"" + s.replace("\r", "\\r").replace("\n", "\\n").replace("\t", "\\t") + "\"";
+	}
+
+	private static boolean isAscii(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) >= 0x80)
+				return false;
+		}
+		return true;
+	}
+
+	private static String decode(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e); //UTF-8 is supported by every JVM
+		}
+	}
+
+	private static byte[] encode(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e); //UTF-8 is supported by every JVM
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Jetty handler that starts draining the gateway when a POST request arrives at a fixed path.
+ * Only requests from the loopback interface are accepted. The gateway exits once all sessions have been closed.
+ * All other requests are passed to the wrapped handler.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class DrainHandler extends HandlerWrapper {
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(DrainHandler.class);
+
+	private final String path;
+
+	/**
+	 * Creates a new drain handler
+	 * @param path the path that starts the drain, e.g. "/drain"
+	 */
+	public DrainHandler(String path) {
+		this.path = path;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException {
+		if (!path.equals(target)) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+		baseRequest.setHandled(true);
+		if (!"POST".equals(request.getMethod())) {
+			response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+		if (!InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress()) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		int sessions = WebSocketXmppGateway.getSessions().size();
+		logger.info(request.getRemoteAddr() + " - drain requested");
+		Thread drain = new Thread("wxg-drain") {
+			@Override
+			public void run() {
+				WebSocketXmppGateway.drain();
+				System.exit(0);
+			}
+		};
+		drain.start();
+		response.setStatus(HttpServletResponse.SC_ACCEPTED);
+		response.setContentType("text/plain; charset=utf-8");
+		response.getWriter().write("draining " + sessions + " sessions\n");
+	}
+}
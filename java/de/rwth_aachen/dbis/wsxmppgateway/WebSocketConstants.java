@@ -27,5 +27,9 @@ public class WebSocketConstants {
 	public static final int CLOSE_PROTOCOL_ERROR = 1002;
 	public static final int CLOSE_WRONG_ENCODING = 1003;
 	public static final int CLOSE_MESSAGESIZE_EXCEEDED = 1004;
+	public static final int CLOSE_POLICY_VIOLATION = 1008;
+	
+	public static final byte OP_PING = 0x09;
+	public static final byte OP_PONG = 0x0A;
 
 }
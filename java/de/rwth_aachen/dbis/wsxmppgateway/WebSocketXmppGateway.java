@@ -16,30 +16,47 @@
  */
 package de.rwth_aachen.dbis.wsxmppgateway;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.http.HttpServletRequest;
 
-import org.eclipse.jetty.http.ssl.SslContextFactory;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.ResourceHandler;
-import org.eclipse.jetty.server.nio.SelectChannelConnector;
-import org.eclipse.jetty.server.ssl.SslSelectChannelConnector;
 import org.eclipse.jetty.websocket.WebSocket;
 import org.eclipse.jetty.websocket.WebSocketHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.rwth_aachen.dbis.wsxmppgateway.cluster.Cluster;
+import de.rwth_aachen.dbis.wsxmppgateway.connection.PerMessageDeflateExtension;
+import de.rwth_aachen.dbis.wsxmppgateway.connection.SessionRegistry;
 import de.rwth_aachen.dbis.wsxmppgateway.connection.WsXMPPConnectionHandler;
+import de.rwth_aachen.dbis.wsxmppgateway.error.StreamError;
+import de.rwth_aachen.dbis.wsxmppgateway.metrics.GatewayMetrics;
+import de.rwth_aachen.dbis.wsxmppgateway.metrics.MetricsHandler;
+import de.rwth_aachen.dbis.wsxmppgateway.metrics.WireTrace;
+import de.rwth_aachen.dbis.wsxmppgateway.threading.ThreadingModel;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.ConnectionPool;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.DnsResolver;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.LoadBalancer;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.RoutingTable;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamCompression;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamEngine;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamTls;
 
 /**
  * This class is the main class of the WebSocket XMPP gateway. It starts a Jetty HTTP servlet server with connectors and handlers.
@@ -51,17 +68,85 @@ public class WebSocketXmppGateway extends Server {
 	private static final String		DEFAULT_CONFIG_FILE = "conf/server.xml";
 	private static final String		DEFAULT_ALIASES_FILE ="conf/aliases.conf";
 	private static final int		DEFAULT_TIMEOUT = 5*60*1000; //5 min
+	private static final int		DEFAULT_CONNECT_TIMEOUT = 10*1000; //10 sec
+	private static final int		DEFAULT_HANDSHAKE_TIMEOUT = 20*1000; //20 sec
+	private static final int		DEFAULT_CLIENT_PING_INTERVAL = 30*1000; //30 sec
+	private static final int		DEFAULT_CLIENT_PING_TIMEOUT = 10*1000; //10 sec
+	private static final int		DEFAULT_UPSTREAM_KEEPALIVE = 60*1000; //1 min
 	private static final String		DEFAULT_DOC_ROOT = "www";
 	private static final boolean	DEFAULT_LIST_DIRECTORIES = false;
+	private static final String		DEFAULT_UPSTREAM_ENGINE = UpstreamEngine.MODE_NIO;
+	private static final int		DEFAULT_UPSTREAM_SELECTORS = 0; //one per available processor
+	private static final String		DEFAULT_CLIENT_STANZA_MODE = WsXMPPConnectionHandler.STANZA_MODE_CHECK;
+	private static final int		DEFAULT_OUTBOUND_FLUSH_DELAY = 0; //write when a burst from the XMPP server has been processed
+	private static final int		DEFAULT_OUTBOUND_FLUSH_BYTES = 16*1024;
+	private static final int		DEFAULT_SESSION_QUEUE_LIMIT = 1024*1024; //1 MB
+	private static final int		DEFAULT_SESSION_QUEUE_RESUME = 256*1024;
+	private static final int		DEFAULT_BACKPRESSURE_TIMEOUT = 30*1000; //30 sec
+	private static final int		DEFAULT_CLIENT_WRITE_TIMEOUT = 5*1000; //5 sec
+	private static final boolean	DEFAULT_CLIENT_COMPRESSION = true;
+	private static final boolean	DEFAULT_CLIENT_COMPRESSION_CONTEXT_TAKEOVER = true;
+	private static final int		DEFAULT_CLIENT_COMPRESSION_MEMORY = 64*1024; //inflater of the client only
+	private static final int		DEFAULT_CLIENT_COMPRESSION_MIN_SIZE = 256;
+	private static final boolean	DEFAULT_STREAM_MANAGEMENT = true;
+	private static final int		DEFAULT_STREAM_RESUME_TIMEOUT = 5*60*1000; //5 min
+	private static final int		DEFAULT_STREAM_RESUME_QUEUE_LIMIT = 256*1024;
+	private static final int		DEFAULT_UPSTREAM_FLUSH_DELAY = 0; //write as soon as no other write is in progress
+	private static final int		DEFAULT_UPSTREAM_POOL_SIZE = 0; //no pooled connections
+	private static final int		DEFAULT_UPSTREAM_POOL_IDLE = 30*1000; //30 sec
+	private static final String		DEFAULT_UPSTREAM_TLS = UpstreamTls.MODE_OPTIONAL;
+	private static final String		DEFAULT_UPSTREAM_TRUST_STORE = ""; //trusted certificates of the JVM
+	private static final boolean	DEFAULT_UPSTREAM_TLS_VERIFY = true;
+	private static final int		DEFAULT_UPSTREAM_TLS_CACHE_SIZE = 10000;
+	private static final int		DEFAULT_UPSTREAM_TLS_CACHE_TIMEOUT = 24*60*60; //1 day in s
+	private static final boolean	DEFAULT_UPSTREAM_COMPRESSION = false;
+	private static final int		DEFAULT_UPSTREAM_COMPRESSION_LEVEL = 1; //fastest
+	private static final String		DEFAULT_UPSTREAM_COMPRESSION_FLUSH = UpstreamCompression.FLUSH_SYNC;
+	private static final String		DEFAULT_DNS_SERVER = ""; //first nameserver in /etc/resolv.conf
+	private static final int		DEFAULT_ALIASES_RELOAD = 5*1000; //5 sec
+	private static final String		DEFAULT_UPSTREAM_BALANCING = LoadBalancer.BALANCING_P2C;
+	private static final int		DEFAULT_UPSTREAM_EJECT_FAILURES = 3;
+	private static final int		DEFAULT_UPSTREAM_PROBE_INTERVAL = 5*1000; //5 sec
+	private static final String		DEFAULT_METRICS_PATH = "/metrics";
+	private static final int		DEFAULT_DRAIN_WINDOW = 30*1000; //30 sec
+	private static final String		DEFAULT_DRAIN_REDIRECT = ""; //close sessions with system-shutdown
+	private static final String		DEFAULT_DRAIN_PATH = ""; //no admin endpoint
+	private static final int		DEFAULT_WIRE_TRACE_SAMPLING = 0; //no sampled sessions
+	private static final String		DEFAULT_WIRE_TRACE_CLIENTS = ""; //no listed clients
+	private static final String		DEFAULT_WIRE_TRACE_FILE = "log/wire.log";
+	private static final int		DEFAULT_WIRE_TRACE_BUFFER = 8192;
+	private static final int		DEFAULT_WIRE_TRACE_MAX_PAYLOAD = 4096;
+	private static final String		DEFAULT_CLUSTER_MEMBERS = ""; //no cluster
+	private static final String		DEFAULT_CLUSTER_MEMBERS_FILE = ""; //no cluster
+	private static final String		DEFAULT_CLUSTER_NODE = ""; //Host and Port of this gateway, localhost if no Host is set
+	private static final int		DEFAULT_CLUSTER_GOSSIP_INTERVAL = 1000; //1 sec
+	private static final int		DEFAULT_CLUSTER_FAIL_TIMEOUT = 5*1000; //5 sec
+	private static final int		DEFAULT_CLUSTER_LOAD_FACTOR = 125; //125% of the average load
+	private static final boolean	DEFAULT_CLUSTER_REBALANCE = true;
+	private static final String		DEFAULT_CLUSTER_SECRET = ""; //gossip is not authenticated
+	private static final int		DEFAULT_LISTENER_SHARDS = 1; //a single listener per port
+	private static final int		DEFAULT_LISTENER_SELECTORS = 0; //available processors shared among the listeners
+	private static final int		DEFAULT_WORKER_THREADS = 0; //sized from the measured blocking
+	private static final int		DEFAULT_WORKER_THREADS_LIMIT = 254; //Jetty's default maximum
+	
+	private static final int		DRAIN_INTERVAL = 100; //ms between two batches of sessions closed by a drain
+	private static final int		BACKPRESSURE_CHECK_INTERVAL = 1000; //ms between two checks for stalled sessions
+	private static final int		DRAIN_GRACE = 5*1000; //time in ms sessions opened during a drain are waited for
 	
 	//******************** private static configuration switches ********************//
 	private static String configFile = DEFAULT_CONFIG_FILE;
 	private static String aliasesFile = DEFAULT_ALIASES_FILE;
+	private static int aliasesReload = DEFAULT_ALIASES_RELOAD; //interval in ms the aliases file is checked for changes, 0 to disable
 	
 	private static String hostname = null;
 	private static int webSocketPort = -1;
 	private static int sslWebSocketPort = -1;
-	private static int timeout = DEFAULT_TIMEOUT; //connection timeout in ms
+	private static int timeout = DEFAULT_TIMEOUT; //time in ms an XMPP server may be silent, 0 for no limit
+	private static int connectTimeout = DEFAULT_CONNECT_TIMEOUT; //timeout for connects to XMPP servers in ms
+	private static int handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT; //time in ms a client may take to open the stream, 0 for no limit
+	private static int clientPingInterval = DEFAULT_CLIENT_PING_INTERVAL; //time in ms a client may be silent before it is pinged, 0 to disable pings
+	private static int clientPingTimeout = DEFAULT_CLIENT_PING_TIMEOUT; //time in ms a pinged client may take to answer
+	private static int upstreamKeepalive = DEFAULT_UPSTREAM_KEEPALIVE; //time in ms without data to an XMPP server before a whitespace keepalive, 0 to disable
 	
 	private static String keyStorePath = null;
 	private static String keyStorePassword = null;
@@ -69,24 +154,136 @@ public class WebSocketXmppGateway extends Server {
 	private static String docRoot = DEFAULT_DOC_ROOT;
 	private static boolean listDirectories = DEFAULT_LIST_DIRECTORIES;
 	
+	private static String upstreamEngine = DEFAULT_UPSTREAM_ENGINE;
+	private static int upstreamSelectors = DEFAULT_UPSTREAM_SELECTORS;
+	private static String clientStanzaMode = DEFAULT_CLIENT_STANZA_MODE; //handling of stanzas received from clients
+	private static int outboundFlushDelay = DEFAULT_OUTBOUND_FLUSH_DELAY; //maximum delay of stanzas sent to clients in ms
+	private static int outboundFlushBytes = DEFAULT_OUTBOUND_FLUSH_BYTES; //queued bytes that cause a write to a client
+	private static int sessionQueueLimit = DEFAULT_SESSION_QUEUE_LIMIT; //queued bytes per session and direction that stop the sender
+	private static int sessionQueueResume = DEFAULT_SESSION_QUEUE_RESUME; //queued bytes below which a stopped sender continues
+	private static int backpressureTimeout = DEFAULT_BACKPRESSURE_TIMEOUT; //time in ms a session may stay stopped, 0 for no limit
+	private static int clientWriteTimeout = DEFAULT_CLIENT_WRITE_TIMEOUT; //time in ms a write to a client may block, 0 for the backpressure timeout
+	private static boolean clientCompression = DEFAULT_CLIENT_COMPRESSION; //true, if permessage-deflate is accepted from clients
+	private static boolean clientCompressionContextTakeover = DEFAULT_CLIENT_COMPRESSION_CONTEXT_TAKEOVER; //true, if windows are kept between messages
+	private static int clientCompressionMemory = DEFAULT_CLIENT_COMPRESSION_MEMORY; //bytes per session for the deflater and inflater kept between messages
+	private static int clientCompressionMinSize = DEFAULT_CLIENT_COMPRESSION_MIN_SIZE; //messages to clients below this size in bytes are not compressed
+	private static boolean streamManagement = DEFAULT_STREAM_MANAGEMENT; //true, if the gateway answers stream management (XEP-0198) itself
+	private static int streamResumeTimeout = DEFAULT_STREAM_RESUME_TIMEOUT; //time in ms a session is kept for a disconnected client, 0 to disable resumption
+	private static int streamResumeQueueLimit = DEFAULT_STREAM_RESUME_QUEUE_LIMIT; //bytes of unacknowledged stanzas kept per session for the resumption
+	private static int upstreamFlushDelay = DEFAULT_UPSTREAM_FLUSH_DELAY; //maximum delay of data sent to XMPP servers in ms
+	private static int upstreamPoolSize = DEFAULT_UPSTREAM_POOL_SIZE; //maximum number of pooled connections per aliased XMPP server
+	private static int upstreamPoolIdle = DEFAULT_UPSTREAM_POOL_IDLE; //time in ms after that pooled connections are closed
+	private static String upstreamTls = DEFAULT_UPSTREAM_TLS; //STARTTLS negotiated with XMPP servers
+	private static String upstreamTrustStore = DEFAULT_UPSTREAM_TRUST_STORE; //keystore with the certificates trusted for XMPP servers
+	private static String upstreamTrustStorePassword = null;
+	private static boolean upstreamTlsVerify = DEFAULT_UPSTREAM_TLS_VERIFY; //true, if certificates of XMPP servers are verified
+	private static int upstreamTlsCacheSize = DEFAULT_UPSTREAM_TLS_CACHE_SIZE; //maximum number of TLS sessions cached for resumption
+	private static int upstreamTlsCacheTimeout = DEFAULT_UPSTREAM_TLS_CACHE_TIMEOUT; //time in s a cached TLS session may be resumed
+	private static boolean upstreamCompression = DEFAULT_UPSTREAM_COMPRESSION; //true, if stream compression is negotiated with XMPP servers
+	private static int upstreamCompressionLevel = DEFAULT_UPSTREAM_COMPRESSION_LEVEL; //zlib compression level from 0 to 9
+	private static String upstreamCompressionFlush = DEFAULT_UPSTREAM_COMPRESSION_FLUSH; //flush at the end of every write to an XMPP server
+	private static String dnsServer = DEFAULT_DNS_SERVER; //nameserver for SRV lookups of XMPP servers
+	private static String upstreamBalancing = DEFAULT_UPSTREAM_BALANCING; //selection of the XMPP server among the targets of a route
+	private static int upstreamEjectFailures = DEFAULT_UPSTREAM_EJECT_FAILURES; //failed connects in a row after that an XMPP server is ejected
+	private static int upstreamProbeInterval = DEFAULT_UPSTREAM_PROBE_INTERVAL; //interval in ms ejected XMPP servers are probed
+	private static String metricsPath = DEFAULT_METRICS_PATH; //path the metrics are served at, empty to disable
+	private static int drainWindow = DEFAULT_DRAIN_WINDOW; //time in ms the sessions are closed within on shutdown
+	private static String drainRedirect = DEFAULT_DRAIN_REDIRECT; //host sent with see-other-host on shutdown, empty for system-shutdown
+	private static String drainPath = DEFAULT_DRAIN_PATH; //path a POST request starts the drain at, empty to disable
+	private static int wireTraceSampling = DEFAULT_WIRE_TRACE_SAMPLING; //every n-th session is traced, 0 to disable sampling
+	private static String wireTraceClients = DEFAULT_WIRE_TRACE_CLIENTS; //comma separated addresses of clients that are always traced
+	private static String wireTraceFile = DEFAULT_WIRE_TRACE_FILE; //file the wire trace is appended to
+	private static int wireTraceBuffer = DEFAULT_WIRE_TRACE_BUFFER; //records held until the trace writer takes them, a power of two
+	private static int wireTraceMaxPayload = DEFAULT_WIRE_TRACE_MAX_PAYLOAD; //bytes of a message that are traced
+	private static String clusterMembers = DEFAULT_CLUSTER_MEMBERS; //comma separated addresses (host:port) of the cluster members
+	private static String clusterMembersFile = DEFAULT_CLUSTER_MEMBERS_FILE; //file with one member address per line, reloaded when changed
+	private static String clusterNode = DEFAULT_CLUSTER_NODE; //address of this gateway as known to the other members
+	private static int clusterGossipInterval = DEFAULT_CLUSTER_GOSSIP_INTERVAL; //interval in ms the load is gossiped
+	private static int clusterFailTimeout = DEFAULT_CLUSTER_FAIL_TIMEOUT; //time in ms after that a silent member has failed
+	private static int clusterLoadFactor = DEFAULT_CLUSTER_LOAD_FACTOR; //load in percent of the average a member may take, 0 for no bound
+	private static boolean clusterRebalance = DEFAULT_CLUSTER_REBALANCE; //true, if sessions are moved to members that have joined
+	private static String clusterSecret = DEFAULT_CLUSTER_SECRET; //secret shared by the members to authenticate their gossip
+	private static int listenerShards = DEFAULT_LISTENER_SHARDS; //listeners sharing each port via SO_REUSEPORT, 0 for one per processor
+	private static int listenerSelectors = DEFAULT_LISTENER_SELECTORS; //selectors per listener, 0 to share the processors
+	private static int workerThreads = DEFAULT_WORKER_THREADS; //maximum number of threads handling WebSocket messages, 0 to size automatically
+	private static int workerThreadsLimit = DEFAULT_WORKER_THREADS_LIMIT; //maximum the worker pool may be sized to
+	
 	//******************** private static variables ********************//
 	//initialize slf4j logging framework
 	private static final Logger logger = LoggerFactory.getLogger(WebSocketXmppGateway.class);
 	
-	//initialize the aliases cache
-	private static Map<String, String> aliases = Collections.synchronizedMap(new HashMap<String, String>());
+	//initialize the routes loaded from the aliases file, replaced as a whole when the file changes
+	private static final AtomicReference<RoutingTable> routingTable = new AtomicReference<RoutingTable>(RoutingTable.EMPTY);
+	private static long aliasesModified = 0; //modification time of the loaded aliases file, only accessed by the loading thread
+	private static long clusterMembersModified = 0; //modification time of the loaded members file, only accessed by the loading thread
 	
-	//******************** private instance variables ********************//
-	//Jetty connectors
-	private SelectChannelConnector connector;
-	private SslSelectChannelConnector sslConnector;
+	private static final Runnable aliasesWatcher = new Runnable() {
+		@Override
+		public void run() {
+			if (new File(aliasesFile).lastModified() != aliasesModified && loadAliases()) {
+				ConnectionPool.update(routingTable.get().getTargets());
+				LoadBalancer.update(routingTable.get().getTargets());
+			}
+			UpstreamEngine.schedule(this, aliasesReload);
+		}
+	};
+	
+	private static final Runnable clusterWatcher = new Runnable() {
+		@Override
+		public void run() {
+			if (new File(clusterMembersFile).lastModified() != clusterMembersModified) {
+				List<String> members = loadClusterMembers();
+				if (members != null)
+					Cluster.update(members);
+			}
+			UpstreamEngine.schedule(this, aliasesReload);
+		}
+	};
 	
+	private static final Runnable rebalancer = new Runnable() {
+		@Override
+		public void run() {
+			for (final WsXMPPConnectionHandler session : sessions.getSessions()) {
+				final String member = Cluster.getRebalanceTarget(session.getClusterKey(), session.getClusterPlaced());
+				if (member == null)
+					continue;
+				//closing a session may block, the rebalance is not held up by a slow client
+				UpstreamEngine.control(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							session.redirect(member);
+						} catch (RuntimeException e) {
+							logger.info(session.getRemoteAddr() + " - cannot move session", e);
+						}
+					}
+				});
+			}
+		}
+	};
+	
+	private static final Runnable backpressureWatcher = new Runnable() {
+		@Override
+		public void run() {
+			long now = System.currentTimeMillis();
+			for (WsXMPPConnectionHandler session : sessions.getSessions())
+				session.checkBackpressure(now, backpressureTimeout, clientWriteTimeout > 0 ? clientWriteTimeout : backpressureTimeout);
+			UpstreamEngine.schedule(this, BACKPRESSURE_CHECK_INTERVAL);
+		}
+	};
+	
+	//******************** private instance variables ********************//
 	//Jetty handlers
 	private WebSocketHandler wsHandler;
 	private ResourceHandler rHandler;
+	private MetricsHandler mHandler;
+	private DrainHandler dHandler;
 	
-	//List of connected WebSocket clients
-	private static final List<WebSocket> connectedSockets = Collections.synchronizedList(new ArrayList<WebSocket>());
+	//registry of the open client sessions
+	private static final SessionRegistry sessions = new SessionRegistry();
+	
+	private static volatile boolean draining = false; //true once no new sessions are accepted
+	private static boolean drained = false; //true once the drain has been finished, guarded by the class
 	
 	//instance of the gateway
 	private static WebSocketXmppGateway gateway = null;
@@ -95,29 +292,28 @@ public class WebSocketXmppGateway extends Server {
 	 * Creates WebSocketXmppGateway and adds connectors and handlers as defined in static configuration switches
 	 */
 	public WebSocketXmppGateway() {
-		//add Jetty connectors
+		//WebSocket messages are handled by the worker pool, every port by one or more listeners
+		setThreadPool(ThreadingModel.getWorkerPool());
 		if (webSocketPort > -1) {
-			//create plain channel connector
-			connector = new SelectChannelConnector();
-			connector.setHost(hostname);
-			connector.setPort(webSocketPort);
-			addConnector(connector);
+			//create plain channel connectors
+			for (Connector connector : ThreadingModel.createConnectors(hostname, webSocketPort))
+				addConnector(connector);
 		}
 		if(sslWebSocketPort > -1) {
-			//create ssl channel connector
-			SslContextFactory sslContextFactory = new SslContextFactory();
-			sslContextFactory.setKeyStore(keyStorePath);
-			sslContextFactory.setKeyStorePassword(keyStorePassword);
-			sslConnector = new SslSelectChannelConnector(sslContextFactory);
-			sslConnector.setHost(hostname);
-			sslConnector.setPort(sslWebSocketPort);
-			addConnector(sslConnector);
+			//create ssl channel connectors
+			for (Connector connector : ThreadingModel.createConnectors(hostname, sslWebSocketPort, keyStorePath, keyStorePassword))
+				addConnector(connector);
 		}
 		
 		//add Jetty handlers
 		wsHandler = new WebSocketHandler() {	
 			@Override
 			public WebSocket doWebSocketConnect(HttpServletRequest request, String subProtocol) {
+				if (draining) {
+					//gateway shuts down, the upgrade is answered with 503
+					logger.info(request.getRemoteHost() + " - rejecting WebSocket upgrade while draining");
+					return null;
+				}
 				if ("xmpp".equals(subProtocol.toLowerCase()))
 					return new WsXMPPConnectionHandler(request);
 				else {
@@ -127,11 +323,35 @@ public class WebSocketXmppGateway extends Server {
 				}
 			}
 		};
+		if (clientCompression)
+			wsHandler.getWebSocketFactory().getExtensionClassesMap().put(PerMessageDeflateExtension.NAME, PerMessageDeflateExtension.class);
 		setHandler(wsHandler);
 		rHandler = new ResourceHandler();
 		rHandler.setResourceBase(docRoot);
 		rHandler.setDirectoriesListed(listDirectories);
-		wsHandler.setHandler(rHandler);
+		Handler next = rHandler;
+		if (drainPath.length() > 0) {
+			dHandler = new DrainHandler(drainPath);
+			dHandler.setHandler(next);
+			next = dHandler;
+		}
+		if (metricsPath.length() > 0) {
+			//serve metrics next to the static resources
+			mHandler = new MetricsHandler(metricsPath);
+			mHandler.setHandler(next);
+			next = mHandler;
+		}
+		wsHandler.setHandler(next);
+	}
+	
+	@Override
+	protected void doStop() throws Exception {
+		super.doStop();
+		ConnectionPool.stop();
+		LoadBalancer.stop();
+		Cluster.stop();
+		UpstreamEngine.stop();
+		WireTrace.stop();
 	}
 	
 	//******************** static methods ********************//
@@ -142,8 +362,38 @@ public class WebSocketXmppGateway extends Server {
 		//load aliases in cache
 		loadAliases();
 		//init and start gateway
+		ThreadingModel.start(listenerShards, listenerSelectors, workerThreads, workerThreadsLimit);
 		gateway = new WebSocketXmppGateway();
 		try {
+			GatewayMetrics.register();
+			WireTrace.start(wireTraceSampling, wireTraceClients, wireTraceFile, wireTraceBuffer, wireTraceMaxPayload);
+			UpstreamEngine.start(upstreamEngine, upstreamSelectors);
+			DnsResolver.start(dnsServer);
+			UpstreamTls.start(upstreamTls, upstreamTrustStore, upstreamTrustStorePassword, upstreamTlsVerify, upstreamTlsCacheSize,
+					upstreamTlsCacheTimeout);
+			UpstreamCompression.start(upstreamCompression, upstreamCompressionLevel, upstreamCompressionFlush);
+			//keep connections to the XMPP servers aliases point to
+			ConnectionPool.start(routingTable.get().getTargets(), upstreamPoolSize, upstreamPoolIdle, connectTimeout);
+			LoadBalancer.update(routingTable.get().getTargets());
+			LoadBalancer.start(upstreamBalancing, upstreamEjectFailures, upstreamProbeInterval, connectTimeout);
+			if (aliasesReload > 0)
+				UpstreamEngine.schedule(aliasesWatcher, aliasesReload);
+			if (backpressureTimeout > 0 || clientWriteTimeout > 0)
+				UpstreamEngine.schedule(backpressureWatcher, BACKPRESSURE_CHECK_INTERVAL);
+			if (clusterMembers.length() > 0 || clusterMembersFile.length() > 0) {
+				List<String> members = loadClusterMembers();
+				Cluster.start(clusterNode, members != null ? members : new ArrayList<String>(), hostname, clusterGossipInterval,
+						clusterFailTimeout, clusterLoadFactor, clusterRebalance, rebalancer, clusterSecret);
+				if (clusterMembersFile.length() > 0 && aliasesReload > 0)
+					UpstreamEngine.schedule(clusterWatcher, aliasesReload);
+			}
+			//drain on SIGTERM and SIGINT, the JVM exits after the hook has returned
+			Runtime.getRuntime().addShutdownHook(new Thread("wxg-shutdown") {
+				@Override
+				public void run() {
+					drain();
+				}
+			});
 			gateway.start();
 			gateway.join();
 		} catch (Exception e) {
@@ -152,6 +402,79 @@ public class WebSocketXmppGateway extends Server {
 		}
 	}
 	
+	/**
+	 * Stop accepting new sessions and close the open sessions in batches spread over the drain window.
+	 * Clients receive a see-other-host stream error if a redirect is configured, a system-shutdown stream error otherwise.
+	 * Returns once the messages queued for all sessions have been written and their connections have been closed, or a grace
+	 * period after the window has elapsed. Later calls return immediately.
+	 */
+	public static synchronized void drain() {
+		if (drained)
+			return;
+		draining = true;
+		//sessions whose connections are waited for, the closing tags and close frames are written after the sessions have been unregistered
+		Set<WsXMPPConnectionHandler> closing = new LinkedHashSet<WsXMPPConnectionHandler>();
+		//sessions kept for disconnected clients cannot be resumed anymore
+		for (WsXMPPConnectionHandler handler : sessions.getResumable()) {
+			if (handler.expire())
+				closing.add(handler);
+		}
+		StreamError streamError = drainRedirect.length() > 0 ? new StreamError(XMPPConstants.ERROR_COND_SEE_OTHER_HOST, drainRedirect)
+				: new StreamError(XMPPConstants.ERROR_COND_SYSTEM_SHUTDOWN);
+		List<WsXMPPConnectionHandler> open = new ArrayList<WsXMPPConnectionHandler>(sessions.getSessions());
+		closing.addAll(open);
+		logger.info("Draining " + open.size() + " sessions within " + drainWindow + " ms");
+		//close the same number of sessions every interval, so clients do not reconnect at once
+		int batches = Math.max(1, drainWindow / DRAIN_INTERVAL);
+		int batchSize = (open.size() + batches - 1) / batches;
+		long start = System.currentTimeMillis();
+		try {
+			int closed = 0;
+			for (int batch = 0; closed < open.size(); batch++) {
+				long wait = start + (long)batch * DRAIN_INTERVAL - System.currentTimeMillis();
+				if (wait > 0)
+					Thread.sleep(wait);
+				for (int i = 0; i < batchSize && closed < open.size(); i++)
+					shutdownSession(open.get(closed++), streamError);
+			}
+			//close sessions whose upgrade was in progress when the drain started and wait for the connections to be closed
+			long deadline = System.currentTimeMillis() + DRAIN_GRACE;
+			while (System.currentTimeMillis() < deadline) {
+				for (WsXMPPConnectionHandler handler : sessions.getSessions()) {
+					shutdownSession(handler, streamError);
+					closing.add(handler);
+				}
+				for (Iterator<WsXMPPConnectionHandler> i = closing.iterator(); i.hasNext();) {
+					if (i.next().isClosed())
+						i.remove();
+				}
+				if (closing.isEmpty() && sessions.size() == 0)
+					break;
+				Thread.sleep(DRAIN_INTERVAL);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		drained = true;
+		logger.info("Drain finished after " + (System.currentTimeMillis() - start) + " ms, " + closing.size() + " sessions left");
+	}
+	
+	private static void shutdownSession(WsXMPPConnectionHandler handler, StreamError streamError) {
+		try {
+			handler.shutdown(streamError);
+		} catch (RuntimeException e) {
+			logger.info(handler.getRemoteAddr() + " - cannot close session", e);
+		}
+	}
+	
+	/**
+	 * Check whether the gateway is draining
+	 * @return true if no new sessions are accepted
+	 */
+	public static boolean isDraining() {
+		return draining;
+	}
+	
 	/**
 	 * load properties from config file
 	 */
@@ -165,10 +488,122 @@ public class WebSocketXmppGateway extends Server {
 			webSocketPort = Integer.parseInt(prop.getProperty("Port", "-1"));
 			sslWebSocketPort = Integer.parseInt(prop.getProperty("SSLport", "-1"));
 			timeout = Integer.parseInt(prop.getProperty("Timeout", DEFAULT_TIMEOUT + ""));
+			connectTimeout = Integer.parseInt(prop.getProperty("ConnectTimeout", DEFAULT_CONNECT_TIMEOUT + ""));
+			if (timeout < 0)
+				throw new IllegalArgumentException("Negative timeout: " + timeout);
+			handshakeTimeout = Integer.parseInt(prop.getProperty("HandshakeTimeout", DEFAULT_HANDSHAKE_TIMEOUT + ""));
+			if (handshakeTimeout < 0)
+				throw new IllegalArgumentException("Negative handshake timeout: " + handshakeTimeout);
+			clientPingInterval = Integer.parseInt(prop.getProperty("ClientPingInterval", DEFAULT_CLIENT_PING_INTERVAL + ""));
+			if (clientPingInterval < 0)
+				throw new IllegalArgumentException("Negative client ping interval: " + clientPingInterval);
+			clientPingTimeout = Integer.parseInt(prop.getProperty("ClientPingTimeout", DEFAULT_CLIENT_PING_TIMEOUT + ""));
+			if (clientPingTimeout <= 0)
+				throw new IllegalArgumentException("Client ping timeout must be positive: " + clientPingTimeout);
+			upstreamKeepalive = Integer.parseInt(prop.getProperty("UpstreamKeepalive", DEFAULT_UPSTREAM_KEEPALIVE + ""));
+			if (upstreamKeepalive < 0)
+				throw new IllegalArgumentException("Negative upstream keepalive: " + upstreamKeepalive);
 			keyStorePath = prop.getProperty("Keystore");
 			keyStorePassword = prop.getProperty("KeystorePassword");
 			docRoot = prop.getProperty("DocRoot", DEFAULT_DOC_ROOT);
 			listDirectories = "true".equals(prop.getProperty("DirectoryListing", DEFAULT_LIST_DIRECTORIES + "").toLowerCase());
+			upstreamEngine = prop.getProperty("UpstreamEngine", DEFAULT_UPSTREAM_ENGINE).toLowerCase();
+			upstreamSelectors = Integer.parseInt(prop.getProperty("UpstreamSelectors", DEFAULT_UPSTREAM_SELECTORS + ""));
+			clientStanzaMode = prop.getProperty("ClientStanzaMode", DEFAULT_CLIENT_STANZA_MODE).toLowerCase();
+			if (!WsXMPPConnectionHandler.STANZA_MODE_PARSE.equals(clientStanzaMode) && !WsXMPPConnectionHandler.STANZA_MODE_CHECK.equals(clientStanzaMode)
+					&& !WsXMPPConnectionHandler.STANZA_MODE_NONE.equals(clientStanzaMode))
+				throw new IllegalArgumentException("Unknown client stanza mode: " + clientStanzaMode);
+			outboundFlushDelay = Integer.parseInt(prop.getProperty("OutboundFlushDelay", DEFAULT_OUTBOUND_FLUSH_DELAY + ""));
+			outboundFlushBytes = Integer.parseInt(prop.getProperty("OutboundFlushBytes", DEFAULT_OUTBOUND_FLUSH_BYTES + ""));
+			sessionQueueLimit = Integer.parseInt(prop.getProperty("SessionQueueLimit", DEFAULT_SESSION_QUEUE_LIMIT + ""));
+			sessionQueueResume = Integer.parseInt(prop.getProperty("SessionQueueResume", DEFAULT_SESSION_QUEUE_RESUME + ""));
+			if (sessionQueueLimit <= 0 || sessionQueueResume < 0 || sessionQueueResume > sessionQueueLimit)
+				throw new IllegalArgumentException("Invalid session queue limit " + sessionQueueLimit + " with resume mark " + sessionQueueResume);
+			backpressureTimeout = Integer.parseInt(prop.getProperty("BackpressureTimeout", DEFAULT_BACKPRESSURE_TIMEOUT + ""));
+			if (backpressureTimeout < 0)
+				throw new IllegalArgumentException("Negative backpressure timeout: " + backpressureTimeout);
+			clientWriteTimeout = Integer.parseInt(prop.getProperty("ClientWriteTimeout", DEFAULT_CLIENT_WRITE_TIMEOUT + ""));
+			if (clientWriteTimeout < 0)
+				throw new IllegalArgumentException("Negative client write timeout: " + clientWriteTimeout);
+			clientCompression = "true".equals(prop.getProperty("ClientCompression", DEFAULT_CLIENT_COMPRESSION + "").toLowerCase());
+			clientCompressionContextTakeover = "true".equals(prop.getProperty("ClientCompressionContextTakeover", DEFAULT_CLIENT_COMPRESSION_CONTEXT_TAKEOVER + "").toLowerCase());
+			clientCompressionMemory = Integer.parseInt(prop.getProperty("ClientCompressionMemory", DEFAULT_CLIENT_COMPRESSION_MEMORY + ""));
+			clientCompressionMinSize = Integer.parseInt(prop.getProperty("ClientCompressionMinSize", DEFAULT_CLIENT_COMPRESSION_MIN_SIZE + ""));
+			if (clientCompressionMemory < 0 || clientCompressionMinSize < 0)
+				throw new IllegalArgumentException("Invalid client compression memory " + clientCompressionMemory + " or minimum size " + clientCompressionMinSize);
+			streamManagement = "true".equals(prop.getProperty("StreamManagement", DEFAULT_STREAM_MANAGEMENT + "").toLowerCase());
+			streamResumeTimeout = Integer.parseInt(prop.getProperty("StreamResumeTimeout", DEFAULT_STREAM_RESUME_TIMEOUT + ""));
+			streamResumeQueueLimit = Integer.parseInt(prop.getProperty("StreamResumeQueueLimit", DEFAULT_STREAM_RESUME_QUEUE_LIMIT + ""));
+			if (streamResumeTimeout < 0 || streamResumeQueueLimit <= 0)
+				throw new IllegalArgumentException("Invalid stream resumption timeout " + streamResumeTimeout + " or queue limit " + streamResumeQueueLimit);
+			upstreamFlushDelay = Integer.parseInt(prop.getProperty("UpstreamFlushDelay", DEFAULT_UPSTREAM_FLUSH_DELAY + ""));
+			upstreamPoolSize = Integer.parseInt(prop.getProperty("UpstreamPoolSize", DEFAULT_UPSTREAM_POOL_SIZE + ""));
+			upstreamPoolIdle = Integer.parseInt(prop.getProperty("UpstreamPoolIdle", DEFAULT_UPSTREAM_POOL_IDLE + ""));
+			upstreamTls = prop.getProperty("UpstreamTls", DEFAULT_UPSTREAM_TLS).toLowerCase();
+			if (!UpstreamTls.MODE_OFF.equals(upstreamTls) && !UpstreamTls.MODE_OPTIONAL.equals(upstreamTls) && !UpstreamTls.MODE_REQUIRED.equals(upstreamTls))
+				throw new IllegalArgumentException("Unknown upstream TLS mode: " + upstreamTls);
+			upstreamTrustStore = prop.getProperty("UpstreamTrustStore", DEFAULT_UPSTREAM_TRUST_STORE).trim();
+			upstreamTrustStorePassword = prop.getProperty("UpstreamTrustStorePassword");
+			upstreamTlsVerify = "true".equals(prop.getProperty("UpstreamTlsVerify", DEFAULT_UPSTREAM_TLS_VERIFY + "").toLowerCase());
+			upstreamTlsCacheSize = Integer.parseInt(prop.getProperty("UpstreamTlsCacheSize", DEFAULT_UPSTREAM_TLS_CACHE_SIZE + ""));
+			upstreamTlsCacheTimeout = Integer.parseInt(prop.getProperty("UpstreamTlsCacheTimeout", DEFAULT_UPSTREAM_TLS_CACHE_TIMEOUT + ""));
+			if (upstreamTlsCacheSize < 0 || upstreamTlsCacheTimeout < 0)
+				throw new IllegalArgumentException("Invalid TLS session cache of " + upstreamTlsCacheSize + " sessions for " + upstreamTlsCacheTimeout + " s");
+			upstreamCompression = "true".equals(prop.getProperty("UpstreamCompression", DEFAULT_UPSTREAM_COMPRESSION + "").toLowerCase());
+			upstreamCompressionLevel = Integer.parseInt(prop.getProperty("UpstreamCompressionLevel", DEFAULT_UPSTREAM_COMPRESSION_LEVEL + ""));
+			if (upstreamCompressionLevel < 0 || upstreamCompressionLevel > 9)
+				throw new IllegalArgumentException("Invalid compression level: " + upstreamCompressionLevel);
+			upstreamCompressionFlush = prop.getProperty("UpstreamCompressionFlush", DEFAULT_UPSTREAM_COMPRESSION_FLUSH).toLowerCase();
+			if (!UpstreamCompression.FLUSH_SYNC.equals(upstreamCompressionFlush) && !UpstreamCompression.FLUSH_FULL.equals(upstreamCompressionFlush))
+				throw new IllegalArgumentException("Unknown compression flush: " + upstreamCompressionFlush);
+			dnsServer = prop.getProperty("DnsServer", DEFAULT_DNS_SERVER);
+			aliasesReload = Integer.parseInt(prop.getProperty("AliasesReload", DEFAULT_ALIASES_RELOAD + ""));
+			upstreamBalancing = prop.getProperty("UpstreamBalancing", DEFAULT_UPSTREAM_BALANCING).toLowerCase();
+			if (!LoadBalancer.BALANCING_P2C.equals(upstreamBalancing) && !LoadBalancer.BALANCING_LEAST_CONNECTIONS.equals(upstreamBalancing))
+				throw new IllegalArgumentException("Unknown upstream balancing: " + upstreamBalancing);
+			upstreamEjectFailures = Integer.parseInt(prop.getProperty("UpstreamEjectFailures", DEFAULT_UPSTREAM_EJECT_FAILURES + ""));
+			upstreamProbeInterval = Integer.parseInt(prop.getProperty("UpstreamProbeInterval", DEFAULT_UPSTREAM_PROBE_INTERVAL + ""));
+			metricsPath = prop.getProperty("MetricsPath", DEFAULT_METRICS_PATH).trim();
+			drainWindow = Integer.parseInt(prop.getProperty("DrainWindow", DEFAULT_DRAIN_WINDOW + ""));
+			if (drainWindow < 0)
+				throw new IllegalArgumentException("Negative drain window: " + drainWindow);
+			drainRedirect = prop.getProperty("DrainRedirect", DEFAULT_DRAIN_REDIRECT).trim();
+			drainPath = prop.getProperty("DrainPath", DEFAULT_DRAIN_PATH).trim();
+			wireTraceSampling = Integer.parseInt(prop.getProperty("WireTraceSampling", DEFAULT_WIRE_TRACE_SAMPLING + ""));
+			if (wireTraceSampling < 0)
+				throw new IllegalArgumentException("Negative wire trace sampling: " + wireTraceSampling);
+			wireTraceClients = prop.getProperty("WireTraceClients", DEFAULT_WIRE_TRACE_CLIENTS);
+			wireTraceFile = prop.getProperty("WireTraceFile", DEFAULT_WIRE_TRACE_FILE).trim();
+			wireTraceBuffer = Integer.parseInt(prop.getProperty("WireTraceBuffer", DEFAULT_WIRE_TRACE_BUFFER + ""));
+			if (wireTraceBuffer <= 0 || Integer.bitCount(wireTraceBuffer) != 1)
+				throw new IllegalArgumentException("Wire trace buffer is not a power of two: " + wireTraceBuffer);
+			wireTraceMaxPayload = Integer.parseInt(prop.getProperty("WireTraceMaxPayload", DEFAULT_WIRE_TRACE_MAX_PAYLOAD + ""));
+			if (wireTraceMaxPayload < 0)
+				throw new IllegalArgumentException("Negative wire trace payload: " + wireTraceMaxPayload);
+			clusterMembers = prop.getProperty("ClusterMembers", DEFAULT_CLUSTER_MEMBERS).trim();
+			clusterMembersFile = prop.getProperty("ClusterMembersFile", DEFAULT_CLUSTER_MEMBERS_FILE).trim();
+			clusterNode = prop.getProperty("ClusterNode", DEFAULT_CLUSTER_NODE).trim();
+			if (clusterNode.length() == 0)
+				clusterNode = (hostname == null || hostname.length() == 0 ? "localhost" : hostname) + ":" + (webSocketPort > 0 ? webSocketPort : sslWebSocketPort);
+			clusterGossipInterval = Integer.parseInt(prop.getProperty("ClusterGossipInterval", DEFAULT_CLUSTER_GOSSIP_INTERVAL + ""));
+			if (clusterGossipInterval <= 0)
+				throw new IllegalArgumentException("Cluster gossip interval must be positive: " + clusterGossipInterval);
+			clusterFailTimeout = Integer.parseInt(prop.getProperty("ClusterFailTimeout", DEFAULT_CLUSTER_FAIL_TIMEOUT + ""));
+			if (clusterFailTimeout <= clusterGossipInterval)
+				throw new IllegalArgumentException("Cluster fail timeout must exceed the gossip interval: " + clusterFailTimeout);
+			clusterLoadFactor = Integer.parseInt(prop.getProperty("ClusterLoadFactor", DEFAULT_CLUSTER_LOAD_FACTOR + ""));
+			if (clusterLoadFactor != 0 && clusterLoadFactor <= 100)
+				throw new IllegalArgumentException("Cluster load factor must exceed 100 percent: " + clusterLoadFactor);
+			clusterRebalance = "true".equals(prop.getProperty("ClusterRebalance", DEFAULT_CLUSTER_REBALANCE + "").toLowerCase());
+			clusterSecret = prop.getProperty("ClusterSecret", DEFAULT_CLUSTER_SECRET).trim();
+			listenerShards = Integer.parseInt(prop.getProperty("ListenerShards", DEFAULT_LISTENER_SHARDS + ""));
+			listenerSelectors = Integer.parseInt(prop.getProperty("ListenerSelectors", DEFAULT_LISTENER_SELECTORS + ""));
+			if (listenerShards < 0 || listenerSelectors < 0)
+				throw new IllegalArgumentException("Invalid " + listenerShards + " listeners with " + listenerSelectors + " selectors");
+			workerThreads = Integer.parseInt(prop.getProperty("WorkerThreads", DEFAULT_WORKER_THREADS + ""));
+			workerThreadsLimit = Integer.parseInt(prop.getProperty("WorkerThreadsLimit", DEFAULT_WORKER_THREADS_LIMIT + ""));
+			if (workerThreads < 0 || workerThreadsLimit <= 0)
+				throw new IllegalArgumentException("Invalid " + workerThreads + " worker threads with limit " + workerThreadsLimit);
 		} catch (Exception e) {
 			logger.error("Cannot load properties from config file " + configFile,e);
 			System.exit(1);
@@ -176,48 +611,242 @@ public class WebSocketXmppGateway extends Server {
 	}
 	
 	/**
-	 * load aliases from config file
+	 * load aliases from config file and replace the routing table, the previous table is kept if the file cannot be read
+	 * @return true if the routing table has been replaced
 	 */
-	private static void loadAliases() {
+	private static boolean loadAliases() {
 		Properties prop = new Properties();
 		FileInputStream fis;
 		try {
+			long modified = new File(aliasesFile).lastModified();
 			fis = new FileInputStream(aliasesFile);
-			prop.load(fis);
-			Enumeration<Object> e = prop.keys();
-			while (e.hasMoreElements()) {
-				String host = (String)e.nextElement(); //save because properties are always Strings
-				aliases.put(host.toLowerCase(), prop.getProperty(host));
+			try {
+				prop.load(fis);
+			} finally {
+				fis.close();
 			}
+			aliasesModified = modified;
+			List<String> invalid = new ArrayList<String>();
+			RoutingTable table = RoutingTable.parse(prop, invalid, routingTable.get());
+			for (String entry : invalid)
+				logger.warn("Ignoring invalid alias " + entry);
+			routingTable.set(table);
+			logger.info("Loaded " + table.size() + " aliases from " + aliasesFile);
+			return true;
 		} catch (FileNotFoundException e) {
 			logger.error("Cannot load " + aliasesFile + ". File not found!", e);
 		} catch (IOException e) {
 			logger.error("Cannot process " + aliasesFile, e);
 		}
+		return false;
 	}
 
 	/**
-	 * Get a list of connected WebSockets
-	 * @return a list of connected WebSockets
+	 * Read the addresses of the cluster members from the configuration and the members file. The file lists one address
+	 * per line, # starts a comment.
+	 * @return the addresses of the members, null if the members file cannot be read
 	 */
-	public static List<WebSocket> getConnectedSockets() {
-		return connectedSockets;
+	private static List<String> loadClusterMembers() {
+		List<String> members = new ArrayList<String>();
+		for (String member : clusterMembers.split(",")) {
+			if (member.trim().length() > 0)
+				members.add(member.trim());
+		}
+		if (clusterMembersFile.length() == 0)
+			return members;
+		try {
+			long modified = new File(clusterMembersFile).lastModified();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(clusterMembersFile), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					int comment = line.indexOf('#');
+					if (comment >= 0)
+						line = line.substring(0, comment);
+					if (line.trim().length() > 0)
+						members.add(line.trim());
+				}
+			} finally {
+				reader.close();
+			}
+			clusterMembersModified = modified;
+			logger.info("Loaded " + members.size() + " cluster members from " + clusterMembersFile);
+			return members;
+		} catch (IOException e) {
+			logger.error("Cannot read cluster members from " + clusterMembersFile, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Get the registry of the open client sessions
+	 * @return the session registry
+	 */
+	public static SessionRegistry getSessions() {
+		return sessions;
 	}
 
 	/**
-	 * Get the specified timeout
-	 * @return the specified timeout in ms
+	 * Get the time an XMPP server may be silent before the session is closed with a connection-timeout stream error
+	 * @return the specified timeout in ms, 0 for no limit
 	 */
 	public static int getTimeout() {
 		return timeout;
 	}
 
 	/**
-	 * Get aliases for hostnames in the "to" attribute of the opening stream tag
-	 * @return aliases for hostnames in the "to" attribute
+	 * Get the timeout for connects to XMPP servers
+	 * @return the connect timeout in ms
+	 */
+	public static int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Get the time a client may take from the WebSocket handshake until the stream has been opened
+	 * @return the handshake timeout in ms, 0 for no limit
+	 */
+	public static int getHandshakeTimeout() {
+		return handshakeTimeout;
+	}
+
+	/**
+	 * Get the time a client may be silent before the gateway sends a WebSocket ping
+	 * @return the ping interval in ms, 0 if clients are not pinged
+	 */
+	public static int getClientPingInterval() {
+		return clientPingInterval;
+	}
+
+	/**
+	 * Get the time a pinged client may take to send any frame before the connection counts as dead
+	 * @return the ping timeout in ms
+	 */
+	public static int getClientPingTimeout() {
+		return clientPingTimeout;
+	}
+
+	/**
+	 * Get the time without data sent to an XMPP server after that a whitespace keepalive is sent
+	 * @return the keepalive interval in ms, 0 if no keepalives are sent
+	 */
+	public static int getUpstreamKeepalive() {
+		return upstreamKeepalive;
+	}
+
+	/**
+	 * Get the handling of stanzas received from clients
+	 * @return the client stanza mode, see {@link WsXMPPConnectionHandler#STANZA_MODE_PARSE}, {@link WsXMPPConnectionHandler#STANZA_MODE_CHECK}
+	 * and {@link WsXMPPConnectionHandler#STANZA_MODE_NONE}
+	 */
+	public static String getClientStanzaMode() {
+		return clientStanzaMode;
+	}
+
+	/**
+	 * Get the maximum time stanzas are queued before they are written to a client
+	 * @return the flush delay in ms, 0 if stanzas are written as soon as a burst from the XMPP server has been processed
+	 */
+	public static int getOutboundFlushDelay() {
+		return outboundFlushDelay;
+	}
+
+	/**
+	 * Get the number of queued bytes that causes a write to a client regardless of the flush delay
+	 * @return the flush threshold in bytes
+	 */
+	public static int getOutboundFlushBytes() {
+		return outboundFlushBytes;
+	}
+
+	/**
+	 * Get the number of bytes that may be queued per session and direction. A queue beyond the limit stops its sender:
+	 * reading from the XMPP server is paused or the client is blocked.
+	 * @return the session queue limit in bytes
+	 */
+	public static int getSessionQueueLimit() {
+		return sessionQueueLimit;
+	}
+
+	/**
+	 * Get the number of queued bytes below which a stopped sender continues
+	 * @return the resume mark in bytes
+	 */
+	public static int getSessionQueueResume() {
+		return sessionQueueResume;
+	}
+
+	/**
+	 * Get the time a session may stay stopped by a full queue before it is closed with resource-constraint
+	 * @return the backpressure timeout in ms, 0 if sessions are never closed for a full queue
+	 */
+	public static int getBackpressureTimeout() {
+		return backpressureTimeout;
+	}
+
+	/**
+	 * Check if the gateway answers stream management (XEP-0198) itself
+	 * @return true if stream management is offered to clients after authentication
+	 */
+	public static boolean isStreamManagement() {
+		return streamManagement;
+	}
+
+	/**
+	 * Get the time a session is kept after the connection of a client that has enabled the resumption has dropped
+	 * @return the resumption timeout in ms, 0 if sessions cannot be resumed
+	 */
+	public static int getStreamResumeTimeout() {
+		return streamResumeTimeout;
+	}
+
+	/**
+	 * Get the number of bytes of unacknowledged stanzas kept per session. A session whose client does not acknowledge
+	 * stanzas cannot be resumed beyond the limit, a disconnected session is closed.
+	 * @return the limit in bytes
+	 */
+	public static int getStreamResumeQueueLimit() {
+		return streamResumeQueueLimit;
+	}
+
+	/**
+	 * Check if the sliding windows of permessage-deflate are kept between messages
+	 * @return true if context takeover is used unless the client or the memory per session prevent it
+	 */
+	public static boolean isClientCompressionContextTakeover() {
+		return clientCompressionContextTakeover;
+	}
+
+	/**
+	 * Get the memory per session for the deflater and inflater of permessage-deflate that are kept between messages
+	 * @return the memory in bytes
+	 */
+	public static int getClientCompressionMemory() {
+		return clientCompressionMemory;
+	}
+
+	/**
+	 * Get the size below which messages to clients are sent uncompressed
+	 * @return the minimum size in bytes
+	 */
+	public static int getClientCompressionMinSize() {
+		return clientCompressionMinSize;
+	}
+
+	/**
+	 * Get the maximum time data is queued before it is written to an XMPP server
+	 * @return the flush delay in ms, 0 if data is written as soon as no other write to the same server is in progress
+	 */
+	public static int getUpstreamFlushDelay() {
+		return upstreamFlushDelay;
+	}
+
+	/**
+	 * Get the routes for hostnames in the "to" attribute of the opening stream tag
+	 * @return the current routing table loaded from the aliases file
 	 */
-	public static Map<String, String> getAliases() {
-		return aliases;
+	public static RoutingTable getRoutingTable() {
+		return routingTable.get();
 	}
 	
 }
@@ -102,6 +102,9 @@ public class XMPPConstants {
 	public static final String URN_TLS     = "urn:ietf:params:xml:ns:xmpp-tls";
 	public static final String URN_BIND    = "urn:ietf:params:xml:ns:xmpp-bind";
 	public static final String URN_SESSION = "urn:ietf:params:xml:ns:xmpp-session";
+	public static final String NS_FEATURE_COMPRESS  = "http://jabber.org/features/compress";
+	public static final String NS_PROTOCOL_COMPRESS = "http://jabber.org/protocol/compress";
+	public static final String NS_SM = "urn:xmpp:sm:3";
 	
 	public static final int DEFAULT_SERVER_PORT = 5269;
 	public static final int DEFAULT_CLIENT_PORT = 5222;
@@ -0,0 +1,521 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.cluster;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.rwth_aachen.dbis.wsxmppgateway.WebSocketXmppGateway;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamEngine;
+
+/**
+ * Places sessions on the gateways of a cluster. The members are configured statically, every member gossips its
+ * heartbeat and its number of sessions to a few random members per interval together with everything it has heard
+ * about the others. Members whose heartbeat has not increased for the fail timeout, and members that drain, leave
+ * the {@link HashRing}. A new session is placed by consistent hashing with bounded loads: the key belongs to the first
+ * member on the ring whose load stays below the load factor times the average load, the gateway redirects the client
+ * with see-other-host if that is another member. Once a member has joined the ring, the sessions whose key it owns
+ * now are moved to it, all other sessions stay where they are.
+ * Gossip is only accepted from the gossip addresses of the configured members. If a shared secret is configured,
+ * every message carries an HMAC-SHA256 of its content and messages without a valid one are dropped.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class Cluster {
+
+	private static final String GOSSIP_HEADER = "wxg-cluster 1";
+	private static final int GOSSIP_FANOUT = 3; //members gossip is sent to per interval
+	private static final int MAX_DATAGRAM = 64*1024;
+	private static final String MAC_PREFIX = "hmac ";
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(Cluster.class);
+
+	private static volatile Member self = null; //null unless the gateway is part of a cluster
+	private static volatile Map<String, Member> members = Collections.emptyMap(); //all configured members by address, including this gateway
+	private static volatile Set<InetSocketAddress> sources = Collections.emptySet(); //gossip addresses of the other members
+	private static volatile HashRing ring = HashRing.EMPTY; //members that accept sessions
+	private static final Map<Member, Long> joined = new HashMap<Member, Long>(); //members that have joined the ring since the last rebalance with the time they joined, guarded by Cluster.class
+	private static volatile Map<Member, Long> moving = Collections.emptyMap(); //members sessions are moved to by the running rebalance
+	private static boolean rebalanceScheduled = false; //guarded by Cluster.class
+
+	private static DatagramSocket socket;
+	private static long gossipInterval;
+	private static long failTimeout;
+	private static int loadFactor;
+	private static boolean rebalance;
+	private static Runnable rebalancer;
+	private static SecretKeySpec secret; //key of the HMAC of the gossip, null if gossip is not authenticated
+
+	private static final AtomicLong placementRedirects = new AtomicLong(0);
+	private static final AtomicLong overloadRedirects = new AtomicLong(0);
+	private static final AtomicLong sessionsMoved = new AtomicLong(0);
+	private static final AtomicLong gossipSent = new AtomicLong(0);
+	private static final AtomicLong gossipReceived = new AtomicLong(0);
+	private static final AtomicLong gossipRejected = new AtomicLong(0);
+
+	private static final Runnable gossipTask = new Runnable() {
+		@Override
+		public void run() {
+			if (self == null)
+				return;
+			gossip();
+			UpstreamEngine.schedule(this, gossipInterval);
+		}
+	};
+
+	private static final Runnable rebalanceTask = new Runnable() {
+		@Override
+		public void run() {
+			Map<Member, Long> targets;
+			synchronized (Cluster.class) {
+				rebalanceScheduled = false;
+				targets = new HashMap<Member, Long>(joined);
+				targets.keySet().retainAll(ring.getMembers());
+				joined.clear();
+			}
+			if (targets.isEmpty() || self == null)
+				return;
+			logger.info("Moving sessions to the cluster members " + targets.keySet());
+			moving = targets;
+			try {
+				rebalancer.run();
+			} finally {
+				moving = Collections.emptyMap();
+			}
+		}
+	};
+
+	private static final Runnable receiver = new Runnable() {
+		@Override
+		public void run() {
+			DatagramSocket socket = Cluster.socket;
+			byte[] buffer = new byte[MAX_DATAGRAM];
+			while (self != null) {
+				try {
+					DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+					socket.receive(packet);
+					if (!sources.contains(packet.getSocketAddress())) {
+						gossipRejected.incrementAndGet();
+						logger.debug("Ignoring gossip from " + packet.getSocketAddress() + ", which is not a cluster member");
+						continue;
+					}
+					receive(new String(packet.getData(), 0, packet.getLength(), "UTF-8"));
+				} catch (SocketException e) {
+					return; //socket has been closed
+				} catch (IOException e) {
+					logger.info("Cannot receive gossip", e);
+				} catch (RuntimeException e) {
+					logger.info("Ignoring malformed gossip", e);
+				}
+			}
+		}
+	};
+
+	/**
+	 * Join the cluster and start gossiping
+	 * @param node the address of this gateway as known to the other members, e.g. gw1.example.com:8080
+	 * @param addresses the addresses of the other members, this gateway may be part of them
+	 * @param bindHost the host the gossip socket is bound to, null or empty for the host of the node
+	 * @param interval the gossip interval in ms
+	 * @param timeout the time in ms after that a member without a new heartbeat has failed
+	 * @param factor the load factor in percent of the average load a member may take, 0 to place by the hash only
+	 * @param rebalanceSessions true if sessions are moved to members that have joined
+	 * @param task the task that moves the sessions returned by {@link #getRebalanceTarget(String, long)}
+	 * @param sharedSecret the secret the gossip is authenticated with, null or empty to send it without an HMAC
+	 * @throws IOException if the gossip socket cannot be bound
+	 * @throws IllegalArgumentException if an address is invalid
+	 */
+	public static synchronized void start(String node, Collection<String> addresses, String bindHost, long interval, long timeout,
+			int factor, boolean rebalanceSessions, Runnable task, String sharedSecret) throws IOException {
+		if (self != null)
+			return;
+		Member member = new Member(node);
+		for (String address : addresses)
+			new Member(address); //validates the address
+		gossipInterval = interval;
+		failTimeout = timeout;
+		loadFactor = factor;
+		rebalance = rebalanceSessions;
+		rebalancer = task;
+		secret = sharedSecret == null || sharedSecret.length() == 0 ? null : new SecretKeySpec(sharedSecret.getBytes("UTF-8"), MAC_ALGORITHM);
+		if (secret == null)
+			logger.warn("No ClusterSecret configured, gossip is not authenticated");
+		socket = bind(member.getGossipAddress(), bindHost);
+		long now = System.currentTimeMillis();
+		//a restarted member starts with a higher heartbeat than it had gossiped before
+		member.update(now, WebSocketXmppGateway.getSessions().size(), false, now);
+		self = member;
+		update(addresses);
+		Thread thread = new Thread(receiver, "wxg-cluster-gossip");
+		thread.setDaemon(true);
+		thread.start();
+		UpstreamEngine.schedule(gossipTask, interval);
+		logger.info("Joined cluster as " + node + " with " + (members.size() - 1) + " other members");
+	}
+
+	/**
+	 * Bind the gossip socket. Without a configured host it is bound to the host of the node, so other networks of the
+	 * gateway do not reach it. A node address that is not local, e.g. behind NAT, falls back to all interfaces.
+	 */
+	private static DatagramSocket bind(InetSocketAddress node, String bindHost) throws IOException {
+		if (bindHost != null && bindHost.length() > 0)
+			return new DatagramSocket(new InetSocketAddress(bindHost, node.getPort()));
+		if (!node.isUnresolved()) {
+			try {
+				return new DatagramSocket(node);
+			} catch (BindException e) {
+				logger.warn("Cannot bind cluster gossip to " + node + ", binding to all interfaces", e);
+			}
+		}
+		return new DatagramSocket(new InetSocketAddress(node.getPort()));
+	}
+
+	/**
+	 * Stop gossiping, the other members notice the failure after the fail timeout
+	 */
+	public static synchronized void stop() {
+		if (self == null)
+			return;
+		self = null;
+		socket.close();
+		ring = HashRing.EMPTY;
+	}
+
+	/**
+	 * Replace the configured members, e.g. after the members file has been changed. The state gossiped by members that
+	 * remain is kept, invalid addresses are ignored.
+	 * @param addresses the addresses of the other members, this gateway may be part of them
+	 */
+	public static synchronized void update(Collection<String> addresses) {
+		Member self = Cluster.self;
+		if (self == null)
+			return;
+		Map<String, Member> updated = new LinkedHashMap<String, Member>();
+		updated.put(self.getAddress(), self);
+		for (String address : addresses) {
+			if (updated.containsKey(address))
+				continue;
+			Member member = members.get(address);
+			try {
+				updated.put(address, member != null ? member : new Member(address));
+			} catch (IllegalArgumentException e) {
+				logger.warn("Ignoring invalid cluster member " + address);
+			}
+		}
+		Set<InetSocketAddress> gossipAddresses = new HashSet<InetSocketAddress>();
+		for (Member member : updated.values()) {
+			if (member != self && !member.getGossipAddress().isUnresolved())
+				gossipAddresses.add(member.getGossipAddress());
+		}
+		members = updated;
+		sources = gossipAddresses;
+		refreshRing();
+	}
+
+	/**
+	 * Check if the gateway is part of a cluster
+	 * @return true if sessions are placed on the members of a cluster
+	 */
+	public static boolean isEnabled() {
+		return self != null;
+	}
+
+	/**
+	 * Select the member a new session is placed on. The members are tried in the order of the ring starting at the owner
+	 * of the key, the first one below the bounded load takes the session.
+	 * @param key the key the session is placed by, e.g. its domain or a token of the client
+	 * @return the address of the member the client is redirected to, null if this gateway takes the session
+	 */
+	public static String place(String key) {
+		Member self = Cluster.self;
+		HashRing ring = Cluster.ring;
+		if (self == null || key == null || ring.isEmpty())
+			return null;
+		List<Member> order = ring.lookup(key.toLowerCase());
+		Member selected = order.get(0);
+		if (loadFactor > 0 && order.size() > 1) {
+			//consistent hashing with bounded loads: no member takes more than the factor times the average load
+			long total = 0;
+			for (Member member : order)
+				total += getLoad(member, self);
+			long capacity = (loadFactor * (total + 1) + 100L * order.size() - 1) / (100L * order.size());
+			for (Member member : order) {
+				if (getLoad(member, self) < capacity) {
+					selected = member;
+					break;
+				}
+			}
+		}
+		if (selected == self)
+			return null;
+		if (selected == order.get(0))
+			placementRedirects.incrementAndGet();
+		else
+			overloadRedirects.incrementAndGet();
+		return selected.getAddress();
+	}
+
+	/**
+	 * Get the member an open session is moved to by the running rebalance. Only sessions whose key is owned by a member
+	 * that has joined the ring are moved. Sessions placed after the member has joined stay where the bounded loads have
+	 * put them.
+	 * @param key the key the session has been placed by
+	 * @param placed the time in ms the session has been placed
+	 * @return the address of the member the client is redirected to, null if the session stays
+	 */
+	public static String getRebalanceTarget(String key, long placed) {
+		Map<Member, Long> moving = Cluster.moving;
+		if (key == null || moving.isEmpty())
+			return null;
+		Member owner = ring.owner(key.toLowerCase());
+		if (owner == null || owner == self || !moving.containsKey(owner) || placed >= moving.get(owner))
+			return null;
+		sessionsMoved.incrementAndGet();
+		return owner.getAddress();
+	}
+
+	/**
+	 * Get the current load of a member, the load of this gateway is not taken from gossip. The session being placed
+	 * has been registered already and is not counted.
+	 */
+	private static long getLoad(Member member, Member self) {
+		return member == self ? Math.max(0, WebSocketXmppGateway.getSessions().size() - 1) : member.getSessions();
+	}
+
+	/**
+	 * Send the state of all members heard of to a few random members and update the ring
+	 */
+	private static void gossip() {
+		long now = System.currentTimeMillis();
+		Member self = Cluster.self;
+		self.update(self.getHeartbeat() + 1, WebSocketXmppGateway.getSessions().size(), WebSocketXmppGateway.isDraining(), now);
+		List<Member> others = new ArrayList<Member>(members.values());
+		others.remove(self);
+		StringBuilder message = new StringBuilder(GOSSIP_HEADER).append('\n');
+		for (Member member : members.values()) {
+			if (member.getHeartbeat() >= 0)
+				message.append(member.getAddress()).append(' ').append(member.getHeartbeat()).append(' ').append(member.getSessions())
+						.append(' ').append(member.isDraining() ? 1 : 0).append('\n');
+		}
+		if (secret != null) {
+			String mac = mac(message.toString());
+			message.append(MAC_PREFIX).append(mac).append('\n');
+		}
+		byte[] data = encode(message.toString());
+		Collections.shuffle(others);
+		for (Member member : others.subList(0, Math.min(GOSSIP_FANOUT, others.size()))) {
+			if (member.getGossipAddress().isUnresolved())
+				continue;
+			try {
+				socket.send(new DatagramPacket(data, data.length, member.getGossipAddress()));
+				gossipSent.incrementAndGet();
+			} catch (IOException e) {
+				logger.debug("Cannot send gossip to " + member, e);
+			}
+		}
+		//members that have been silent for the fail timeout leave the ring
+		refreshRing();
+	}
+
+	/**
+	 * Apply the gossip received from another member. Entries of unknown members and of this gateway are ignored.
+	 * @param message the gossip message
+	 */
+	private static void receive(String message) {
+		String[] lines = message.split("\n");
+		if (!GOSSIP_HEADER.equals(lines[0]))
+			return;
+		if (secret != null && !isAuthentic(message, lines[lines.length - 1])) {
+			gossipRejected.incrementAndGet();
+			logger.debug("Ignoring gossip without a valid HMAC");
+			return;
+		}
+		gossipReceived.incrementAndGet();
+		long now = System.currentTimeMillis();
+		Map<String, Member> members = Cluster.members;
+		boolean updated = false;
+		for (int i = 1; i < lines.length; i++) {
+			String[] fields = lines[i].trim().split(" ");
+			if (fields.length != 4)
+				continue;
+			Member member = members.get(fields[0]);
+			if (member == null || member == self)
+				continue;
+			updated |= member.update(Long.parseLong(fields[1]), Integer.parseInt(fields[2]), "1".equals(fields[3]), now);
+		}
+		if (updated)
+			refreshRing();
+	}
+
+	/**
+	 * Check the HMAC in the last line of a message
+	 * @param message the gossip message
+	 * @param last the last line of the message
+	 * @return true if the HMAC matches the content before the last line
+	 */
+	private static boolean isAuthentic(String message, String last) {
+		if (!last.startsWith(MAC_PREFIX))
+			return false;
+		String content = message.substring(0, message.lastIndexOf(MAC_PREFIX));
+		//constant time comparison, the time taken does not reveal how much of the HMAC is correct
+		return MessageDigest.isEqual(encode(mac(content)), encode(last.substring(MAC_PREFIX.length()).trim()));
+	}
+
+	/**
+	 * Compute the HMAC of a message with the shared secret
+	 * @return the HMAC as hex string
+	 */
+	private static String mac(String content) {
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(secret);
+			StringBuilder hex = new StringBuilder();
+			for (byte b : mac.doFinal(encode(content)))
+				hex.append(Character.forDigit(b >> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			return hex.toString();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(MAC_ALGORITHM + " is not supported", e);
+		}
+	}
+
+	private static byte[] encode(String text) {
+		try {
+			return text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is not supported", e);
+		}
+	}
+
+	/**
+	 * Build a new ring if members have joined or left it. Members that have joined are recorded for the rebalance,
+	 * which starts once the membership has been stable for the fail timeout.
+	 */
+	private static synchronized void refreshRing() {
+		Member self = Cluster.self;
+		if (self == null)
+			return;
+		long now = System.currentTimeMillis();
+		List<Member> live = new ArrayList<Member>();
+		for (Member member : members.values()) {
+			if (member.isAlive(now, failTimeout) && !member.isDraining())
+				live.add(member);
+		}
+		List<Member> previous = ring.getMembers();
+		if (live.size() == previous.size() && previous.containsAll(live))
+			return;
+		for (Member member : live) {
+			if (!previous.contains(member) && member != self)
+				joined.put(member, now);
+		}
+		ring = new HashRing(live);
+		logger.info("Cluster members accepting sessions: " + live);
+		if (rebalance && !joined.isEmpty()) {
+			if (!rebalanceScheduled) {
+				rebalanceScheduled = true;
+				UpstreamEngine.schedule(rebalanceTask, failTimeout);
+			}
+		}
+	}
+
+	/**
+	 * Get the number of configured members, including this gateway
+	 * @return the number of members, 0 unless the gateway is part of a cluster
+	 */
+	public static int getMembers() {
+		return self != null ? members.size() : 0;
+	}
+
+	/**
+	 * Get the number of members that accept sessions
+	 * @return the number of members on the ring
+	 */
+	public static int getAliveMembers() {
+		return ring.getMembers().size();
+	}
+
+	/**
+	 * Get the number of clients that have been redirected to the owner of their key
+	 * @return the number of redirects
+	 */
+	public static long getPlacementRedirects() {
+		return placementRedirects.get();
+	}
+
+	/**
+	 * Get the number of clients that have been redirected past an overloaded owner
+	 * @return the number of redirects
+	 */
+	public static long getOverloadRedirects() {
+		return overloadRedirects.get();
+	}
+
+	/**
+	 * Get the number of sessions that have been moved to members that have joined
+	 * @return the number of moved sessions
+	 */
+	public static long getSessionsMoved() {
+		return sessionsMoved.get();
+	}
+
+	/**
+	 * Get the number of gossip messages sent
+	 * @return the number of sent messages
+	 */
+	public static long getGossipSent() {
+		return gossipSent.get();
+	}
+
+	/**
+	 * Get the number of gossip messages received
+	 * @return the number of received messages
+	 */
+	public static long getGossipReceived() {
+		return gossipReceived.get();
+	}
+
+	/**
+	 * Get the number of gossip messages dropped since they have not been sent by a member or their HMAC is invalid
+	 * @return the number of rejected messages
+	 */
+	public static long getGossipRejected() {
+		return gossipRejected.get();
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.cluster;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A consistent hash ring of the members that accept sessions. Every member is placed on the ring at a number of
+ * virtual points, a key belongs to the member of the first point at or after the hash of the key. If a member joins
+ * or leaves, only the keys between its points and their predecessors change their owner.
+ * The ring is immutable, it is replaced as a whole when the members change.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class HashRing {
+
+	private static final int VIRTUAL_NODES = 160; //points per member, spreads the keys evenly across the members
+
+	public static final HashRing EMPTY = new HashRing(Collections.<Member>emptyList());
+
+	private final List<Member> members;
+	private final long[] points; //sorted hashes of the virtual points
+	private final Member[] owners; //member of the point at the same index
+
+	/**
+	 * Creates a ring of the given members
+	 * @param members the members that accept sessions
+	 */
+	public HashRing(Collection<Member> members) {
+		this.members = Collections.unmodifiableList(new ArrayList<Member>(members));
+		long[][] entries = new long[members.size() * VIRTUAL_NODES][];
+		int i = 0;
+		for (int m = 0; m < this.members.size(); m++) {
+			for (int v = 0; v < VIRTUAL_NODES; v++)
+				entries[i++] = new long[] {hash(this.members.get(m).getAddress() + "#" + v), m};
+		}
+		Arrays.sort(entries, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+			}
+		});
+		points = new long[entries.length];
+		owners = new Member[entries.length];
+		for (i = 0; i < entries.length; i++) {
+			points[i] = entries[i][0];
+			owners[i] = this.members.get((int)entries[i][1]);
+		}
+	}
+
+	/**
+	 * Get the members of the ring
+	 * @return the members in the order they have been passed
+	 */
+	public List<Member> getMembers() {
+		return members;
+	}
+
+	/**
+	 * Check if the ring has no members
+	 * @return true if no member accepts sessions
+	 */
+	public boolean isEmpty() {
+		return members.isEmpty();
+	}
+
+	/**
+	 * Get the members in the order a key is placed on them: the owner of the key first, followed by the other members
+	 * in the order their points follow on the ring. A member that cannot take the key passes it on to the next one.
+	 * @param key the key, e.g. the domain of the session
+	 * @return all members, each once, the owner first
+	 */
+	public List<Member> lookup(String key) {
+		List<Member> order = new ArrayList<Member>(members.size());
+		if (points.length == 0)
+			return order;
+		int index = Arrays.binarySearch(points, hash(key));
+		if (index < 0)
+			index = -index - 1;
+		Map<Member, Boolean> seen = new IdentityHashMap<Member, Boolean>();
+		for (int i = 0; i < points.length && order.size() < members.size(); i++) {
+			Member member = owners[(index + i) % points.length];
+			if (seen.put(member, Boolean.TRUE) == null)
+				order.add(member);
+		}
+		return order;
+	}
+
+	/**
+	 * Get the owner of a key
+	 * @param key the key, e.g. the domain of the session
+	 * @return the member the key belongs to, null if the ring is empty
+	 */
+	public Member owner(String key) {
+		if (points.length == 0)
+			return null;
+		int index = Arrays.binarySearch(points, hash(key));
+		if (index < 0)
+			index = -index - 1;
+		return owners[index % points.length];
+	}
+
+	/**
+	 * Hash a key onto the ring
+	 * @param key the key
+	 * @return the first 8 bytes of the MD5 digest of the key
+	 */
+	private static long hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+			long hash = 0;
+			for (int i = 0; i < 8; i++)
+				hash = hash << 8 | (digest[i] & 0xff);
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not supported", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is not supported", e);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.cluster;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A gateway of the cluster. A member is identified by the host and port of its WebSocket endpoint, the same
+ * address is sent to clients with see-other-host. Gossip is exchanged via UDP on the same port number.
+ * The state is the latest one gossiped by the member itself, it is updated by the gossip thread only.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class Member {
+
+	private final String address; //host:port
+	private final InetSocketAddress gossipAddress;
+	private volatile long heartbeat = -1; //latest heartbeat of the member, -1 until the member has been heard of
+	private volatile long lastSeen = 0; //time in ms the heartbeat has last increased
+	private volatile int sessions = 0; //open sessions of the member
+	private volatile boolean draining = false; //true if the member does not accept new sessions
+
+	/**
+	 * Creates a member
+	 * @param address the host and port of the WebSocket endpoint of the member, e.g. gw1.example.com:8080
+	 * @throws IllegalArgumentException if the address has no valid port
+	 */
+	public Member(String address) {
+		int separator = address.lastIndexOf(':');
+		if (separator <= 0)
+			throw new IllegalArgumentException("Cluster member without port: " + address);
+		int port;
+		try {
+			port = Integer.parseInt(address.substring(separator + 1));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid port of cluster member: " + address);
+		}
+		if (port <= 0 || port > 0xffff)
+			throw new IllegalArgumentException("Invalid port of cluster member: " + address);
+		this.address = address;
+		this.gossipAddress = new InetSocketAddress(address.substring(0, separator), port);
+	}
+
+	/**
+	 * Get the address of the member
+	 * @return the host and port of the WebSocket endpoint
+	 */
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * Get the address gossip is sent to
+	 * @return the UDP address of the member, unresolved if the host has not been found
+	 */
+	InetSocketAddress getGossipAddress() {
+		return gossipAddress;
+	}
+
+	/**
+	 * Get the latest heartbeat of the member
+	 * @return the heartbeat, -1 if the member has not been heard of
+	 */
+	long getHeartbeat() {
+		return heartbeat;
+	}
+
+	/**
+	 * Get the number of open sessions gossiped by the member
+	 * @return the number of sessions
+	 */
+	public int getSessions() {
+		return sessions;
+	}
+
+	/**
+	 * Check if the member is draining
+	 * @return true if the member does not accept new sessions
+	 */
+	public boolean isDraining() {
+		return draining;
+	}
+
+	/**
+	 * Check if the heartbeat of the member has increased recently
+	 * @param now the current time in ms
+	 * @param failTimeout the time in ms after that a silent member counts as failed
+	 * @return true if the member is alive
+	 */
+	public boolean isAlive(long now, long failTimeout) {
+		return heartbeat >= 0 && now - lastSeen < failTimeout;
+	}
+
+	/**
+	 * Apply gossip about the member. Gossip older than the known state is ignored.
+	 * @param heartbeat the heartbeat of the gossiped state
+	 * @param sessions the number of sessions of the gossiped state
+	 * @param draining true if the member does not accept new sessions
+	 * @param now the current time in ms
+	 * @return true if the gossip has been newer than the known state
+	 */
+	boolean update(long heartbeat, int sessions, boolean draining, long now) {
+		if (heartbeat <= this.heartbeat)
+			return false;
+		this.sessions = sessions;
+		this.draining = draining;
+		this.heartbeat = heartbeat;
+		this.lastSeen = now;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return address;
+	}
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.connection;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedList;
+import java.util.Queue;
+
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.websocket.WebSocket.FrameConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.rwth_aachen.dbis.wsxmppgateway.WebSocketConstants;
+import de.rwth_aachen.dbis.wsxmppgateway.metrics.GatewayMetrics;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamEngine;
+
+/**
+ * Queue for stanzas sent from the gateway to a WebSocket client. Stanzas are collected while a burst received from the
+ * XMPP server is processed and written when the burst has ended, when the flush delay has expired or when the
+ * queued bytes exceed the threshold, whichever comes first. Every write to the WebSocket connection is a separate
+ * write to the client socket, so clients that accept several stanzas per message receive the whole batch in one frame.
+ * All other messages to the client pass the queue as well to keep the order of the stream.
+ * <p>
+ * Frames ready to be sent are bounded: when their size exceeds the limit, the handler is told to stop reading from the
+ * XMPP server, and it is told to resume once the frames have drained below the resume mark. In mode nio the frames are
+ * written by a client writer thread, so a slow client never blocks a reactor. In the other modes the thread that
+ * queued a frame writes it, which pauses reading from the XMPP server by itself.
+ *
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+class OutboundQueue {
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(OutboundQueue.class);
+
+	private final WsXMPPConnectionHandler handler;
+	private final FrameConnection connection;
+	private final EndPoint endPoint; //closed to abort a blocked write, null if not known
+	private final boolean packStanzas; //true, if several stanzas may be sent in one frame
+	private final int flushDelay; //ms
+	private final int flushBytes;
+	private final int limit; //queued bytes that pause reading from the XMPP server
+	private final int resume; //queued bytes below which reading is resumed
+	private final boolean inline; //true, if frames are written by the thread that queued them
+
+	//stanzas collected for the next frames
+	private byte[] buffer = new byte[1024];
+	private int length = 0;
+	private int[] stanzaEnds = new int[16]; //end of every queued stanza in buffer
+	private int stanzas = 0;
+	private boolean flushScheduled = false;
+
+	//frames ready to be written
+	private final Queue<byte[]> frames = new LinkedList<byte[]>();
+	private int queuedBytes = 0; //size of the frames including the frame being written
+	private boolean writing = false; //true while a thread writes frames
+	private long writeStarted = 0; //time in ms the current write has been started, 0 if no write is in progress
+	private boolean paused = false; //true while reading from the XMPP server is paused
+	private long pausedSince = 0; //time in ms reading from the XMPP server has been paused
+	private int closeStatus = -1; //status the connection is closed with after the last frame, -1 if it stays open
+	private boolean closed = false; //true once the connection has been closed
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (OutboundQueue.this) {
+				flushScheduled = false;
+			}
+			try {
+				flush();
+			} catch (IOException e) {
+				logger.info(handler.getRemoteHost() + " - failed to send message", e);
+			}
+		}
+	};
+
+	private final Runnable writeTask = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				writeFrames();
+			} catch (IOException e) {
+				logger.info(handler.getRemoteHost() + " - failed to send message", e);
+			}
+		}
+	};
+
+	/**
+	 * Creates a new outbound queue
+	 * @param handler the client connection, it is told when reading from the XMPP server has to pause and may resume
+	 * @param connection the WebSocket connection to the client
+	 * @param endPoint the endpoint of the connection, null if not known
+	 * @param packStanzas true, if the client accepts several stanzas in one message
+	 * @param flushDelay the maximum time in ms a stanza is kept in the queue after a burst has ended, 0 to write it immediately
+	 * @param flushBytes the number of queued bytes that causes a write regardless of the delay
+	 * @param limit the number of bytes waiting to be written that pauses reading from the XMPP server
+	 * @param resume the number of bytes waiting to be written below which reading is resumed
+	 */
+	OutboundQueue(WsXMPPConnectionHandler handler, FrameConnection connection, EndPoint endPoint, boolean packStanzas, int flushDelay,
+			int flushBytes, int limit, int resume) {
+		this.handler = handler;
+		this.connection = connection;
+		this.endPoint = endPoint;
+		this.packStanzas = packStanzas;
+		this.flushDelay = flushDelay;
+		this.flushBytes = flushBytes;
+		this.limit = limit;
+		this.resume = resume;
+		this.inline = !UpstreamEngine.MODE_NIO.equals(UpstreamEngine.getMode());
+	}
+
+	/**
+	 * Queue a serialized stanza
+	 * @param data the buffer holding the UTF-8 encoded stanza, it is copied unless it is written right away
+	 * @param offset the offset of the stanza in the buffer
+	 * @param length the length of the stanza in bytes
+	 * @throws IOException if the stanza has been written by the calling thread and the client cannot be written to
+	 */
+	void add(byte[] data, int offset, int length) throws IOException {
+		boolean pause = false;
+		boolean direct = false;
+		synchronized (this) {
+			if (!packStanzas && flushDelay == 0 && stanzas == 0) {
+				if (inline && !writing && frames.isEmpty() && closeStatus < 0 && !closed) {
+					//nothing to gain from queueing
+					direct = true;
+					writing = true;
+					writeStarted = System.currentTimeMillis();
+				}
+				else {
+					byte[] frame = new byte[length];
+					System.arraycopy(data, offset, frame, 0, length);
+					pause = enqueue(frame);
+				}
+			}
+			else {
+				ensureCapacity(length);
+				System.arraycopy(data, offset, buffer, this.length, length);
+				this.length += length;
+				stanzaEnds[stanzas++] = this.length;
+				if (this.length >= flushBytes)
+					pause = collect();
+			}
+		}
+		if (direct) {
+			//this thread owns the connection, write the stanza from the buffer of the caller
+			try {
+				connection.sendFrame(connection.finMask(), connection.textOpcode(), data, offset, length);
+			} finally {
+				synchronized (this) {
+					writing = false;
+					writeStarted = 0;
+				}
+			}
+		}
+		paused(pause);
+		dispatch();
+	}
+
+	/**
+	 * Signal that the current burst of stanzas has ended. The queue is flushed now or after the flush delay.
+	 * @throws IOException if the client cannot be written to
+	 */
+	void endOfBurst() throws IOException {
+		synchronized (this) {
+			if (stanzas == 0 || flushScheduled)
+				return;
+			if (flushDelay > 0) {
+				flushScheduled = true;
+				UpstreamEngine.schedule(flushTask, flushDelay);
+				return;
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * Send a message after all queued stanzas
+	 * @param message the message to be sent to the client
+	 * @throws IOException if the client cannot be written to
+	 */
+	void send(String message) throws IOException {
+		boolean pause;
+		synchronized (this) {
+			pause = collect() | enqueue(encode(message));
+		}
+		paused(pause);
+		dispatch();
+	}
+
+	/**
+	 * Write all queued stanzas to the client
+	 * @throws IOException if the client cannot be written to
+	 */
+	void flush() throws IOException {
+		boolean pause;
+		synchronized (this) {
+			pause = collect();
+		}
+		paused(pause);
+		dispatch();
+	}
+
+	/**
+	 * Close the connection once all queued stanzas and messages have been written
+	 * @param status the status code to be sent to the client, {@link de.rwth_aachen.dbis.wsxmppgateway.WebSocketConstants#CLOSE_NORMAL} to disconnect without a status
+	 * @throws IOException if the client cannot be written to
+	 */
+	void close(int status) throws IOException {
+		synchronized (this) {
+			collect();
+			if (!closed && closeStatus < 0)
+				closeStatus = status;
+		}
+		dispatch();
+	}
+
+	/**
+	 * Drop everything queued and close the connection at once. A write that blocks is aborted by closing the endpoint,
+	 * the close frame could not pass it.
+	 * @param status the status code to be sent to the client
+	 */
+	void abort(int status) {
+		boolean blocked;
+		synchronized (this) {
+			frames.clear();
+			queuedBytes = 0;
+			length = 0;
+			stanzas = 0;
+			closeStatus = -1;
+			closed = true;
+			blocked = writeStarted > 0;
+			writeStarted = 0;
+		}
+		if (blocked && endPoint != null) {
+			try {
+				endPoint.close();
+			} catch (IOException e) {
+				logger.debug(handler.getRemoteHost() + " - cannot close connection", e);
+			}
+			//the writer waits on the endpoint until the socket becomes writable, wake it to see the closed endpoint
+			synchronized (endPoint) {
+				endPoint.notifyAll();
+			}
+		}
+		else
+			connection.close(status, null);
+	}
+
+	/**
+	 * Check if the client does not take the data sent to it
+	 * @param now the current time in ms
+	 * @param timeout the time in ms after that a paused queue counts as stalled
+	 * @return true if reading from the XMPP server has been paused for longer than the timeout
+	 */
+	synchronized boolean isStalled(long now, long timeout) {
+		return paused && now - pausedSince > timeout;
+	}
+
+	/**
+	 * Check if a write to the client blocks
+	 * @param now the current time in ms
+	 * @param timeout the time in ms a write may take
+	 * @return true if a write has been blocked for longer than the timeout
+	 */
+	synchronized boolean isWriteBlocked(long now, long timeout) {
+		return writeStarted > 0 && now - writeStarted > timeout;
+	}
+
+	/**
+	 * Check if a write to the client is in progress
+	 * @return true if a thread is writing to the client
+	 */
+	synchronized boolean isWriting() {
+		return writeStarted > 0;
+	}
+
+	/**
+	 * Move the collected stanzas to the frames to be written. Must be called while holding the monitor.
+	 * @return true if the frames exceed the limit now
+	 */
+	private boolean collect() {
+		if (stanzas == 0)
+			return false;
+		boolean pause = false;
+		if (packStanzas) {
+			byte[] frame = new byte[length];
+			System.arraycopy(buffer, 0, frame, 0, length);
+			pause = enqueue(frame);
+		}
+		else {
+			int start = 0;
+			for (int i = 0; i < stanzas; i++) {
+				byte[] frame = new byte[stanzaEnds[i] - start];
+				System.arraycopy(buffer, start, frame, 0, frame.length);
+				pause |= enqueue(frame);
+				start = stanzaEnds[i];
+			}
+		}
+		length = 0;
+		stanzas = 0;
+		return pause;
+	}
+
+	/**
+	 * Add a frame to be written. Must be called while holding the monitor.
+	 * @return true if the frames exceed the limit now
+	 */
+	private boolean enqueue(byte[] frame) {
+		if (closed || closeStatus >= 0)
+			return false; //connection is closed or about to be closed
+		frames.add(frame);
+		queuedBytes += frame.length;
+		if (paused || queuedBytes <= limit)
+			return false;
+		paused = true;
+		pausedSince = System.currentTimeMillis();
+		return true;
+	}
+
+	/**
+	 * Tell the handler to pause reading from the XMPP server. Must be called without holding the monitor.
+	 */
+	private void paused(boolean pause) {
+		if (pause) {
+			GatewayMetrics.backpressureToClient();
+			handler.outboundPaused();
+		}
+	}
+
+	/**
+	 * Start writing the frames unless another thread is writing them already
+	 * @throws IOException if the frames are written by the calling thread and the client cannot be written to
+	 */
+	private void dispatch() throws IOException {
+		synchronized (this) {
+			if (writing || (frames.isEmpty() && closeStatus < 0))
+				return;
+			writing = true;
+		}
+		if (inline)
+			writeFrames();
+		else
+			UpstreamEngine.writeToClient(writeTask);
+	}
+
+	/**
+	 * Write frames until none is left, then close the connection if that has been requested
+	 * @throws IOException if the client cannot be written to
+	 */
+	private void writeFrames() throws IOException {
+		while (true) {
+			byte[] frame;
+			int status = -1;
+			synchronized (this) {
+				frame = frames.peek();
+				if (frame == null) {
+					writing = false;
+					if (closeStatus < 0 || closed)
+						return;
+					status = closeStatus;
+					closed = true;
+					writeStarted = System.currentTimeMillis(); //the close frame may block as well
+				}
+				else
+					writeStarted = System.currentTimeMillis();
+			}
+			if (frame == null) {
+				if (status == WebSocketConstants.CLOSE_NORMAL)
+					connection.disconnect();
+				else
+					connection.close(status, null); //tell the client why the connection is closed
+				return;
+			}
+			boolean resumed = false;
+			try {
+				connection.sendFrame(connection.finMask(), connection.textOpcode(), frame, 0, frame.length);
+			} catch (IOException e) {
+				//client is gone, the connection is cleaned up when Jetty reports the close
+				synchronized (this) {
+					frames.clear();
+					queuedBytes = 0;
+					writing = false;
+					writeStarted = 0;
+				}
+				throw e;
+			}
+			synchronized (this) {
+				if (frames.poll() != null) //the queue is empty if it has been aborted meanwhile
+					queuedBytes -= frame.length;
+				writeStarted = 0;
+				if (paused && queuedBytes <= resume) {
+					paused = false;
+					resumed = true;
+				}
+			}
+			if (resumed)
+				handler.outboundResumed();
+		}
+	}
+
+	private static byte[] encode(String message) {
+		try {
+			return message.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e); //UTF-8 is supported by every JVM
+		}
+	}
+
+	private void ensureCapacity(int additional) {
+		if (length + additional > buffer.length) {
+			byte[] grown = new byte[Math.max(buffer.length * 2, length + additional)];
+			System.arraycopy(buffer, 0, grown, 0, length);
+			buffer = grown;
+		}
+		if (stanzas == stanzaEnds.length) {
+			int[] grown = new int[stanzas * 2];
+			System.arraycopy(stanzaEnds, 0, grown, 0, stanzas);
+			stanzaEnds = grown;
+		}
+	}
+}
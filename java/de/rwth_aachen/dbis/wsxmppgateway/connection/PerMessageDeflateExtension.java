@@ -0,0 +1,478 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.connection;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.server.HttpConnection;
+import org.eclipse.jetty.websocket.Extension;
+import org.eclipse.jetty.websocket.WebSocket.FrameConnection;
+import org.eclipse.jetty.websocket.WebSocketGenerator;
+import org.eclipse.jetty.websocket.WebSocketParser.FrameHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.rwth_aachen.dbis.wsxmppgateway.WebSocketConstants;
+import de.rwth_aachen.dbis.wsxmppgateway.WebSocketXmppGateway;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.ZlibPool;
+
+/**
+ * WebSocket per-message compression (RFC 7692) for the connections to the clients.
+ * Jetty creates an instance for every offer of the extension in the upgrade request, only the first acceptable offer is accepted.
+ * Messages shorter than the configured minimum size are sent uncompressed. The deflater or inflater of a direction is only
+ * kept between messages if context takeover is enabled and it fits into the memory configured per session,
+ * otherwise it is taken from a {@link ZlibPool} for raw deflate data for every message. Buffers grown for a large message are dropped afterwards.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class PerMessageDeflateExtension implements Extension {
+
+	public static final String NAME = "permessage-deflate";
+	static final String REQUEST_ATTRIBUTE = PerMessageDeflateExtension.class.getName(); //extension accepted for the upgrade request
+
+	private static final byte FLAG_FIN = 0x8;
+	private static final byte FLAG_RSV1 = 0x4; //set on the first frame of a compressed message
+	private static final byte OP_CONTINUATION = 0x0;
+	private static final byte[] TAIL = { 0, 0, (byte) 0xff, (byte) 0xff }; //end of a sync flush, not sent with a message
+	private static final int MAX_WINDOW_BITS = 15; //the deflater and the inflater always use a window of 32 KB
+	//memory zlib allocates for a deflater (window and hash chains of 15 window bits and memory level 8) and an inflater
+	private static final int DEFLATER_MEMORY = (1 << (MAX_WINDOW_BITS + 2)) + (1 << (8 + 9)) + 6*1024;
+	private static final int INFLATER_MEMORY = (1 << MAX_WINDOW_BITS) + 7*1024;
+	private static final int LEVEL = Deflater.BEST_SPEED;
+	private static final int BUFFER_SIZE = 4*1024;
+	private static final int MAX_KEPT_BUFFER_SIZE = 16*1024; //larger buffers are dropped after the message
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(PerMessageDeflateExtension.class);
+
+	private static final ZlibPool pool = new ZlibPool(true);
+	private static final AtomicLong sessionsNegotiated = new AtomicLong(0);
+	private static final AtomicLong messagesSkipped = new AtomicLong(0);
+
+	private FrameConnection connection;
+	private FrameHandler inbound;
+	private WebSocketGenerator outbound;
+	private String parameterizedName = NAME;
+
+	//negotiated parameters
+	private boolean serverTakeover; //true, if the deflater keeps its window between messages
+	private boolean clientTakeover; //true, if the inflater keeps its window between messages
+
+	private final Object deflateLock = new Object(); //compressed messages are sent in the order they have been compressed
+	private final Object inflateLock = new Object();
+	private Deflater deflater; //kept between messages with context takeover only, guarded by deflateLock
+	private Inflater inflater; //kept between messages with context takeover only, guarded by inflateLock
+	private byte[] deflated = new byte[BUFFER_SIZE];
+	private byte[] inflated = new byte[BUFFER_SIZE];
+	private byte[] fragments; //compressed frames of a fragmented message, only accessed by the reading thread
+	private int fragmentsLength = 0;
+	private byte fragmentsOpcode;
+	private boolean released = false;
+
+	//statistics of this session
+	private long rawOut = 0;
+	private long compressedOut = 0;
+	private long rawIn = 0;
+	private long compressedIn = 0;
+	private long skipped = 0;
+	private long nanos = 0;
+
+	/**
+	 * Creates the extension, called by Jetty for every offer in an upgrade request
+	 */
+	public PerMessageDeflateExtension() {
+	}
+
+	/**
+	 * Accept an offer of the client. Parameters the deflater cannot honor decline the offer.
+	 * @param parameters the parameters of the offer, values are null if a parameter has no value
+	 * @return true if the offer has been accepted
+	 */
+	@Override
+	public boolean init(Map<String, String> parameters) {
+		HttpConnection http = HttpConnection.getCurrentConnection();
+		if (http != null && http.getRequest().getAttribute(REQUEST_ATTRIBUTE) != null)
+			return false; //an earlier offer has been accepted
+		serverTakeover = WebSocketXmppGateway.isClientCompressionContextTakeover();
+		clientTakeover = serverTakeover;
+		try {
+			for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+				String name = parameter.getKey();
+				String value = parameter.getValue();
+				if ("server_no_context_takeover".equals(name))
+					serverTakeover = false;
+				else if ("client_no_context_takeover".equals(name))
+					clientTakeover = false;
+				else if ("server_max_window_bits".equals(name)) {
+					if (Integer.parseInt(value) != MAX_WINDOW_BITS)
+						return false; //the deflater cannot use a smaller window
+				}
+				else if ("client_max_window_bits".equals(name)) {
+					//the inflater decodes any window the client uses
+					if (value != null && (Integer.parseInt(value) < 8 || Integer.parseInt(value) > MAX_WINDOW_BITS))
+						return false;
+				}
+				else
+					return false; //unknown parameter
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+
+		//fit the deflater and inflater kept between messages into the memory of the session, the messages to the client come first
+		int memory = WebSocketXmppGateway.getClientCompressionMemory();
+		if (serverTakeover) {
+			if (DEFLATER_MEMORY <= memory)
+				memory -= DEFLATER_MEMORY;
+			else
+				serverTakeover = false;
+		}
+		if (clientTakeover && INFLATER_MEMORY > memory)
+			clientTakeover = false;
+
+		StringBuilder name = new StringBuilder(NAME);
+		if (!serverTakeover)
+			name.append("; server_no_context_takeover");
+		if (!clientTakeover)
+			name.append("; client_no_context_takeover");
+		parameterizedName = name.toString();
+		if (http != null)
+			http.getRequest().setAttribute(REQUEST_ATTRIBUTE, this);
+		sessionsNegotiated.incrementAndGet();
+		return true;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public String getParameterizedName() {
+		return parameterizedName;
+	}
+
+	@Override
+	public void bind(FrameConnection connection, FrameHandler inbound, WebSocketGenerator outbound) {
+		this.connection = connection;
+		this.inbound = inbound;
+		this.outbound = outbound;
+	}
+
+	//******************** Messages to the client ********************//
+
+	@Override
+	public void addFrame(byte flags, byte opcode, byte[] content, int offset, int length) throws IOException {
+		//only complete messages are compressed, fragments and control frames are sent as they are
+		if (connection.isControl(opcode) || opcode == OP_CONTINUATION || (flags & FLAG_FIN) == 0) {
+			outbound.addFrame(flags, opcode, content, offset, length);
+			return;
+		}
+		synchronized (deflateLock) {
+			if (released)
+				throw new IOException("WebSocket connection has been closed");
+			if (length < WebSocketXmppGateway.getClientCompressionMinSize()) {
+				skipped++;
+				messagesSkipped.incrementAndGet();
+				outbound.addFrame(flags, opcode, content, offset, length);
+				return;
+			}
+			long start = System.nanoTime();
+			Deflater deflater = this.deflater != null ? this.deflater : pool.takeDeflater(LEVEL);
+			deflater.setInput(content, offset, length);
+			int count = 0;
+			while (true) {
+				count += deflater.deflate(deflated, count, deflated.length - count, Deflater.SYNC_FLUSH);
+				if (count < deflated.length)
+					break;
+				byte[] grown = new byte[deflated.length * 2];
+				System.arraycopy(deflated, 0, grown, 0, count);
+				deflated = grown;
+			}
+			count -= TAIL.length;
+			if (serverTakeover)
+				this.deflater = deflater;
+			else
+				pool.release(deflater);
+			long time = System.nanoTime() - start;
+			nanos += time;
+			if (!serverTakeover && count >= length) {
+				//without context takeover the client does not need the compressed data
+				skipped++;
+				messagesSkipped.incrementAndGet();
+				pool.deflated(0, 0, time);
+				outbound.addFrame(flags, opcode, content, offset, length);
+				return;
+			}
+			rawOut += length;
+			compressedOut += count;
+			pool.deflated(length, count, time);
+			outbound.addFrame((byte) (flags | FLAG_RSV1), opcode, deflated, 0, count);
+			if (deflated.length > MAX_KEPT_BUFFER_SIZE)
+				deflated = new byte[BUFFER_SIZE]; //the generator has copied the frame
+		}
+	}
+
+	@Override
+	public int flush() throws IOException {
+		return outbound.flush();
+	}
+
+	@Override
+	public boolean isBufferEmpty() {
+		return outbound.isBufferEmpty();
+	}
+
+	//******************** Messages from the client ********************//
+
+	@Override
+	public void onFrame(byte flags, byte opcode, Buffer buffer) {
+		if (connection.isControl(opcode)) {
+			inbound.onFrame(flags, opcode, buffer);
+			return;
+		}
+		if (fragments == null) {
+			if ((flags & FLAG_RSV1) == 0) {
+				inbound.onFrame(flags, opcode, buffer); //uncompressed message
+				return;
+			}
+			if ((flags & FLAG_FIN) != 0 && buffer.array() != null) {
+				inflate(opcode, buffer.array(), buffer.getIndex(), buffer.length());
+				return;
+			}
+			fragmentsOpcode = opcode;
+			fragmentsLength = 0;
+			fragments = new byte[Math.max(BUFFER_SIZE, buffer.length())];
+		}
+		else if (opcode != OP_CONTINUATION || (flags & FLAG_RSV1) != 0) {
+			fragments = null;
+			connection.close(WebSocketConstants.CLOSE_PROTOCOL_ERROR, "Bad continuation of compressed message");
+			return;
+		}
+		//collect the fragments of the message, the compressed message may not exceed the limit of the inflated one
+		int length = buffer.length();
+		int limit = getMessageLimit(fragmentsOpcode);
+		if (limit > 0 && fragmentsLength + length > limit) {
+			fragments = null;
+			connection.close(WebSocketConstants.CLOSE_MESSAGESIZE_EXCEEDED, "Message size > " + limit);
+			return;
+		}
+		if (fragmentsLength + length > fragments.length) {
+			byte[] grown = new byte[Math.max(fragments.length * 2, fragmentsLength + length)];
+			System.arraycopy(fragments, 0, grown, 0, fragmentsLength);
+			fragments = grown;
+		}
+		if (buffer.array() != null)
+			System.arraycopy(buffer.array(), buffer.getIndex(), fragments, fragmentsLength, length);
+		else
+			buffer.peek(buffer.getIndex(), fragments, fragmentsLength, length);
+		fragmentsLength += length;
+		if ((flags & FLAG_FIN) == 0)
+			return;
+		byte[] message = fragments;
+		fragments = null;
+		inflate(fragmentsOpcode, message, 0, fragmentsLength);
+	}
+
+	/**
+	 * Decompress a message of the client and hand it to Jetty as a single frame
+	 */
+	private void inflate(byte opcode, byte[] message, int offset, int length) {
+		synchronized (inflateLock) {
+			if (released)
+				return;
+			long start = System.nanoTime();
+			Inflater inflater = this.inflater != null ? this.inflater : pool.takeInflater();
+			int limit = getMessageLimit(opcode);
+			int count = 0;
+			try {
+				inflater.setInput(message, offset, length);
+				boolean tail = false;
+				while (true) {
+					count += inflater.inflate(inflated, count, inflated.length - count);
+					if (count == inflated.length) {
+						if (limit > 0 && count >= limit) {
+							inflater.reset();
+							connection.close(WebSocketConstants.CLOSE_MESSAGESIZE_EXCEEDED, "Message size > " + limit);
+							return;
+						}
+						byte[] grown = new byte[inflated.length * 2];
+						System.arraycopy(inflated, 0, grown, 0, count);
+						inflated = grown;
+					}
+					else if (inflater.finished()) {
+						inflater.reset(); //the client has ended the stream, the next message starts a new one
+						break;
+					}
+					else if (inflater.needsInput()) {
+						if (tail)
+							break;
+						inflater.setInput(TAIL);
+						tail = true;
+					}
+				}
+			} catch (DataFormatException e) {
+				logger.info("invalid compressed message from client: " + e.getMessage());
+				inflater.reset();
+				connection.close(WebSocketConstants.CLOSE_PROTOCOL_ERROR, "Invalid compressed data");
+				return;
+			} finally {
+				if (clientTakeover)
+					this.inflater = inflater;
+				else
+					pool.release(inflater);
+			}
+			long time = System.nanoTime() - start;
+			nanos += time;
+			rawIn += count;
+			compressedIn += length;
+			pool.inflated(length, count, time);
+			inbound.onFrame(FLAG_FIN, opcode, new ByteArrayBuffer(inflated, 0, count));
+			if (inflated.length > MAX_KEPT_BUFFER_SIZE)
+				inflated = new byte[BUFFER_SIZE]; //the message has been handled
+		}
+	}
+
+	/**
+	 * Get the maximum size of a message of the client
+	 * @param opcode the opcode of the message
+	 * @return the maximum in bytes, -1 if the size is not limited
+	 */
+	private int getMessageLimit(byte opcode) {
+		int limit = connection.isText(opcode) ? connection.getMaxTextMessageSize() : connection.getMaxBinaryMessageSize();
+		if (connection.isText(opcode))
+			limit = limit > Integer.MAX_VALUE / 4 ? -1 : limit * 4; //the limit counts chars of up to 4 bytes
+		return limit;
+	}
+
+	@Override
+	public void close(int code, String message) {
+		inbound.close(code, message);
+	}
+
+	//******************** Session ********************//
+
+	/**
+	 * Return the deflater and the inflater to the pool after the connection has been closed
+	 */
+	void release() {
+		synchronized (deflateLock) {
+			released = true;
+			if (deflater != null)
+				pool.release(deflater);
+			deflater = null;
+		}
+		synchronized (inflateLock) {
+			if (inflater != null)
+				pool.release(inflater);
+			inflater = null;
+		}
+	}
+
+	/**
+	 * Get the statistics of this session
+	 * @return the negotiated parameters, the compression ratio in both directions and the time spent
+	 */
+	String getStatistics() {
+		return parameterizedName + ": compressed " + rawOut + " bytes to " + compressedOut + " (" + ratio(rawOut, compressedOut)
+				+ ":1, " + skipped + " messages uncompressed), decompressed " + compressedIn + " bytes to " + rawIn + " ("
+				+ ratio(rawIn, compressedIn) + ":1) in " + (nanos / 1000000) + " ms";
+	}
+
+	@Override
+	public String toString() {
+		return parameterizedName;
+	}
+
+	private static String ratio(long raw, long compressed) {
+		if (compressed == 0)
+			return "0";
+		return String.valueOf(Math.round(raw * 10.0 / compressed) / 10.0);
+	}
+
+	//******************** Statistics ********************//
+
+	/**
+	 * Get the number of sessions that have negotiated compression
+	 * @return the number of sessions
+	 */
+	public static long getSessionsNegotiated() {
+		return sessionsNegotiated.get();
+	}
+
+	/**
+	 * Get the number of bytes sent to clients before compression
+	 * @return the number of uncompressed bytes
+	 */
+	public static long getBytesDeflated() {
+		return pool.getBytesDeflated();
+	}
+
+	/**
+	 * Get the number of compressed bytes sent to clients
+	 * @return the number of compressed bytes
+	 */
+	public static long getBytesDeflatedTo() {
+		return pool.getBytesDeflatedTo();
+	}
+
+	/**
+	 * Get the time spent compressing
+	 * @return the time spent compressing in ms
+	 */
+	public static long getDeflateTime() {
+		return pool.getDeflateTime();
+	}
+
+	/**
+	 * Get the number of bytes received from clients after decompression
+	 * @return the number of uncompressed bytes
+	 */
+	public static long getBytesInflated() {
+		return pool.getBytesInflated();
+	}
+
+	/**
+	 * Get the number of compressed bytes received from clients
+	 * @return the number of compressed bytes
+	 */
+	public static long getBytesInflatedFrom() {
+		return pool.getBytesInflatedFrom();
+	}
+
+	/**
+	 * Get the time spent decompressing
+	 * @return the time spent decompressing in ms
+	 */
+	public static long getInflateTime() {
+		return pool.getInflateTime();
+	}
+
+	/**
+	 * Get the number of messages sent uncompressed, since they are below the minimum size or do not shrink
+	 * @return the number of messages
+	 */
+	public static long getMessagesSkipped() {
+		return messagesSkipped.get();
+	}
+}
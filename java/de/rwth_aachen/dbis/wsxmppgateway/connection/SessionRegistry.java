@@ -0,0 +1,195 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.connection;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.Target;
+
+/**
+ * Registry of the open client sessions. Sessions are keyed by a session id and indexed by the remote address of the
+ * client and by the XMPP server they are forwarded to. Registering and unregistering take constant time and never
+ * block other sessions. Iterating the sessions does not lock either, an iteration reflects the registry at some point
+ * during the iteration and sees every session that has been registered before it started and is still open.
+ * Sessions that may be resumed (XEP-0198) are kept by their resumption id as well, also while the client is disconnected.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class SessionRegistry {
+
+	private final AtomicLong nextId = new AtomicLong(1);
+	private final ConcurrentMap<Long, WsXMPPConnectionHandler> sessions = new ConcurrentHashMap<Long, WsXMPPConnectionHandler>();
+	private final ConcurrentMap<String, Set<WsXMPPConnectionHandler>> byRemoteAddress = new ConcurrentHashMap<String, Set<WsXMPPConnectionHandler>>();
+	private final ConcurrentMap<String, Set<WsXMPPConnectionHandler>> byTarget = new ConcurrentHashMap<String, Set<WsXMPPConnectionHandler>>();
+	private final ConcurrentMap<String, WsXMPPConnectionHandler> resumable = new ConcurrentHashMap<String, WsXMPPConnectionHandler>();
+
+	/**
+	 * Register a session that has been opened
+	 * @param handler the client connection
+	 * @return the id of the session
+	 */
+	long register(WsXMPPConnectionHandler handler) {
+		long id = nextId.getAndIncrement();
+		sessions.put(id, handler);
+		index(byRemoteAddress, handler.getRemoteAddr(), handler);
+		return id;
+	}
+
+	/**
+	 * Index a registered session by the XMPP server it is forwarded to. A session that has been unregistered in the meantime is not indexed.
+	 * @param handler the client connection
+	 * @param target the XMPP server
+	 */
+	void indexTarget(WsXMPPConnectionHandler handler, Target target) {
+		index(byTarget, target.getKey(), handler);
+		if (sessions.get(handler.getSessionId()) != handler)
+			unindex(byTarget, target.getKey(), handler); //unregistered concurrently
+	}
+
+	/**
+	 * Remove a session from the registry, sessions that are not registered are ignored
+	 * @param handler the client connection
+	 */
+	void unregister(WsXMPPConnectionHandler handler) {
+		if (!sessions.remove(handler.getSessionId(), handler))
+			return;
+		unindex(byRemoteAddress, handler.getRemoteAddr(), handler);
+		Target target = handler.getTarget();
+		if (target != null)
+			unindex(byTarget, target.getKey(), handler);
+	}
+
+	/**
+	 * Keep a session that may be resumed
+	 * @param id the resumption id
+	 * @param handler the client connection that has enabled the resumption
+	 */
+	void addResumable(String id, WsXMPPConnectionHandler handler) {
+		resumable.put(id, handler);
+	}
+
+	/**
+	 * Take a session for a resumption or remove it since it is closed. Only one caller gets the session.
+	 * @param id the resumption id
+	 * @param handler the client connection the session is expected to be kept for, null for any connection
+	 * @return the client connection the session has been kept for, null if there is no such session
+	 */
+	WsXMPPConnectionHandler removeResumable(String id, WsXMPPConnectionHandler handler) {
+		if (handler == null)
+			return resumable.remove(id);
+		return resumable.remove(id, handler) ? handler : null;
+	}
+
+	/**
+	 * Get the sessions that may be resumed, including the sessions whose client is disconnected
+	 * @return an unmodifiable view of the sessions, iterating it does not lock the registry
+	 */
+	public Collection<WsXMPPConnectionHandler> getResumable() {
+		return Collections.unmodifiableCollection(resumable.values());
+	}
+
+	/**
+	 * Get a session by its id
+	 * @param id the id of the session
+	 * @return the client connection, null if there is no such session
+	 */
+	public WsXMPPConnectionHandler get(long id) {
+		return sessions.get(id);
+	}
+
+	/**
+	 * Get all open sessions
+	 * @return an unmodifiable view of the sessions, iterating it does not lock the registry
+	 */
+	public Collection<WsXMPPConnectionHandler> getSessions() {
+		return Collections.unmodifiableCollection(sessions.values());
+	}
+
+	/**
+	 * Get the sessions of a client address
+	 * @param address the remote address of the clients
+	 * @return an unmodifiable view of the sessions, empty if there are none
+	 */
+	public Set<WsXMPPConnectionHandler> getByRemoteAddress(String address) {
+		return lookup(byRemoteAddress, address);
+	}
+
+	/**
+	 * Get the sessions forwarded to an XMPP server
+	 * @param target the XMPP server
+	 * @return an unmodifiable view of the sessions, empty if there are none
+	 */
+	public Set<WsXMPPConnectionHandler> getByTarget(Target target) {
+		return lookup(byTarget, target.getKey());
+	}
+
+	/**
+	 * Get the number of open sessions
+	 * @return the number of sessions
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	private static Set<WsXMPPConnectionHandler> lookup(ConcurrentMap<String, Set<WsXMPPConnectionHandler>> index, String key) {
+		Set<WsXMPPConnectionHandler> set = key != null ? index.get(key) : null;
+		if (set == null)
+			return Collections.emptySet();
+		return Collections.unmodifiableSet(set);
+	}
+
+	/**
+	 * Add a session to the set of a key. Empty sets are removed by unindex(), so the set is added to again if it has been removed meanwhile.
+	 */
+	private void index(ConcurrentMap<String, Set<WsXMPPConnectionHandler>> index, String key, WsXMPPConnectionHandler handler) {
+		if (key == null)
+			return;
+		while (true) {
+			Set<WsXMPPConnectionHandler> set = index.get(key);
+			if (set == null) {
+				set = Collections.newSetFromMap(new ConcurrentHashMap<WsXMPPConnectionHandler, Boolean>(4));
+				Set<WsXMPPConnectionHandler> existing = index.putIfAbsent(key, set);
+				if (existing != null)
+					set = existing;
+			}
+			set.add(handler);
+			if (index.get(key) == set)
+				return;
+			set.remove(handler); //set has been removed concurrently -> retry with a new one
+		}
+	}
+
+	private void unindex(ConcurrentMap<String, Set<WsXMPPConnectionHandler>> index, String key, WsXMPPConnectionHandler handler) {
+		if (key == null)
+			return;
+		Set<WsXMPPConnectionHandler> set = index.get(key);
+		if (set == null)
+			return;
+		set.remove(handler);
+		if (set.isEmpty() && index.remove(key, set) && !set.isEmpty()) {
+			//sessions have been added after the check -> index them again
+			for (WsXMPPConnectionHandler added : set) {
+				if (sessions.get(added.getSessionId()) == added)
+					index(index, key, added);
+			}
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.connection;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * State of stream management (XEP-0198) between the gateway and a client. The gateway answers the client itself,
+ * the XMPP server does not need to support stream management. Stanzas sent to the client are kept until the client
+ * acknowledges them, so they can be sent again when the client resumes the session on a new WebSocket connection.
+ * The state is handed over from connection to connection, the connection currently attached is its owner.
+ * All methods lock the state, so a stanza is either sent to the owner or kept for the next one.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+class StreamManagement {
+
+	private static final long MASK = 0xffffffffL; //counters wrap at 2^32
+	private static final int ACK_REQUEST_STANZAS = 16; //unacknowledged stanzas after that an acknowledgement is requested
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private final String id; //the resumption id, null if the session cannot be resumed
+	private final int limit; //bytes of unacknowledged stanzas that may be kept
+	private WsXMPPConnectionHandler owner; //the attached connection, null while the client is disconnected
+	private boolean keeping; //true while unacknowledged stanzas are kept for the resumption
+	private long received = 0; //stanzas received from the client
+	private long sent = 0; //stanzas sent to the client
+	private long acknowledged = 0; //stanzas acknowledged by the client
+	private final LinkedList<byte[]> unacknowledged = new LinkedList<byte[]>();
+	private int unacknowledgedBytes = 0;
+	private boolean ackRequested = false; //true while an acknowledgement requested from the client is outstanding
+
+	/**
+	 * Creates the stream management state of a session
+	 * @param owner the connection that has enabled stream management
+	 * @param resumable true, if the client may resume the session
+	 * @param limit the number of bytes of unacknowledged stanzas that may be kept for the resumption
+	 */
+	StreamManagement(WsXMPPConnectionHandler owner, boolean resumable, int limit) {
+		this.owner = owner;
+		this.limit = limit;
+		this.keeping = resumable;
+		if (resumable) {
+			byte[] bytes = new byte[16];
+			random.nextBytes(bytes);
+			StringBuilder token = new StringBuilder(32);
+			for (byte b : bytes)
+				token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			this.id = token.toString();
+		}
+		else
+			this.id = null;
+	}
+
+	/**
+	 * Get the resumption id
+	 * @return the id the client resumes the session with, null if the session cannot be resumed
+	 */
+	String getId() {
+		return id;
+	}
+
+	/**
+	 * Check whether the session can be resumed
+	 * @return true if a resumption id has been assigned and the unacknowledged stanzas have not exceeded the limit
+	 */
+	synchronized boolean isResumable() {
+		return keeping;
+	}
+
+	/**
+	 * Get the connection the stanzas are sent to
+	 * @return the attached connection, null while the client is disconnected
+	 */
+	synchronized WsXMPPConnectionHandler getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Attach or detach a connection
+	 * @param owner the connection the stanzas are sent to, null if the client has disconnected
+	 */
+	synchronized void setOwner(WsXMPPConnectionHandler owner) {
+		this.owner = owner;
+	}
+
+	/**
+	 * Count a stanza received from the client
+	 */
+	synchronized void received() {
+		received++;
+	}
+
+	/**
+	 * Get the number of stanzas received from the client
+	 * @return the value of h sent to the client
+	 */
+	synchronized long getReceived() {
+		return received & MASK;
+	}
+
+	/**
+	 * Count a stanza sent to the client and keep it until it is acknowledged. Once the unacknowledged stanzas
+	 * exceed the limit, they are dropped and the session cannot be resumed anymore.
+	 * @param data the buffer holding the UTF-8 encoded stanza, it is copied
+	 * @param offset the offset of the stanza in the buffer
+	 * @param length the length of the stanza in bytes
+	 * @return false if the stanzas have just been dropped
+	 */
+	synchronized boolean sent(byte[] data, int offset, int length) {
+		sent++;
+		if (!keeping)
+			return true;
+		if (unacknowledgedBytes + length > limit) {
+			keeping = false;
+			unacknowledged.clear();
+			unacknowledgedBytes = 0;
+			return false;
+		}
+		byte[] stanza = new byte[length];
+		System.arraycopy(data, offset, stanza, 0, length);
+		unacknowledged.add(stanza);
+		unacknowledgedBytes += length;
+		return true;
+	}
+
+	/**
+	 * Drop the stanzas the client has acknowledged
+	 * @param h the number of stanzas the client has received
+	 * @return false if h acknowledges more stanzas than have been sent
+	 */
+	synchronized boolean acknowledge(long h) {
+		ackRequested = false;
+		long count = (h - acknowledged) & MASK;
+		if (count > ((sent - acknowledged) & MASK))
+			return false;
+		for (long i = 0; i < count && !unacknowledged.isEmpty(); i++)
+			unacknowledgedBytes -= unacknowledged.removeFirst().length;
+		acknowledged = h & MASK;
+		return true;
+	}
+
+	/**
+	 * Check whether an acknowledgement is to be requested from the client, the request counts as sent
+	 * @return true if several stanzas or half of the limit are unacknowledged and no request is outstanding
+	 */
+	synchronized boolean requestAck() {
+		if (!keeping || ackRequested || (unacknowledged.size() < ACK_REQUEST_STANZAS && unacknowledgedBytes < limit / 2))
+			return false;
+		ackRequested = true;
+		return true;
+	}
+
+	/**
+	 * Get the stanzas that have not been acknowledged
+	 * @return a copy of the list of stanzas in the order they have been sent
+	 */
+	synchronized List<byte[]> getUnacknowledged() {
+		return new ArrayList<byte[]>(unacknowledged);
+	}
+
+	/**
+	 * Check whether a serialized element is a stanza counted by stream management
+	 * @param data the buffer holding the UTF-8 encoded element
+	 * @param offset the offset of the element in the buffer
+	 * @param length the length of the element in bytes
+	 * @return true if the element is a message, presence or iq stanza
+	 */
+	static boolean isStanza(byte[] data, int offset, int length) {
+		return startsWith(data, offset, length, "message") || startsWith(data, offset, length, "presence") || startsWith(data, offset, length, "iq");
+	}
+
+	/**
+	 * Check whether a serialized element is a stanza counted by stream management
+	 * @param element the serialized element
+	 * @return true if the element is a message, presence or iq stanza
+	 */
+	static boolean isStanza(String element) {
+		return startsWith(element, "message") || startsWith(element, "presence") || startsWith(element, "iq");
+	}
+
+	private static boolean startsWith(byte[] data, int offset, int length, String name) {
+		int end = name.length() + 1;
+		if (length <= end || data[offset] != '<')
+			return false;
+		for (int i = 0; i < name.length(); i++) {
+			if (data[offset + 1 + i] != name.charAt(i))
+				return false;
+		}
+		return " \t\r\n/>".indexOf(data[offset + end]) >= 0;
+	}
+
+	private static boolean startsWith(String element, String name) {
+		int end = name.length() + 1;
+		return element.length() > end && element.charAt(0) == '<' && element.startsWith(name, 1) && " \t\r\n/>".indexOf(element.charAt(end)) >= 0;
+	}
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.connection;
+
+import i5.simpleXML.XMLSyntaxException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.rwth_aachen.dbis.wsxmppgateway.WebSocketXmppGateway;
+import de.rwth_aachen.dbis.wsxmppgateway.XMPPConstants;
+import de.rwth_aachen.dbis.wsxmppgateway.error.StreamError;
+import de.rwth_aachen.dbis.wsxmppgateway.metrics.GatewayMetrics;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.ChannelListener;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.ConnectionPool;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.DnsResolver;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.FilterChannel;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.Target;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.TlsChannel;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamCompression;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamEngine;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamReactor;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamTls;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.WriteQueue;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.ZlibChannel;
+
+/**
+ * Connection between gateway and the remote XMPP server that is multiplexed with other connections on an {@link UpstreamReactor}.
+ * The connection state is driven by readiness events, no thread is blocked while waiting for the XMPP server.
+ *
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+class WsXMPPChannelProxy extends XMPPProxy implements ChannelListener {
+
+	private static final long RESOLVE_RECHECK = 1000; //1 sec
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(WsXMPPChannelProxy.class);
+
+	private final UpstreamReactor reactor;
+	private volatile SocketChannel channel; //set by the resolver thread before the channel is registered with the reactor
+	private SelectionKey key; //only accessed on the reactor thread
+	private TlsChannel tls; //null unless STARTTLS has been started, only accessed on the reactor thread
+	private FilterChannel transport; //TLS and compression on top of the channel, null if neither is used, only accessed on the reactor thread
+	private long connectDeadline;
+	private final AtomicBoolean connectPending = new AtomicBoolean(true); //true until the connect has been finished or has failed
+
+	private final WriteQueue writeQueue = new WriteQueue(); //data to be written to the XMPP server
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private boolean closeRequested = false; //only accessed on the reactor thread
+	private volatile boolean paused = false; //true while the client does not take the data read from the XMPP server
+
+	private final Runnable livenessCheck = new Runnable() {
+		@Override
+		public void run() {
+			checkDeadlines();
+		}
+	};
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flushScheduled.set(false);
+			flush();
+		}
+	};
+
+	private final Runnable delayedFlushTask = new Runnable() {
+		@Override
+		public void run() {
+			reactor.execute(flushTask);
+		}
+	};
+
+	private final Runnable interestTask = new Runnable() {
+		@Override
+		public void run() {
+			updateInterest();
+		}
+	};
+
+	private final Runnable closeTask = new Runnable() {
+		@Override
+		public void run() {
+			closeRequested = true;
+			flush();
+		}
+	};
+
+	/**
+	 * Creates a remote connection to an XMPP server. The connect is finished asynchronously by the reactor.
+	 * @param handler the client connection
+	 * @param target the XMPP server
+	 */
+	WsXMPPChannelProxy(WsXMPPConnectionHandler handler, Target target) {
+		super(handler, target);
+		reactor = UpstreamEngine.nextReactor();
+	}
+
+	@Override
+	void start() {
+		logger.info(getServername(true) + " - connecting to XMPP server (" + UpstreamEngine.connectStarted() + " connects pending)");
+		connectStart = System.currentTimeMillis();
+		connectDeadline = connectStart + WebSocketXmppGateway.getConnectTimeout();
+		//the connect deadline is checked first, the liveness of the connection afterwards
+		scheduleLivenessCheck(WebSocketXmppGateway.getConnectTimeout());
+		SocketChannel pooled = ConnectionPool.claim(hostname, port);
+		if (pooled != null) {
+			logger.info(getServername(true) + " - using pooled connection to XMPP server");
+			channel = pooled;
+			reactor.register(channel, SelectionKey.OP_READ, this);
+			return;
+		}
+		//resolving the hostname may block, the connect itself is finished by the reactor
+		UpstreamEngine.resolve(new Runnable() {
+			@Override
+			public void run() {
+				InetSocketAddress address;
+				try {
+					address = DnsResolver.resolve(hostname, port);
+				} catch (UnknownHostException e) {
+					logger.info(getServername(true) + " - cannot connect to XMPP server: unknown host");
+					connectFinished();
+					recordConnect(false);
+					connectFailed(new StreamError(XMPPConstants.ERROR_COND_HOST_UNKOWN, hostname, "en"));
+					return;
+				}
+				SocketChannel channel = null;
+				try {
+					channel = SocketChannel.open();
+					channel.configureBlocking(false);
+					channel.connect(address);
+				} catch (IOException e) {
+					logger.info(getServername(true) + " - cannot connect to XMPP server", e);
+					if (channel != null) {
+						try {
+							channel.close();
+						} catch (IOException e1) {}
+					}
+					connectFinished();
+					recordConnect(false);
+					connectFailed(new StreamError(XMPPConstants.ERROR_COND_REMOTE_CONNECTION_FAILED, e.getMessage(), "en"));
+					return;
+				}
+				WsXMPPChannelProxy.this.channel = channel;
+				reactor.register(channel, channel.isConnected() ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, WsXMPPChannelProxy.this);
+			}
+		});
+	}
+
+	@Override
+	void close() {
+		releaseTarget();
+		reactor.execute(closeTask);
+	}
+
+	@Override
+	boolean isClosed() {
+		//the channel is closed once the queued data has been written
+		SocketChannel channel = this.channel;
+		return channel == null || !channel.isOpen();
+	}
+
+	@Override
+	void pauseReading() {
+		paused = true;
+		reactor.execute(interestTask);
+	}
+
+	@Override
+	void resumeReading() {
+		paused = false;
+		reactor.execute(interestTask);
+	}
+
+	@Override
+	protected int getQueuedBytes() {
+		return writeQueue.getBytes();
+	}
+
+	//******************** Methods from ChannelListener ********************//
+
+	@Override
+	public void onRegistered(SelectionKey key) {
+		this.key = key;
+		if (channel.isConnected())
+			connected();
+	}
+
+	@Override
+	public void onConnectable(SelectionKey key) {
+		try {
+			if (channel.finishConnect())
+				connected();
+		} catch (IOException e) {
+			logger.info(getServername(true) + " - cannot connect to XMPP server", e);
+			recordConnect(false);
+			fail(new StreamError(XMPPConstants.ERROR_COND_REMOTE_CONNECTION_FAILED, e.getMessage(), "en"));
+		}
+	}
+
+	@Override
+	public void onReadable(SelectionKey key) {
+		if (isSecuring()) {
+			handshake();
+			return;
+		}
+		ByteBuffer buffer = reactor.getReadBuffer();
+		try {
+			//decrypted data that does not fit into the buffer is read before the next select
+			do {
+				buffer.clear();
+				int read = transport != null ? transport.read(buffer) : channel.read(buffer);
+				if (read < 0) {
+					logger.info(getServername(true) + " - XMPP server closed the connection");
+					fail(new StreamError(XMPPConstants.ERROR_COND_REMOTE_CONNECTION_FAILED));
+					return;
+				}
+				if (read == 0)
+					return; //TLS record or compressed block without data
+				lastRead = System.currentTimeMillis();
+				GatewayMetrics.bytesFromServer(read);
+				buffer.flip();
+				framer.feed(buffer);
+				processFrames();
+			} while (transport != null && transport.hasBufferedInput() && !paused && !isSecuring() && iProxyStatus < WsConnectionState.DISCONNECTED);
+		} catch (XMLSyntaxException e) {
+			logger.info(getServername(true) + " - error during message handling", e);
+			fail(new StreamError(XMPPConstants.ERROR_COND_INVALID_XML, "Syntax error in xml stream!", "en"));
+		} catch (IOException e) {
+			logger.info(getServername(true) + " - error during message handling", e);
+			fail(new StreamError(XMPPConstants.ERROR_COND_REMOTE_CONNECTION_FAILED));
+		}
+	}
+
+	@Override
+	public void onWritable(SelectionKey key) {
+		if (isSecuring())
+			handshake();
+		else
+			flush();
+	}
+
+	@Override
+	protected void runLivenessCheck() {
+		reactor.execute(livenessCheck);
+	}
+
+	/**
+	 * Fail the connect if it has not been finished in time, check the liveness of the connection otherwise.
+	 * Must be called on the reactor thread.
+	 */
+	private void checkDeadlines() {
+		long now = System.currentTimeMillis();
+		if (connectPending.get()) {
+			if (key == null)
+				scheduleLivenessCheck(RESOLVE_RECHECK); //the hostname is still resolved, the channel is not registered yet
+			else if (now >= connectDeadline) {
+				logger.info(getServername(true) + " - cannot connect to XMPP server: connect timed out");
+				recordConnect(false);
+				if (iProxyStatus < WsConnectionState.DISCONNECTED)
+					fail(new StreamError(XMPPConstants.ERROR_COND_REMOTE_CONNECTION_FAILED, "Connect timed out", "en"));
+				else {
+					//client has gone in the meantime
+					connectFinished();
+					reactor.unregister(key);
+				}
+			}
+			else
+				scheduleLivenessCheck(connectDeadline - now);
+		}
+		else
+			checkLiveness(now, paused);
+	}
+
+	//******************** Stream handling ********************//
+
+	/**
+	 * Called on the reactor thread once the TCP connection has been established
+	 */
+	private void connected() {
+		connectFinished();
+		recordConnect(true);
+		iProxyStatus = WsConnectionState.CONNECTED;
+		lastRead = System.currentTimeMillis();
+		logger.info(getServername(true) + " - opened connection to XMPP server");
+		key.interestOps(paused ? 0 : SelectionKey.OP_READ);
+		flush();
+	}
+
+	/**
+	 * Select reads from the XMPP server unless reading has been paused, data buffered by the transport is read at once.
+	 * Must be called on the reactor thread.
+	 */
+	private void updateInterest() {
+		if (key == null || !key.isValid() || connectPending.get())
+			return; //interest is set in connected()
+		if (paused)
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		else {
+			//the time reading has been paused does not count as idle time
+			lastRead = System.currentTimeMillis();
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			//data decrypted or decompressed before the pause does not make the channel readable again
+			if (transport != null && transport.hasBufferedInput() && !isSecuring())
+				onReadable(key);
+		}
+	}
+
+	/**
+	 * Record that the connect has been finished. Only the first call is counted.
+	 */
+	private void connectFinished() {
+		if (connectPending.compareAndSet(true, false))
+			UpstreamEngine.connectFinished();
+	}
+
+	@Override
+	protected void resetParser() {
+		//framer has been reset by resetStream(), no transport state to be reset
+	}
+
+	@Override
+	protected void startTls() {
+		//sessions are only cached for a known port, the port of an SRV target is known once connected
+		tls = new TlsChannel(channel, channel, UpstreamTls.createEngine(hostname, channel.socket().getPort()));
+		lastRead = System.currentTimeMillis();
+		handshake();
+	}
+
+	/**
+	 * Continue the TLS handshake as far as the channel allows. Must be called on the reactor thread.
+	 */
+	private void handshake() {
+		try {
+			if (!tls.handshake()) {
+				key.interestOps(tls.hasPendingOutput() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+				return;
+			}
+		} catch (IOException e) {
+			logger.info(getServername(true) + " - TLS handshake with XMPP server failed", e);
+			fail(new StreamError(XMPPConstants.ERROR_COND_REMOTE_CONNECTION_FAILED, "TLS handshake failed", "en"));
+			return;
+		}
+		key.interestOps(paused ? 0 : SelectionKey.OP_READ);
+		transport = tls;
+		secured(tls);
+	}
+
+	@Override
+	protected void startCompression() {
+		ZlibChannel zlib = transport != null ? UpstreamCompression.open(transport, transport) : UpstreamCompression.open(channel, channel);
+		transport = zlib;
+		compressed(zlib);
+	}
+
+	@Override
+	protected void fail(StreamError streamError) {
+		if (iProxyStatus >= WsConnectionState.DISCONNECTED)
+			return;
+		connectFinished();
+		releaseTarget();
+		iProxyStatus = WsConnectionState.DISCONNECTED;
+		reactor.unregister(key);
+		closeTransport();
+		if (key == null && channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+		try {
+			handler.handleStreamError(streamError);
+		} catch (IllegalStateException e) {
+			//stream to the client has already been closed
+		}
+		//cleanup if an error has occured
+		handler.forwardClosingTagToClient();
+	}
+
+	//******************** Writing to the XMPP server ********************//
+
+	@Override
+	protected void writeClosingTag() {
+		write("</stream:stream>");
+	}
+
+	@Override
+	void forwardStanzaToServer(String stanza) {
+		write(stanza);
+	}
+
+	/**
+	 * Queue data for the XMPP server and schedule a flush on the reactor thread.
+	 * Data queued until the flush runs is written together.
+	 * @param xml the data to be written
+	 */
+	@Override
+	protected void write(String xml) {
+		lastWrite = System.currentTimeMillis();
+		writeQueue.add(xml);
+		if (flushScheduled.compareAndSet(false, true)) {
+			int delay = WebSocketXmppGateway.getUpstreamFlushDelay();
+			if (delay > 0)
+				UpstreamEngine.schedule(delayedFlushTask, delay);
+			else
+				reactor.execute(flushTask);
+		}
+	}
+
+	/**
+	 * Write queued data to the XMPP server as far as the socket accepts it. Must be called on the reactor thread.
+	 */
+	private void flush() {
+		if (key == null || !key.isValid() || !channel.isConnected())
+			return; //connect has not been finished yet, data is written in connected()
+		if (isSecuring())
+			return; //data is written after the handshake
+		try {
+			boolean written = transport != null ? writeQueue.writeTo(transport) && transport.flush() : writeQueue.writeTo(channel);
+			upstreamWritten();
+			if (!written) {
+				//socket buffer is full -> wait until the channel is writable again
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			if (closeRequested) {
+				closeTransport();
+				iProxyStatus = WsConnectionState.DISCONNECTED;
+				reactor.unregister(key);
+			}
+		} catch (IOException e) {
+			logger.info(getServername(true) + " - error while writing to XMPP server", e);
+			fail(new StreamError(XMPPConstants.ERROR_COND_REMOTE_CONNECTION_FAILED));
+		}
+	}
+
+	/**
+	 * Close TLS and compression before the channel is closed. Must be called on the reactor thread.
+	 */
+	private void closeTransport() {
+		logCompression();
+		if (transport != null)
+			transport.close();
+		else if (tls != null)
+			tls.close(); //handshake has not been finished
+	}
+
+}
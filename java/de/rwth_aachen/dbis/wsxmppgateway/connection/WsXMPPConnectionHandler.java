@@ -17,22 +17,15 @@
 package de.rwth_aachen.dbis.wsxmppgateway.connection;
 
 import i5.simpleXML.Element;
-import i5.simpleXML.EndOfBufferException;
-import i5.simpleXML.TimeoutException;
-import i5.simpleXML.XMLNoHeaderException;
-import i5.simpleXML.XMLStreamParser;
 import i5.simpleXML.XMLSyntaxException;
-import i5.simpleXML.XMLWriter;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.net.UnknownHostException;
 import java.util.Enumeration;
+import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.eclipse.jetty.server.HttpConnection;
 import org.eclipse.jetty.websocket.WebSocket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,24 +33,50 @@ import org.slf4j.LoggerFactory;
 import de.rwth_aachen.dbis.wsxmppgateway.WebSocketConstants;
 import de.rwth_aachen.dbis.wsxmppgateway.WebSocketXmppGateway;
 import de.rwth_aachen.dbis.wsxmppgateway.XMPPConstants;
+import de.rwth_aachen.dbis.wsxmppgateway.cluster.Cluster;
 import de.rwth_aachen.dbis.wsxmppgateway.error.StreamError;
 import de.rwth_aachen.dbis.wsxmppgateway.exception.StreamErrorException;
+import de.rwth_aachen.dbis.wsxmppgateway.metrics.GatewayMetrics;
+import de.rwth_aachen.dbis.wsxmppgateway.metrics.WireTrace;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.LoadBalancer;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.Route;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.Target;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamEngine;
+import de.rwth_aachen.dbis.wsxmppgateway.xml.StanzaChecker;
 
 
 /**
- * Connection between client and gateway that has been established via the WebSockets protocol
+ * Connection between client and gateway that has been established via the WebSockets protocol.
+ * If the client has enabled stream management (XEP-0198) with resumption, the session outlives the connection:
+ * when the connection drops, the XMPP server stays connected for the resumption timeout and a new connection
+ * opened with "xmppresume=true" takes the session over with the resumption id.
+ * The liveness of the client is tracked on the timing wheel of the upstream engine: a client that is silent for the ping
+ * interval is sent a WebSocket ping, its connection is dropped if no frame arrives within the ping timeout.
  * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
  */
 public class WsXMPPConnectionHandler implements WebSocket, WebSocket.OnFrame, WebSocket.OnTextMessage, WebSocket.OnControl {
 	
 	private static final String PARAM_XMPP_HOSTNAME = "xmpphost";
 	private static final String PARAM_XMPP_PORT = "xmppport";
+	private static final String PARAM_XMPP_BATCH = "xmppbatch"; //"true", if the client accepts several stanzas in one message
+	private static final String PARAM_XMPP_RESUME = "xmppresume"; //"true", if the client resumes a session instead of opening a new one
+	private static final String PARAM_XMPP_KEY = "xmppkey"; //token the session is placed by in a cluster instead of the domain
+
+	//handling of stanzas received from the client
+	public static final String STANZA_MODE_PARSE = "parse"; //build a document tree and forward its serialization
+	public static final String STANZA_MODE_CHECK = "check"; //check well-formedness and forward the stanza unchanged
+	public static final String STANZA_MODE_NONE = "none"; //forward the stanza unchanged without any check
 
 	//initialize slf4j logging framework
 	private static final Logger logger = LoggerFactory.getLogger(WsXMPPConnectionHandler.class);
 	
 	private final HttpServletRequest request; //the HTTP request that performed the upgrade
 	private FrameConnection connection; //the WebSocket connection to the client
+	private OutboundQueue outbound; //all messages to the client are written via this queue
+	private PerMessageDeflateExtension compression; //null unless the client has negotiated permessage-deflate
+	private final boolean packStanzas;
+	private final boolean traced; //true, if the messages of the session are recorded in the wire trace
+	private final boolean resuming; //true, if the stream is opened to resume a session
 	
 	//xmpp servername and port extracted from the request
 	private String xmppHostname = null;
@@ -66,15 +85,33 @@ public class WsXMPPConnectionHandler implements WebSocket, WebSocket.OnFrame, We
 	private volatile int iStatus = -1; //stores connection state according to constants in WsConnectionState
 	
 	//flags to store gateway behavior
-	private boolean openingTagSent = false; //true, if gateway has sent an opening stream tag
-	private boolean closingTagSent = false; //true, if gateway has sent a closing stream tag
+	private volatile boolean openingTagSent = false; //true, if gateway has sent an opening stream tag
+	private volatile boolean closingTagSent = false; //true, if gateway has sent a closing stream tag
 	
 	//flags to store client behavior
 	private boolean clientSentHeader = false; //true, if client has sent an XML header
-	private boolean clientSentClosingTag = false; //true, if client has sent a closing stream tag
-	private boolean serverSentClosingTag = false;  //true, if XMPP server has sent a closing stream tag
+	private volatile boolean clientSentClosingTag = false; //true, if client has sent a closing stream tag
+	private volatile boolean serverSentClosingTag = false;  //true, if XMPP server has sent a closing stream tag
+	
+	private volatile XMPPProxy wsProxy = null;
+	private volatile long sessionId = 0; //id in the session registry, 0 until the session has been opened
+	private volatile Target target = null; //the XMPP server the session is forwarded to
+	private volatile StreamManagement streamManagement = null; //null unless the client has enabled stream management
+	private volatile boolean detached = false; //true once the session does not belong to this connection anymore
+	private volatile boolean connectionClosed = false; //true once Jetty has reported that the WebSocket connection is closed
+	private volatile String clusterKey = null; //key the session has been placed by in the cluster, null if not clustered
+	private volatile long clusterPlaced = 0; //time in ms the session has been placed in the cluster
 	
-	private WsXMPPProxy wsProxy = null;
+	private final long created = System.currentTimeMillis(); //time in ms the WebSocket connection has been requested
+	private volatile long lastFrame = created; //time in ms the last frame has been received from the client
+	private long pingSent = 0; //time in ms the unanswered ping has been sent, 0 if none, only accessed by the liveness check
+	
+	private final Runnable livenessCheck = new Runnable() {
+		@Override
+		public void run() {
+			checkLiveness();
+		}
+	};
 	
 	@SuppressWarnings("unused")
 	private String streamXmlLang = null; //TODO: Use in validity checking
@@ -93,9 +130,24 @@ public class WsXMPPConnectionHandler implements WebSocket, WebSocket.OnFrame, We
 		catch (NumberFormatException e) {
 			this.xmppPort = -1;
 		}
+		this.packStanzas = "true".equals(request.getParameter(PARAM_XMPP_BATCH));
+		this.traced = WireTrace.select(request.getRemoteAddr());
+		this.resuming = "true".equals(request.getParameter(PARAM_XMPP_RESUME)) && WebSocketXmppGateway.isStreamManagement();
 		this.iStatus = WsConnectionState.CONNECTED;
 	}
 	
+	/**
+	 * Change the connection state and record the change in the metrics
+	 * @param state the new state according to constants in WsConnectionState
+	 */
+	private synchronized void setState(int state) {
+		int previous = iStatus;
+		if (previous == state || previous == WsConnectionState.DISCONNECTED)
+			return;
+		iStatus = state;
+		GatewayMetrics.sessionStateChanged(previous, state);
+	}
+	
 	/**
 	 * Send a stanza to the connected client
 	 * @param stanza the stanza to be sent to the client
@@ -104,14 +156,81 @@ public class WsXMPPConnectionHandler implements WebSocket, WebSocket.OnFrame, We
 		sendMessage(stanza.toString(false));
 	}
 	
+	/**
+	 * Send a serialized stanza to the connected client as a single text frame
+	 * @param data the buffer holding the UTF-8 encoded stanza, it is not kept after the call
+	 * @param offset the offset of the stanza in the buffer
+	 * @param length the length of the stanza in bytes
+	 */
+	public void sendStanza(byte[] data, int offset, int length) {
+		StreamManagement sm = streamManagement;
+		if (sm == null) {
+			queueStanza(data, offset, length);
+			return;
+		}
+		WsXMPPConnectionHandler owner;
+		boolean dropped = false;
+		synchronized (sm) {
+			//the stanza is sent to the connection attached now, a resumption waits until it has been queued
+			if (StreamManagement.isStanza(data, offset, length))
+				dropped = !sm.sent(data, offset, length);
+			owner = sm.getOwner();
+			if (owner != null)
+				owner.queueStanza(data, offset, length);
+		}
+		if (dropped) {
+			if (owner == null)
+				expire();
+			else {
+				logger.info(owner.getRemoteHost() + " - client does not acknowledge stanzas, session cannot be resumed");
+				WebSocketXmppGateway.getSessions().removeResumable(sm.getId(), owner);
+			}
+		}
+	}
+
+	/**
+	 * Queue a serialized stanza for the client
+	 * @param data the buffer holding the UTF-8 encoded stanza, it is not kept after the call
+	 * @param offset the offset of the stanza in the buffer
+	 * @param length the length of the stanza in bytes
+	 */
+	private void queueStanza(byte[] data, int offset, int length) {
+		try {
+			if (traced)
+				WireTrace.record(sessionId, request.getRemoteAddr(), WireTrace.TO_CLIENT, data, offset, length);
+			outbound.add(data, offset, length);
+			GatewayMetrics.stanzaToClient(length);
+		} catch (IOException e) {
+			logger.info(request.getRemoteHost() + " - failed to send message", e);
+		}
+	}
+
+	/**
+	 * Signal that a burst of stanzas received from the XMPP server has been processed
+	 */
+	void flushStanzas() {
+		StreamManagement sm = streamManagement;
+		WsXMPPConnectionHandler owner = sm != null ? sm.getOwner() : this;
+		if (owner == null)
+			return; //the client is disconnected, stanzas are kept for the resumption
+		try {
+			if (sm != null && sm.requestAck())
+				owner.sendMessage("<r xmlns='" + XMPPConstants.NS_SM + "'/>");
+			owner.outbound.endOfBurst();
+		} catch (IOException e) {
+			logger.info(request.getRemoteHost() + " - failed to send message", e);
+		}
+	}
+	
 	/**
 	 * Send a message to the connected client
 	 * @param message the message to be sent to the client
 	 */
 	public void sendMessage(String message) {
 		try {
-			logger.debug(request.getRemoteHost() + " - sending message: " + message);
-			connection.sendMessage(message);
+			if (traced)
+				WireTrace.record(sessionId, request.getRemoteAddr(), WireTrace.TO_CLIENT, message);
+			outbound.send(message);
 		} catch (IOException e) {
 			logger.info(request.getRemoteHost() + " - failed to send message", e);
 		}		
@@ -124,11 +243,16 @@ public class WsXMPPConnectionHandler implements WebSocket, WebSocket.OnFrame, We
 	public void handleStreamError(StreamError streamError) {
 		if (closingTagSent || iStatus >= WsConnectionState.DISCONNECTED)
 			throw new IllegalStateException ( "Cannot send error stanza to an already closed stream!" );
+		GatewayMetrics.streamError(XMPPConstants.errorCond2tagName(streamError.getCode()));
 		String xml = "";
 		if(!openingTagSent)
 			xml += "<stream:stream>";//TODO Add more data to opening tag (although this case will occur rarely)
 		xml += "<stream:error>";		
-		xml += "<" + XMPPConstants.errorCond2tagName(streamError.getCode()) + " xmlns=\"" + XMPPConstants.ERROR_NS_URN + "\" />";
+		if (streamError.hasConditionContent())
+			xml += "<" + XMPPConstants.errorCond2tagName(streamError.getCode()) + " xmlns=\"" + XMPPConstants.ERROR_NS_URN + "\">" +
+					streamError.getConditionContent() + "</" + XMPPConstants.errorCond2tagName(streamError.getCode()) + ">";
+		else
+			xml += "<" + XMPPConstants.errorCond2tagName(streamError.getCode()) + " xmlns=\"" + XMPPConstants.ERROR_NS_URN + "\" />";
 		if (streamError.hasMessage()) {
 			xml += "<text xmlns=\""+XMPPConstants.ERROR_NS_URN+ "\"";
 			if (streamError.hasLanguage())
@@ -142,40 +266,179 @@ public class WsXMPPConnectionHandler implements WebSocket, WebSocket.OnFrame, We
 		closingTagSent = true;
 	}
 	
+	/**
+	 * Close the session since the gateway shuts down. The client receives the stream error,
+	 * the XMPP server receives a closing stream tag and the WebSocket is closed with status "going away".
+	 * @param streamError the stream error to be sent to the client, e.g. system-shutdown
+	 */
+	public void shutdown(StreamError streamError) {
+		logger.info(request.getRemoteHost() + " - closing session for shutdown");
+		terminate(streamError, WebSocketConstants.CLOSE_GOING_DOWN);
+	}
+	
+	/**
+	 * Terminate the session if the client or the XMPP server has not taken the data sent to it for longer than the timeout.
+	 * A write the client does not take within the write timeout drops the connection, a resumable session is kept.
+	 * @param now the current time in ms
+	 * @param timeout the time in ms a client may block the data sent to it, 0 for no limit
+	 * @param writeTimeout the time in ms a single write to the client may block, 0 for no limit
+	 */
+	public void checkBackpressure(long now, long timeout, long writeTimeout) {
+		OutboundQueue outbound = this.outbound;
+		if (outbound != null && writeTimeout > 0 && outbound.isWriteBlocked(now, writeTimeout)) {
+			logger.info(request.getRemoteHost() + " - client does not take data, dropping the connection");
+			GatewayMetrics.clientWriteTimedOut();
+			//the stream error cannot pass the blocked write, the write is aborted and onClose() cleans up
+			outbound.abort(WebSocketConstants.CLOSE_POLICY_VIOLATION);
+			return;
+		}
+		if (timeout <= 0)
+			return;
+		XMPPProxy proxy = wsProxy;
+		if (proxy != null && proxy.isUpstreamStalled(now, timeout)) {
+			logger.info(request.getRemoteHost() + " - XMPP server does not take data, disconnecting");
+			//closing the proxy aborts the blocked write
+			terminate(new StreamError(XMPPConstants.ERROR_COND_RESOURCE_CONTSTRAINT, "Server does not read the stream", "en"),
+					WebSocketConstants.CLOSE_POLICY_VIOLATION);
+			return;
+		}
+		if (outbound == null || !outbound.isStalled(now, timeout))
+			return;
+		logger.info(request.getRemoteHost() + " - client does not take data, disconnecting");
+		terminate(new StreamError(XMPPConstants.ERROR_COND_RESOURCE_CONTSTRAINT, "Client does not read the stream", "en"),
+				WebSocketConstants.CLOSE_POLICY_VIOLATION);
+		//the stream error cannot pass the stalled queue, a blocked write is aborted
+		outbound.abort(WebSocketConstants.CLOSE_POLICY_VIOLATION);
+	}
+	
+	/**
+	 * Move the session to another member of the cluster. The client receives a see-other-host stream error,
+	 * the XMPP server receives a closing stream tag.
+	 * @param member the address of the member the client is sent to
+	 */
+	public void redirect(String member) {
+		logger.info(request.getRemoteHost() + " - moving session to cluster member " + member);
+		terminate(new StreamError(XMPPConstants.ERROR_COND_SEE_OTHER_HOST, member), WebSocketConstants.CLOSE_GOING_DOWN);
+	}
+	
+	/**
+	 * Get the key the session has been placed by in the cluster
+	 * @return the token of the client or the domain of the session, null if the gateway is not clustered
+	 */
+	public String getClusterKey() {
+		return clusterKey;
+	}
+	
+	/**
+	 * Get the time the session has been placed in the cluster
+	 * @return the time in ms, 0 if the gateway is not clustered
+	 */
+	public long getClusterPlaced() {
+		return clusterPlaced;
+	}
+	
+	/**
+	 * Terminate the session. The client receives the stream error, the XMPP server receives a closing stream tag
+	 * and the WebSocket is closed with the given status.
+	 * @param streamError the stream error to be sent to the client
+	 * @param status the status code to be sent to the client
+	 */
+	private void terminate(StreamError streamError, int status) {
+		try {
+			handleStreamError(streamError);
+		} catch (IllegalStateException e) {
+			//stream to the client has already been closed
+		}
+		//neither party waits for a closing stream tag anymore
+		clientSentClosingTag = true;
+		serverSentClosingTag = true;
+		XMPPProxy proxy = wsProxy;
+		if (proxy != null) {
+			proxy.writeClosingTag();
+			proxy.disconnect();
+		}
+		closeConnection(status);
+	}
+	
+	/**
+	 * Stop reading from the XMPP server since the client does not take the data sent to it
+	 */
+	void outboundPaused() {
+		logger.debug(request.getRemoteHost() + " - client is slow, pausing XMPP server");
+		XMPPProxy proxy = wsProxy;
+		if (proxy != null)
+			proxy.pauseReading();
+	}
+	
+	/**
+	 * Resume reading from the XMPP server since the client has taken the data sent to it
+	 */
+	void outboundResumed() {
+		logger.debug(request.getRemoteHost() + " - resuming XMPP server");
+		XMPPProxy proxy = wsProxy;
+		if (proxy != null)
+			proxy.resumeReading();
+	}
+	
 	//******************** Methods from WebSocket interfaces ********************//
 	
 	@Override
 	public void onHandshake(FrameConnection connection) {
 		logger.info(request.getRemoteHost() + " - starting new WebSocket handler");
 		this.connection = connection;
-		iStatus = WsConnectionState.HANDSHAKE_COMPLETE;
+		this.compression = (PerMessageDeflateExtension) request.getAttribute(PerMessageDeflateExtension.REQUEST_ATTRIBUTE);
+		if (compression != null)
+			logger.info(request.getRemoteHost() + " - negotiated " + compression);
+		//the endpoint is closed to abort a blocked write, closing the WebSocket connection would wait for the write
+		HttpConnection http = HttpConnection.getCurrentConnection();
+		this.outbound = new OutboundQueue(this, connection, http != null ? http.getEndPoint() : null, packStanzas, WebSocketXmppGateway.getOutboundFlushDelay(), WebSocketXmppGateway.getOutboundFlushBytes(),
+				WebSocketXmppGateway.getSessionQueueLimit(), WebSocketXmppGateway.getSessionQueueResume());
+		setState(WsConnectionState.HANDSHAKE_COMPLETE);
 	}
 	
 	@Override
 	public void onOpen(Connection connection) {
-		WebSocketXmppGateway.getConnectedSockets().add(this);
+		sessionId = WebSocketXmppGateway.getSessions().register(this);
+		UpstreamEngine.scheduleDeadline(livenessCheck, 0);
 	}
 
 	@Override
 	public void onClose(int code, String message) {
 		logger.info(request.getRemoteHost() + " - client is closing the connection with code " + code + " and message: " + message);
+		connectionClosed = true;
+		if (compression != null) {
+			compression.release();
+			logger.info(request.getRemoteHost() + " - " + compression.getStatistics());
+		}
+		if (detached)
+			return; //the session has been resumed on another connection
 		if (!clientSentClosingTag) {
+			if (isResumable()) {
+				detach();
+				return;
+			}
 			//cleanup
 			clientSentClosingTag = true;
 			if(wsProxy != null)
 				wsProxy.forwardClosingTagToServer();
+			else {
+				//no stream has been opened, nothing to wait for
+				setState(WsConnectionState.DISCONNECTED);
+				WebSocketXmppGateway.getSessions().unregister(this);
+			}
 		}
 	}
 
 	@Override
 	public boolean onControl(byte controlCode, byte[] data, int offset, int length) {
-		//TODO ping?! Not sure if it is handled by Jetty
+		//pings of the client are answered by Jetty, pongs only count as activity in onFrame()
 		return false;
 	}
 
 	@Override
 	public void onMessage(String data) {
-		logger.debug(request.getRemoteHost() + " - received message: " + data);
+		if (traced)
+			WireTrace.record(sessionId, request.getRemoteAddr(), WireTrace.FROM_CLIENT, data);
 		try {
 			switch (iStatus) {
 			case WsConnectionState.HANDSHAKE_COMPLETE:
@@ -188,7 +451,7 @@ public class WsXMPPConnectionHandler implements WebSocket, WebSocket.OnFrame, We
 					readXmlHeader(header);
 					data = data.substring(headerEnd + 1).trim();
 				}
-				iStatus = WsConnectionState.HEADER_READ;
+				setState(WsConnectionState.HEADER_READ);
 				if (data.equals("")) //stop if no more data is sent in this message
 					break;
 			case WsConnectionState.HEADER_READ:
@@ -197,37 +460,80 @@ public class WsXMPPConnectionHandler implements WebSocket, WebSocket.OnFrame, We
 				String tagName = data.substring(1, data.indexOf(" "));
 				data += "</" + tagName + ">"; //append closing tag to enable parsing
 				Element root = new Element(data, false);
+				if (resuming && wsProxy == null) {
+					//the session is taken over once the client has sent the resumption id
+					openResumingStream(root);
+					setState(WsConnectionState.STREAM_OPENED);
+					break;
+				}
 				if (wsProxy == null) { //not null after stream has been reseted
 					String to = root.getAttribute("to");
-					int port = 5222;
-					//check for alias sent in request
-					if (xmppHostname != null) {
-						to = xmppHostname;
-						if (xmppPort > -1)
-							port = xmppPort;
+					if (Cluster.isEnabled()) {
+						//sessions are placed by the token of the client or by their domain
+						String key = request.getParameter(PARAM_XMPP_KEY) != null ? request.getParameter(PARAM_XMPP_KEY) : to;
+						String member = Cluster.place(key);
+						if (member != null) {
+							logger.info(request.getRemoteHost() + " - session belongs to cluster member " + member + ", redirecting");
+							terminate(new StreamError(XMPPConstants.ERROR_COND_SEE_OTHER_HOST, member), WebSocketConstants.CLOSE_NORMAL);
+							break;
+						}
+						clusterPlaced = System.currentTimeMillis();
+						clusterKey = key;
 					}
-					//check for alias in cache
-					else if (WebSocketXmppGateway.getAliases().containsKey(to.toLowerCase())) {
-						to = WebSocketXmppGateway.getAliases().get(to.toLowerCase());	
+					Target target;
+					//check for alias sent in request
+					if (xmppHostname != null)
+						target = new Target(xmppHostname, xmppPort > 0 ? xmppPort : -1, 1);
+					//check for alias in routing table, -1 looks up the SRV record of the domain
+					else {
+						Route route = WebSocketXmppGateway.getRoutingTable().lookup(to);
+						target = route != null ? LoadBalancer.select(route) : new Target(to, -1, 1);
 					}
-					wsProxy = new WsXMPPProxy(to, port, root);
-					new Thread(wsProxy).start();
+					this.target = target;
+					WebSocketXmppGateway.getSessions().indexTarget(this, target);
+					wsProxy = XMPPProxy.create(this, target);
+					wsProxy.start();
 				}
 				wsProxy.forwardOpeningTagToServer(clientSentHeader, root);
-				iStatus = WsConnectionState.STREAM_OPENED;
+				setState(WsConnectionState.STREAM_OPENED);
 				break;
 			case WsConnectionState.STREAM_OPENED:
+				if (wsProxy == null) {
+					//stream has been opened to resume a session
+					if (data.startsWith("<resume") && data.indexOf(XMPPConstants.NS_SM) > 0)
+						resume(new Element(data));
+					else
+						resumeFailed();
+					break;
+				}
 				if ("</stream:stream>".equals(data)) {
 					logger.info(request.getRemoteHost() + " - closing stream");
 					clientSentClosingTag = true;
-					iStatus = WsConnectionState.STREAM_CLOSED;
+					setState(WsConnectionState.STREAM_CLOSED);
 					wsProxy.forwardClosingTagToServer();
 				}
+				else if (isStreamManagement(data))
+					handleStreamManagement(new Element(data));
 				else {
-					//try to parse data
-					receivedElement = new Element(data);
-					logger.debug(request.getRemoteHost() + " - forwarding stanza:\n" + receivedElement.toString(false));
-					wsProxy.forwardStanzaToServer(receivedElement);
+					String stanzaMode = WebSocketXmppGateway.getClientStanzaMode();
+					if (STANZA_MODE_PARSE.equals(stanzaMode)) {
+						//try to parse data
+						receivedElement = new Element(data);
+						data = receivedElement.toString(false);
+					}
+					else if (STANZA_MODE_CHECK.equals(stanzaMode))
+						StanzaChecker.check(data);
+					wsProxy.forwardStanzaToServer(data);
+					GatewayMetrics.stanzaFromClient();
+					StreamManagement sm = streamManagement;
+					if (sm != null && StreamManagement.isStanza(data))
+						sm.received();
+					//block the client while the XMPP server does not take the data sent to it
+					if (!wsProxy.awaitUpstream()) {
+						logger.info(request.getRemoteHost() + " - XMPP server does not take data, disconnecting");
+						terminate(new StreamError(XMPPConstants.ERROR_COND_RESOURCE_CONTSTRAINT, "Server does not read the stream", "en"),
+								WebSocketConstants.CLOSE_POLICY_VIOLATION);
+					}
 				break;
 				}
 			case WsConnectionState.STREAM_CLOSED:
@@ -240,12 +546,6 @@ public class WsXMPPConnectionHandler implements WebSocket, WebSocket.OnFrame, We
 		} catch (XMLSyntaxException e) {
 			logger.info(request.getRemoteAddr() + " - error during message handling", e);
 			handleStreamError(new StreamError(XMPPConstants.ERROR_COND_XML_NOT_WELL_FORMED, e.getMessage(), "en"));
-		} catch(UnknownHostException e) {
-			logger.info(request.getRemoteAddr() + " - error during message handling", e);
-			handleStreamError(new StreamError(XMPPConstants.ERROR_COND_HOST_UNKOWN, e.getMessage(), "en"));
-		} catch(IOException e) {
-			logger.info(request.getRemoteAddr() + " - error during message handling", e);
-			handleStreamError(new StreamError(XMPPConstants.ERROR_COND_REMOTE_CONNECTION_FAILED, e.getMessage(), "en"));
 		} catch (StreamErrorException e) {
 			logger.info(request.getRemoteAddr() + " - error during message handling", e);
 			handleStreamError(e.getStreamError());
@@ -254,9 +554,111 @@ public class WsXMPPConnectionHandler implements WebSocket, WebSocket.OnFrame, We
 
 	@Override
 	public boolean onFrame(byte flags, byte opcode, byte[] data, int offset, int length) {
+		//called for every frame including control frames, the deadlines are moved lazily by the liveness check
+		lastFrame = System.currentTimeMillis();
 		return false;
 	}
 	
+	//******************** Callbacks from the proxy ********************//
+
+	/**
+	 * Forward the opening stream tag received from the server to the client
+	 * @param sendXmlHeader true if an XML header should be sent
+	 * @param root the opening stream tag
+	 * @throws XMLSyntaxException if the passed stream element is malicious
+	 */
+	void forwardOpeningTagToClient(boolean sendXmlHeader, Element root) throws XMLSyntaxException {
+		String xml = "";
+		if (sendXmlHeader)
+			xml += "<?xml version=\"1.0\"?>";
+		xml += "<stream:stream";
+		for (Enumeration<String> e = root.getAttributeNames(); e.hasMoreElements(); ) {
+			String attribute = e.nextElement();
+			xml += " " + attribute + "=\"" + root.getAttribute(attribute) + "\"";
+		}
+		xml +=">";
+		sendMessage(xml);
+		openingTagSent = true;
+	}
+
+	/**
+	 * Forward the closing stream tag received from the server to the client.
+	 * If the client is the party that closed the stream the connection to the client and
+	 * to the XMPP server is closed.Otherwise the handler waits for a reply from the client.
+	 */
+	void forwardClosingTagToClient() {
+		if (detached) {
+			//the client is disconnected, nobody waits for the session anymore
+			if (expire())
+				logger.info(request.getRemoteHost() + " - XMPP server closed the session kept for resumption");
+			return;
+		}
+		if (serverSentClosingTag)
+			return;
+		serverSentClosingTag = true;
+		if (!closingTagSent) {
+			sendMessage("</stream:stream>");
+			closingTagSent = true;
+		}
+		if (clientSentClosingTag) {
+			//client sent initial closing tag. This is the reply of the XMPP server -> close connection
+			wsProxy.disconnect();
+			closeConnection();
+		}
+		else {
+			//server sent initial closing tag -> wait for reply.
+		}
+	}
+
+	/**
+	 * Check whether the XMPP server has closed the stream
+	 * @return true, if the XMPP server has sent a closing stream tag
+	 */
+	boolean hasServerSentClosingTag() {
+		return serverSentClosingTag;
+	}
+
+	/**
+	 * Check whether the session has been closed completely. Messages queued for the client and the XMPP server have been written then.
+	 * @return true if the WebSocket connection and the connection to the XMPP server have been closed
+	 */
+	public boolean isClosed() {
+		XMPPProxy proxy = wsProxy;
+		return connectionClosed && (proxy == null || proxy.isClosed());
+	}
+
+	/**
+	 * Get the hostname of the connected client
+	 * @return the hostname of the connected client
+	 */
+	String getRemoteHost() {
+		return request.getRemoteHost();
+	}
+
+	/**
+	 * Get the IP address of the connected client
+	 * @return the IP address of the connected client
+	 */
+	public String getRemoteAddr() {
+		return request.getRemoteAddr();
+	}
+
+	/**
+	 * Get the id of the session in the session registry
+	 * @return the id of the session, 0 if the session has not been opened yet
+	 */
+	public long getSessionId() {
+		return sessionId;
+	}
+
+	/**
+	 * Get the XMPP server the session is forwarded to
+	 * @return the XMPP server, null if the client has not opened a stream yet
+	 */
+	public Target getTarget() {
+		return target;
+	}
+
 	/**
 	 * Read the XML header sent by the client and check conformance
 	 * @param data the XML header sent by the client
@@ -269,15 +671,15 @@ public class WsXMPPConnectionHandler implements WebSocket, WebSocket.OnFrame, We
 	/**
 	 * Reset the stream after starting TLS encryption and SASL authentication
 	 */
-	private void resetStream() {
+	void resetStream() {
 		//reset connection state
-		iStatus = WsConnectionState.HANDSHAKE_COMPLETE;
+		setState(WsConnectionState.HANDSHAKE_COMPLETE);
 	}
 
 	/**
 	 * Close the WebSocket connection
 	 */
-	private void closeConnection() {
+	void closeConnection() {
 		closeConnection(WebSocketConstants.CLOSE_NORMAL);
 	}
 	
@@ -286,260 +688,295 @@ public class WsXMPPConnectionHandler implements WebSocket, WebSocket.OnFrame, We
 	 * @param status the status code to be sent to the client
 	 */
 	private void closeConnection(int status) {
-		connection.disconnect();
-		iStatus = WsConnectionState.DISCONNECTED;
-		WebSocketXmppGateway.getConnectedSockets().remove(this);
+		StreamManagement sm = streamManagement;
+		if (sm != null && sm.getId() != null)
+			WebSocketXmppGateway.getSessions().removeResumable(sm.getId(), this);
+		try {
+			//the connection is closed after the queued messages have been written
+			outbound.close(status);
+		} catch (IOException e) {
+			logger.info(request.getRemoteHost() + " - failed to send message", e);
+		}
+		setState(WsConnectionState.DISCONNECTED);
+		WebSocketXmppGateway.getSessions().unregister(this);
 	}
-	
-	//******************** Private class for proxy handling ********************//
-	
+
+	//******************** Liveness ********************//
+
 	/**
-	 * Connection between gateway and the remote XMPP server
-	 * 
-	 * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
-	 */
-	private class WsXMPPProxy implements Runnable {
-		private String hostname;
-		private int port;
-		private Socket socket;
-		private InputStream input;
-		private OutputStream output;
-		private XMLStreamParser xmlParser;
-		private XMLWriter xmlWriter;
-		
-		private boolean serverSentHeader = false;
-		
-		//stores the status of the connection according to constants in WsConnectionState
-		private volatile int iProxyStatus = -1;
-		
-		/**
-		 * Creates a remote connection to an XMPP server
-		 * @param hostname the hostname of the XMPP server
-		 * @param port the port of the XMPP server
-		 * @param root the opening stream element received from the WebSocket client
-		 * @throws UnknownHostException if the hostname of the XMPP server is unknown
-		 * @throws IOException if the connection can not be established
-		 */
-		public WsXMPPProxy(String hostname, int port, Element root) throws UnknownHostException, IOException{
-			this.hostname = hostname;
-			this.port = port;
-			socket = new Socket(hostname, port);
-			socket.setSoTimeout(WebSocketXmppGateway.getTimeout());
-			input = socket.getInputStream();
-			output = socket.getOutputStream();
-			xmlParser = new XMLStreamParser(input);
-			xmlWriter = new XMLWriter(output);
-			iProxyStatus = WsConnectionState.CONNECTED;
-			logger.info(getServername(true) + " - opened connection to XMPP server");
-		}
-		
-		@Override
-		public void run() {
-			try {
-				while (!Thread.currentThread().isInterrupted() && iProxyStatus < WsConnectionState.DISCONNECTED) {
-					switch (iProxyStatus) {
-						case WsConnectionState.CONNECTED:
-							logger.info(getServername(true) + " - reading xml header");
-							try {
-								xmlParser.readHeader( true );
-								serverSentHeader = true;
-							} catch ( XMLNoHeaderException e ) {
-								xmlParser.setHeaderRead();
-							}
-							iProxyStatus = WsConnectionState.HEADER_READ;
-							//no break; necessary since root element is expected to be received next
-						case WsConnectionState.HEADER_READ:
-							logger.info(getServername(true) + " - opening stream");
-							xmlParser.openRoot(true);
-							Element root = xmlParser.getRoot();
-							iProxyStatus = WsConnectionState.STREAM_OPENED;
-							//forward header and root tag
-							forwardOpeningTagToClient(serverSentHeader, root);
-							//no break; necessary since stanzas are expected to be received next
-						case WsConnectionState.STREAM_OPENED:
-							Element stanza = xmlParser.getNextElement(true, true);
-							if (stanza == null && xmlParser.isRootClosed()) {
-								serverSentClosingTag = true;
-								forwardClosingTagToClient();
-								break;
-							}
-							else if (stanza.hasAttribute("xmlns") && stanza.getAttribute("xmlns").equals(XMPPConstants.URN_TLS)) {
-								//do not forward stanza to client
-								break;
-							}
-							else if (stanza.hasAttribute("xmlns") && stanza.getAttribute("xmlns").equals(XMPPConstants.URN_SASL)) {
-								if ("success".equals(stanza.getName())) {
-									resetStream();
-								}
-							}
-							//forward stanza to client
-							sendStanza(stanza);
-							break;
-						case WsConnectionState.STREAM_CLOSED:
-							if (!socket.isClosed())
-								socket.close();
-							iProxyStatus = WsConnectionState.DISCONNECTED;
-							break;
-						default:
-							throw new IllegalStateException("Illegal state (" + iProxyStatus + ") in WebSocket proxy!");
+	 * Check the deadlines of the client on the timing wheel. A client that has not opened the stream within the handshake
+	 * timeout is disconnected, a silent client is pinged and its connection is dropped if the ping remains unanswered.
+	 * The check is armed again for the next deadline, writes to the client are handed over since they may block.
+	 */
+	private void checkLiveness() {
+		if (iStatus >= WsConnectionState.DISCONNECTED || detached)
+			return;
+		long now = System.currentTimeMillis();
+		long next = Long.MAX_VALUE;
+		int handshakeTimeout = WebSocketXmppGateway.getHandshakeTimeout();
+		if (handshakeTimeout > 0 && !openingTagSent && !closingTagSent) {
+			if (now - created >= handshakeTimeout) {
+				logger.info(request.getRemoteHost() + " - stream has not been opened in time, disconnecting");
+				GatewayMetrics.handshakeTimedOut();
+				UpstreamEngine.control(new Runnable() {
+					@Override
+					public void run() {
+						terminate(new StreamError(XMPPConstants.ERROR_COND_CONNECTION_TIMEOUT, "Stream has not been opened in time", "en"),
+								WebSocketConstants.CLOSE_POLICY_VIOLATION);
 					}
-				}
-				
-			} catch (EndOfBufferException e) {
-				logger.info(getServername(true) + " - error during message handling", e);
-				handleStreamError(new StreamError(XMPPConstants.ERROR_COND_REMOTE_CONNECTION_FAILED));
-			} catch (XMLSyntaxException e) {
-				logger.info(getServername(true) + " - error during message handling", e);
-				handleStreamError( new StreamError(XMPPConstants.ERROR_COND_INVALID_XML, "Syntax error in xml stream!", "en") );
-			} catch (TimeoutException e) {
-				logger.info(getServername(true) + " - error during message handling", e);
-				handleStreamError( new StreamError(XMPPConstants.ERROR_COND_CONNECTION_TIMEOUT) );
-			} catch (IOException e) {
-				logger.info(getServername(true) + " - error during message handling", e);
-				handleStreamError(new StreamError(XMPPConstants.ERROR_COND_REMOTE_CONNECTION_FAILED));
-			} catch (IllegalStateException e) {
-				logger.error(getServername(true) + " - error during message handling", e);
-				handleStreamError(new StreamError(XMPPConstants.ERROR_COND_INTERNAL_SERVER_ERROR));
-			}
-			
-			//we need to close the connection to the XMPP server when the run loop has stopped
-			if (!socket.isClosed()) {
-				try{
-					socket.close();
-				} catch(IOException e){}
-			}
-			iProxyStatus = WsConnectionState.DISCONNECTED;
-			
-			//cleanup if an error has occured
-			if (!serverSentClosingTag) {
-				serverSentClosingTag = true;
-				forwardClosingTagToClient();
+				});
+				return;
 			}
+			next = created + handshakeTimeout - now;
 		}
-		
-		/**
-		 * Reset the stream after starting TLS encryption and SASL authentication.
-		 * Reopen the XML parser and the XML writer 
-		 */
-		private void resetStream() {
-			//reset connection state in client connection
-			WsXMPPConnectionHandler.this.resetStream();
-			//reset XML stream parser
-			xmlParser = new XMLStreamParser(input);
-			xmlWriter = new XMLWriter(output);
-			//reset connection state
-			iProxyStatus = WsConnectionState.CONNECTED;
-		}
-		
-		/**
-		 * Forward the opening stream tag received from the client to the XMPP server
-		 * @param sendXmlHeader true if an XML header should be sent
-		 * @param root the opening stream tag
-		 * @throws XMLSyntaxException if the passed stream element is malicious
-		 */
-		public void forwardOpeningTagToServer(boolean sendXmlHeader, Element root) throws XMLSyntaxException {
-			synchronized (xmlWriter) {
-				if ( sendXmlHeader )
-					xmlWriter.print( "<?xml version=\"1.0\"?>" );
-				xmlWriter.print ( "<stream:stream " );
-				for (Enumeration<String> e = root.getAttributeNames(); e.hasMoreElements(); ) {
-					String attribute = e.nextElement();
-					xmlWriter.printXMLAttributes(attribute, root.getAttribute(attribute));
+		int pingInterval = WebSocketXmppGateway.getClientPingInterval();
+		if (pingInterval > 0) {
+			int pingTimeout = WebSocketXmppGateway.getClientPingTimeout();
+			long last = lastFrame;
+			if (pingSent > 0 && last >= pingSent)
+				pingSent = 0; //any frame answers the ping
+			if (pingSent > 0) {
+				if (now - pingSent >= pingTimeout) {
+					logger.info(request.getRemoteHost() + " - client has not answered the ping, dropping the connection");
+					GatewayMetrics.clientUnresponsive();
+					UpstreamEngine.control(new Runnable() {
+						@Override
+						public void run() {
+							//a half-open connection cannot complete the closing handshake, onClose() cleans up
+							outbound.abort(WebSocketConstants.CLOSE_NORMAL);
+						}
+					});
+					return;
 				}
-				xmlWriter.print ( ">" );
-				xmlWriter.flush();
-			}			
-		}
-		
-		/**
-		 * Forward the opening stream tag received from the server to the client
-		 * @param sendXmlHeader true if an XML header should be sent
-		 * @param root the opening stream tag
-		 * @throws XMLSyntaxException if the passed stream element is malicious
-		 */
-		private void forwardOpeningTagToClient(boolean sendXmlHeader, Element root) throws XMLSyntaxException {
-			String xml = "";
-			if (sendXmlHeader)
-				xml += "<?xml version=\"1.0\"?>";
-			xml += "<stream:stream";
-			for (Enumeration<String> e = root.getAttributeNames(); e.hasMoreElements(); ) {
-				String attribute = e.nextElement();
-				xml += " " + attribute + "=\"" + root.getAttribute(attribute) + "\"";
-			}
-			xml +=">";
-			sendMessage(xml);
-			openingTagSent = true;
-		}
-		
-		/**
-		 * Forward the closing stream tag received from the client to the server.
-		 * If the server is the party that closed the stream the connection to the client and
-		 * to the XMPP server is closed. Otherwise the handler waits for a reply from the server.
-		 */
-		public void forwardClosingTagToServer() {
-			synchronized (xmlWriter) {
-				xmlWriter.print("</stream:stream>");
-				xmlWriter.flush();
+				next = Math.min(next, pingSent + pingTimeout - now);
 			}
-			if (serverSentClosingTag) {
-				//XMPP server sent initial closing tag. This is the reply of the client -> close connection
-				iProxyStatus = WsConnectionState.STREAM_CLOSED;
-				try {
-					socket.close();
-				} catch (IOException e) {}
-				iProxyStatus = WsConnectionState.DISCONNECTED;
-				closeConnection();
+			else if (now - last >= pingInterval && outbound.isWriting()) {
+				//the ping would wait behind the write, a write the client does not take is aborted by the write timeout
+				next = Math.min(next, pingInterval);
 			}
-			else {
-				//client sent initial closing tag -> wait for reply.
+			else if (now - last >= pingInterval) {
+				pingSent = now;
+				GatewayMetrics.clientPinged();
+				UpstreamEngine.control(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							connection.sendControl(WebSocketConstants.OP_PING, new byte[0], 0, 0);
+						} catch (IOException e) {
+							logger.info(request.getRemoteHost() + " - failed to send ping", e);
+						}
+					}
+				});
+				next = Math.min(next, pingTimeout);
 			}
+			else
+				next = Math.min(next, last + pingInterval - now);
 		}
-		
-		/**
-		 * Forward the closing stream tag received from the server to the client.
-		 * If the client is the party that closed the stream the connection to the client and
-		 * to the XMPP server is closed.Otherwise the handler waits for a reply from the client.
-		 */		
-		private void forwardClosingTagToClient() {
-			sendMessage("</stream:stream>");
-			closingTagSent = true;
-			if (clientSentClosingTag) {
-				//client sent initial closing tag. This is the reply of the XMPP server -> close connection
-				iProxyStatus = WsConnectionState.STREAM_CLOSED;
-				try {
-					socket.close();
-				} catch (IOException e) {}
-				iProxyStatus = WsConnectionState.DISCONNECTED;
-				closeConnection();
-			}
-			else {
-				//server sent initial closing tag -> wait for reply.
+		if (next < Long.MAX_VALUE)
+			UpstreamEngine.scheduleDeadline(livenessCheck, next);
+	}
+
+	//******************** Stream management ********************//
+
+	/**
+	 * Check whether a message from the client is a stream management element answered by the gateway
+	 * @param data the message received from the client
+	 * @return true if the message is an enable, r or a element of stream management
+	 */
+	private static boolean isStreamManagement(String data) {
+		if (!WebSocketXmppGateway.isStreamManagement())
+			return false;
+		if (!data.startsWith("<enable") && !data.startsWith("<r ") && !data.startsWith("<r/") && !data.startsWith("<a ")
+				&& !data.startsWith("<a/") && !data.startsWith("<resume"))
+			return false;
+		return data.indexOf(XMPPConstants.NS_SM) > 0;
+	}
+
+	/**
+	 * Answer a stream management element sent by the client. The elements are not forwarded to the XMPP server.
+	 * @param element the element received from the client
+	 * @throws XMLSyntaxException if an attribute is malicious
+	 * @throws StreamErrorException if the client acknowledges more stanzas than have been sent
+	 */
+	private void handleStreamManagement(Element element) throws XMLSyntaxException, StreamErrorException {
+		String name = element.getName();
+		StreamManagement sm = streamManagement;
+		if ("enable".equals(name) && sm == null) {
+			String resume = element.getAttribute("resume");
+			int timeout = WebSocketXmppGateway.getStreamResumeTimeout();
+			sm = new StreamManagement(this, timeout > 0 && ("true".equals(resume) || "1".equals(resume)),
+					WebSocketXmppGateway.getStreamResumeQueueLimit());
+			streamManagement = sm;
+			if (sm.getId() != null) {
+				WebSocketXmppGateway.getSessions().addResumable(sm.getId(), this);
+				sendMessage("<enabled xmlns='" + XMPPConstants.NS_SM + "' id='" + sm.getId() + "' resume='true' max='" + (timeout / 1000) + "'/>");
 			}
+			else
+				sendMessage("<enabled xmlns='" + XMPPConstants.NS_SM + "'/>");
+			logger.info(request.getRemoteHost() + " - enabled stream management" + (sm.getId() != null ? " with resumption" : ""));
+		}
+		else if ("r".equals(name) && sm != null)
+			sendMessage("<a xmlns='" + XMPPConstants.NS_SM + "' h='" + sm.getReceived() + "'/>");
+		else if ("a".equals(name) && sm != null) {
+			if (!sm.acknowledge(parseCounter(element)))
+				throw new StreamErrorException(XMPPConstants.ERROR_COND_UNDEFINIED_CONDITION, "Acknowledged more stanzas than have been sent", "en");
 		}
+		else
+			sendMessage("<failed xmlns='" + XMPPConstants.NS_SM + "'><unexpected-request xmlns='" + XMPPConstants.STANZA_ERROR_NS_URN + "'/></failed>");
+	}
+
+	/**
+	 * Check whether the session is kept for a resumption if the connection drops
+	 * @return true if the client has enabled the resumption and neither party has closed the stream
+	 */
+	private boolean isResumable() {
+		StreamManagement sm = streamManagement;
+		return sm != null && sm.isResumable() && wsProxy != null && !serverSentClosingTag && !closingTagSent
+				&& !WebSocketXmppGateway.isDraining();
+	}
 
-		/**
-		 * Forward a stanza received from the client to the XMPP server
-		 * @param stanza The stanza received from the client
-		 */
-		public void forwardStanzaToServer(Element stanza) {
-			synchronized (xmlWriter) {
-				xmlWriter.print(stanza.toString(false));
-				xmlWriter.flush();
+	/**
+	 * Keep the session after the connection has dropped. Stanzas from the XMPP server are kept for the resumption
+	 * until the resumption timeout has elapsed.
+	 */
+	private void detach() {
+		StreamManagement sm = streamManagement;
+		synchronized (sm) {
+			if (sm.getOwner() == this)
+				sm.setOwner(null);
+		}
+		detached = true;
+		setState(WsConnectionState.DISCONNECTED);
+		WebSocketXmppGateway.getSessions().unregister(this);
+		GatewayMetrics.sessionDetached();
+		int timeout = WebSocketXmppGateway.getStreamResumeTimeout();
+		logger.info(request.getRemoteHost() + " - keeping session for resumption for " + timeout + " ms");
+		//stanzas are kept while the client is disconnected, the limit of the kept stanzas applies
+		wsProxy.resumeReading();
+		UpstreamEngine.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (expire())
+					logger.info(request.getRemoteHost() + " - session has not been resumed");
 			}
+		}, timeout);
+	}
+
+	/**
+	 * Close the session kept for a disconnected client. The XMPP server receives a closing stream tag.
+	 * @return true if the session has been closed, false if it has been resumed or closed before
+	 */
+	public boolean expire() {
+		StreamManagement sm = streamManagement;
+		if (!detached || sm == null || WebSocketXmppGateway.getSessions().removeResumable(sm.getId(), this) == null)
+			return false;
+		GatewayMetrics.sessionExpired();
+		XMPPProxy proxy = wsProxy;
+		proxy.writeClosingTag();
+		proxy.disconnect();
+		return true;
+	}
+
+	/**
+	 * Answer the opening tag of a client that resumes a session. The XMPP server of the session is not known yet,
+	 * the gateway sends the opening tag and offers stream management only.
+	 * @param root the opening stream tag received from the client
+	 * @throws XMLSyntaxException if the passed stream element is malicious
+	 */
+	private void openResumingStream(Element root) throws XMLSyntaxException {
+		String to = root.getAttribute("to");
+		String xml = "";
+		if (clientSentHeader)
+			xml += "<?xml version=\"1.0\"?>";
+		xml += "<stream:stream";
+		if (to != null)
+			xml += " from=\"" + to.replaceAll("&", "&amp;").replaceAll("\"", "&quot;") + "\"";
+		xml += " id=\"wxg-" + sessionId + "\" version=\"1.0\" xmlns=\"" + XMPPConstants.XML_CLIENT_NS + "\" xmlns:stream=\"" + XMPPConstants.XML_NS_URI + "\">";
+		sendMessage(xml);
+		openingTagSent = true;
+		sendMessage("<stream:features><sm xmlns='" + XMPPConstants.NS_SM + "'/></stream:features>");
+	}
+
+	/**
+	 * Take over the session of the resumption id sent by the client. The proxy is attached to this connection and
+	 * the stanzas the client has not received are sent again.
+	 * @param element the resume element received from the client
+	 * @throws XMLSyntaxException if an attribute is malicious
+	 * @throws StreamErrorException if the client acknowledges more stanzas than have been sent
+	 */
+	private void resume(Element element) throws XMLSyntaxException, StreamErrorException {
+		String previd = element.getAttribute("previd");
+		long h = parseCounter(element);
+		WsXMPPConnectionHandler previous = previd != null && h >= 0 ? WebSocketXmppGateway.getSessions().removeResumable(previd, null) : null;
+		if (previous == null) {
+			resumeFailed();
+			return;
 		}
-		
-		/**
-		 * Get the server name of the XMPP server
-		 * @param printDedicatedClient if true, the hostname of the dedicated client is printed in brackets after the XMPP server hostname
-		 * @return the server name of the XMPP server
-		 */
-		public String getServername(boolean printDedicatedClient) {
-			String servername =  hostname + ":" + port;
-			if(printDedicatedClient)
-				servername += " (" + request.getRemoteHost() + ")";
-			return servername;
+		StreamManagement sm = previous.streamManagement;
+		previous.detached = true;
+		boolean acknowledged;
+		synchronized (sm) {
+			acknowledged = sm.acknowledge(h);
 		}
+		if (!acknowledged) {
+			//client and session disagree on the stanzas sent, the session is closed like an expired one
+			logger.info(request.getRemoteHost() + " - client acknowledged more stanzas than have been sent, closing session of " + previous.getRemoteHost());
+			GatewayMetrics.sessionResumeFailed();
+			WebSocketXmppGateway.getSessions().addResumable(previd, previous);
+			previous.expire();
+			if (previous.iStatus < WsConnectionState.DISCONNECTED)
+				previous.closeConnection(WebSocketConstants.CLOSE_NORMAL);
+			throw new StreamErrorException(XMPPConstants.ERROR_COND_UNDEFINIED_CONDITION, "Acknowledged more stanzas than have been sent", "en");
+		}
+		logger.info(request.getRemoteHost() + " - resuming session of " + previous.getRemoteHost() + " at " + previous.wsProxy.getServername(false));
+		target = previous.target;
+		wsProxy = previous.wsProxy;
+		WebSocketXmppGateway.getSessions().indexTarget(this, target);
+		WebSocketXmppGateway.getSessions().addResumable(previd, this);
+		synchronized (sm) {
+			streamManagement = sm;
+			sm.setOwner(this);
+			wsProxy.attach(this);
+			sendMessage("<resumed xmlns='" + XMPPConstants.NS_SM + "' previd='" + previd + "' h='" + sm.getReceived() + "'/>");
+			List<byte[]> missed = sm.getUnacknowledged();
+			for (byte[] stanza : missed)
+				queueStanza(stanza, 0, stanza.length);
+			flushStanzas();
+			logger.info(request.getRemoteHost() + " - sent " + missed.size() + " stanzas again");
+		}
+		GatewayMetrics.sessionResumed();
+		//the previous connection may not have noticed the drop yet
+		if (previous.iStatus < WsConnectionState.DISCONNECTED)
+			previous.closeConnection(WebSocketConstants.CLOSE_NORMAL);
+	}
+
+	/**
+	 * Tell the client that the session cannot be resumed and close the stream, the client has to log in again
+	 */
+	private void resumeFailed() {
+		logger.info(request.getRemoteHost() + " - cannot resume session");
+		GatewayMetrics.sessionResumeFailed();
+		sendMessage("<failed xmlns='" + XMPPConstants.NS_SM + "'><item-not-found xmlns='" + XMPPConstants.STANZA_ERROR_NS_URN + "'/></failed>");
+		sendMessage("</stream:stream>");
+		closingTagSent = true;
+		clientSentClosingTag = true;
+		serverSentClosingTag = true;
+		closeConnection();
+	}
 
+	/**
+	 * Read the counter of a stream management element
+	 * @param element the a or resume element
+	 * @return the value of h, -1 if it is missing or not a number
+	 * @throws XMLSyntaxException if the attribute is malicious
+	 */
+	private static long parseCounter(Element element) throws XMLSyntaxException {
+		try {
+			long h = Long.parseLong(element.getAttribute("h"));
+			return h >= 0 && h <= 0xffffffffL ? h : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
 	}
 
 }
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.connection;
+
+import i5.simpleXML.XMLSyntaxException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.rwth_aachen.dbis.wsxmppgateway.WebSocketXmppGateway;
+import de.rwth_aachen.dbis.wsxmppgateway.XMPPConstants;
+import de.rwth_aachen.dbis.wsxmppgateway.error.StreamError;
+import de.rwth_aachen.dbis.wsxmppgateway.metrics.GatewayMetrics;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.ConnectionPool;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.DnsResolver;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.FilterChannel;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.Target;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.TlsChannel;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamCompression;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamEngine;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamTls;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.WriteQueue;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.ZlibChannel;
+
+/**
+ * Connection between gateway and the remote XMPP server that is served by a dedicated blocking thread.
+ * The thread reads blocks of bytes from the socket and feeds them into the framer.
+ * Data for the XMPP server is written by the forwarding threads with gathering writes.
+ * The thread is either a platform or a virtual thread, see {@link UpstreamEngine#newProxyThread(Runnable)}.
+ *
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+class WsXMPPProxy extends XMPPProxy implements Runnable {
+
+	private static final int READ_BUFFER_SIZE = 16*1024;
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(WsXMPPProxy.class);
+
+	private volatile SocketChannel channel; //null until the connection has been established
+	private InputStream input;
+	private volatile FilterChannel transport; //TLS and compression on top of the channel, null if neither is used
+	//guards publishing the channel and closed; an explicit lock does not pin the carrier of a virtual thread
+	private final Lock lock = new ReentrantLock();
+	private boolean closed = false; //true, if the proxy has been closed
+	private boolean paused = false; //true while the client does not take the data read from the XMPP server
+	private final Condition resumed = lock.newCondition(); //signalled when reading is resumed or the proxy is closed
+	private final Condition flushed = lock.newCondition(); //signalled when a thread has stopped writing the queue
+	private volatile int writerWaiters = 0; //threads waiting in acquireWriter(), only changed while holding the lock
+
+	private final WriteQueue writeQueue = new WriteQueue(); //data to be written to the XMPP server
+	private final AtomicBoolean flushing = new AtomicBoolean(false); //true while a thread writes the queue
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private volatile long writeStarted = 0; //time in ms the current write has been started, 0 if no write is in progress
+
+	private final Runnable livenessCheck = new Runnable() {
+		@Override
+		public void run() {
+			checkLiveness(System.currentTimeMillis(), isPaused());
+		}
+	};
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flushScheduled.set(false);
+			flush();
+		}
+	};
+
+	/**
+	 * Creates a remote connection to an XMPP server. The connection is established by the proxy thread.
+	 * @param handler the client connection
+	 * @param target the XMPP server
+	 */
+	WsXMPPProxy(WsXMPPConnectionHandler handler, Target target) {
+		super(handler, target);
+	}
+
+	@Override
+	void start() {
+		logger.info(getServername(true) + " - connecting to XMPP server (" + UpstreamEngine.connectStarted() + " connects pending)");
+		connectStart = System.currentTimeMillis();
+		UpstreamEngine.newProxyThread(this).start();
+	}
+
+	/**
+	 * Connect to the XMPP server and write the data that has been queued in the meantime
+	 * @return true if the connection has been established
+	 */
+	private boolean connect() {
+		StreamError streamError;
+		try {
+			SocketChannel channel = ConnectionPool.claim(hostname, port);
+			if (channel != null)
+				logger.info(getServername(true) + " - using pooled connection to XMPP server");
+			else {
+				InetSocketAddress address = DnsResolver.resolve(hostname, port);
+				channel = SocketChannel.open();
+				try {
+					channel.socket().connect(address, WebSocketXmppGateway.getConnectTimeout());
+				} catch (IOException e) {
+					channel.close();
+					throw e;
+				}
+			}
+			//a blocking channel provides gathering writes, idle connections are closed by the liveness check
+			try {
+				channel.configureBlocking(true);
+				input = channel.socket().getInputStream();
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			lock.lock();
+			try {
+				if (closed) {
+					//client has gone in the meantime
+					channel.close();
+					return false;
+				}
+				this.channel = channel;
+			} finally {
+				lock.unlock();
+			}
+			iProxyStatus = WsConnectionState.CONNECTED;
+			recordConnect(true);
+			logger.info(getServername(true) + " - opened connection to XMPP server");
+			watchLiveness();
+			//write the data forwarded during the connect
+			flush();
+			return true;
+		} catch (UnknownHostException e) {
+			logger.info(getServername(true) + " - cannot connect to XMPP server", e);
+			streamError = new StreamError(XMPPConstants.ERROR_COND_HOST_UNKOWN, e.getMessage(), "en");
+		} catch (SocketTimeoutException e) {
+			logger.info(getServername(true) + " - cannot connect to XMPP server", e);
+			streamError = new StreamError(XMPPConstants.ERROR_COND_REMOTE_CONNECTION_FAILED, "Connect timed out", "en");
+		} catch (IOException e) {
+			logger.info(getServername(true) + " - cannot connect to XMPP server", e);
+			streamError = new StreamError(XMPPConstants.ERROR_COND_REMOTE_CONNECTION_FAILED, e.getMessage(), "en");
+		} finally {
+			UpstreamEngine.connectFinished();
+		}
+		recordConnect(false);
+		connectFailed(streamError);
+		return false;
+	}
+
+	@Override
+	public void run() {
+		if (!connect())
+			return;
+		byte[] buffer = new byte[READ_BUFFER_SIZE];
+		ByteBuffer decrypted = ByteBuffer.wrap(buffer);
+		try {
+			while (!Thread.currentThread().isInterrupted() && iProxyStatus < WsConnectionState.STREAM_CLOSED) {
+				awaitResume();
+				FilterChannel transport = this.transport;
+				int read;
+				if (transport != null) {
+					decrypted.clear();
+					read = transport.read(decrypted);
+				}
+				else
+					read = input.read(buffer);
+				if (read < 0) {
+					logger.info(getServername(true) + " - XMPP server closed the connection");
+					fail(new StreamError(XMPPConstants.ERROR_COND_REMOTE_CONNECTION_FAILED));
+					break;
+				}
+				if (read == 0)
+					continue; //TLS record or compressed block without data
+				lastRead = System.currentTimeMillis();
+				GatewayMetrics.bytesFromServer(read);
+				framer.feed(buffer, 0, read);
+				processFrames();
+			}
+		} catch (XMLSyntaxException e) {
+			logger.info(getServername(true) + " - error during message handling", e);
+			fail(new StreamError(XMPPConstants.ERROR_COND_INVALID_XML, "Syntax error in xml stream!", "en"));
+		} catch (IOException e) {
+			if (iProxyStatus < WsConnectionState.STREAM_CLOSED)
+				logger.info(getServername(true) + " - error during message handling", e);
+			fail(new StreamError(XMPPConstants.ERROR_COND_REMOTE_CONNECTION_FAILED));
+		} catch (IllegalStateException e) {
+			logger.error(getServername(true) + " - error during message handling", e);
+			fail(new StreamError(XMPPConstants.ERROR_COND_INTERNAL_SERVER_ERROR));
+		}
+
+		//we need to close the connection to the XMPP server when the run loop has stopped
+		close();
+		iProxyStatus = WsConnectionState.DISCONNECTED;
+
+		//cleanup if an error has occured
+		handler.forwardClosingTagToClient();
+	}
+
+	/**
+	 * Report an error to the client unless the connection has been closed on purpose
+	 * @param streamError the stream error to be sent to the client
+	 */
+	@Override
+	protected void fail(StreamError streamError) {
+		if (iProxyStatus >= WsConnectionState.STREAM_CLOSED)
+			return;
+		try {
+			handler.handleStreamError(streamError);
+		} catch (IllegalStateException e) {
+			//stream to the client has already been closed
+		}
+	}
+
+	@Override
+	void close() {
+		releaseTarget();
+		SocketChannel channel;
+		lock.lock();
+		try {
+			closed = true;
+			resumed.signalAll();
+			channel = this.channel;
+		} finally {
+			lock.unlock();
+		}
+		if (channel != null) {
+			//write data that waits for the flush delay, e.g. the closing stream tag
+			if (iProxyStatus >= WsConnectionState.STREAM_CLOSED)
+				flush();
+			//a write that blocks in another thread is aborted
+			try{
+				channel.close();
+			} catch(IOException e){}
+			//return the compression to the pool once the proxy thread has stopped reading
+			FilterChannel transport = this.transport;
+			if (transport != null)
+				transport.close();
+			logCompression();
+		}
+	}
+
+	@Override
+	boolean isClosed() {
+		SocketChannel channel = this.channel;
+		return channel == null || !channel.isOpen();
+	}
+
+	@Override
+	protected void runLivenessCheck() {
+		//the check may write a keepalive or a stream error, both may block
+		if (iProxyStatus < WsConnectionState.STREAM_CLOSED)
+			UpstreamEngine.control(livenessCheck);
+	}
+
+	@Override
+	protected void idleTimeout() {
+		super.idleTimeout();
+		//the read blocked in the proxy thread is aborted, the proxy thread cleans up
+		close();
+		iProxyStatus = WsConnectionState.STREAM_CLOSED;
+	}
+
+	@Override
+	void pauseReading() {
+		lock.lock();
+		try {
+			paused = true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	void resumeReading() {
+		lock.lock();
+		try {
+			paused = false;
+			resumed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	protected int getQueuedBytes() {
+		return writeQueue.getBytes();
+	}
+
+	@Override
+	boolean isUpstreamStalled(long now, long timeout) {
+		long started = writeStarted;
+		return started > 0 && now - started > timeout;
+	}
+
+	/**
+	 * Check if reading from the XMPP server has been paused
+	 * @return true while the client does not take the data read from the XMPP server
+	 */
+	private boolean isPaused() {
+		lock.lock();
+		try {
+			return paused;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Block the proxy thread while reading is paused
+	 */
+	private void awaitResume() {
+		lock.lock();
+		try {
+			while (paused && !closed)
+				resumed.awaitUninterruptibly();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	protected void startTls() {
+		//a stalled handshake is aborted by the liveness check, the handshake is performed by the proxy thread
+		//sessions are only cached for a known port, the port of an SRV target is known once connected
+		TlsChannel tls = new TlsChannel(Channels.newChannel(input), channel, UpstreamTls.createEngine(hostname, channel.socket().getPort()));
+		acquireWriter();
+		try {
+			tls.handshake();
+			transport = tls;
+		} catch (IOException e) {
+			logger.info(getServername(true) + " - TLS handshake with XMPP server failed", e);
+			fail(new StreamError(XMPPConstants.ERROR_COND_REMOTE_CONNECTION_FAILED, "TLS handshake failed", "en"));
+			tls = null;
+		} finally {
+			flushing.set(false);
+		}
+		if (tls == null) {
+			//the next read fails and stops the proxy thread
+			close();
+			return;
+		}
+		secured(tls);
+	}
+
+	@Override
+	protected void startCompression() {
+		FilterChannel transport = this.transport;
+		ZlibChannel zlib;
+		if (transport != null)
+			zlib = UpstreamCompression.open(transport, transport);
+		else
+			zlib = UpstreamCompression.open(Channels.newChannel(input), channel);
+		acquireWriter();
+		this.transport = zlib;
+		flushing.set(false);
+		compressed(zlib);
+	}
+
+	/**
+	 * Wait until no other thread writes the queue before the transport is changed.
+	 * A thread that is still writing the request to the XMPP server would write later data with the old transport.
+	 * The caller has to reset {@link #flushing}, data queued in the meantime is written by the next flush.
+	 */
+	private void acquireWriter() {
+		lock.lock();
+		try {
+			writerWaiters++;
+			while (!flushing.compareAndSet(false, true))
+				flushed.awaitUninterruptibly(); //only the request itself is being written
+			writerWaiters--;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	protected void resetParser() {
+		//framer has been reset by resetStream(), no transport state to be reset
+	}
+
+	@Override
+	protected void writeClosingTag() {
+		write("</stream:stream>");
+	}
+
+	@Override
+	void forwardStanzaToServer(String stanza) {
+		write(stanza);
+	}
+
+	/**
+	 * Queue data for the XMPP server and write the queue unless another thread is writing it or the flush is delayed
+	 * @param xml the data to be written
+	 */
+	@Override
+	protected void write(String xml) {
+		lastWrite = System.currentTimeMillis();
+		writeQueue.add(xml);
+		int delay = WebSocketXmppGateway.getUpstreamFlushDelay();
+		if (delay > 0) {
+			if (flushScheduled.compareAndSet(false, true))
+				UpstreamEngine.schedule(flushTask, delay);
+		}
+		else
+			flush();
+	}
+
+	/**
+	 * Write all queued data to the XMPP server. If another thread is writing already, it writes the data as well.
+	 */
+	private void flush() {
+		SocketChannel channel = this.channel;
+		if (channel == null)
+			return; //connect has not been finished yet, data is written by connect()
+		if (isSecuring())
+			return; //data is written after the handshake
+		while (!writeQueue.isEmpty() && flushing.compareAndSet(false, true)) {
+			writeStarted = System.currentTimeMillis();
+			try {
+				FilterChannel transport = this.transport;
+				while (!(transport != null ? writeQueue.writeTo(transport) : writeQueue.writeTo(channel)))
+					upstreamWritten();
+				upstreamWritten();
+			} catch (IOException e) {
+				if (iProxyStatus < WsConnectionState.STREAM_CLOSED)
+					logger.info(getServername(true) + " - error while writing to XMPP server", e);
+				//the proxy thread reports the error when its read fails
+				close();
+				return;
+			} finally {
+				writeStarted = 0;
+				flushing.set(false);
+				if (writerWaiters > 0) {
+					lock.lock();
+					try {
+						flushed.signalAll();
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,689 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.connection;
+
+import i5.simpleXML.Element;
+import i5.simpleXML.XMLSyntaxException;
+
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.rwth_aachen.dbis.wsxmppgateway.WebSocketXmppGateway;
+import de.rwth_aachen.dbis.wsxmppgateway.XMPPConstants;
+import de.rwth_aachen.dbis.wsxmppgateway.error.StreamError;
+import de.rwth_aachen.dbis.wsxmppgateway.metrics.GatewayMetrics;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.Target;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.TlsChannel;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamCompression;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamEngine;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamTls;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.ZlibChannel;
+import de.rwth_aachen.dbis.wsxmppgateway.xml.XMLStreamFramer;
+
+/**
+ * Connection between gateway and the remote XMPP server.
+ * Subclasses implement the transport and feed the received bytes into the {@link XMLStreamFramer},
+ * the handling of the XMPP stream is shared. Stanzas are forwarded to the client as received, no document tree is built.
+ * If TLS is enabled for XMPP servers, the proxy negotiates STARTTLS itself: the opening tag of the XMPP server is held
+ * back until the stream features show whether TLS is offered, and the client only sees the stream that has been restarted
+ * after the handshake. Stream compression (XEP-0138) is negotiated the same way after the client has been authenticated.
+ * If stream management (XEP-0198) is enabled, the gateway adds it to the stream features after authentication and
+ * answers the client itself, a resumed session is attached to the new client connection.
+ *
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+abstract class XMPPProxy {
+
+	//state of the STARTTLS negotiation with the XMPP server
+	private static final int TLS_NONE = 0; //TLS is not negotiated
+	private static final int TLS_OFFER = 1; //waiting for the stream features
+	private static final int TLS_PROCEED = 2; //waiting for the XMPP server to proceed
+	private static final int TLS_HANDSHAKE = 3; //handshake in progress, data for the XMPP server is held back
+	private static final int TLS_SECURED = 4; //the connection has been secured
+
+	//state of the stream compression negotiation with the XMPP server
+	private static final int COMPRESS_NONE = 0; //compression is not negotiated
+	private static final int COMPRESS_OFFER = 1; //waiting for the stream features after authentication
+	private static final int COMPRESS_REQUESTED = 2; //waiting for the XMPP server to start compression
+	private static final int COMPRESS_ACTIVE = 3; //the stream is compressed
+
+	private static final long LIVENESS_RETRY = 1000; //1 sec, delay of a keepalive that cannot be sent during a negotiation
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(XMPPProxy.class);
+
+	protected volatile WsXMPPConnectionHandler handler; //the client connection this proxy belongs to, replaced when the session is resumed
+	protected final Target target; //the XMPP server selected for this session
+	protected final String hostname;
+	protected final int port;
+	private final AtomicBoolean released = new AtomicBoolean(false);
+	private final Object upstreamMonitor = new Object(); //clients blocked by awaitUpstream() wait on this monitor
+	private volatile int upstreamWaiters = 0;
+	protected long connectStart; //time the connect has been started in ms
+	protected volatile long lastRead; //time in ms data has last been read from the XMPP server
+	protected volatile long lastWrite; //time in ms data has last been queued for the XMPP server
+
+	protected final XMLStreamFramer framer = new XMLStreamFramer(); //splits the stream received from the XMPP server
+	protected boolean serverSentHeader = false;
+	private volatile int tlsState = UpstreamTls.isEnabled() ? TLS_OFFER : TLS_NONE; //only changed by the thread reading from the XMPP server
+	private volatile int compressState = COMPRESS_NONE; //only changed by the thread reading from the XMPP server
+	private Element heldOpeningTag; //opening tag of the XMPP server, held back until TLS or compression has been negotiated
+	private String heldFeatures; //stream features of the XMPP server, held back until compression has been negotiated
+	private volatile ZlibChannel compression; //the compressed connection, kept for the statistics
+	private volatile String openingTag; //opening tag last forwarded to the XMPP server, sent again after the handshake
+
+	//stores the status of the connection according to constants in WsConnectionState
+	protected volatile int iProxyStatus = -1;
+
+	private final Runnable livenessTask = new Runnable() {
+		@Override
+		public void run() {
+			runLivenessCheck();
+		}
+	};
+
+	/**
+	 * Creates a new proxy for the given client connection
+	 * @param handler the client connection
+	 * @param target the XMPP server, the session is counted until the proxy is closed
+	 */
+	protected XMPPProxy(WsXMPPConnectionHandler handler, Target target) {
+		this.handler = handler;
+		this.target = target;
+		this.hostname = target.getHostname();
+		this.port = target.getPort();
+		target.acquire();
+	}
+
+	/**
+	 * Creates a remote connection to an XMPP server using the configured upstream engine.
+	 * The connection is established asynchronously after {@link #start()}, failures are reported to the client as stream errors.
+	 * @param handler the client connection
+	 * @param target the XMPP server
+	 * @return the proxy, not yet started
+	 */
+	static XMPPProxy create(WsXMPPConnectionHandler handler, Target target) {
+		if (UpstreamEngine.MODE_NIO.equals(UpstreamEngine.getMode()))
+			return new WsXMPPChannelProxy(handler, target);
+		return new WsXMPPProxy(handler, target);
+	}
+
+	/**
+	 * Attach the proxy to the client connection that has resumed the session
+	 * @param handler the new client connection
+	 */
+	void attach(WsXMPPConnectionHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Start connecting to the XMPP server without blocking the calling thread.
+	 * Data forwarded to the server before the connection has been established is queued.
+	 */
+	abstract void start();
+
+	/**
+	 * Close the connection to the XMPP server
+	 */
+	abstract void close();
+
+	/**
+	 * Check whether the connection to the XMPP server has been closed. Data queued before the close has been written then.
+	 * @return true if the socket has been closed or has not been opened
+	 */
+	abstract boolean isClosed();
+
+	/**
+	 * Forward the opening stream tag received from the client to the XMPP server
+	 * @param sendXmlHeader true if an XML header should be sent
+	 * @param root the opening stream tag
+	 * @throws XMLSyntaxException if the passed stream element is malicious
+	 */
+	void forwardOpeningTagToServer(boolean sendXmlHeader, Element root) throws XMLSyntaxException {
+		openingTag = serializeOpeningTag(sendXmlHeader, root);
+		write(openingTag);
+	}
+
+	/**
+	 * Queue data for the XMPP server
+	 * @param xml the data to be written
+	 */
+	protected abstract void write(String xml);
+
+	/**
+	 * Forward a stanza received from the client to the XMPP server
+	 * @param stanza The serialized stanza received from the client
+	 */
+	abstract void forwardStanzaToServer(String stanza);
+
+	/**
+	 * Write the closing stream tag to the XMPP server
+	 */
+	protected abstract void writeClosingTag();
+
+	/**
+	 * Reset the transport specific state after the stream has been restarted
+	 */
+	protected abstract void resetParser();
+
+	/**
+	 * Secure the connection after the XMPP server has agreed to STARTTLS. Once the handshake has been finished,
+	 * {@link #secured(TlsChannel)} has to be called, failures are reported by {@link #fail(StreamError)}.
+	 */
+	protected abstract void startTls();
+
+	/**
+	 * Compress the connection after the XMPP server has agreed to stream compression.
+	 * The compressed connection has to be passed to {@link #compressed(ZlibChannel)} before data is read or written again.
+	 */
+	protected abstract void startCompression();
+
+	/**
+	 * Terminate the connection after an error
+	 * @param streamError the stream error to be sent to the client
+	 */
+	protected abstract void fail(StreamError streamError);
+
+	/**
+	 * Stop reading from the XMPP server until {@link #resumeReading()} is called
+	 */
+	abstract void pauseReading();
+
+	/**
+	 * Resume reading from the XMPP server
+	 */
+	abstract void resumeReading();
+
+	/**
+	 * Run {@link #checkLiveness(long, boolean)} on a thread that may access the connection state and block.
+	 * Called by the timing wheel once the deadline armed by {@link #scheduleLivenessCheck(long)} has been reached.
+	 */
+	protected abstract void runLivenessCheck();
+
+	/**
+	 * Get the amount of data waiting to be written to the XMPP server
+	 * @return the number of bytes queued for the XMPP server
+	 */
+	protected abstract int getQueuedBytes();
+
+	/**
+	 * Block the calling thread while the data queued for the XMPP server exceeds the session queue limit.
+	 * The thread continues once the queue has drained below the resume mark or the connection has been closed.
+	 * @return false if the XMPP server has not taken the data within the backpressure timeout
+	 */
+	boolean awaitUpstream() {
+		if (getQueuedBytes() <= WebSocketXmppGateway.getSessionQueueLimit())
+			return true;
+		GatewayMetrics.backpressureToServer();
+		logger.info(getServername(true) + " - XMPP server is slow, blocking client");
+		int resume = WebSocketXmppGateway.getSessionQueueResume();
+		long timeout = WebSocketXmppGateway.getBackpressureTimeout();
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (upstreamMonitor) {
+			upstreamWaiters++;
+			try {
+				while (getQueuedBytes() > resume && !released.get()) {
+					long wait = 0; //no timeout
+					if (timeout > 0) {
+						wait = deadline - System.currentTimeMillis();
+						if (wait <= 0)
+							return false;
+					}
+					upstreamMonitor.wait(wait);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				upstreamWaiters--;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check if a write to the XMPP server has been blocked for longer than the timeout
+	 * @param now the current time in ms
+	 * @param timeout the time in ms after that a blocked write counts as stalled
+	 * @return true if a write has been blocked for longer than the timeout
+	 */
+	boolean isUpstreamStalled(long now, long timeout) {
+		return false; //writes do not block unless the transport overrides this
+	}
+
+	/**
+	 * Arm the liveness check of the connection on the timing wheel of the upstream engine
+	 * @param delay the delay in ms
+	 */
+	protected void scheduleLivenessCheck(long delay) {
+		UpstreamEngine.scheduleDeadline(livenessTask, delay);
+	}
+
+	/**
+	 * Start watching the liveness of the connection once it has been established
+	 */
+	protected void watchLiveness() {
+		long now = System.currentTimeMillis();
+		lastRead = now;
+		lastWrite = now;
+		scheduleLivenessCheck(0);
+	}
+
+	/**
+	 * Close the session if the XMPP server has been silent for longer than the timeout and send a whitespace keepalive
+	 * if no data has been sent to it for the keepalive interval. The check is armed again for the next deadline,
+	 * activity in the meantime only moves the deadline when the check runs.
+	 * @param now the current time in ms
+	 * @param paused true if reading from the XMPP server has been paused, a paused connection is not idle
+	 */
+	protected void checkLiveness(long now, boolean paused) {
+		if (iProxyStatus >= WsConnectionState.STREAM_CLOSED)
+			return;
+		if (paused)
+			lastRead = now;
+		long timeout = WebSocketXmppGateway.getTimeout();
+		if (timeout > 0 && now - lastRead >= timeout) {
+			logger.info(getServername(true) + " - XMPP server has been idle for too long");
+			idleTimeout();
+			return;
+		}
+		long next = timeout > 0 ? lastRead + timeout - now : Long.MAX_VALUE;
+		long keepalive = WebSocketXmppGateway.getUpstreamKeepalive();
+		if (keepalive > 0) {
+			if (now - lastWrite >= keepalive && isKeepaliveAllowed()) {
+				//whitespace between top-level elements is ignored by the XMPP server (RFC 6120, section 4.6.1)
+				write(" ");
+				GatewayMetrics.upstreamKeepalive();
+			}
+			next = Math.min(next, Math.max(lastWrite + keepalive - now, LIVENESS_RETRY));
+		}
+		if (next < Long.MAX_VALUE)
+			scheduleLivenessCheck(next);
+	}
+
+	/**
+	 * Close the session after the XMPP server has been silent for longer than the timeout
+	 */
+	protected void idleTimeout() {
+		fail(new StreamError(XMPPConstants.ERROR_COND_CONNECTION_TIMEOUT));
+	}
+
+	/**
+	 * Check if whitespace may be sent to the XMPP server. It may not while the stream is restarted or while the
+	 * XMPP server switches to TLS or compression, since it would precede the new stream header or the switched transport.
+	 * @return true if the stream of the XMPP server is open and no transport negotiation is in progress
+	 */
+	private boolean isKeepaliveAllowed() {
+		return iProxyStatus == WsConnectionState.STREAM_OPENED && tlsState != TLS_PROCEED && tlsState != TLS_HANDSHAKE
+				&& compressState != COMPRESS_REQUESTED;
+	}
+
+	/**
+	 * Wake up clients blocked by {@link #awaitUpstream()} after data has been written to the XMPP server
+	 */
+	protected void upstreamWritten() {
+		if (upstreamWaiters == 0)
+			return;
+		synchronized (upstreamMonitor) {
+			upstreamMonitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Forward the closing stream tag received from the client to the server.
+	 * If the server is the party that closed the stream the connection to the client and
+	 * to the XMPP server is closed. Otherwise the handler waits for a reply from the server.
+	 */
+	void forwardClosingTagToServer() {
+		writeClosingTag();
+		if (handler.hasServerSentClosingTag()) {
+			//XMPP server sent initial closing tag. This is the reply of the client -> close connection
+			disconnect();
+			handler.closeConnection();
+		}
+		else {
+			//client sent initial closing tag -> wait for reply.
+		}
+	}
+
+	/**
+	 * Close the connection to the XMPP server after both parties have closed the stream
+	 */
+	void disconnect() {
+		iProxyStatus = WsConnectionState.STREAM_CLOSED;
+		close();
+		iProxyStatus = WsConnectionState.DISCONNECTED;
+	}
+
+	/**
+	 * Hand all complete frames received from the XMPP server to the client connection
+	 * @throws XMLSyntaxException if the stream is not well-formed
+	 */
+	protected void processFrames() throws XMLSyntaxException {
+		int event;
+		while (iProxyStatus < WsConnectionState.STREAM_CLOSED && (event = framer.next()) != XMLStreamFramer.NONE) {
+			switch (event) {
+			case XMLStreamFramer.HEADER:
+				logger.info(getServername(true) + " - reading xml header");
+				serverSentHeader = true;
+				iProxyStatus = WsConnectionState.HEADER_READ;
+				break;
+			case XMLStreamFramer.ROOT_OPENED:
+				logger.info(getServername(true) + " - opening stream");
+				Element root = parseOpeningTag(framer.getFrame());
+				iProxyStatus = WsConnectionState.STREAM_OPENED;
+				if (tlsState == TLS_OFFER || compressState == COMPRESS_OFFER) {
+					//forwarded with the stream features unless they offer TLS or compression
+					heldOpeningTag = root;
+					break;
+				}
+				//forward header and root tag
+				handler.forwardOpeningTagToClient(serverSentHeader, root);
+				break;
+			case XMLStreamFramer.STANZA:
+				handleServerStanza();
+				break;
+			case XMLStreamFramer.ROOT_CLOSED:
+				handler.forwardClosingTagToClient();
+				break;
+			default:
+				throw new IllegalStateException("Illegal event (" + event + ") in WebSocket proxy!");
+			}
+		}
+		//stanzas of the burst are written to the client together
+		handler.flushStanzas();
+	}
+
+	/**
+	 * Handle the stanza reported by the framer. Only name and namespace are inspected, the stanza is forwarded as received.
+	 */
+	protected void handleServerStanza() throws XMLSyntaxException {
+		if (tlsState == TLS_OFFER && framer.isFrameName("stream:features")) {
+			if (negotiateTls())
+				return;
+		}
+		else if (compressState == COMPRESS_OFFER && framer.isFrameName("stream:features")) {
+			if (negotiateCompression())
+				return;
+		}
+		else if (framer.isFrameNamespace(XMPPConstants.NS_PROTOCOL_COMPRESS)) {
+			if (compressState == COMPRESS_REQUESTED) {
+				if (framer.isFrameName("compressed")) {
+					compressState = COMPRESS_ACTIVE;
+					startCompression();
+				}
+				else {
+					//continue uncompressed, the client receives the features held back
+					logger.info(getServername(true) + " - XMPP server refused stream compression");
+					compressState = COMPRESS_NONE;
+					handler.forwardOpeningTagToClient(serverSentHeader, heldOpeningTag);
+					handler.sendMessage(addStreamManagement(heldFeatures));
+					heldOpeningTag = null;
+					heldFeatures = null;
+				}
+			}
+			//do not forward stanza to client
+			return;
+		}
+		else if (framer.isFrameNamespace(XMPPConstants.URN_TLS)) {
+			if (tlsState == TLS_PROCEED) {
+				if (framer.isFrameName("proceed")) {
+					tlsState = TLS_HANDSHAKE;
+					startTls();
+				}
+				else
+					fail(new StreamError(XMPPConstants.ERROR_COND_REMOTE_CONNECTION_FAILED, "XMPP server refused STARTTLS", "en"));
+			}
+			//do not forward stanza to client
+			return;
+		}
+		else if (framer.isFrameNamespace(XMPPConstants.URN_SASL)) {
+			if (framer.isFrameName("success")) {
+				if (UpstreamCompression.isEnabled() && compressState == COMPRESS_NONE)
+					compressState = COMPRESS_OFFER;
+				resetStream();
+			}
+		}
+		//features forwarded after TLS or compression have been declined offer stream management as well
+		if (WebSocketXmppGateway.isStreamManagement() && framer.isFrameName("stream:features")) {
+			String features = framer.getFrame();
+			String extended = addStreamManagement(features);
+			if (extended != features) {
+				handler.sendMessage(extended);
+				return;
+			}
+		}
+		//forward stanza to client, resetting the framer keeps the bytes of the current frame
+		handler.sendStanza(framer.getBuffer(), framer.getFrameOffset(), framer.getFrameLength());
+	}
+
+	/**
+	 * Offer stream management to the client in the stream features after authentication, unless the XMPP server offers it already
+	 * @param features the stream features received from the XMPP server
+	 * @return the stream features to be forwarded to the client
+	 */
+	private static String addStreamManagement(String features) {
+		if (!WebSocketXmppGateway.isStreamManagement() || features.indexOf(XMPPConstants.URN_BIND) < 0 || features.indexOf(XMPPConstants.NS_SM) >= 0)
+			return features;
+		int end = features.lastIndexOf("</stream:features>");
+		if (end < 0)
+			return features;
+		return features.substring(0, end) + "<sm xmlns='" + XMPPConstants.NS_SM + "'/>" + features.substring(end);
+	}
+
+	/**
+	 * Request STARTTLS if the stream features received from the XMPP server offer it
+	 * @return true if the features are not forwarded to the client
+	 * @throws XMLSyntaxException if the held opening tag of the XMPP server is malicious
+	 */
+	private boolean negotiateTls() throws XMLSyntaxException {
+		if (framer.getFrame().indexOf(XMPPConstants.URN_TLS) >= 0) {
+			logger.info(getServername(true) + " - starting TLS");
+			write("<starttls xmlns='" + XMPPConstants.URN_TLS + "'/>");
+			tlsState = TLS_PROCEED;
+			return true;
+		}
+		if (UpstreamTls.isRequired()) {
+			logger.info(getServername(true) + " - XMPP server does not offer TLS");
+			fail(new StreamError(XMPPConstants.ERROR_COND_POLICY_VIOLATION, "XMPP server does not offer TLS", "en"));
+			return true;
+		}
+		//continue without TLS, the features follow the held opening tag
+		tlsState = TLS_NONE;
+		handler.forwardOpeningTagToClient(serverSentHeader, heldOpeningTag);
+		heldOpeningTag = null;
+		return false;
+	}
+
+	/**
+	 * Request stream compression if the stream features received from the XMPP server offer zlib
+	 * @return true if the features are not forwarded to the client
+	 * @throws XMLSyntaxException if the held opening tag of the XMPP server is malicious
+	 */
+	private boolean negotiateCompression() throws XMLSyntaxException {
+		String features = framer.getFrame();
+		int offer = features.indexOf(XMPPConstants.NS_FEATURE_COMPRESS);
+		if (offer >= 0 && features.indexOf("<method>zlib</method>", offer) >= 0) {
+			logger.info(getServername(true) + " - starting stream compression");
+			write("<compress xmlns='" + XMPPConstants.NS_PROTOCOL_COMPRESS + "'><method>zlib</method></compress>");
+			heldFeatures = features;
+			compressState = COMPRESS_REQUESTED;
+			return true;
+		}
+		//continue uncompressed, the features follow the held opening tag
+		compressState = COMPRESS_NONE;
+		handler.forwardOpeningTagToClient(serverSentHeader, heldOpeningTag);
+		heldOpeningTag = null;
+		return false;
+	}
+
+	/**
+	 * Restart the stream to the XMPP server after the TLS handshake has been finished.
+	 * The opening tag of the client is sent again, the new opening tag of the XMPP server is forwarded to the client.
+	 * @param tls the secured connection
+	 */
+	protected void secured(TlsChannel tls) {
+		logger.info(getServername(true) + " - secured connection to XMPP server with " + tls.getCipher());
+		tlsState = TLS_SECURED;
+		restartUpstream();
+	}
+
+	/**
+	 * Restart the stream to the XMPP server after stream compression has been started.
+	 * @param zlib the compressed connection
+	 */
+	protected void compressed(ZlibChannel zlib) {
+		compression = zlib;
+		heldFeatures = null;
+		restartUpstream();
+	}
+
+	/**
+	 * Log the compression statistics of the session once, if the stream has been compressed
+	 */
+	protected void logCompression() {
+		ZlibChannel zlib = compression;
+		compression = null;
+		if (zlib != null)
+			logger.info(getServername(true) + " - " + zlib.getStatistics());
+	}
+
+	/**
+	 * Send the opening tag of the client again after the transport has changed.
+	 * The next opening tag of the XMPP server is forwarded to the client.
+	 */
+	private void restartUpstream() {
+		heldOpeningTag = null;
+		framer.reset();
+		serverSentHeader = false;
+		iProxyStatus = WsConnectionState.CONNECTED;
+		write(openingTag);
+	}
+
+	/**
+	 * Check if data for the XMPP server has to be held back since the TLS handshake is in progress
+	 * @return true if the XMPP server has agreed to STARTTLS and the handshake has not been finished yet
+	 */
+	protected boolean isSecuring() {
+		return tlsState == TLS_HANDSHAKE;
+	}
+
+	/**
+	 * Reset the stream after starting TLS encryption and SASL authentication.
+	 * Reset the framer and the transport
+	 */
+	protected void resetStream() {
+		//reset connection state in client connection
+		handler.resetStream();
+		framer.reset();
+		serverSentHeader = false;
+		resetParser();
+		//reset connection state
+		iProxyStatus = WsConnectionState.CONNECTED;
+	}
+
+	/**
+	 * Report a failed connect to the client
+	 * @param streamError the stream error to be sent to the client
+	 */
+	protected void connectFailed(StreamError streamError) {
+		iProxyStatus = WsConnectionState.DISCONNECTED;
+		releaseTarget();
+		try {
+			handler.handleStreamError(streamError);
+		} catch (IllegalStateException e) {
+			//stream to the client has already been closed
+		}
+		handler.forwardClosingTagToClient();
+	}
+
+	/**
+	 * Record the result of the connect at the target and in the metrics
+	 * @param success true if the connection has been established
+	 */
+	protected void recordConnect(boolean success) {
+		if (success) {
+			target.connectSucceeded();
+			GatewayMetrics.connectSucceeded(System.currentTimeMillis() - connectStart);
+		}
+		else {
+			target.connectFailed();
+			GatewayMetrics.connectFailed();
+		}
+	}
+
+	/**
+	 * Record that the session no longer uses the XMPP server. Only the first call is counted.
+	 */
+	protected void releaseTarget() {
+		if (released.compareAndSet(false, true)) {
+			target.release();
+			//clients waiting for the XMPP server to take data give up
+			upstreamWritten();
+		}
+	}
+
+	/**
+	 * Serialize the opening stream tag to be sent to the XMPP server
+	 * @param sendXmlHeader true if an XML header should be prepended
+	 * @param root the opening stream tag received from the client
+	 * @return the serialized opening stream tag
+	 * @throws XMLSyntaxException if the passed stream element is malicious
+	 */
+	protected static String serializeOpeningTag(boolean sendXmlHeader, Element root) throws XMLSyntaxException {
+		StringBuilder xml = new StringBuilder();
+		if (sendXmlHeader)
+			xml.append("<?xml version=\"1.0\"?>");
+		xml.append("<stream:stream");
+		for (Enumeration<String> e = root.getAttributeNames(); e.hasMoreElements(); ) {
+			String attribute = e.nextElement();
+			String value = root.getAttribute(attribute).replaceAll("&", "&amp;").replaceAll("\"", "&quot;");
+			xml.append(' ').append(attribute).append("=\"").append(value).append('"');
+		}
+		xml.append('>');
+		return xml.toString();
+	}
+
+	/**
+	 * Build the opening stream element from the serialized opening stream tag
+	 * @param openingTag the opening stream tag as received from the XMPP server
+	 * @return the opening stream element
+	 * @throws XMLSyntaxException if the opening stream tag is malicious
+	 */
+	protected static Element parseOpeningTag(String openingTag) throws XMLSyntaxException {
+		int nameEnd = 1;
+		while (nameEnd < openingTag.length() && " \t\r\n/>".indexOf(openingTag.charAt(nameEnd)) < 0)
+			nameEnd++;
+		String tagName = openingTag.substring(1, nameEnd);
+		return new Element(openingTag + "</" + tagName + ">", false); //append closing tag to enable parsing
+	}
+
+	/**
+	 * Get the server name of the XMPP server
+	 * @param printDedicatedClient if true, the hostname of the dedicated client is printed in brackets after the XMPP server hostname
+	 * @return the server name of the XMPP server
+	 */
+	public String getServername(boolean printDedicatedClient) {
+		String servername =  port > 0 ? hostname + ":" + port : hostname;
+		if(printDedicatedClient)
+			servername += " (" + handler.getRemoteHost() + ")";
+		return servername;
+	}
+
+}
@@ -28,6 +28,7 @@ public class StreamError {
 	private String message;
 	private String language;
 	private String appContent;
+	private String conditionContent;
 	
 	/**
 	 * Creates a new stream error
@@ -61,6 +62,16 @@ public class StreamError {
 		this.appContent = appContent;
 	}
 
+	/**
+	 * Creates a new stream error whose condition element carries character data, e.g. the host of see-other-host
+	 * @param code the error code according to {@link XMPPConstants}
+	 * @param conditionContent the character data of the condition element
+	 */
+	public StreamError(int code, String conditionContent) {
+		this.code = code;
+		this.conditionContent = conditionContent;
+	}
+
 	/**
 	 * Get the error code
 	 * @return The error code according to {@link XMPPConstants}
@@ -93,6 +104,14 @@ public class StreamError {
 		return appContent;
 	}
 	
+	/**
+	 * Get the character data of the condition element
+	 * @return The character data if set, otherwise null
+	 */
+	public String getConditionContent() {
+		return conditionContent;
+	}
+	
 	/**
 	 * 
 	 * @return true if the message has been set
@@ -117,4 +136,12 @@ public class StreamError {
 		return (appContent != null);
 	}
 
+	/**
+	 * 
+	 * @return true if the condition element carries character data
+	 */
+	public boolean hasConditionContent() {
+		return (conditionContent != null);
+	}
+
 }
@@ -0,0 +1,505 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.rwth_aachen.dbis.wsxmppgateway.WebSocketXmppGateway;
+import de.rwth_aachen.dbis.wsxmppgateway.cluster.Cluster;
+import de.rwth_aachen.dbis.wsxmppgateway.connection.PerMessageDeflateExtension;
+import de.rwth_aachen.dbis.wsxmppgateway.connection.WsConnectionState;
+import de.rwth_aachen.dbis.wsxmppgateway.connection.WsXMPPConnectionHandler;
+import de.rwth_aachen.dbis.wsxmppgateway.threading.ThreadingModel;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.ConnectionPool;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.DnsResolver;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.Target;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamCompression;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamEngine;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamTls;
+
+/**
+ * Registry of the runtime metrics of the gateway. Events are recorded by static methods that only update counters,
+ * the metrics are published as MXBean and as text by the {@link MetricsHandler}.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class GatewayMetrics implements GatewayMetricsMXBean {
+
+	public static final String OBJECT_NAME = "de.rwth_aachen.dbis.wsxmppgateway:type=GatewayMetrics";
+
+	//states counted as open sessions, the state before the WebSocket handshake is not counted
+	private static final int[] STATES = {WsConnectionState.HANDSHAKE_COMPLETE, WsConnectionState.HEADER_READ,
+		WsConnectionState.STREAM_OPENED, WsConnectionState.STREAM_CLOSED};
+	private static final String[] STATE_NAMES = {"handshake_complete", "header_read", "stream_opened", "stream_closed"};
+	//upper bounds of the connect latency buckets in ms
+	private static final long[] LATENCY_BUCKETS = {1, 5, 10, 50, 100, 500, 1000, 5000, Long.MAX_VALUE};
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(GatewayMetrics.class);
+
+	private static final AtomicLongArray sessionsByState = new AtomicLongArray(STATES.length);
+	private static final AtomicLong sessionsOpened = new AtomicLong(0);
+	private static final AtomicLong sessionsClosed = new AtomicLong(0);
+	private static final AtomicLong stanzasFromClients = new AtomicLong(0);
+	private static final AtomicLong stanzasToClients = new AtomicLong(0);
+	private static final AtomicLong bytesToServers = new AtomicLong(0);
+	private static final AtomicLong bytesFromServers = new AtomicLong(0);
+	private static final AtomicLong bytesToClients = new AtomicLong(0);
+	private static final AtomicLong connects = new AtomicLong(0);
+	private static final AtomicLong connectFailures = new AtomicLong(0);
+	private static final AtomicLong connectLatencyTotal = new AtomicLong(0);
+	private static final AtomicLong connectLatencyMax = new AtomicLong(0);
+	private static final AtomicLongArray connectLatencyBuckets = new AtomicLongArray(LATENCY_BUCKETS.length);
+	private static final AtomicLong backpressureToClients = new AtomicLong(0);
+	private static final AtomicLong backpressureToServers = new AtomicLong(0);
+	private static final AtomicLong sessionsDetached = new AtomicLong(0);
+	private static final AtomicLong sessionsResumed = new AtomicLong(0);
+	private static final AtomicLong sessionsExpired = new AtomicLong(0);
+	private static final AtomicLong resumeFailures = new AtomicLong(0);
+	private static final AtomicLong clientPings = new AtomicLong(0);
+	private static final AtomicLong clientsUnresponsive = new AtomicLong(0);
+	private static final AtomicLong handshakeTimeouts = new AtomicLong(0);
+	private static final AtomicLong clientWriteTimeouts = new AtomicLong(0);
+	private static final AtomicLong upstreamKeepalives = new AtomicLong(0);
+	private static final ConcurrentMap<String, AtomicLong> streamErrors = new ConcurrentHashMap<String, AtomicLong>();
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * Register the metrics at the platform MBean server
+	 */
+	public static void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new GatewayMetrics(), new ObjectName(OBJECT_NAME));
+		} catch (Exception e) {
+			logger.warn("Cannot register metrics MBean", e);
+		}
+	}
+
+	//******************** Recording ********************//
+
+	/**
+	 * Record the change of the connection state of a session
+	 * @param previous the previous state according to the constants in WsConnectionState
+	 * @param state the new state
+	 */
+	public static void sessionStateChanged(int previous, int state) {
+		int from = indexOf(previous);
+		int to = indexOf(state);
+		if (from >= 0)
+			sessionsByState.decrementAndGet(from);
+		if (to >= 0)
+			sessionsByState.incrementAndGet(to);
+		if (from < 0 && to >= 0)
+			sessionsOpened.incrementAndGet();
+		else if (from >= 0 && to < 0)
+			sessionsClosed.incrementAndGet();
+	}
+
+	/**
+	 * Record a stanza received from a client
+	 */
+	public static void stanzaFromClient() {
+		stanzasFromClients.incrementAndGet();
+	}
+
+	/**
+	 * Record a stanza sent to a client
+	 * @param bytes the length of the stanza in bytes
+	 */
+	public static void stanzaToClient(int bytes) {
+		stanzasToClients.incrementAndGet();
+		bytesToClients.addAndGet(bytes);
+	}
+
+	/**
+	 * Record data queued for an XMPP server
+	 * @param bytes the length of the data in bytes
+	 */
+	public static void bytesToServer(int bytes) {
+		bytesToServers.addAndGet(bytes);
+	}
+
+	/**
+	 * Record data read from an XMPP server
+	 * @param bytes the length of the data in bytes
+	 */
+	public static void bytesFromServer(int bytes) {
+		bytesFromServers.addAndGet(bytes);
+	}
+
+	/**
+	 * Record a successful connect to an XMPP server
+	 * @param latency the time from the start of the connect until the connection has been established in ms
+	 */
+	public static void connectSucceeded(long latency) {
+		connects.incrementAndGet();
+		connectLatencyTotal.addAndGet(latency);
+		long max;
+		while (latency > (max = connectLatencyMax.get()) && !connectLatencyMax.compareAndSet(max, latency));
+		int bucket = 0;
+		while (latency > LATENCY_BUCKETS[bucket])
+			bucket++;
+		connectLatencyBuckets.incrementAndGet(bucket);
+	}
+
+	/**
+	 * Record a failed or timed out connect to an XMPP server
+	 */
+	public static void connectFailed() {
+		connectFailures.incrementAndGet();
+	}
+
+	/**
+	 * Record that reading from an XMPP server has been paused because the client does not take data
+	 */
+	public static void backpressureToClient() {
+		backpressureToClients.incrementAndGet();
+	}
+
+	/**
+	 * Record that a client has been blocked because the XMPP server does not take data
+	 */
+	public static void backpressureToServer() {
+		backpressureToServers.incrementAndGet();
+	}
+
+	/**
+	 * Record that the connection of a client has dropped and its session is kept for a resumption
+	 */
+	public static void sessionDetached() {
+		sessionsDetached.incrementAndGet();
+	}
+
+	/**
+	 * Record that a client has resumed its session
+	 */
+	public static void sessionResumed() {
+		sessionsResumed.incrementAndGet();
+	}
+
+	/**
+	 * Record that a session kept for a resumption has been closed
+	 */
+	public static void sessionExpired() {
+		sessionsExpired.incrementAndGet();
+	}
+
+	/**
+	 * Record that a client has tried to resume a session that is not kept
+	 */
+	public static void sessionResumeFailed() {
+		resumeFailures.incrementAndGet();
+	}
+
+	/**
+	 * Record that a silent client has been sent a WebSocket ping
+	 */
+	public static void clientPinged() {
+		clientPings.incrementAndGet();
+	}
+
+	/**
+	 * Record that the connection of a client has been dropped since it did not answer a ping
+	 */
+	public static void clientUnresponsive() {
+		clientsUnresponsive.incrementAndGet();
+	}
+
+	/**
+	 * Record that the connection of a client has been dropped since a write to it has blocked for too long
+	 */
+	public static void clientWriteTimedOut() {
+		clientWriteTimeouts.incrementAndGet();
+	}
+
+	/**
+	 * Record that a client has been disconnected since it did not open the stream in time
+	 */
+	public static void handshakeTimedOut() {
+		handshakeTimeouts.incrementAndGet();
+	}
+
+	/**
+	 * Record that a whitespace keepalive has been sent to an XMPP server
+	 */
+	public static void upstreamKeepalive() {
+		upstreamKeepalives.incrementAndGet();
+	}
+
+	/**
+	 * Record a stream error sent to a client
+	 * @param condition the name of the error condition
+	 */
+	public static void streamError(String condition) {
+		AtomicLong count = streamErrors.get(condition);
+		if (count == null) {
+			AtomicLong created = new AtomicLong(0);
+			count = streamErrors.putIfAbsent(condition, created);
+			if (count == null)
+				count = created;
+		}
+		count.incrementAndGet();
+	}
+
+	private static int indexOf(int state) {
+		for (int i = 0; i < STATES.length; i++) {
+			if (STATES[i] == state)
+				return i;
+		}
+		return -1;
+	}
+
+	//******************** Publishing ********************//
+
+	/**
+	 * Format all metrics as text, one "name{label} value" line per metric
+	 * @return the metrics as text
+	 */
+	public static String format() {
+		GatewayMetrics metrics = new GatewayMetrics();
+		StringBuilder text = new StringBuilder();
+		line(text, "wxg_sessions", null, metrics.getSessions());
+		for (int i = 0; i < STATES.length; i++)
+			line(text, "wxg_sessions", "state=\"" + STATE_NAMES[i] + "\"", sessionsByState.get(i));
+		for (Map.Entry<String, Long> entry : metrics.getSessionsByTarget().entrySet())
+			line(text, "wxg_sessions", "target=\"" + entry.getKey() + "\"", entry.getValue());
+		line(text, "wxg_sessions_opened_total", null, metrics.getSessionsOpened());
+		line(text, "wxg_sessions_closed_total", null, metrics.getSessionsClosed());
+		line(text, "wxg_stanzas_total", "direction=\"client_to_server\"", metrics.getStanzasFromClients());
+		line(text, "wxg_stanzas_total", "direction=\"server_to_client\"", metrics.getStanzasToClients());
+		line(text, "wxg_bytes_total", "direction=\"client_to_server\"", metrics.getBytesToServers());
+		line(text, "wxg_bytes_total", "direction=\"server_to_client\"", metrics.getBytesFromServers());
+		line(text, "wxg_client_stanza_bytes_total", null, metrics.getBytesToClients());
+		line(text, "wxg_connects_total", null, metrics.getConnects());
+		line(text, "wxg_connect_failures_total", null, metrics.getConnectFailures());
+		line(text, "wxg_connects_pending", null, metrics.getPendingConnects());
+		long cumulative = 0;
+		for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+			cumulative += connectLatencyBuckets.get(i);
+			String bound = LATENCY_BUCKETS[i] == Long.MAX_VALUE ? "+Inf" : String.valueOf(LATENCY_BUCKETS[i]);
+			line(text, "wxg_connect_latency_ms_bucket", "le=\"" + bound + "\"", cumulative);
+		}
+		line(text, "wxg_connect_latency_ms_sum", null, connectLatencyTotal.get());
+		line(text, "wxg_connect_latency_ms_max", null, metrics.getConnectLatencyMax());
+		for (Map.Entry<String, Long> entry : metrics.getStreamErrors().entrySet())
+			line(text, "wxg_stream_errors_total", "condition=\"" + entry.getKey() + "\"", entry.getValue());
+		line(text, "wxg_backpressure_total", "direction=\"client_to_server\"", metrics.getBackpressureToServers());
+		line(text, "wxg_backpressure_total", "direction=\"server_to_client\"", metrics.getBackpressureToClients());
+		line(text, "wxg_stream_resumption_total", "event=\"detached\"", sessionsDetached.get());
+		line(text, "wxg_stream_resumption_total", "event=\"resumed\"", sessionsResumed.get());
+		line(text, "wxg_stream_resumption_total", "event=\"expired\"", sessionsExpired.get());
+		line(text, "wxg_stream_resumption_total", "event=\"failed\"", resumeFailures.get());
+		line(text, "wxg_liveness_total", "event=\"client_ping\"", clientPings.get());
+		line(text, "wxg_liveness_total", "event=\"client_unresponsive\"", clientsUnresponsive.get());
+		line(text, "wxg_liveness_total", "event=\"handshake_timeout\"", handshakeTimeouts.get());
+		line(text, "wxg_liveness_total", "event=\"client_write_timeout\"", clientWriteTimeouts.get());
+		line(text, "wxg_liveness_total", "event=\"upstream_keepalive\"", upstreamKeepalives.get());
+		line(text, "wxg_deadlines_pending", null, UpstreamEngine.getPendingDeadlines());
+		line(text, "wxg_cluster_members", "state=\"alive\"", Cluster.getAliveMembers());
+		line(text, "wxg_cluster_members", "state=\"down\"", Math.max(0, Cluster.getMembers() - Cluster.getAliveMembers()));
+		line(text, "wxg_cluster_redirects_total", "reason=\"placement\"", Cluster.getPlacementRedirects());
+		line(text, "wxg_cluster_redirects_total", "reason=\"overload\"", Cluster.getOverloadRedirects());
+		line(text, "wxg_cluster_redirects_total", "reason=\"rebalance\"", Cluster.getSessionsMoved());
+		line(text, "wxg_cluster_gossip_total", "direction=\"sent\"", Cluster.getGossipSent());
+		line(text, "wxg_cluster_gossip_total", "direction=\"received\"", Cluster.getGossipReceived());
+		line(text, "wxg_cluster_gossip_total", "direction=\"rejected\"", Cluster.getGossipRejected());
+		line(text, "wxg_pool_hits_total", null, ConnectionPool.getHits());
+		line(text, "wxg_pool_misses_total", null, ConnectionPool.getMisses());
+		line(text, "wxg_pool_idle_connections", null, ConnectionPool.getIdleConnections());
+		line(text, "wxg_upstream_tls_handshakes_total", "type=\"full\"", UpstreamTls.getFullHandshakes());
+		line(text, "wxg_upstream_tls_handshakes_total", "type=\"resumed\"", UpstreamTls.getResumedHandshakes());
+		line(text, "wxg_upstream_tls_handshakes_total", "type=\"failed\"", UpstreamTls.getFailedHandshakes());
+		line(text, "wxg_upstream_tls_cached_sessions", null, UpstreamTls.getCachedSessions());
+		line(text, "wxg_upstream_compression_bytes_total", "direction=\"to_server\",stage=\"raw\"", UpstreamCompression.getBytesDeflated());
+		line(text, "wxg_upstream_compression_bytes_total", "direction=\"to_server\",stage=\"compressed\"", UpstreamCompression.getBytesDeflatedTo());
+		line(text, "wxg_upstream_compression_bytes_total", "direction=\"from_server\",stage=\"raw\"", UpstreamCompression.getBytesInflated());
+		line(text, "wxg_upstream_compression_bytes_total", "direction=\"from_server\",stage=\"compressed\"", UpstreamCompression.getBytesInflatedFrom());
+		line(text, "wxg_upstream_compression_cpu_ms_total", "direction=\"to_server\"", UpstreamCompression.getDeflateTime());
+		line(text, "wxg_upstream_compression_cpu_ms_total", "direction=\"from_server\"", UpstreamCompression.getInflateTime());
+		line(text, "wxg_client_compression_sessions_total", null, PerMessageDeflateExtension.getSessionsNegotiated());
+		line(text, "wxg_client_compression_bytes_total", "direction=\"to_client\",stage=\"raw\"", PerMessageDeflateExtension.getBytesDeflated());
+		line(text, "wxg_client_compression_bytes_total", "direction=\"to_client\",stage=\"compressed\"", PerMessageDeflateExtension.getBytesDeflatedTo());
+		line(text, "wxg_client_compression_bytes_total", "direction=\"from_client\",stage=\"raw\"", PerMessageDeflateExtension.getBytesInflated());
+		line(text, "wxg_client_compression_bytes_total", "direction=\"from_client\",stage=\"compressed\"", PerMessageDeflateExtension.getBytesInflatedFrom());
+		line(text, "wxg_client_compression_cpu_ms_total", "direction=\"to_client\"", PerMessageDeflateExtension.getDeflateTime());
+		line(text, "wxg_client_compression_cpu_ms_total", "direction=\"from_client\"", PerMessageDeflateExtension.getInflateTime());
+		line(text, "wxg_client_compression_skipped_total", null, PerMessageDeflateExtension.getMessagesSkipped());
+		line(text, "wxg_wire_trace_sessions_total", null, WireTrace.getSessionsTraced());
+		line(text, "wxg_wire_trace_records_total", "result=\"written\"", WireTrace.getRecordsWritten());
+		line(text, "wxg_wire_trace_records_total", "result=\"dropped\"", WireTrace.getRecordsDropped());
+		line(text, "wxg_dns_queries_total", null, DnsResolver.getQueries());
+		line(text, "wxg_dns_cache_hits_total", null, DnsResolver.getCacheHits());
+		line(text, "wxg_dns_coalesced_total", null, DnsResolver.getCoalesced());
+		line(text, "wxg_listener_shards", null, ThreadingModel.getListenerShards());
+		line(text, "wxg_selector_threads", null, ThreadingModel.getSelectorThreads());
+		line(text, "wxg_selector_busy_ms_total", null, ThreadingModel.getSelectorBusyTime());
+		line(text, "wxg_worker_threads", "state=\"busy\"", ThreadingModel.getWorkerThreads() - ThreadingModel.getIdleWorkerThreads());
+		line(text, "wxg_worker_threads", "state=\"idle\"", ThreadingModel.getIdleWorkerThreads());
+		line(text, "wxg_worker_threads_max", null, ThreadingModel.getWorkerMaxThreads());
+		line(text, "wxg_worker_queue_depth", null, ThreadingModel.getWorkerQueueSize());
+		line(text, "wxg_worker_job_ms_total", "time=\"wall\"", ThreadingModel.getWorkerTime());
+		line(text, "wxg_worker_job_ms_total", "time=\"cpu\"", ThreadingModel.getWorkerCpuTime());
+		line(text, "wxg_threads", null, metrics.getThreadCount());
+		line(text, "wxg_threads_daemon", null, metrics.getDaemonThreadCount());
+		line(text, "wxg_threads_peak", null, metrics.getPeakThreadCount());
+		return text.toString();
+	}
+
+	private static void line(StringBuilder text, String name, String labels, long value) {
+		text.append(name);
+		if (labels != null)
+			text.append('{').append(labels).append('}');
+		text.append(' ').append(value).append('\n');
+	}
+
+	//******************** Methods from GatewayMetricsMXBean ********************//
+
+	@Override
+	public long getSessions() {
+		long sessions = 0;
+		for (int i = 0; i < STATES.length; i++)
+			sessions += sessionsByState.get(i);
+		return sessions;
+	}
+
+	@Override
+	public Map<String, Long> getSessionsByState() {
+		Map<String, Long> sessions = new TreeMap<String, Long>();
+		for (int i = 0; i < STATES.length; i++)
+			sessions.put(STATE_NAMES[i], sessionsByState.get(i));
+		return sessions;
+	}
+
+	@Override
+	public Map<String, Long> getSessionsByTarget() {
+		Map<String, Long> sessions = new TreeMap<String, Long>();
+		for (WsXMPPConnectionHandler handler : WebSocketXmppGateway.getSessions().getSessions()) {
+			Target target = handler.getTarget();
+			if (target != null) {
+				Long count = sessions.get(target.getKey());
+				sessions.put(target.getKey(), count == null ? 1 : count + 1);
+			}
+		}
+		return sessions;
+	}
+
+	@Override
+	public long getSessionsOpened() {
+		return sessionsOpened.get();
+	}
+
+	@Override
+	public long getSessionsClosed() {
+		return sessionsClosed.get();
+	}
+
+	@Override
+	public long getStanzasFromClients() {
+		return stanzasFromClients.get();
+	}
+
+	@Override
+	public long getStanzasToClients() {
+		return stanzasToClients.get();
+	}
+
+	@Override
+	public long getBytesToServers() {
+		return bytesToServers.get();
+	}
+
+	@Override
+	public long getBytesFromServers() {
+		return bytesFromServers.get();
+	}
+
+	@Override
+	public long getBytesToClients() {
+		return bytesToClients.get();
+	}
+
+	@Override
+	public long getConnects() {
+		return connects.get();
+	}
+
+	@Override
+	public long getConnectFailures() {
+		return connectFailures.get();
+	}
+
+	@Override
+	public double getConnectLatencyAverage() {
+		long count = connects.get();
+		return count == 0 ? 0 : (double)connectLatencyTotal.get() / count;
+	}
+
+	@Override
+	public long getConnectLatencyMax() {
+		return connectLatencyMax.get();
+	}
+
+	@Override
+	public int getPendingConnects() {
+		return UpstreamEngine.getPendingConnects();
+	}
+
+	@Override
+	public Map<String, Long> getStreamErrors() {
+		Map<String, Long> errors = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : streamErrors.entrySet())
+			errors.put(entry.getKey(), entry.getValue().get());
+		return errors;
+	}
+
+	@Override
+	public long getBackpressureToClients() {
+		return backpressureToClients.get();
+	}
+
+	@Override
+	public long getBackpressureToServers() {
+		return backpressureToServers.get();
+	}
+
+	@Override
+	public int getThreadCount() {
+		return threads.getThreadCount();
+	}
+
+	@Override
+	public int getDaemonThreadCount() {
+		return threads.getDaemonThreadCount();
+	}
+
+	@Override
+	public int getPeakThreadCount() {
+		return threads.getPeakThreadCount();
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of the runtime metrics of the gateway
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public interface GatewayMetricsMXBean {
+
+	/**
+	 * @return the number of open sessions
+	 */
+	long getSessions();
+
+	/**
+	 * @return the number of open sessions by connection state
+	 */
+	Map<String, Long> getSessionsByState();
+
+	/**
+	 * @return the number of registered sessions by the XMPP server they are forwarded to
+	 */
+	Map<String, Long> getSessionsByTarget();
+
+	/**
+	 * @return the number of sessions opened since the start
+	 */
+	long getSessionsOpened();
+
+	/**
+	 * @return the number of sessions closed since the start
+	 */
+	long getSessionsClosed();
+
+	/**
+	 * @return the number of stanzas received from clients
+	 */
+	long getStanzasFromClients();
+
+	/**
+	 * @return the number of stanzas sent to clients
+	 */
+	long getStanzasToClients();
+
+	/**
+	 * @return the number of bytes written to XMPP servers
+	 */
+	long getBytesToServers();
+
+	/**
+	 * @return the number of bytes read from XMPP servers
+	 */
+	long getBytesFromServers();
+
+	/**
+	 * @return the number of stanza bytes sent to clients
+	 */
+	long getBytesToClients();
+
+	/**
+	 * @return the number of successful connects to XMPP servers
+	 */
+	long getConnects();
+
+	/**
+	 * @return the number of failed or timed out connects to XMPP servers
+	 */
+	long getConnectFailures();
+
+	/**
+	 * @return the average time of successful connects in ms
+	 */
+	double getConnectLatencyAverage();
+
+	/**
+	 * @return the longest time of a successful connect in ms
+	 */
+	long getConnectLatencyMax();
+
+	/**
+	 * @return the number of connects that are pending
+	 */
+	int getPendingConnects();
+
+	/**
+	 * @return the number of stream errors sent to clients by condition
+	 */
+	Map<String, Long> getStreamErrors();
+
+	/**
+	 * @return the number of times reading from an XMPP server has been paused for a slow client
+	 */
+	long getBackpressureToClients();
+
+	/**
+	 * @return the number of times a client has been blocked for a slow XMPP server
+	 */
+	long getBackpressureToServers();
+
+	/**
+	 * @return the number of live threads
+	 */
+	int getThreadCount();
+
+	/**
+	 * @return the number of live daemon threads
+	 */
+	int getDaemonThreadCount();
+
+	/**
+	 * @return the peak number of live threads
+	 */
+	int getPeakThreadCount();
+}
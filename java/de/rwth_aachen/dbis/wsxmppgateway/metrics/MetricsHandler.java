@@ -0,0 +1,62 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.metrics;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+/**
+ * Jetty handler that serves the metrics of the gateway as plain text at a fixed path.
+ * All other requests are passed to the wrapped handler.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class MetricsHandler extends HandlerWrapper {
+
+	private final String path;
+
+	/**
+	 * Creates a new metrics handler
+	 * @param path the path the metrics are served at, e.g. "/metrics"
+	 */
+	public MetricsHandler(String path) {
+		this.path = path;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException {
+		if (!path.equals(target)) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+		baseRequest.setHandled(true);
+		if (!"GET".equals(request.getMethod())) {
+			response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("text/plain; charset=utf-8");
+		response.setHeader("Cache-Control", "no-cache");
+		response.getWriter().write(GatewayMetrics.format());
+	}
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.metrics;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wire trace of the messages exchanged with selected clients. Sessions are traced if the client address is listed
+ * or if they are picked by the sampling, all other sessions check a single flag. Traced messages are put into a
+ * lock-free ring buffer and written to the trace file by a background thread, so the I/O threads never wait for the disk.
+ * Records are dropped while the ring buffer is full.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class WireTrace implements Runnable {
+
+	public static final String FROM_CLIENT = "recv"; //message received from the client
+	public static final String TO_CLIENT = "send"; //message sent to the client
+
+	private static final int IDLE_WAIT = 10; //ms the writer sleeps while the ring buffer is empty
+	private static final int STOP_WAIT = 1000; //ms the remaining records are waited for on stop
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(WireTrace.class);
+
+	private static volatile WireTrace instance = null;
+
+	private static final AtomicLong sessionsTraced = new AtomicLong(0);
+	private static final AtomicLong recordsWritten = new AtomicLong(0);
+	private static final AtomicLong recordsDropped = new AtomicLong(0);
+
+	/**
+	 * Slot of the ring buffer. A slot is free for position p if its sequence is p,
+	 * it holds the record of position p if its sequence is p + 1.
+	 */
+	private static final class Record {
+		volatile long sequence;
+		long time;
+		long session;
+		String address;
+		String direction;
+		String text; //the message if it has been passed as string
+		final byte[] data; //the UTF-8 encoded message if it has been passed as bytes
+		int length; //bytes of the message copied into data
+		int total; //length of the message before truncation
+
+		Record(long sequence, int maxPayload) {
+			this.sequence = sequence;
+			this.data = new byte[maxPayload];
+		}
+	}
+
+	private final Record[] ring;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong(0); //next position to be claimed by a producer
+	private long head = 0; //next position to be written, only accessed by the writer thread
+	private final int sampling;
+	private final Set<String> clients;
+	private final int maxPayload;
+	private final AtomicLong sessions = new AtomicLong(0);
+	private final OutputStream out;
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	private WireTrace(int sampling, Set<String> clients, String file, int capacity, int maxPayload) throws IOException {
+		this.sampling = sampling;
+		this.clients = clients;
+		this.maxPayload = maxPayload;
+		this.ring = new Record[capacity];
+		this.mask = capacity - 1;
+		for (int i = 0; i < capacity; i++)
+			ring[i] = new Record(i, maxPayload);
+		File parent = new File(file).getAbsoluteFile().getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+		this.out = new BufferedOutputStream(new FileOutputStream(file, true), 64*1024);
+		this.writer = new Thread(this, "wxg-wire-trace");
+		writer.setDaemon(true);
+	}
+
+	/**
+	 * Start tracing sessions, nothing is traced unless sessions are sampled or client addresses are listed
+	 * @param sampling every n-th session is traced, 0 to trace listed clients only
+	 * @param clients comma separated addresses of clients whose sessions are always traced
+	 * @param file the file the trace is appended to
+	 * @param capacity the number of records the ring buffer holds, a power of two
+	 * @param maxPayload the number of bytes of a message that are traced, longer messages are truncated
+	 * @throws IOException if the trace file cannot be opened
+	 */
+	public static synchronized void start(int sampling, String clients, String file, int capacity, int maxPayload) throws IOException {
+		Set<String> addresses = new HashSet<String>();
+		for (String address : clients.split(",")) {
+			if (address.trim().length() > 0)
+				addresses.add(address.trim());
+		}
+		if (instance != null || (sampling == 0 && addresses.isEmpty()))
+			return;
+		WireTrace trace = new WireTrace(sampling, addresses, file, capacity, maxPayload);
+		trace.writer.start();
+		instance = trace;
+		logger.info("Tracing " + (sampling > 0 ? "every " + sampling + ". session" : "no sampled sessions") + " and sessions of "
+				+ addresses.size() + " clients to " + file);
+	}
+
+	/**
+	 * Stop tracing and write the remaining records
+	 */
+	public static synchronized void stop() {
+		WireTrace trace = instance;
+		if (trace == null)
+			return;
+		instance = null;
+		trace.running = false;
+		try {
+			trace.writer.join(STOP_WAIT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Decide whether a new session is traced
+	 * @param address the IP address of the client
+	 * @return true if the messages of the session are to be recorded
+	 */
+	public static boolean select(String address) {
+		WireTrace trace = instance;
+		if (trace == null)
+			return false;
+		boolean selected = trace.clients.contains(address)
+				|| (trace.sampling > 0 && trace.sessions.incrementAndGet() % trace.sampling == 0);
+		if (selected)
+			sessionsTraced.incrementAndGet();
+		return selected;
+	}
+
+	/**
+	 * Record a message of a traced session
+	 * @param session the id of the session
+	 * @param address the IP address of the client
+	 * @param direction {@link #FROM_CLIENT} or {@link #TO_CLIENT}
+	 * @param message the message
+	 */
+	public static void record(long session, String address, String direction, String message) {
+		WireTrace trace = instance;
+		if (trace == null)
+			return;
+		Record record = trace.claim();
+		if (record == null)
+			return;
+		record.text = message;
+		record.total = message.length();
+		trace.publish(record, session, address, direction);
+	}
+
+	/**
+	 * Record a message of a traced session, the bytes are copied
+	 * @param session the id of the session
+	 * @param address the IP address of the client
+	 * @param direction {@link #FROM_CLIENT} or {@link #TO_CLIENT}
+	 * @param data the buffer holding the UTF-8 encoded message
+	 * @param offset the offset of the message in the buffer
+	 * @param length the length of the message in bytes
+	 */
+	public static void record(long session, String address, String direction, byte[] data, int offset, int length) {
+		WireTrace trace = instance;
+		if (trace == null)
+			return;
+		Record record = trace.claim();
+		if (record == null)
+			return;
+		record.length = Math.min(length, trace.maxPayload);
+		System.arraycopy(data, offset, record.data, 0, record.length);
+		record.total = length;
+		trace.publish(record, session, address, direction);
+	}
+
+	/**
+	 * Claim the next free slot of the ring buffer
+	 * @return the slot, null if the ring buffer is full
+	 */
+	private Record claim() {
+		long position = tail.get();
+		while (true) {
+			Record record = ring[(int)(position & mask)];
+			long sequence = record.sequence;
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1))
+					return record;
+				position = tail.get();
+			}
+			else if (sequence < position) {
+				//the writer has not freed the slot yet
+				recordsDropped.incrementAndGet();
+				return null;
+			}
+			else
+				position = tail.get(); //another producer has claimed the slot
+		}
+	}
+
+	private void publish(Record record, long session, String address, String direction) {
+		record.time = System.currentTimeMillis();
+		record.session = session;
+		record.address = address;
+		record.direction = direction;
+		record.sequence = record.sequence + 1; //hand the record over to the writer
+	}
+
+	//******************** Writer thread ********************//
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				if (!writeRecords())
+					Thread.sleep(IDLE_WAIT);
+			}
+			writeRecords();
+		} catch (InterruptedException e) {
+			//stop writing
+		} catch (IOException e) {
+			logger.error("Cannot write wire trace, tracing is stopped", e);
+			instance = null;
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				//nothing left to do
+			}
+		}
+	}
+
+	/**
+	 * Write the published records and flush the file
+	 * @return false if no record has been published
+	 * @throws IOException if the trace file cannot be written
+	 */
+	private boolean writeRecords() throws IOException {
+		boolean written = false;
+		while (true) {
+			Record record = ring[(int)(head & mask)];
+			if (record.sequence != head + 1)
+				break;
+			write(record);
+			record.text = null;
+			record.address = null;
+			record.sequence = head + ring.length; //free the slot for the next round
+			head++;
+			written = true;
+			recordsWritten.incrementAndGet();
+		}
+		if (written)
+			out.flush();
+		return written;
+	}
+
+	private void write(Record record) throws IOException {
+		StringBuilder line = new StringBuilder(64);
+		line.append(dateFormat.format(new Date(record.time))).append(' ').append(record.session).append(' ')
+			.append(record.address).append(' ').append(record.direction).append(' ');
+		if (record.text != null) {
+			line.append(record.text.length() > maxPayload ? record.text.substring(0, maxPayload) : record.text);
+			out.write(line.toString().getBytes("UTF-8"));
+		}
+		else {
+			out.write(line.toString().getBytes("UTF-8"));
+			out.write(record.data, 0, record.length);
+		}
+		if (record.total > maxPayload)
+			out.write(("... (" + record.total + ")").getBytes("UTF-8"));
+		out.write('\n');
+	}
+
+	//******************** Statistics ********************//
+
+	/**
+	 * Get the number of sessions selected for tracing
+	 * @return the number of traced sessions
+	 */
+	public static long getSessionsTraced() {
+		return sessionsTraced.get();
+	}
+
+	/**
+	 * Get the number of records written to the trace file
+	 * @return the number of written records
+	 */
+	public static long getRecordsWritten() {
+		return recordsWritten.get();
+	}
+
+	/**
+	 * Get the number of records dropped since the ring buffer was full
+	 * @return the number of dropped records
+	 */
+	public static long getRecordsDropped() {
+		return recordsDropped.get();
+	}
+}
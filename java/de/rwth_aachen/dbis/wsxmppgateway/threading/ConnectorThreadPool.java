@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.threading;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.server.AbstractConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Thread pool of a single listener. Jetty 8 dispatches its selectors and acceptors to the thread pool of the connector
+ * while the connector starts and keeps them running until it stops. These tasks get a thread of their own, so they
+ * neither occupy nor wait for worker threads, and their CPU time is counted. All other tasks are passed to the worker pool.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+class ConnectorThreadPool implements ThreadPool {
+
+	private final AbstractConnector connector;
+	private final QueuedThreadPool workers;
+	private final String name;
+	private final AtomicInteger loops = new AtomicInteger(0); //running selectors and acceptors
+	private final AtomicInteger started = new AtomicInteger(0); //threads started for selectors and acceptors
+
+	/**
+	 * Creates the thread pool of a listener
+	 * @param connector the connector of the listener
+	 * @param workers the pool the connections are handled by
+	 * @param name the prefix of the names of the selector and acceptor threads
+	 */
+	ConnectorThreadPool(AbstractConnector connector, QueuedThreadPool workers, String name) {
+		this.connector = connector;
+		this.workers = workers;
+		this.name = name;
+	}
+
+	@Override
+	public boolean dispatch(final Runnable task) {
+		if (!connector.isStarting())
+			return workers.dispatch(task);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ThreadingModel.loopStarted(Thread.currentThread());
+				loops.incrementAndGet();
+				try {
+					task.run();
+				} finally {
+					loops.decrementAndGet();
+					ThreadingModel.loopFinished(Thread.currentThread());
+				}
+			}
+		}, name + "-" + started.getAndIncrement());
+		thread.setDaemon(workers.isDaemon());
+		thread.start();
+		return true;
+	}
+
+	@Override
+	public void join() throws InterruptedException {
+		workers.join();
+	}
+
+	@Override
+	public int getThreads() {
+		return workers.getThreads() + loops.get();
+	}
+
+	@Override
+	public int getIdleThreads() {
+		return workers.getIdleThreads();
+	}
+
+	@Override
+	public boolean isLowOnThreads() {
+		return workers.isLowOnThreads();
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.threading;
+
+import java.io.IOException;
+
+import org.eclipse.jetty.http.ssl.SslContextFactory;
+import org.eclipse.jetty.server.ssl.SslSelectChannelConnector;
+
+/**
+ * WebSocket listener secured by TLS that may share its port with other listeners via SO_REUSEPORT
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+class ShardedSslConnector extends SslSelectChannelConnector {
+
+	private final boolean reusePort;
+
+	/**
+	 * Creates a listener
+	 * @param sslContextFactory the SSL context of the listener
+	 * @param reusePort true if the port is shared with other listeners
+	 */
+	ShardedSslConnector(SslContextFactory sslContextFactory, boolean reusePort) {
+		super(sslContextFactory);
+		this.reusePort = reusePort;
+	}
+
+	@Override
+	public void open() throws IOException {
+		synchronized (this) {
+			if (_acceptChannel == null)
+				_acceptChannel = ThreadingModel.openChannel(getHost(), getPort(), getReuseAddress(), reusePort, getAcceptQueueSize());
+		}
+	}
+
+	@Override
+	public int getLocalPort() {
+		synchronized (this) {
+			return _acceptChannel == null || !_acceptChannel.isOpen() ? -1 : _acceptChannel.socket().getLocalPort();
+		}
+	}
+}
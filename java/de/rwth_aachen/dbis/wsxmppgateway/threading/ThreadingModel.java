@@ -0,0 +1,281 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.threading;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.http.ssl.SslContextFactory;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Threading model of the Jetty side of the gateway. Each WebSocket port is served by one or more listeners that share
+ * the port via SO_REUSEPORT, so the kernel spreads new connections over them. Every listener runs its own selectors on
+ * dedicated threads. Jetty 8 runs one acceptor per selector. WebSocket messages are handled by a shared
+ * {@link WorkerPool} that can size itself from the time its jobs spend blocked. The threads of the selectors and
+ * acceptors are not taken from the worker pool, their CPU time is counted as the busy time of the selectors.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class ThreadingModel {
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(ThreadingModel.class);
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	//SO_REUSEPORT and NetworkChannel.setOption() of Java 9 and later, null if not supported
+	private static final Object REUSE_PORT;
+	private static final Method SET_OPTION;
+
+	static {
+		Object option = null;
+		Method setOption = null;
+		try {
+			option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+			Class<?> channelClass = Class.forName("java.nio.channels.NetworkChannel");
+			setOption = channelClass.getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class);
+			ServerSocketChannel probe = ServerSocketChannel.open();
+			try {
+				if (!((Set<?>)channelClass.getMethod("supportedOptions").invoke(probe)).contains(option))
+					option = null;
+			} finally {
+				probe.close();
+			}
+		} catch (Exception e) {
+			option = null; //older JVM
+		}
+		REUSE_PORT = option;
+		SET_OPTION = option != null ? setOption : null;
+	}
+
+	private static int shards = 1;
+	private static int selectors = 1;
+	private static WorkerPool workers = null;
+
+	//threads of the selectors and acceptors that are running, and the CPU time of the ones that have finished
+	private static final Set<Thread> loops = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+	private static final AtomicLong finishedLoopNanos = new AtomicLong(0);
+
+	/**
+	 * Set up the listeners and the worker pool. Must be called before connectors are created.
+	 * @param listenerShards the number of listeners per port, 0 for one per available processor if SO_REUSEPORT is supported
+	 * @param listenerSelectors the number of selectors per listener, 0 to share the available processors among the listeners
+	 * @param workerThreads the maximum number of worker threads, 0 to size the pool from the measured blocking
+	 * @param workerThreadsLimit the maximum number of worker threads the pool may be sized to
+	 */
+	public static synchronized void start(int listenerShards, int listenerSelectors, int workerThreads, int workerThreadsLimit) {
+		int processors = Runtime.getRuntime().availableProcessors();
+		shards = listenerShards > 0 ? listenerShards : (REUSE_PORT != null ? processors : 1);
+		if (shards > 1 && REUSE_PORT == null) {
+			logger.warn("SO_REUSEPORT is not supported by the JVM, using a single listener instead of " + shards);
+			shards = 1;
+		}
+		selectors = listenerSelectors > 0 ? listenerSelectors : Math.max(1, processors / shards);
+		try {
+			if (!threads.isThreadCpuTimeEnabled())
+				threads.setThreadCpuTimeEnabled(true);
+		} catch (UnsupportedOperationException e) {
+			//CPU time is not measured, selectors report no busy time and the worker pool is not sized
+		}
+		boolean sized = workerThreads == 0 && threads.isCurrentThreadCpuTimeSupported();
+		workers = new WorkerPool(sized ? 0 : (workerThreads > 0 ? workerThreads : workerThreadsLimit), workerThreadsLimit);
+		logger.info(shards + " listeners per port with " + selectors + " selectors each, " + (sized ? "worker threads sized up to "
+				+ workerThreadsLimit : workers.getMaxThreads() + " worker threads"));
+	}
+
+	/**
+	 * Get the pool that handles the WebSocket connections
+	 * @return the worker pool to be set as the thread pool of the server
+	 */
+	public static QueuedThreadPool getWorkerPool() {
+		return workers;
+	}
+
+	/**
+	 * Create the listeners of a plain WebSocket port
+	 * @param host the host to bind to, null for all interfaces
+	 * @param port the port to bind to
+	 * @return the connectors to be added to the server
+	 */
+	public static List<SelectChannelConnector> createConnectors(String host, int port) {
+		return createConnectors(host, port, null, null);
+	}
+
+	/**
+	 * Create the listeners of a WebSocket port secured by TLS, every listener gets its own SSL context
+	 * @param host the host to bind to, null for all interfaces
+	 * @param port the port to bind to
+	 * @param keyStorePath the path of the keystore
+	 * @param keyStorePassword the password of the keystore
+	 * @return the connectors to be added to the server
+	 */
+	public static List<SelectChannelConnector> createConnectors(String host, int port, String keyStorePath, String keyStorePassword) {
+		List<SelectChannelConnector> connectors = new ArrayList<SelectChannelConnector>();
+		for (int i = 0; i < shards; i++) {
+			SelectChannelConnector connector;
+			if (keyStorePath == null)
+				connector = new ShardedConnector(shards > 1);
+			else {
+				SslContextFactory sslContextFactory = new SslContextFactory();
+				sslContextFactory.setKeyStore(keyStorePath);
+				sslContextFactory.setKeyStorePassword(keyStorePassword);
+				connector = new ShardedSslConnector(sslContextFactory, shards > 1);
+			}
+			connector.setHost(host);
+			connector.setPort(port);
+			connector.setAcceptors(selectors);
+			connector.setThreadPool(new ConnectorThreadPool(connector, workers, "wxg-listener-" + port + "-" + i));
+			connectors.add(connector);
+		}
+		return connectors;
+	}
+
+	/**
+	 * Open the channel of a listener like Jetty does, SO_REUSEPORT is set before the channel is bound
+	 * @param host the host to bind to, null for all interfaces
+	 * @param port the port to bind to
+	 * @param reuseAddress true if SO_REUSEADDR is set
+	 * @param reusePort true if SO_REUSEPORT is set
+	 * @param backlog the length of the accept queue, 0 for the default
+	 * @return the bound channel in blocking mode
+	 * @throws IOException if the channel cannot be bound
+	 */
+	static ServerSocketChannel openChannel(String host, int port, boolean reuseAddress, boolean reusePort, int backlog) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			channel.configureBlocking(true);
+			channel.socket().setReuseAddress(reuseAddress);
+			if (reusePort) {
+				try {
+					SET_OPTION.invoke(channel, REUSE_PORT, Boolean.TRUE);
+				} catch (Exception e) {
+					throw new IOException("Cannot set SO_REUSEPORT: " + e);
+				}
+			}
+			channel.socket().bind(host == null ? new InetSocketAddress(port) : new InetSocketAddress(host, port), backlog);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * Count the CPU time of a thread that runs a selector or an acceptor from now on
+	 * @param thread the current thread
+	 */
+	static void loopStarted(Thread thread) {
+		loops.add(thread);
+	}
+
+	/**
+	 * Stop counting the CPU time of a thread that has run a selector or an acceptor
+	 * @param thread the current thread
+	 */
+	static void loopFinished(Thread thread) {
+		long nanos = threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+		finishedLoopNanos.addAndGet(Math.max(0, nanos));
+		loops.remove(thread);
+	}
+
+	/**
+	 * Get the number of listeners per WebSocket port
+	 * @return the number of listeners
+	 */
+	public static int getListenerShards() {
+		return shards;
+	}
+
+	/**
+	 * Get the number of threads running selectors and acceptors
+	 * @return the number of threads
+	 */
+	public static int getSelectorThreads() {
+		return loops.size();
+	}
+
+	/**
+	 * Get the CPU time the threads of the selectors and acceptors have taken
+	 * @return the time in ms
+	 */
+	public static long getSelectorBusyTime() {
+		long nanos = finishedLoopNanos.get();
+		for (Thread thread : loops)
+			nanos += Math.max(0, threads.getThreadCpuTime(thread.getId()));
+		return nanos / 1000000;
+	}
+
+	/**
+	 * Get the number of worker threads
+	 * @return the number of started threads
+	 */
+	public static int getWorkerThreads() {
+		return workers != null ? workers.getThreads() : 0;
+	}
+
+	/**
+	 * Get the number of idle worker threads
+	 * @return the number of threads waiting for a job
+	 */
+	public static int getIdleWorkerThreads() {
+		return workers != null ? workers.getIdleThreads() : 0;
+	}
+
+	/**
+	 * Get the number of worker threads the pool may start
+	 * @return the current maximum
+	 */
+	public static int getWorkerMaxThreads() {
+		return workers != null ? workers.getMaxThreads() : 0;
+	}
+
+	/**
+	 * Get the number of jobs waiting for a worker thread
+	 * @return the length of the queue
+	 */
+	public static int getWorkerQueueSize() {
+		return workers != null ? workers.getQueueSize() : 0;
+	}
+
+	/**
+	 * Get the time the worker threads have spent in jobs
+	 * @return the time in ms
+	 */
+	public static long getWorkerTime() {
+		return workers != null ? workers.getJobTime() : 0;
+	}
+
+	/**
+	 * Get the CPU time the worker threads have taken in jobs, the rest of the job time has been spent blocked
+	 * @return the time in ms
+	 */
+	public static long getWorkerCpuTime() {
+		return workers != null ? workers.getJobCpuTime() : 0;
+	}
+}
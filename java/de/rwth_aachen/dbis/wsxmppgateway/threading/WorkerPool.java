@@ -0,0 +1,128 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.threading;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of the threads that handle the WebSocket connections. The pool measures how long its jobs take and how much of
+ * that time they run on a CPU. If the pool is sized, it starts with the limit as its maximum and adjusts the maximum to
+ * the measured blocking once per interval: the available processors times the ratio of job time to CPU time, so that
+ * blocked jobs do not leave processors idle. The maximum never drops below the minimum of the pool.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+class WorkerPool extends QueuedThreadPool {
+
+	private static final long SIZING_INTERVAL = 1000000000L; //ns between two adjustments of the maximum
+	private static final long MIN_CPU_SAMPLE = 1000000L; //ns of CPU time needed for an adjustment
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(WorkerPool.class);
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private final int processors = Runtime.getRuntime().availableProcessors();
+	private final boolean measured = threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+	private final int limit; //maximum the pool may be sized to, 0 if the pool is not sized
+	private final int floor; //minimum the pool may be sized to
+	private final AtomicLong jobNanos = new AtomicLong(0);
+	private final AtomicLong jobCpuNanos = new AtomicLong(0);
+	private final AtomicLong nextSizing = new AtomicLong(System.nanoTime() + SIZING_INTERVAL);
+	private long sizedNanos = 0; //job time at the last adjustment, only accessed by the adjusting thread
+	private long sizedCpuNanos = 0;
+
+	/**
+	 * Creates a pool of worker threads
+	 * @param maxThreads the maximum number of threads, 0 to size the pool
+	 * @param limit the maximum number of threads the pool may be sized to
+	 */
+	WorkerPool(int maxThreads, int limit) {
+		this.limit = maxThreads > 0 ? 0 : limit;
+		setName("wxg-worker");
+		setMaxThreads(maxThreads > 0 ? maxThreads : limit);
+		floor = Math.max(processors, getMinThreads());
+	}
+
+	@Override
+	protected void runJob(Runnable job) {
+		long cpu = cpuTime();
+		long start = System.nanoTime();
+		try {
+			super.runJob(job);
+		} finally {
+			long end = System.nanoTime();
+			jobNanos.addAndGet(end - start);
+			jobCpuNanos.addAndGet(cpuTime() - cpu);
+			long next = nextSizing.get();
+			if (limit > 0 && end - next >= 0 && nextSizing.compareAndSet(next, end + SIZING_INTERVAL))
+				size();
+		}
+	}
+
+	private long cpuTime() {
+		return measured ? threads.getCurrentThreadCpuTime() : 0;
+	}
+
+	/**
+	 * Adjust the maximum number of threads to the blocking measured since the last adjustment
+	 */
+	private void size() {
+		long nanos = jobNanos.get();
+		long cpuNanos = jobCpuNanos.get();
+		long cpu = cpuNanos - sizedCpuNanos;
+		if (cpu < MIN_CPU_SAMPLE)
+			return; //too little work to measure
+		long wall = nanos - sizedNanos;
+		sizedNanos = nanos;
+		sizedCpuNanos = cpuNanos;
+		int target = (int)Math.min(limit, Math.max(floor, (processors * wall + cpu - 1) / cpu));
+		if (target != getMaxThreads()) {
+			logger.debug("Sizing worker pool to " + target + " threads, jobs take " + wall / cpu + " times their CPU time");
+			setMaxThreads(target);
+		}
+	}
+
+	/**
+	 * Get the number of jobs waiting for a thread
+	 * @return the length of the queue
+	 */
+	int getQueueSize() {
+		return getQueue() != null ? getQueue().size() : 0;
+	}
+
+	/**
+	 * Get the time the threads have spent in jobs
+	 * @return the time in ms
+	 */
+	long getJobTime() {
+		return jobNanos.get() / 1000000;
+	}
+
+	/**
+	 * Get the CPU time the threads have taken in jobs
+	 * @return the time in ms
+	 */
+	long getJobCpuTime() {
+		return jobCpuNanos.get() / 1000000;
+	}
+}
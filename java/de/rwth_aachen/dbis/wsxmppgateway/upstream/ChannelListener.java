@@ -0,0 +1,51 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.upstream;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * Callbacks of a channel that has been registered with an {@link UpstreamReactor}.
+ * All methods are invoked on the thread of the reactor and must not block.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public interface ChannelListener {
+
+	/**
+	 * Called once the channel has been registered with the selector of the reactor
+	 * @param key the selection key of the channel
+	 */
+	public void onRegistered(SelectionKey key);
+
+	/**
+	 * Called if a pending connect of the channel can be finished
+	 * @param key the selection key of the channel
+	 */
+	public void onConnectable(SelectionKey key);
+
+	/**
+	 * Called if data can be read from the channel
+	 * @param key the selection key of the channel
+	 */
+	public void onReadable(SelectionKey key);
+
+	/**
+	 * Called if data can be written to the channel
+	 * @param key the selection key of the channel
+	 */
+	public void onWritable(SelectionKey key);
+}
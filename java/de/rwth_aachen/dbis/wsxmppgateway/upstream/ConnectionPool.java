@@ -0,0 +1,277 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.upstream;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of connections to known XMPP servers that have been established before they are needed.
+ * A session that opens a stream to a pooled target claims one of these connections and saves the TCP connect.
+ * The pool of every target is refilled once per second and sized by the rate connections have been claimed at.
+ * Pooled connections that have been idle for too long are closed, since XMPP servers drop connections that do not open a stream.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class ConnectionPool {
+
+	private static final long MAINTENANCE_INTERVAL = 1000; //ms
+	private static final double RATE_WEIGHT = 0.2; //weight of the last interval in the claim rate
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+	private static volatile Map<String, TargetPool> pools = new HashMap<String, TargetPool>();
+	private static int maxSize = 0;
+	private static long maxIdle = 0;
+	private static int connectTimeout = 0;
+	private static volatile boolean running = false;
+
+	private static final AtomicLong hits = new AtomicLong(0);
+	private static final AtomicLong misses = new AtomicLong(0);
+
+	private static final Runnable maintenanceTask = new Runnable() {
+		@Override
+		public void run() {
+			if (!running)
+				return;
+			for (TargetPool pool : pools.values())
+				pool.maintain();
+			UpstreamEngine.schedule(this, MAINTENANCE_INTERVAL);
+		}
+	};
+
+	/**
+	 * Start keeping connections to the given XMPP servers
+	 * @param targets the XMPP servers
+	 * @param size the maximum number of idle connections per XMPP server, 0 to disable the pool
+	 * @param idle the time in ms after that an idle connection is closed
+	 * @param timeout the timeout for connects in ms
+	 */
+	public static synchronized void start(Collection<Target> targets, int size, long idle, int timeout) {
+		if (size <= 0)
+			return;
+		maxSize = size;
+		maxIdle = idle;
+		connectTimeout = timeout;
+		running = true;
+		update(targets);
+		UpstreamEngine.schedule(maintenanceTask, 0);
+		logger.info("Started connection pool for " + pools.size() + " XMPP servers with up to " + size + " connections each");
+	}
+
+	/**
+	 * Replace the XMPP servers connections are kept to, e.g. after the routes have been reloaded.
+	 * Connections to XMPP servers that are still routed to are kept, all others are closed.
+	 * @param targets the XMPP servers
+	 */
+	public static synchronized void update(Collection<Target> targets) {
+		if (!running)
+			return;
+		Map<String, TargetPool> previous = pools;
+		Map<String, TargetPool> updated = new HashMap<String, TargetPool>();
+		for (Target target : targets) {
+			String key = key(target.getHostname(), target.getPort());
+			TargetPool pool = previous.get(key);
+			updated.put(key, pool != null ? pool : new TargetPool(target.getHostname(), target.getPort()));
+		}
+		pools = updated;
+		for (Map.Entry<String, TargetPool> entry : previous.entrySet()) {
+			if (!updated.containsKey(entry.getKey()))
+				entry.getValue().clear();
+		}
+	}
+
+	/**
+	 * Stop the pool and close all idle connections
+	 */
+	public static synchronized void stop() {
+		running = false;
+		for (TargetPool pool : pools.values())
+			pool.clear();
+		pools = new HashMap<String, TargetPool>();
+	}
+
+	/**
+	 * Claim an established connection to an XMPP server
+	 * @param hostname the hostname of the XMPP server
+	 * @param port the port of the XMPP server
+	 * @return a connected channel in non-blocking mode, null if there is no pooled connection to the XMPP server
+	 */
+	public static SocketChannel claim(String hostname, int port) {
+		TargetPool pool = pools.get(key(hostname, port));
+		if (pool == null)
+			return null;
+		SocketChannel channel = pool.claim();
+		if (channel != null)
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+		return channel;
+	}
+
+	/**
+	 * Get the number of sessions that have claimed a pooled connection
+	 * @return the number of pool hits
+	 */
+	public static long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of sessions to a pooled XMPP server that had to connect since no connection was available
+	 * @return the number of pool misses
+	 */
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Get the number of idle connections in the pool
+	 * @return the number of idle connections to all XMPP servers
+	 */
+	public static int getIdleConnections() {
+		int idle = 0;
+		for (TargetPool pool : pools.values())
+			idle += pool.idle.size();
+		return idle;
+	}
+
+	private static String key(String hostname, int port) {
+		return hostname.toLowerCase() + ":" + port;
+	}
+
+	/**
+	 * An idle connection and the time it has been established
+	 */
+	private static class PooledChannel {
+		final SocketChannel channel;
+		final long connected = System.currentTimeMillis();
+
+		PooledChannel(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * The idle connections to a single XMPP server
+	 */
+	private static class TargetPool {
+		private final String hostname;
+		private final int port;
+		private final Queue<PooledChannel> idle = new ConcurrentLinkedQueue<PooledChannel>();
+		private final AtomicInteger connecting = new AtomicInteger(0);
+		private final AtomicInteger claims = new AtomicInteger(0); //claims since the last maintenance
+		private double rate = 0; //claims per maintenance interval, only accessed by the timer thread
+
+		TargetPool(String hostname, int port) {
+			this.hostname = hostname;
+			this.port = port;
+		}
+
+		SocketChannel claim() {
+			claims.incrementAndGet();
+			PooledChannel pooled;
+			while ((pooled = idle.poll()) != null) {
+				if (isAlive(pooled.channel))
+					return pooled.channel;
+				close(pooled.channel);
+			}
+			return null;
+		}
+
+		/**
+		 * Close expired connections and start connects until the pool has the size required by the claim rate
+		 */
+		void maintain() {
+			long now = System.currentTimeMillis();
+			int count = 0;
+			for (PooledChannel pooled : idle) {
+				if (now - pooled.connected > maxIdle && idle.remove(pooled))
+					close(pooled.channel);
+				else
+					count++;
+			}
+			rate = RATE_WEIGHT * claims.getAndSet(0) + (1 - RATE_WEIGHT) * rate;
+			//keep enough connections for the next interval, but at least one
+			int size = Math.max(1, Math.min(maxSize, (int)Math.ceil(rate)));
+			for (int missing = size - count - connecting.get(); missing > 0; missing--) {
+				connecting.incrementAndGet();
+				UpstreamEngine.connect(new Runnable() {
+					@Override
+					public void run() {
+						connect();
+					}
+				});
+			}
+		}
+
+		private void connect() {
+			SocketChannel channel = null;
+			try {
+				InetSocketAddress address = DnsResolver.resolve(hostname, port);
+				channel = SocketChannel.open();
+				channel.socket().connect(address, connectTimeout);
+				channel.configureBlocking(false);
+				if (running && pools.get(key(hostname, port)) == this)
+					idle.add(new PooledChannel(channel));
+				else
+					close(channel);
+			} catch (IOException e) {
+				logger.debug("Cannot establish pooled connection to " + hostname + ":" + port, e);
+				if (channel != null)
+					close(channel);
+			} finally {
+				connecting.decrementAndGet();
+			}
+		}
+
+		void clear() {
+			PooledChannel pooled;
+			while ((pooled = idle.poll()) != null)
+				close(pooled.channel);
+		}
+
+		/**
+		 * Check that the XMPP server has not closed an idle connection. XMPP servers do not send data before the stream has been opened.
+		 */
+		private static boolean isAlive(SocketChannel channel) {
+			try {
+				return channel.read(ByteBuffer.allocate(1)) == 0;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		private static void close(SocketChannel channel) {
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+	}
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.upstream;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.rwth_aachen.dbis.wsxmppgateway.XMPPConstants;
+
+/**
+ * Resolves the addresses of XMPP servers. If no port is given, the _xmpp-client._tcp SRV record of the domain is
+ * looked up and a target is selected by priority and weight (RFC 2782). SRV and A records are queried from a
+ * nameserver with a minimal DNS client and cached as long as their TTL allows. Concurrent lookups of the same name
+ * are coalesced into a single query. Queries carry random ids and answers are only accepted from the nameserver if they
+ * echo the question, truncated answers are queried again via TCP. Hostnames that are not found by the nameserver, e.g. those in /etc/hosts,
+ * are passed to the resolver of the JVM.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class DnsResolver {
+
+	private static final String SRV_PREFIX = "_xmpp-client._tcp.";
+	private static final int TYPE_A = 1;
+	private static final int TYPE_SRV = 33;
+	private static final int CLASS_IN = 1;
+	private static final int DNS_PORT = 53;
+	private static final int QUERY_TIMEOUT = 2000; //ms per attempt
+	private static final int QUERY_ATTEMPTS = 2;
+	private static final long NEGATIVE_TTL = 60*1000; //ms a name without records is cached
+	private static final long ERROR_TTL = 5*1000; //ms a failed query is cached
+	private static final long MAX_TTL = 3600*1000; //ms
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(DnsResolver.class);
+
+	private static volatile InetSocketAddress nameserver = null; //null if only the resolver of the JVM is used
+	private static final ConcurrentMap<String, Lookup> cache = new ConcurrentHashMap<String, Lookup>();
+	private static final Random random = new Random(); //selects among records, not security relevant
+	private static final SecureRandom idRandom = new SecureRandom(); //ids of the queries, must not be predictable
+
+	private static final AtomicLong queries = new AtomicLong(0);
+	private static final AtomicLong cacheHits = new AtomicLong(0);
+	private static final AtomicLong coalesced = new AtomicLong(0);
+
+	/**
+	 * Set the nameserver to be queried
+	 * @param server hostname or address of the nameserver with an optional port, an empty string to use the first nameserver of /etc/resolv.conf
+	 * @throws UnknownHostException if the nameserver cannot be resolved
+	 */
+	public static void start(String server) throws UnknownHostException {
+		cache.clear();
+		if (server == null || server.trim().length() == 0)
+			server = readResolvConf();
+		if (server == null) {
+			logger.warn("No nameserver configured, SRV records of XMPP servers are not looked up");
+			nameserver = null;
+			return;
+		}
+		server = server.trim();
+		int port = DNS_PORT;
+		int colon = server.lastIndexOf(':');
+		if (colon > 0 && server.indexOf(':') == colon) {
+			port = Integer.parseInt(server.substring(colon + 1));
+			server = server.substring(0, colon);
+		}
+		nameserver = new InetSocketAddress(InetAddress.getByName(server), port);
+		logger.info("Resolving XMPP servers via nameserver " + nameserver);
+	}
+
+	/**
+	 * Resolve the address of an XMPP server. May block while the nameserver is queried.
+	 * @param domain the domain or hostname of the XMPP server
+	 * @param port the port of the XMPP server, 0 or less to look up the SRV record of the domain
+	 * @return the address of the XMPP server
+	 * @throws UnknownHostException if the XMPP server cannot be resolved
+	 */
+	public static InetSocketAddress resolve(String domain, int port) throws UnknownHostException {
+		if (port <= 0) {
+			if (nameserver != null && !isAddress(domain)) {
+				List<Record> records = lookup(SRV_PREFIX + domain, TYPE_SRV);
+				if (records.size() == 1 && ".".equals(records.get(0).target))
+					throw new UnknownHostException(domain + " does not offer XMPP client connections");
+				Record srv = selectSrv(records);
+				if (srv != null)
+					return new InetSocketAddress(resolveHost(srv.target), srv.port);
+			}
+			port = XMPPConstants.DEFAULT_CLIENT_PORT;
+		}
+		return new InetSocketAddress(resolveHost(domain), port);
+	}
+
+	/**
+	 * Get the number of queries sent to the nameserver
+	 * @return the number of DNS queries
+	 */
+	public static long getQueries() {
+		return queries.get();
+	}
+
+	/**
+	 * Get the number of lookups answered from the cache
+	 * @return the number of cache hits
+	 */
+	public static long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	/**
+	 * Get the number of lookups that waited for the same query of another lookup
+	 * @return the number of coalesced lookups
+	 */
+	public static long getCoalesced() {
+		return coalesced.get();
+	}
+
+	//******************** Resolution ********************//
+
+	/**
+	 * Resolve the address of a host
+	 */
+	private static InetAddress resolveHost(String host) throws UnknownHostException {
+		if (nameserver != null && !isAddress(host)) {
+			List<Record> records = lookup(host, TYPE_A);
+			if (!records.isEmpty())
+				return records.get(random.nextInt(records.size())).address;
+		}
+		//addresses, /etc/hosts and names unknown to the nameserver
+		return InetAddress.getByName(host);
+	}
+
+	/**
+	 * Select an SRV record according to RFC 2782: lowest priority first, weighted random choice among records of the same priority
+	 * @return the selected record, null if there are no records
+	 */
+	private static Record selectSrv(List<Record> records) {
+		Record selected = null;
+		int totalWeight = 0;
+		for (Record record : records) {
+			if (selected == null || record.priority < selected.priority) {
+				selected = record;
+				totalWeight = 0;
+			}
+			if (record.priority == selected.priority)
+				totalWeight += record.weight;
+		}
+		if (selected == null || totalWeight == 0)
+			return selected;
+		int choice = random.nextInt(totalWeight + 1);
+		int sum = 0;
+		for (Record record : records) {
+			if (record.priority != selected.priority)
+				continue;
+			sum += record.weight;
+			if (sum >= choice && record.weight > 0)
+				return record;
+		}
+		return selected;
+	}
+
+	/**
+	 * Look up the records of a name in the cache or query the nameserver. Concurrent lookups of the same name wait for a single query.
+	 * @return the records, an empty list if there are none or the nameserver cannot be reached
+	 */
+	private static List<Record> lookup(String name, int type) {
+		String key = type + " " + name.toLowerCase();
+		while (true) {
+			Lookup lookup = cache.get(key);
+			if (lookup != null) {
+				if (lookup.done.getCount() > 0) {
+					coalesced.incrementAndGet();
+					try {
+						if (!lookup.done.await(QUERY_TIMEOUT * QUERY_ATTEMPTS, TimeUnit.MILLISECONDS))
+							return Collections.emptyList();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return Collections.emptyList();
+					}
+					return lookup.records;
+				}
+				if (lookup.expires > System.currentTimeMillis()) {
+					cacheHits.incrementAndGet();
+					return lookup.records;
+				}
+				cache.remove(key, lookup);
+			}
+			lookup = new Lookup();
+			if (cache.putIfAbsent(key, lookup) != null)
+				continue; //another thread has started the same query
+			try {
+				List<Record> records = query(name, type);
+				long ttl = records.isEmpty() ? NEGATIVE_TTL : MAX_TTL;
+				for (Record record : records)
+					ttl = Math.min(ttl, record.ttl);
+				lookup.records = records;
+				lookup.expires = System.currentTimeMillis() + ttl;
+			} catch (IOException e) {
+				logger.info("DNS query for " + name + " failed", e);
+				lookup.records = Collections.emptyList();
+				lookup.expires = System.currentTimeMillis() + ERROR_TTL;
+			} finally {
+				lookup.done.countDown();
+			}
+			return lookup.records;
+		}
+	}
+
+	//******************** DNS client ********************//
+
+	/**
+	 * Query the nameserver. The socket is connected to the nameserver, so datagrams of other senders are dropped.
+	 * @return the records of the given type in the answer section
+	 * @throws IOException if the nameserver does not answer
+	 */
+	private static List<Record> query(String name, int type) throws IOException {
+		queries.incrementAndGet();
+		int id = idRandom.nextInt(0x10000);
+		byte[] request = buildQuery(id, name, type);
+		InetSocketAddress server = nameserver;
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			socket.connect(server);
+			socket.setSoTimeout(QUERY_TIMEOUT);
+			byte[] response = new byte[4096];
+			for (int attempt = 1; ; attempt++) {
+				socket.send(new DatagramPacket(request, request.length));
+				try {
+					while (true) {
+						DatagramPacket packet = new DatagramPacket(response, response.length);
+						socket.receive(packet);
+						if (!isAnswer(response, packet.getLength(), id, name, type))
+							continue; //stale or forged response, wait for the right one
+						if ((response[2] & 0x02) != 0)
+							return queryTcp(server, name, type); //truncated, the records may be missing
+						return parseResponse(response, packet.getLength(), type);
+					}
+				} catch (SocketTimeoutException e) {
+					if (attempt == QUERY_ATTEMPTS)
+						throw e;
+				}
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Query the nameserver via TCP since the answer does not fit into a datagram
+	 * @return the records of the given type in the answer section
+	 * @throws IOException if the nameserver does not answer
+	 */
+	private static List<Record> queryTcp(InetSocketAddress server, String name, int type) throws IOException {
+		int id = idRandom.nextInt(0x10000);
+		byte[] request = buildQuery(id, name, type);
+		Socket socket = new Socket();
+		try {
+			socket.connect(server, QUERY_TIMEOUT);
+			socket.setSoTimeout(QUERY_TIMEOUT);
+			byte[] length = new byte[2];
+			writeShort(length, 0, request.length);
+			OutputStream out = socket.getOutputStream();
+			out.write(length);
+			out.write(request);
+			out.flush();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			byte[] response = new byte[in.readUnsignedShort()];
+			in.readFully(response);
+			if (!isAnswer(response, response.length, id, name, type))
+				throw new IOException("DNS response does not match the query");
+			if ((response[2] & 0x02) != 0)
+				throw new IOException("Truncated DNS response");
+			return parseResponse(response, response.length, type);
+		} catch (EOFException e) {
+			throw new IOException("Nameserver closed the connection");
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Check that a message is the response to a query, i.e. it carries the id of the query and echoes its question
+	 * @return true if the message answers the query
+	 */
+	private static boolean isAnswer(byte[] msg, int length, int id, String name, int type) throws IOException {
+		if (length < 12 || readShort(msg, 0) != id)
+			return false;
+		if ((msg[2] & 0x80) == 0 || (msg[2] >> 3 & 0x0f) != 0)
+			return false; //not a response or not to a standard query
+		if (readShort(msg, 4) != 1)
+			return false;
+		int pos = skipName(msg, 12, length);
+		if (pos + 4 > length || readShort(msg, pos) != type || readShort(msg, pos + 2) != CLASS_IN)
+			return false;
+		String question = readName(msg, 12, length);
+		String expected = name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+		return question.equalsIgnoreCase(expected);
+	}
+
+	private static byte[] buildQuery(int id, String name, int type) throws IOException {
+		byte[] query = new byte[12 + name.length() + 2 + 4];
+		writeShort(query, 0, id);
+		writeShort(query, 2, 0x0100); //recursion desired
+		writeShort(query, 4, 1); //one question
+		int pos = 12;
+		for (String label : name.split("\\.")) {
+			if (label.length() == 0)
+				continue;
+			if (label.length() > 63)
+				throw new IOException("Invalid domain name " + name);
+			query[pos++] = (byte)label.length();
+			for (int i = 0; i < label.length(); i++)
+				query[pos++] = (byte)label.charAt(i);
+		}
+		query[pos++] = 0;
+		writeShort(query, pos, type);
+		writeShort(query, pos + 2, CLASS_IN);
+		pos += 4;
+		byte[] trimmed = new byte[pos];
+		System.arraycopy(query, 0, trimmed, 0, pos);
+		return trimmed;
+	}
+
+	private static List<Record> parseResponse(byte[] msg, int length, int type) throws IOException {
+		int rcode = msg[3] & 0x0f;
+		if (rcode == 3)
+			return Collections.emptyList(); //name does not exist
+		if (rcode != 0)
+			throw new IOException("Nameserver returned error " + rcode);
+		int questions = readShort(msg, 4);
+		int answers = readShort(msg, 6);
+		int pos = 12;
+		for (int i = 0; i < questions; i++)
+			pos = skipName(msg, pos, length) + 4;
+		List<Record> records = new ArrayList<Record>();
+		for (int i = 0; i < answers; i++) {
+			pos = skipName(msg, pos, length);
+			if (pos + 10 > length)
+				throw new IOException("Truncated DNS response");
+			int rrType = readShort(msg, pos);
+			long ttl = (readShort(msg, pos + 4) << 16 | readShort(msg, pos + 6)) & 0xffffffffL;
+			int rdLength = readShort(msg, pos + 8);
+			pos += 10;
+			if (pos + rdLength > length)
+				throw new IOException("Truncated DNS response");
+			if (rrType == type) {
+				Record record = new Record();
+				record.ttl = Math.min(ttl * 1000, MAX_TTL);
+				if (type == TYPE_A && rdLength == 4) {
+					byte[] address = new byte[4];
+					System.arraycopy(msg, pos, address, 0, 4);
+					record.address = InetAddress.getByAddress(address);
+				}
+				else if (type == TYPE_SRV) {
+					record.priority = readShort(msg, pos);
+					record.weight = readShort(msg, pos + 2);
+					record.port = readShort(msg, pos + 4);
+					record.target = readName(msg, pos + 6, length);
+				}
+				records.add(record);
+			}
+			pos += rdLength;
+		}
+		return records;
+	}
+
+	/**
+	 * Skip a possibly compressed name
+	 * @return the position behind the name
+	 */
+	private static int skipName(byte[] msg, int pos, int length) throws IOException {
+		while (pos < length) {
+			int len = msg[pos] & 0xff;
+			if (len == 0)
+				return pos + 1;
+			if ((len & 0xc0) == 0xc0)
+				return pos + 2;
+			pos += len + 1;
+		}
+		throw new IOException("Truncated DNS response");
+	}
+
+	/**
+	 * Read a possibly compressed name
+	 * @return the name without trailing dot, "." for the root
+	 */
+	private static String readName(byte[] msg, int pos, int length) throws IOException {
+		StringBuilder name = new StringBuilder();
+		for (int jumps = 0; jumps < 16; ) {
+			if (pos >= length)
+				throw new IOException("Truncated DNS response");
+			int len = msg[pos] & 0xff;
+			if (len == 0)
+				return name.length() == 0 ? "." : name.toString();
+			if ((len & 0xc0) == 0xc0) {
+				pos = readShort(msg, pos) & 0x3fff;
+				jumps++;
+				continue;
+			}
+			if (pos + 1 + len > length)
+				throw new IOException("Truncated DNS response");
+			if (name.length() > 0)
+				name.append('.');
+			for (int i = 0; i < len; i++)
+				name.append((char)(msg[pos + 1 + i] & 0xff));
+			pos += len + 1;
+		}
+		throw new IOException("Too many compression pointers in DNS response");
+	}
+
+	private static int readShort(byte[] msg, int pos) {
+		return (msg[pos] & 0xff) << 8 | (msg[pos + 1] & 0xff);
+	}
+
+	private static void writeShort(byte[] msg, int pos, int value) {
+		msg[pos] = (byte)(value >> 8);
+		msg[pos + 1] = (byte)value;
+	}
+
+	private static boolean isAddress(String host) {
+		return host.indexOf(':') >= 0 || host.matches("[0-9.]+");
+	}
+
+	/**
+	 * Read the first nameserver from /etc/resolv.conf
+	 * @return the address of the nameserver, null if there is none
+	 */
+	private static String readResolvConf() {
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader("/etc/resolv.conf"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.trim().split("\\s+");
+					if (fields.length >= 2 && "nameserver".equals(fields[0]) && fields[1].indexOf(':') < 0)
+						return fields[1];
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			//not available on this platform
+		}
+		return null;
+	}
+
+	/**
+	 * A resource record of type A or SRV
+	 */
+	private static class Record {
+		long ttl; //ms
+		InetAddress address; //A
+		int priority, weight, port; //SRV
+		String target; //SRV
+	}
+
+	/**
+	 * A cached or running lookup
+	 */
+	private static class Lookup {
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile List<Record> records = Collections.emptyList();
+		volatile long expires = 0;
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.upstream;
+
+import java.io.IOException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A layer of the connection to an XMPP server that transforms the data on its way, e.g. TLS or stream compression.
+ * Layers may buffer data in both directions, so a layer on top of non-blocking channels has to be flushed and read
+ * until it has no buffered data left.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public interface FilterChannel extends ReadableByteChannel, GatheringByteChannel {
+
+	/**
+	 * Write the data buffered by this layer and the layers below
+	 * @return true if all buffered data has been written
+	 * @throws IOException if the channel cannot be written to
+	 */
+	boolean flush() throws IOException;
+
+	/**
+	 * Check if data is waiting to be written
+	 * @return true if this layer or a layer below buffers data that has not been written yet
+	 */
+	boolean hasPendingOutput();
+
+	/**
+	 * Check if received data is waiting to be read
+	 * @return true if this layer or a layer below buffers received data that has not been read yet
+	 */
+	boolean hasBufferedInput();
+
+	/**
+	 * Close this layer and the layers below. The underlying socket channel is left open.
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.upstream;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Balances sessions across the XMPP servers of a route. Either two targets are chosen at random by weight and the one
+ * with fewer sessions per weight is taken (power of two choices), or all targets are compared (least connections).
+ * Targets that have been ejected after failed connects are skipped as long as a healthy target is left. They are probed
+ * with a TCP connect periodically and reinstated once the probe succeeds.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class LoadBalancer {
+
+	public static final String BALANCING_P2C = "p2c";
+	public static final String BALANCING_LEAST_CONNECTIONS = "leastconn";
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(LoadBalancer.class);
+
+	private static volatile boolean leastConnections = false;
+	private static volatile int ejectFailures = 3;
+	private static long probeInterval = 0;
+	private static int probeTimeout = 0;
+	private static volatile Collection<Target> targets = Collections.emptyList();
+	private static final Set<Target> probing = Collections.newSetFromMap(new ConcurrentHashMap<Target, Boolean>());
+	private static volatile boolean running = false;
+	private static final Random random = new Random();
+
+	private static final Runnable probeTask = new Runnable() {
+		@Override
+		public void run() {
+			if (!running)
+				return;
+			for (final Target target : targets) {
+				if (target.isHealthy() || !probing.add(target))
+					continue;
+				UpstreamEngine.connect(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							probe(target);
+						} finally {
+							probing.remove(target);
+						}
+					}
+				});
+			}
+			UpstreamEngine.schedule(this, probeInterval);
+		}
+	};
+
+	/**
+	 * Configure the balancing and start probing ejected targets
+	 * @param balancing the balancing strategy, either BALANCING_P2C or BALANCING_LEAST_CONNECTIONS
+	 * @param failures the number of failed connects in a row after that a target is ejected
+	 * @param interval the interval of probes in ms, 0 to reinstate targets only by successful connects of sessions
+	 * @param timeout the timeout of probes in ms
+	 * @throws IllegalArgumentException if the balancing strategy is unknown
+	 */
+	public static synchronized void start(String balancing, int failures, long interval, int timeout) {
+		if (BALANCING_LEAST_CONNECTIONS.equals(balancing))
+			leastConnections = true;
+		else if (BALANCING_P2C.equals(balancing))
+			leastConnections = false;
+		else
+			throw new IllegalArgumentException("Unknown upstream balancing: " + balancing);
+		ejectFailures = failures;
+		probeInterval = interval;
+		probeTimeout = timeout;
+		if (interval > 0 && !running) {
+			running = true;
+			UpstreamEngine.schedule(probeTask, interval);
+		}
+	}
+
+	/**
+	 * Stop probing
+	 */
+	public static synchronized void stop() {
+		running = false;
+	}
+
+	/**
+	 * Replace the targets to be probed, e.g. after the routes have been reloaded
+	 * @param targets the XMPP servers of all routes
+	 */
+	public static void update(Collection<Target> targets) {
+		LoadBalancer.targets = new ArrayList<Target>(targets);
+	}
+
+	/**
+	 * Get the number of failed connects in a row after that a target is ejected
+	 * @return the number of failed connects
+	 */
+	public static int getEjectFailures() {
+		return ejectFailures;
+	}
+
+	/**
+	 * Select the XMPP server a new session is routed to
+	 * @param route the route of the domain the session is opened to
+	 * @return the target, an ejected one only if all targets have been ejected
+	 */
+	public static Target select(Route route) {
+		List<Target> all = route.getTargets();
+		if (all.size() == 1)
+			return all.get(0);
+		List<Target> candidates = all;
+		for (Target target : all) {
+			if (!target.isHealthy()) {
+				candidates = healthy(all);
+				break;
+			}
+		}
+		if (candidates.isEmpty())
+			candidates = all; //no healthy target left, keep trying all of them
+		if (candidates.size() == 1)
+			return candidates.get(0);
+		if (leastConnections)
+			return leastLoaded(candidates);
+		Target first = pickByWeight(candidates, null);
+		Target second = pickByWeight(candidates, first);
+		return isLessLoaded(second, first) ? second : first;
+	}
+
+	private static List<Target> healthy(List<Target> targets) {
+		List<Target> healthy = new ArrayList<Target>(targets.size());
+		for (Target target : targets) {
+			if (target.isHealthy())
+				healthy.add(target);
+		}
+		return healthy;
+	}
+
+	/**
+	 * Pick a target at random with a probability proportional to its weight
+	 * @param excluded a target not to be picked, may be null
+	 */
+	private static Target pickByWeight(List<Target> targets, Target excluded) {
+		int total = 0;
+		for (Target target : targets) {
+			if (target != excluded)
+				total += target.getWeight();
+		}
+		int choice = random.nextInt(total);
+		for (Target target : targets) {
+			if (target == excluded)
+				continue;
+			choice -= target.getWeight();
+			if (choice < 0)
+				return target;
+		}
+		return targets.get(0); //weights have changed concurrently
+	}
+
+	/**
+	 * Find the target with the fewest sessions per weight, ties are broken by a random start
+	 */
+	private static Target leastLoaded(List<Target> targets) {
+		int start = random.nextInt(targets.size());
+		Target best = targets.get(start);
+		for (int i = 1; i < targets.size(); i++) {
+			Target target = targets.get((start + i) % targets.size());
+			if (isLessLoaded(target, best))
+				best = target;
+		}
+		return best;
+	}
+
+	private static boolean isLessLoaded(Target a, Target b) {
+		return (long)a.getSessions() * b.getWeight() < (long)b.getSessions() * a.getWeight();
+	}
+
+	/**
+	 * Check if an ejected target accepts connections again
+	 */
+	private static void probe(Target target) {
+		Socket socket = new Socket();
+		try {
+			InetSocketAddress address = DnsResolver.resolve(target.getHostname(), target.getPort());
+			socket.connect(address, probeTimeout);
+			target.connectSucceeded();
+		} catch (IOException e) {
+			logger.debug("Probe of XMPP server " + target + " failed", e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.upstream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A route from the domains matching a pattern to the XMPP servers that serve them.
+ * Patterns are either a domain, "*." followed by a domain for all of its subdomains, or "*" for all domains.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class Route {
+
+	private final String pattern;
+	private final List<Target> targets;
+
+	/**
+	 * Creates a new route
+	 * @param pattern the pattern of the domains routed, in lower case
+	 * @param targets the XMPP servers sessions are balanced across
+	 */
+	public Route(String pattern, List<Target> targets) {
+		this.pattern = pattern;
+		this.targets = Collections.unmodifiableList(new ArrayList<Target>(targets));
+	}
+
+	/**
+	 * Parse a route from an entry of the aliases file
+	 * @param pattern the pattern of the domains routed
+	 * @param targets comma separated list of XMPP servers as "hostname[:port] [weight]"
+	 * @param known targets of the previous routes by key, reused to keep their statistics, may be null
+	 * @return the route
+	 * @throws IllegalArgumentException if the pattern or a target is invalid
+	 */
+	public static Route parse(String pattern, String targets, Map<String, Target> known) {
+		pattern = pattern.trim().toLowerCase();
+		if (pattern.length() == 0 || pattern.indexOf('*', 1) >= 0 || (pattern.startsWith("*") && !"*".equals(pattern) && !pattern.startsWith("*.")))
+			throw new IllegalArgumentException("Invalid domain pattern: " + pattern);
+		List<Target> parsed = new ArrayList<Target>();
+		for (String entry : targets.split(",")) {
+			Target target = Target.parse(entry);
+			Target previous = known != null ? known.get(target.getKey()) : null;
+			if (previous != null) {
+				previous.setWeight(target.getWeight());
+				target = previous;
+			}
+			parsed.add(target);
+		}
+		return new Route(pattern, parsed);
+	}
+
+	/**
+	 * Get the pattern of the domains routed
+	 * @return the domain pattern
+	 */
+	public String getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * Get the XMPP servers of this route
+	 * @return the targets, at least one
+	 */
+	public List<Target> getTargets() {
+		return targets;
+	}
+
+	@Override
+	public String toString() {
+		return pattern + "=" + targets;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.upstream;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Immutable set of routes from domains to XMPP servers. A domain is routed by an exact match first, then by the
+ * wildcard pattern of its closest parent domain and finally by the default pattern "*". Since a table is never changed
+ * after it has been created, it can be read by any number of threads without locking and replaced as a whole.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class RoutingTable {
+
+	/**
+	 * A table without routes
+	 */
+	public static final RoutingTable EMPTY = new RoutingTable(new HashMap<String, Route>());
+
+	private final Map<String, Route> routes; //by pattern
+
+	private RoutingTable(Map<String, Route> routes) {
+		this.routes = routes;
+	}
+
+	/**
+	 * Create a table from the entries of the aliases file. Invalid entries are skipped.
+	 * @param entries patterns of domains and their XMPP servers
+	 * @param invalid receives a message for every invalid entry, may be null
+	 * @param previous the table to be replaced, its targets are reused to keep their statistics
+	 * @return the routing table
+	 */
+	public static RoutingTable parse(Properties entries, Collection<String> invalid, RoutingTable previous) {
+		Map<String, Target> known = new HashMap<String, Target>();
+		for (Target target : previous.getTargets())
+			known.put(target.getKey(), target);
+		Map<String, Route> routes = new HashMap<String, Route>();
+		for (String pattern : entries.stringPropertyNames()) {
+			try {
+				Route route = Route.parse(pattern, entries.getProperty(pattern), known);
+				for (Target target : route.getTargets())
+					known.put(target.getKey(), target);
+				routes.put(route.getPattern(), route);
+			} catch (IllegalArgumentException e) {
+				if (invalid != null)
+					invalid.add(pattern + ": " + e.getMessage());
+			}
+		}
+		return new RoutingTable(routes);
+	}
+
+	/**
+	 * Find the route of a domain
+	 * @param domain the domain in the "to" attribute of the opening stream tag
+	 * @return the route, null if the domain is not routed
+	 */
+	public Route lookup(String domain) {
+		if (routes.isEmpty() || domain == null)
+			return null;
+		domain = domain.toLowerCase();
+		Route route = routes.get(domain);
+		//try the wildcards of all parent domains, closest first
+		for (int dot = domain.indexOf('.'); route == null && dot >= 0; dot = domain.indexOf('.', dot + 1))
+			route = routes.get("*" + domain.substring(dot));
+		if (route == null)
+			route = routes.get("*");
+		return route;
+	}
+
+	/**
+	 * Get all routes
+	 * @return the routes of this table
+	 */
+	public Collection<Route> getRoutes() {
+		return Collections.unmodifiableCollection(routes.values());
+	}
+
+	/**
+	 * Get the XMPP servers of all routes
+	 * @return the targets of this table, each one once
+	 */
+	public Collection<Target> getTargets() {
+		Map<String, Target> targets = new HashMap<String, Target>();
+		for (Route route : routes.values()) {
+			for (Target target : route.getTargets())
+				targets.put(target.getKey(), target);
+		}
+		return targets.values();
+	}
+
+	/**
+	 * Get the number of routes
+	 * @return the number of routes
+	 */
+	public int size() {
+		return routes.size();
+	}
+}
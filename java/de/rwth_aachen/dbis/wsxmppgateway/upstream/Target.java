@@ -0,0 +1,187 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.upstream;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An XMPP server sessions are routed to. It counts the sessions it serves and the connects that failed in a row.
+ * A target is ejected when too many connects have failed and is reinstated by a successful connect, either of a session
+ * or of the probes of the {@link LoadBalancer}.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class Target {
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(Target.class);
+
+	private final String hostname;
+	private final int port;
+	private volatile int weight;
+
+	private final AtomicInteger sessions = new AtomicInteger(0);
+	private final AtomicInteger failures = new AtomicInteger(0); //failed connects since the last successful one
+	private volatile boolean ejected = false;
+
+	/**
+	 * Creates a new target
+	 * @param hostname the hostname of the XMPP server
+	 * @param port the port of the XMPP server, -1 to look up the SRV record of the hostname
+	 * @param weight the share of sessions relative to the other targets of a route
+	 */
+	public Target(String hostname, int port, int weight) {
+		this.hostname = hostname;
+		this.port = port;
+		this.weight = weight;
+	}
+
+	/**
+	 * Parse a target from an entry of the aliases file
+	 * @param target the XMPP server as "hostname[:port] [weight]", IPv6 addresses with port in brackets
+	 * @return the target
+	 * @throws IllegalArgumentException if the target is invalid
+	 */
+	public static Target parse(String target) {
+		String[] fields = target.trim().split("\\s+");
+		if (fields.length > 2)
+			throw new IllegalArgumentException("Invalid target: " + target);
+		int weight = 1;
+		if (fields.length == 2) {
+			try {
+				weight = Integer.parseInt(fields[1]);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid weight in target: " + target);
+			}
+			if (weight <= 0)
+				throw new IllegalArgumentException("Invalid weight in target: " + target);
+		}
+		String hostname = fields[0];
+		int port = -1;
+		int colon = hostname.lastIndexOf(':');
+		if (colon > 0 && (hostname.indexOf(':') == colon || hostname.charAt(colon - 1) == ']')) {
+			try {
+				port = Integer.parseInt(hostname.substring(colon + 1));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid port in target: " + target);
+			}
+			if (port <= 0 || port > 0xffff)
+				throw new IllegalArgumentException("Invalid port in target: " + target);
+			hostname = hostname.substring(0, colon);
+		}
+		if (hostname.startsWith("[") && hostname.endsWith("]"))
+			hostname = hostname.substring(1, hostname.length() - 1);
+		if (hostname.length() == 0)
+			throw new IllegalArgumentException("Missing hostname in target: " + target);
+		return new Target(hostname, port, weight);
+	}
+
+	/**
+	 * Get the hostname of the XMPP server
+	 * @return the hostname of the XMPP server
+	 */
+	public String getHostname() {
+		return hostname;
+	}
+
+	/**
+	 * Get the port of the XMPP server
+	 * @return the port of the XMPP server, -1 if the SRV record of the hostname is looked up
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Get the weight of the target
+	 * @return the share of sessions relative to the other targets of a route
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
+	void setWeight(int weight) {
+		this.weight = weight;
+	}
+
+	/**
+	 * Get the number of sessions routed to this target that have not been closed yet
+	 * @return the number of sessions
+	 */
+	public int getSessions() {
+		return sessions.get();
+	}
+
+	/**
+	 * Check if the target receives sessions
+	 * @return true if the target has not been ejected
+	 */
+	public boolean isHealthy() {
+		return !ejected;
+	}
+
+	/**
+	 * Record that a session has been routed to this target
+	 */
+	public void acquire() {
+		sessions.incrementAndGet();
+	}
+
+	/**
+	 * Record that a session routed to this target has been closed
+	 */
+	public void release() {
+		sessions.decrementAndGet();
+	}
+
+	/**
+	 * Record a successful connect, the target is reinstated if it has been ejected
+	 */
+	public void connectSucceeded() {
+		failures.set(0);
+		if (ejected) {
+			ejected = false;
+			logger.info("Reinstated XMPP server " + this);
+		}
+	}
+
+	/**
+	 * Record a failed or timed out connect, the target is ejected if too many connects have failed in a row
+	 */
+	public void connectFailed() {
+		int failed = failures.incrementAndGet();
+		if (!ejected && failed >= LoadBalancer.getEjectFailures()) {
+			ejected = true;
+			logger.warn("Ejected XMPP server " + this + " after " + failed + " failed connects");
+		}
+	}
+
+	/**
+	 * Get the key identifying the XMPP server
+	 * @return hostname and port in lower case
+	 */
+	public String getKey() {
+		return hostname.toLowerCase() + ":" + port;
+	}
+
+	@Override
+	public String toString() {
+		return port > 0 ? hostname + ":" + port : hostname;
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.upstream;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timing wheel that runs the deadlines of all sessions on a single thread.
+ * Scheduling a task is a lock-free enqueue, the wheel thread moves new tasks into their slot once per tick and
+ * runs the tasks of the current slot whose round has come. A deadline fires up to one tick late.
+ * Tasks are not cancelled, a task checks on its own whether its deadline is still relevant and schedules itself again
+ * if the session has been active in the meantime. Tasks run on the wheel thread and must not block.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class TimingWheel implements Runnable {
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+
+	/**
+	 * A task waiting in a slot of the wheel
+	 */
+	private static final class Entry {
+		private final Runnable task;
+		private final long deadline; //System.nanoTime() the task is due
+		private long rounds; //turns of the wheel left until the task is due, only accessed by the wheel thread
+		private Entry next; //next entry in the same slot, only accessed by the wheel thread
+
+		private Entry(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+	}
+
+	private final String name;
+	private final long tick; //duration of a tick in ns
+	private final Entry[] slots; //singly linked lists of entries, only accessed by the wheel thread
+	private final int mask;
+	private final Queue<Entry> added = new ConcurrentLinkedQueue<Entry>(); //tasks scheduled since the last tick
+	private final AtomicInteger pending = new AtomicInteger(0); //tasks scheduled but not run yet
+	private final long started = System.nanoTime();
+	private long ticks = 0; //ticks since the wheel has been started, only accessed by the wheel thread
+
+	private Thread thread;
+	private volatile boolean running = false;
+
+	/**
+	 * Creates a new timing wheel
+	 * @param name the name of the wheel thread
+	 * @param tick the duration of a tick in ms
+	 * @param slots the number of slots, must be a power of two
+	 */
+	public TimingWheel(String name, long tick, int slots) {
+		if (tick <= 0 || slots <= 0 || (slots & (slots - 1)) != 0)
+			throw new IllegalArgumentException("Tick must be positive and slots a power of two");
+		this.name = name;
+		this.tick = TimeUnit.MILLISECONDS.toNanos(tick);
+		this.slots = new Entry[slots];
+		this.mask = slots - 1;
+	}
+
+	/**
+	 * Start the wheel thread
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the wheel thread, tasks not run yet are dropped
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	/**
+	 * Run a short task once the delay has elapsed
+	 * @param task the task to be run by the wheel thread
+	 * @param delay the delay in ms
+	 */
+	public void schedule(Runnable task, long delay) {
+		pending.incrementAndGet();
+		added.add(new Entry(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0))));
+	}
+
+	/**
+	 * Get the number of tasks that have been scheduled but not run yet
+	 * @return the number of pending tasks
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	@Override
+	public void run() {
+		logger.info(name + " - started");
+		while (running) {
+			long wait = started + (ticks + 1) * tick - System.nanoTime();
+			if (wait > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					continue; //stopped
+				}
+			}
+			ticks++;
+			transferAdded();
+			expire(ticks & mask);
+		}
+		logger.info(name + " - stopped");
+	}
+
+	/**
+	 * Move the tasks scheduled since the last tick into their slots. Tasks already due are put into the current slot.
+	 */
+	private void transferAdded() {
+		Entry entry;
+		while ((entry = added.poll()) != null) {
+			long due = (entry.deadline - started + tick - 1) / tick; //first tick at or after the deadline
+			if (due < ticks)
+				due = ticks;
+			entry.rounds = (due - ticks) / slots.length;
+			int slot = (int)(due & mask);
+			entry.next = slots[slot];
+			slots[slot] = entry;
+		}
+	}
+
+	/**
+	 * Run the tasks of a slot whose round has come, the other tasks of the slot wait for the next turn
+	 * @param slot the slot of the current tick
+	 */
+	private void expire(long slot) {
+		Entry previous = null;
+		Entry entry = slots[(int)slot];
+		while (entry != null) {
+			Entry next = entry.next;
+			if (entry.rounds > 0) {
+				entry.rounds--;
+				previous = entry;
+			}
+			else {
+				if (previous == null)
+					slots[(int)slot] = next;
+				else
+					previous.next = next;
+				pending.decrementAndGet();
+				try {
+					entry.task.run();
+				} catch (RuntimeException e) {
+					//a misbehaving task must not stop the deadlines of all other sessions
+					logger.error(name + " - error in scheduled task", e);
+				}
+			}
+			entry = next;
+		}
+	}
+}
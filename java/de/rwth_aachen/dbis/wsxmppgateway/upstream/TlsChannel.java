@@ -0,0 +1,335 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.upstream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * TLS on top of the channels of a connection to an XMPP server. Records are encrypted and decrypted by an
+ * {@link SSLEngine}, the channels may be blocking or non-blocking. With non-blocking channels every method returns
+ * as soon as the channel would block and has to be called again once the channel is ready.
+ * Reads and writes may be performed by different threads, writes are serialized.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class TlsChannel implements FilterChannel {
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final ReadableByteChannel in;
+	private final WritableByteChannel out;
+	private final SSLEngine engine;
+	private final Lock writeLock = new ReentrantLock(); //records of concurrent writes are not interleaved
+	private final long started = System.currentTimeMillis();
+
+	//all buffers are kept ready to be filled
+	private ByteBuffer netIn; //records received from the XMPP server
+	private ByteBuffer netOut; //records to be sent to the XMPP server
+	private ByteBuffer appIn; //decrypted data not read yet
+	private boolean handshakeStarted = false;
+	private volatile boolean handshakeFinished = false;
+	private volatile boolean open = true;
+
+	/**
+	 * Creates a TLS channel, the handshake is performed by {@link #handshake()}
+	 * @param in the channel records are read from
+	 * @param out the channel records are written to
+	 * @param engine the engine in client mode, see {@link UpstreamTls#createEngine(String, int)}
+	 */
+	public TlsChannel(ReadableByteChannel in, WritableByteChannel out, SSLEngine engine) {
+		this.in = in;
+		this.out = out;
+		this.engine = engine;
+		netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+		netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+		appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+	}
+
+	/**
+	 * Perform the handshake as far as the channels allow
+	 * @return true if the handshake has been finished, false if it has to be continued once the channels are ready
+	 * @throws IOException if the handshake fails
+	 */
+	public boolean handshake() throws IOException {
+		if (handshakeFinished)
+			return true;
+		try {
+			if (!handshakeStarted) {
+				engine.beginHandshake();
+				handshakeStarted = true;
+			}
+			while (true) {
+				HandshakeStatus status = engine.getHandshakeStatus();
+				switch (status) {
+				case NEED_TASK:
+					runTasks();
+					break;
+				case NEED_WRAP:
+					writeLock.lock();
+					try {
+						wrap(EMPTY);
+						if (!flush())
+							return false;
+					} finally {
+						writeLock.unlock();
+					}
+					break;
+				case FINISHED:
+				case NOT_HANDSHAKING:
+					if (!flush())
+						return false;
+					handshakeFinished = true;
+					UpstreamTls.handshakeFinished(engine.getSession(), started);
+					return true;
+				default:
+					//NEED_UNWRAP
+					int result = unwrap();
+					if (result < 0)
+						throw new EOFException("XMPP server closed the connection during the TLS handshake");
+					if (result == 0)
+						return false;
+				}
+			}
+		} catch (IOException e) {
+			UpstreamTls.handshakeFailed();
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean hasPendingOutput() {
+		return netOut.position() > 0;
+	}
+
+	@Override
+	public boolean hasBufferedInput() {
+		return appIn.position() > 0 || netIn.position() > 0;
+	}
+
+	/**
+	 * Get the protocol and cipher suite negotiated by the handshake
+	 * @return protocol and cipher suite
+	 */
+	public String getCipher() {
+		return engine.getSession().getProtocol() + " " + engine.getSession().getCipherSuite();
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		while (appIn.position() == 0) {
+			if (engine.isInboundDone())
+				return -1;
+			int result = unwrap();
+			if (result < 0)
+				return -1;
+			if (result == 0)
+				return 0;
+			//the XMPP server may start a handshake at any time
+			HandshakeStatus status = engine.getHandshakeStatus();
+			if (status == HandshakeStatus.NEED_TASK)
+				runTasks();
+			else if (status == HandshakeStatus.NEED_WRAP) {
+				writeLock.lock();
+				try {
+					wrap(EMPTY);
+					flush();
+				} finally {
+					writeLock.unlock();
+				}
+			}
+		}
+		appIn.flip();
+		int count = Math.min(appIn.remaining(), dst.remaining());
+		int limit = appIn.limit();
+		appIn.limit(appIn.position() + count);
+		dst.put(appIn);
+		appIn.limit(limit);
+		appIn.compact();
+		return count;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[] { src }, 0, 1);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		if (!open)
+			throw new ClosedChannelException();
+		writeLock.lock();
+		try {
+			//records of the previous write come first
+			if (!flush())
+				return 0;
+			long written = 0;
+			while (hasRemaining(srcs, offset, length)) {
+				if (engine.isOutboundDone())
+					throw new ClosedChannelException();
+				SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+				written += result.bytesConsumed();
+				if (!check(result))
+					continue;
+				if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+					runTasks();
+				if (!flush())
+					break; //the consumed data is written by the next flush
+			}
+			return written;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean flush() throws IOException {
+		writeLock.lock();
+		try {
+			netOut.flip();
+			try {
+				while (netOut.hasRemaining() && out.write(netOut) > 0);
+			} finally {
+				netOut.compact();
+			}
+			return netOut.position() == 0;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Close the TLS connection. The close notification is sent unless another thread is writing.
+	 */
+	@Override
+	public void close() {
+		open = false;
+		engine.closeOutbound();
+		if (!writeLock.tryLock())
+			return; //another thread is writing
+		try {
+			wrap(EMPTY);
+			flush();
+		} catch (IOException e) {
+			//the connection is closed anyway
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Decrypt one record into the application buffer, reading from the channel if no complete record has been received
+	 * @return 1 if a record has been decrypted, 0 if the channel would block, -1 if the connection has been closed
+	 */
+	private int unwrap() throws IOException {
+		while (true) {
+			netIn.flip();
+			SSLEngineResult result;
+			try {
+				result = engine.unwrap(netIn, appIn);
+			} finally {
+				netIn.compact();
+			}
+			switch (result.getStatus()) {
+			case OK:
+				return 1;
+			case CLOSED:
+				return -1;
+			case BUFFER_OVERFLOW:
+				appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+				break;
+			default:
+				//BUFFER_UNDERFLOW
+				if (!netIn.hasRemaining())
+					netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+				int read = in.read(netIn);
+				if (read < 0)
+					return -1;
+				if (read == 0)
+					return 0;
+			}
+		}
+	}
+
+	/**
+	 * Encrypt data into the record buffer. Must be called while holding the write lock.
+	 */
+	private void wrap(ByteBuffer src) throws SSLException {
+		while (!check(engine.wrap(src, netOut)));
+	}
+
+	/**
+	 * Check the result of a wrap and grow the record buffer if it has been too small
+	 * @return true if the wrap has succeeded, false if it has to be repeated
+	 */
+	private boolean check(SSLEngineResult result) throws SSLException {
+		switch (result.getStatus()) {
+		case OK:
+			return true;
+		case BUFFER_OVERFLOW:
+			netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+			return false;
+		case CLOSED:
+			if (engine.isOutboundDone())
+				return true; //close notification has been wrapped
+			throw new SSLException("TLS connection has been closed");
+		default:
+			throw new SSLException("Unexpected TLS state " + result.getStatus());
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null)
+			task.run();
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, int size) {
+		ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() + size);
+		buffer.flip();
+		grown.put(buffer);
+		return grown;
+	}
+
+	private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (srcs[i].hasRemaining())
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.upstream;
+
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stream compression (XEP-0138) for connections to XMPP servers. Deflaters and inflaters are taken from a
+ * {@link ZlibPool} for the zlib format, which also sums up the compressed and uncompressed bytes and the time
+ * spent compressing over all connections.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class UpstreamCompression {
+
+	public static final String FLUSH_SYNC = "sync"; //every write ends at a byte boundary, the dictionary is kept
+	public static final String FLUSH_FULL = "full"; //every write resets the dictionary as well
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(UpstreamCompression.class);
+
+	private static volatile boolean enabled = false;
+	private static int level = Deflater.BEST_SPEED;
+	private static int flushMode = Deflater.SYNC_FLUSH;
+
+	private static final ZlibPool pool = new ZlibPool(false);
+
+	/**
+	 * Set up stream compression for connections to XMPP servers
+	 * @param enabled true, if compression is negotiated with XMPP servers that offer zlib
+	 * @param level the compression level from 0 (none) to 9 (best)
+	 * @param flush {@link #FLUSH_SYNC} or {@link #FLUSH_FULL}
+	 */
+	public static synchronized void start(boolean enabled, int level, String flush) {
+		UpstreamCompression.level = level;
+		UpstreamCompression.flushMode = FLUSH_FULL.equals(flush) ? Deflater.FULL_FLUSH : Deflater.SYNC_FLUSH;
+		UpstreamCompression.enabled = enabled;
+		if (enabled)
+			logger.info("Compressing streams to XMPP servers with zlib (level " + level + ", " + flush + " flush)");
+	}
+
+	/**
+	 * Check if compression is negotiated with XMPP servers
+	 * @return true if compression is negotiated with XMPP servers that offer zlib
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Compress a connection to an XMPP server
+	 * @param in the channel compressed data is read from
+	 * @param out the channel compressed data is written to
+	 * @return the compressing channel, its deflater and inflater are returned to the pool when it is closed
+	 */
+	public static ZlibChannel open(ReadableByteChannel in, WritableByteChannel out) {
+		return new ZlibChannel(in, out, pool.takeDeflater(level), pool.takeInflater(), flushMode);
+	}
+
+	/**
+	 * Return a deflater and an inflater that are not used anymore
+	 * @param deflater the deflater of a closed channel
+	 * @param inflater the inflater of a closed channel
+	 */
+	static void release(Deflater deflater, Inflater inflater) {
+		pool.release(deflater);
+		pool.release(inflater);
+	}
+
+	/**
+	 * Record data compressed for an XMPP server
+	 * @param raw the number of uncompressed bytes
+	 * @param compressed the number of compressed bytes
+	 * @param nanos the time spent compressing in ns
+	 */
+	static void deflated(long raw, long compressed, long nanos) {
+		pool.deflated(raw, compressed, nanos);
+	}
+
+	/**
+	 * Record data decompressed from an XMPP server
+	 * @param compressed the number of compressed bytes
+	 * @param raw the number of uncompressed bytes
+	 * @param nanos the time spent decompressing in ns
+	 */
+	static void inflated(long compressed, long raw, long nanos) {
+		pool.inflated(compressed, raw, nanos);
+	}
+
+	/**
+	 * Get the number of bytes sent to XMPP servers before compression
+	 * @return the number of uncompressed bytes
+	 */
+	public static long getBytesDeflated() {
+		return pool.getBytesDeflated();
+	}
+
+	/**
+	 * Get the number of compressed bytes sent to XMPP servers
+	 * @return the number of compressed bytes
+	 */
+	public static long getBytesDeflatedTo() {
+		return pool.getBytesDeflatedTo();
+	}
+
+	/**
+	 * Get the time spent compressing
+	 * @return the time spent compressing in ms
+	 */
+	public static long getDeflateTime() {
+		return pool.getDeflateTime();
+	}
+
+	/**
+	 * Get the number of bytes received from XMPP servers after decompression
+	 * @return the number of uncompressed bytes
+	 */
+	public static long getBytesInflated() {
+		return pool.getBytesInflated();
+	}
+
+	/**
+	 * Get the number of compressed bytes received from XMPP servers
+	 * @return the number of compressed bytes
+	 */
+	public static long getBytesInflatedFrom() {
+		return pool.getBytesInflatedFrom();
+	}
+
+	/**
+	 * Get the time spent decompressing
+	 * @return the time spent decompressing in ms
+	 */
+	public static long getInflateTime() {
+		return pool.getInflateTime();
+	}
+}
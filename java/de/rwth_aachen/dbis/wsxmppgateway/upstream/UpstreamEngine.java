@@ -0,0 +1,306 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.upstream;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The engine that drives the connections between the gateway and the XMPP servers.
+ * In mode {@link #MODE_NIO} all connections are multiplexed on a small pool of {@link UpstreamReactor}s,
+ * in mode {@link #MODE_THREAD} every connection is served by a dedicated blocking platform thread and
+ * in mode {@link #MODE_VIRTUAL} by a dedicated blocking virtual thread (requires Java 21 or later).
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class UpstreamEngine {
+
+	public static final String MODE_THREAD = "thread";
+	public static final String MODE_NIO = "nio";
+	public static final String MODE_VIRTUAL = "virtual";
+
+	private static final int RESOLVER_THREADS = 8;
+	private static final int CONNECTOR_THREADS = 8;
+	private static final int CLIENT_WRITER_THREADS = 64;
+	private static final int CONTROL_THREADS = 4;
+	private static final long DEADLINE_TICK = 100; //100 ms
+	private static final int DEADLINE_SLOTS = 1024; //one turn of the wheel takes 102.4 sec
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(UpstreamEngine.class);
+
+	//number of connects to XMPP servers that have been started but not finished yet
+	private static final AtomicInteger pendingConnects = new AtomicInteger(0);
+
+	//threads that resolve hostnames of XMPP servers off the Jetty and reactor threads
+	private static final ExecutorService resolver = createPool(RESOLVER_THREADS, "wxg-resolver-");
+	//threads that open pooled connections and probe ejected XMPP servers, a slow server does not hold up the resolver
+	private static final ExecutorService connector = createPool(CONNECTOR_THREADS, "wxg-connector-");
+
+	//thread that runs delayed tasks, e.g. flushes of outbound queues
+	private static final ScheduledExecutorService timer = createTimer();
+	//timing wheel that tracks the idle, liveness and handshake deadlines of all sessions
+	private static final TimingWheel deadlines = createDeadlines();
+	//writes to WebSocket clients on behalf of the reactors, a write blocks while the client does not take data
+	//a write blocked for longer than the client write timeout is aborted, further writes wait in the queue
+	private static final ExecutorService clientWriter = createPool(CLIENT_WRITER_THREADS, "wxg-client-writer-");
+	//pings, disconnects and other tasks of the sessions, kept apart so they do not wait behind blocked writes
+	private static final ExecutorService control = createPool(CONTROL_THREADS, "wxg-control-");
+
+	private static String mode = MODE_NIO;
+	private static UpstreamReactor[] reactors = new UpstreamReactor[0];
+	private static ThreadFactory virtualThreadFactory = null; //null if proxy threads are platform threads
+
+	/**
+	 * Start the upstream engine
+	 * @param engineMode the mode of the engine, either {@link #MODE_NIO}, {@link #MODE_THREAD} or {@link #MODE_VIRTUAL}
+	 * @param selectors the number of selector threads, 0 to use one per available processor
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public static synchronized void start(String engineMode, int selectors) throws IOException {
+		virtualThreadFactory = null;
+		if (MODE_THREAD.equals(engineMode))
+			mode = MODE_THREAD;
+		else if (MODE_NIO.equals(engineMode))
+			mode = MODE_NIO;
+		else if (MODE_VIRTUAL.equals(engineMode)) {
+			virtualThreadFactory = createVirtualThreadFactory();
+			if (virtualThreadFactory != null)
+				mode = MODE_VIRTUAL;
+			else {
+				logger.warn("Virtual threads are not supported by this JVM, falling back to upstream engine " + MODE_THREAD);
+				mode = MODE_THREAD;
+			}
+		}
+		else
+			throw new IllegalArgumentException("Unknown upstream engine: " + engineMode);
+
+		if (!MODE_NIO.equals(mode))
+			return;
+		if (selectors <= 0)
+			selectors = Runtime.getRuntime().availableProcessors();
+		reactors = new UpstreamReactor[selectors];
+		for (int i = 0; i < selectors; i++) {
+			reactors[i] = new UpstreamReactor("wxg-upstream-" + i);
+			reactors[i].start();
+		}
+		logger.info("Started upstream engine with " + selectors + " selector threads");
+	}
+
+	/**
+	 * Stop the upstream engine and close all connections to XMPP servers
+	 */
+	public static synchronized void stop() {
+		for (UpstreamReactor reactor : reactors)
+			reactor.stop();
+		reactors = new UpstreamReactor[0];
+	}
+
+	/**
+	 * Create a thread that serves a blocking connection to an XMPP server.
+	 * Depending on the mode of the engine a virtual or a platform thread is created.
+	 * @param task the task to be run by the thread
+	 * @return the new thread, not yet started
+	 */
+	public static Thread newProxyThread(Runnable task) {
+		ThreadFactory factory = virtualThreadFactory;
+		if (factory != null)
+			return factory.newThread(task);
+		return new Thread(task);
+	}
+
+	/**
+	 * Run a task that may block while resolving a hostname
+	 * @param task the task to be run by a resolver thread
+	 */
+	public static void resolve(Runnable task) {
+		resolver.execute(task);
+	}
+
+	/**
+	 * Run a task that may block while connecting to an XMPP server in the background, e.g. to fill the connection pool
+	 * @param task the task to be run by a connector thread
+	 */
+	public static void connect(Runnable task) {
+		connector.execute(task);
+	}
+
+	/**
+	 * Run a short task after a delay
+	 * @param task the task to be run by the timer thread
+	 * @param delay the delay in ms
+	 */
+	public static void schedule(Runnable task, long delay) {
+		timer.schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Run a short task once a deadline of a session has been reached. The deadline may fire up to
+	 * {@value #DEADLINE_TICK} ms late, tasks that may block have to be handed over to another thread.
+	 * @param task the task to be run by the timing wheel thread
+	 * @param delay the delay in ms
+	 */
+	public static void scheduleDeadline(Runnable task, long delay) {
+		deadlines.schedule(task, delay);
+	}
+
+	/**
+	 * Get the number of session deadlines that have not been reached yet
+	 * @return the number of pending deadlines
+	 */
+	public static int getPendingDeadlines() {
+		return deadlines.getPending();
+	}
+
+	/**
+	 * Run a task that may block while writing to a WebSocket client
+	 * @param task the task to be run by a client writer thread
+	 */
+	public static void writeToClient(Runnable task) {
+		clientWriter.execute(task);
+	}
+
+	/**
+	 * Run a task that controls a session, e.g. a ping or a disconnect. Tasks must not wait for writes to a client.
+	 * @param task the task to be run by a control thread
+	 */
+	public static void control(Runnable task) {
+		control.execute(task);
+	}
+
+	/**
+	 * Record that a connect to an XMPP server has been started
+	 * @return the number of pending connects including the new one
+	 */
+	public static int connectStarted() {
+		return pendingConnects.incrementAndGet();
+	}
+
+	/**
+	 * Record that a connect to an XMPP server has been finished, either successfully or not
+	 */
+	public static void connectFinished() {
+		pendingConnects.decrementAndGet();
+	}
+
+	/**
+	 * Get the number of connects to XMPP servers that have been started but not finished yet
+	 * @return the number of pending connects
+	 */
+	public static int getPendingConnects() {
+		return pendingConnects.get();
+	}
+
+	/**
+	 * Create a bounded thread pool for tasks that may block. Tasks wait in the queue while all threads are busy,
+	 * idle threads are terminated.
+	 * @param threads the maximum number of threads
+	 * @param name the prefix of the thread names
+	 * @return the thread pool
+	 */
+	private static ExecutorService createPool(int threads, final String name) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, name + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Create the thread that runs delayed tasks
+	 * @return the timer
+	 */
+	private static ScheduledExecutorService createTimer() {
+		return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "wxg-timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Create and start the timing wheel for session deadlines
+	 * @return the timing wheel
+	 */
+	private static TimingWheel createDeadlines() {
+		TimingWheel wheel = new TimingWheel("wxg-deadlines", DEADLINE_TICK, DEADLINE_SLOTS);
+		wheel.start();
+		return wheel;
+	}
+
+	/**
+	 * Look up the factory for virtual threads. Reflection is used to keep the gateway runnable on JVMs without virtual threads.
+	 * @return the factory of Thread.ofVirtual(), null if virtual threads are not supported
+	 */
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "wxg-proxy-", 0L);
+			Method factory = builderClass.getMethod("factory");
+			return (ThreadFactory)factory.invoke(builder);
+		} catch (Exception e) {
+			//NoSuchMethodException on JVMs before Java 21, UnsupportedOperationException if preview features are disabled
+			return null;
+		}
+	}
+
+	/**
+	 * Get the reactor that should serve the next connection. The reactor with the least registered channels is chosen.
+	 * @return the reactor for the next connection
+	 */
+	public static UpstreamReactor nextReactor() {
+		UpstreamReactor[] current = reactors;
+		if (current.length == 0)
+			throw new IllegalStateException("Upstream engine has not been started in mode " + MODE_NIO);
+		UpstreamReactor next = current[0];
+		for (int i = 1; i < current.length; i++) {
+			if (current[i].getChannelCount() < next.getChannelCount())
+				next = current[i];
+		}
+		return next;
+	}
+
+	/**
+	 * Get the mode of the engine
+	 * @return the mode of the engine, either {@link #MODE_NIO}, {@link #MODE_THREAD} or {@link #MODE_VIRTUAL}
+	 */
+	public static String getMode() {
+		return mode;
+	}
+}
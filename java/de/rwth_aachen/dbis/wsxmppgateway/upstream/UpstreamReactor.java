@@ -0,0 +1,214 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.upstream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single selector thread that multiplexes a share of all connections to XMPP servers.
+ * Channels are registered together with a {@link ChannelListener} that is notified about readiness events.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class UpstreamReactor implements Runnable {
+
+	private static final int READ_BUFFER_SIZE = 16*1024;
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(UpstreamReactor.class);
+
+	private final String name;
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>(); //tasks to be run on the reactor thread
+	private final AtomicInteger channelCount = new AtomicInteger(0); //number of channels registered with this reactor
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE); //shared by all channels of this reactor
+
+	private Thread thread;
+	private volatile boolean running = false;
+
+	/**
+	 * Creates a new reactor
+	 * @param name the name of the reactor thread
+	 * @throws IOException if the selector cannot be opened
+	 */
+	public UpstreamReactor(String name) throws IOException {
+		this.name = name;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Start the reactor thread
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the reactor thread and close all registered channels
+	 */
+	public synchronized void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		logger.info(name + " - started");
+		while (running) {
+			try {
+				//idle connections are detected by the deadlines of the upstream engine, not by the reactor
+				selector.select();
+				runTasks();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					dispatch(key);
+				}
+			} catch (IOException e) {
+				logger.error(name + " - error during select", e);
+			} catch (RuntimeException e) {
+				//a misbehaving listener must not take down all other connections of this reactor
+				logger.error(name + " - error during event dispatching", e);
+			}
+		}
+		for (SelectionKey key : selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {}
+		logger.info(name + " - stopped");
+	}
+
+	/**
+	 * Notify the listener of a selected key about the ready operations
+	 * @param key the selected key
+	 */
+	private void dispatch(SelectionKey key) {
+		ChannelListener listener = (ChannelListener)key.attachment();
+		try {
+			if (key.isValid() && key.isConnectable())
+				listener.onConnectable(key);
+			if (key.isValid() && key.isReadable())
+				listener.onReadable(key);
+			if (key.isValid() && key.isWritable())
+				listener.onWritable(key);
+		} catch (CancelledKeyException e) {
+			//channel has been closed by the listener in the meantime
+		}
+	}
+
+	/**
+	 * Run all tasks that have been queued by other threads
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+			task.run();
+	}
+
+	/**
+	 * Run a task on the reactor thread
+	 * @param task the task to be run
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (Thread.currentThread() != thread)
+			selector.wakeup();
+	}
+
+	/**
+	 * Register a channel with this reactor. The listener is notified by {@link ChannelListener#onRegistered(SelectionKey)} once the
+	 * channel is part of the selector.
+	 * @param channel the non-blocking channel to register
+	 * @param ops the initial interest set
+	 * @param listener the listener to be notified about readiness events
+	 */
+	public void register(final SelectableChannel channel, final int ops, final ChannelListener listener) {
+		channelCount.incrementAndGet();
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					SelectionKey key = channel.register(selector, ops, listener);
+					listener.onRegistered(key);
+				} catch (ClosedChannelException e) {
+					//channel has been closed before it could be registered
+					channelCount.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Cancel the registration of a channel and close it. Calls for a channel that has already been unregistered are ignored.
+	 * @param key the selection key of the channel
+	 */
+	public void unregister(SelectionKey key) {
+		if (key == null || !key.isValid())
+			return;
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {}
+		channelCount.decrementAndGet();
+	}
+
+	/**
+	 * Get the buffer used to read from channels. It may only be used on the reactor thread and never be kept by a listener.
+	 * @return the shared read buffer
+	 */
+	public ByteBuffer getReadBuffer() {
+		return readBuffer;
+	}
+
+	/**
+	 * Get the number of channels registered with this reactor
+	 * @return the number of registered channels
+	 */
+	public int getChannelCount() {
+		return channelCount.get();
+	}
+
+	/**
+	 * Get the name of the reactor thread
+	 * @return the name of the reactor thread
+	 */
+	public String getName() {
+		return name;
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.upstream;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TLS for connections to XMPP servers that have been secured with STARTTLS. All connections share one client session
+ * cache that keeps the sessions per XMPP server, so a new connection to a known XMPP server resumes a previous session
+ * instead of performing a full handshake.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class UpstreamTls {
+
+	public static final String MODE_OFF = "off"; //never negotiate TLS, features are forwarded as received
+	public static final String MODE_OPTIONAL = "optional"; //negotiate TLS if the XMPP server offers it
+	public static final String MODE_REQUIRED = "required"; //close sessions to XMPP servers that do not offer TLS
+
+	//initialize slf4j logging framework
+	private static final Logger logger = LoggerFactory.getLogger(UpstreamTls.class);
+
+	private static volatile String mode = MODE_OFF;
+	private static volatile SSLContext context = null;
+	private static boolean verify = true;
+
+	private static final AtomicLong fullHandshakes = new AtomicLong(0);
+	private static final AtomicLong resumedHandshakes = new AtomicLong(0);
+	private static final AtomicLong failedHandshakes = new AtomicLong(0);
+
+	/**
+	 * Set up TLS for connections to XMPP servers
+	 * @param mode one of {@link #MODE_OFF}, {@link #MODE_OPTIONAL} and {@link #MODE_REQUIRED}
+	 * @param trustStore the keystore holding the trusted certificates, empty to use the trusted certificates of the JVM
+	 * @param trustStorePassword the password of the keystore, may be null
+	 * @param verify true, if certificate and hostname of the XMPP servers are verified
+	 * @param cacheSize the maximum number of cached sessions, 0 for no limit
+	 * @param cacheTimeout the time in s a cached session may be resumed
+	 * @throws GeneralSecurityException if the TLS context cannot be initialized
+	 * @throws IOException if the keystore cannot be read
+	 */
+	public static synchronized void start(String mode, String trustStore, String trustStorePassword, boolean verify, int cacheSize,
+			int cacheTimeout) throws GeneralSecurityException, IOException {
+		if (MODE_OFF.equals(mode)) {
+			UpstreamTls.mode = mode;
+			return;
+		}
+		TrustManager[] trustManagers;
+		if (!verify)
+			trustManagers = new TrustManager[] { new TrustAllManager() };
+		else if (trustStore != null && trustStore.length() > 0) {
+			KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+			FileInputStream in = new FileInputStream(trustStore);
+			try {
+				keyStore.load(in, trustStorePassword != null ? trustStorePassword.toCharArray() : null);
+			} finally {
+				in.close();
+			}
+			TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			factory.init(keyStore);
+			trustManagers = factory.getTrustManagers();
+		}
+		else
+			trustManagers = null; //trusted certificates of the JVM
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, trustManagers, null);
+		SSLSessionContext sessions = context.getClientSessionContext();
+		sessions.setSessionCacheSize(cacheSize);
+		sessions.setSessionTimeout(cacheTimeout);
+		UpstreamTls.verify = verify;
+		UpstreamTls.context = context;
+		UpstreamTls.mode = mode;
+		logger.info("Securing connections to XMPP servers with STARTTLS (" + mode + ", " + cacheSize + " cached sessions)");
+	}
+
+	/**
+	 * Check if TLS is negotiated with XMPP servers
+	 * @return true if STARTTLS is negotiated with XMPP servers that offer it
+	 */
+	public static boolean isEnabled() {
+		return !MODE_OFF.equals(mode);
+	}
+
+	/**
+	 * Check if XMPP servers have to offer TLS
+	 * @return true if sessions to XMPP servers that do not offer STARTTLS are closed
+	 */
+	public static boolean isRequired() {
+		return MODE_REQUIRED.equals(mode);
+	}
+
+	/**
+	 * Create the TLS engine for a connection to an XMPP server. Sessions are cached per hostname and port,
+	 * so connections to the same XMPP server resume each other's sessions.
+	 * @param hostname the hostname of the XMPP server, the certificate has to be issued for it
+	 * @param port the port the connection has been established to
+	 * @return the engine in client mode
+	 */
+	public static SSLEngine createEngine(String hostname, int port) {
+		SSLEngine engine = context.createSSLEngine(hostname, port);
+		engine.setUseClientMode(true);
+		if (verify) {
+			SSLParameters parameters = engine.getSSLParameters();
+			parameters.setEndpointIdentificationAlgorithm("HTTPS"); //check the hostname of the certificate
+			engine.setSSLParameters(parameters);
+		}
+		return engine;
+	}
+
+	/**
+	 * Record a finished handshake. A session created before the handshake has been started has been resumed.
+	 * @param session the negotiated session
+	 * @param started the time in ms the handshake has been started
+	 */
+	static void handshakeFinished(SSLSession session, long started) {
+		if (session.getCreationTime() < started)
+			resumedHandshakes.incrementAndGet();
+		else
+			fullHandshakes.incrementAndGet();
+	}
+
+	/**
+	 * Record a failed handshake
+	 */
+	static void handshakeFailed() {
+		failedHandshakes.incrementAndGet();
+	}
+
+	/**
+	 * Get the number of handshakes that have negotiated a new session
+	 * @return the number of full handshakes
+	 */
+	public static long getFullHandshakes() {
+		return fullHandshakes.get();
+	}
+
+	/**
+	 * Get the number of handshakes that have resumed a cached session
+	 * @return the number of resumed handshakes
+	 */
+	public static long getResumedHandshakes() {
+		return resumedHandshakes.get();
+	}
+
+	/**
+	 * Get the number of handshakes that have failed
+	 * @return the number of failed handshakes
+	 */
+	public static long getFailedHandshakes() {
+		return failedHandshakes.get();
+	}
+
+	/**
+	 * Get the number of sessions in the cache
+	 * @return the number of cached sessions
+	 */
+	public static int getCachedSessions() {
+		SSLContext context = UpstreamTls.context;
+		if (context == null)
+			return 0;
+		int count = 0;
+		for (Enumeration<byte[]> ids = context.getClientSessionContext().getIds(); ids.hasMoreElements(); ids.nextElement())
+			count++;
+		return count;
+	}
+
+	/**
+	 * Trusts every certificate, used if the XMPP servers are not verified
+	 */
+	private static class TrustAllManager implements X509TrustManager {
+
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType) {
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType) {
+		}
+
+		@Override
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.upstream;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.rwth_aachen.dbis.wsxmppgateway.metrics.GatewayMetrics;
+
+/**
+ * Queue of data to be written to an XMPP server. Data may be added by any thread, it is written in the order it has been
+ * added. All queued buffers are handed to the channel in one gathering write, so a burst of stanzas costs a single
+ * system call. Only one thread at a time may write the queue to the channel.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class WriteQueue {
+
+	private static final int MAX_BATCH = 64; //maximum number of buffers per gathering write
+
+	private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger bytes = new AtomicInteger(0); //bytes queued but not written yet
+	//buffers taken from the queue but not written completely yet, only accessed by the writing thread
+	private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+	private int batchOffset = 0;
+	private int batchLength = 0;
+
+	/**
+	 * Queue a string
+	 * @param xml the data to be written, it is encoded as UTF-8
+	 */
+	public void add(String xml) {
+		try {
+			byte[] data = xml.getBytes("UTF-8");
+			GatewayMetrics.bytesToServer(data.length);
+			bytes.addAndGet(data.length);
+			queue.add(ByteBuffer.wrap(data));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e); //UTF-8 is supported by every JVM
+		}
+	}
+
+	/**
+	 * Check if all queued data has been written
+	 * @return true if there is no data left to be written
+	 */
+	public boolean isEmpty() {
+		return batchLength == 0 && queue.isEmpty();
+	}
+
+	/**
+	 * Get the amount of queued data
+	 * @return the number of bytes queued but not written yet
+	 */
+	public int getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Write queued data to a channel until the queue is empty or the channel does not accept more data
+	 * @param channel the channel to be written to
+	 * @return true if all queued data has been written
+	 * @throws IOException if the channel cannot be written to
+	 */
+	public boolean writeTo(GatheringByteChannel channel) throws IOException {
+		while (true) {
+			//refill the batch from the queue
+			if (batchOffset > 0) {
+				System.arraycopy(batch, batchOffset, batch, 0, batchLength);
+				for (int i = batchLength; i < batchLength + batchOffset; i++)
+					batch[i] = null;
+				batchOffset = 0;
+			}
+			ByteBuffer buffer;
+			while (batchLength < MAX_BATCH && (buffer = queue.poll()) != null)
+				batch[batchLength++] = buffer;
+			if (batchLength == 0)
+				return true;
+
+			channel.write(batch, 0, batchLength);
+			while (batchLength > 0 && !batch[batchOffset].hasRemaining()) {
+				bytes.addAndGet(-batch[batchOffset].limit());
+				batch[batchOffset++] = null;
+				batchLength--;
+			}
+			if (batchLength > 0)
+				return false; //socket buffer is full
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.upstream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib stream compression (XEP-0138) on top of the channels of a connection to an XMPP server, which may be
+ * a socket channel or a {@link TlsChannel}. Every write is compressed and flushed as a whole, so the XMPP server can
+ * decompress everything that has been written. Reads and writes may be performed by different threads, writes are serialized.
+ * The compressed and uncompressed bytes and the time spent are counted per connection and summed up by {@link UpstreamCompression}.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class ZlibChannel implements FilterChannel {
+
+	private static final int BUFFER_SIZE = 16*1024;
+
+	private final ReadableByteChannel in;
+	private final WritableByteChannel out;
+	private final Deflater deflater;
+	private final Inflater inflater;
+	private final int flushMode;
+	private final Lock writeLock = new ReentrantLock();
+	private final Lock readLock = new ReentrantLock(); //the inflater is not returned to the pool while it is used
+
+	private ByteBuffer netOut = ByteBuffer.allocate(BUFFER_SIZE); //compressed data to be written, ready to be filled
+	private final ByteBuffer netIn = ByteBuffer.allocate(BUFFER_SIZE); //compressed data being inflated
+	private final byte[] inflated = new byte[BUFFER_SIZE];
+	private byte[] chunk = null; //copy of data that is not backed by an array
+	private volatile boolean open = true;
+
+	//statistics of this connection
+	private volatile long rawOut = 0;
+	private volatile long compressedOut = 0;
+	private volatile long rawIn = 0;
+	private volatile long compressedIn = 0;
+	private volatile long nanos = 0;
+
+	/**
+	 * Creates a compressing channel, see {@link UpstreamCompression#open(ReadableByteChannel, WritableByteChannel)}
+	 * @param in the channel compressed data is read from
+	 * @param out the channel compressed data is written to
+	 * @param deflater the deflater, reset
+	 * @param inflater the inflater, reset
+	 * @param flushMode {@link Deflater#SYNC_FLUSH} or {@link Deflater#FULL_FLUSH}
+	 */
+	ZlibChannel(ReadableByteChannel in, WritableByteChannel out, Deflater deflater, Inflater inflater, int flushMode) {
+		this.in = in;
+		this.out = out;
+		this.deflater = deflater;
+		this.inflater = inflater;
+		this.flushMode = flushMode;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		readLock.lock();
+		try {
+			if (!open)
+				throw new ClosedChannelException();
+			while (true) {
+				if (!inflater.needsInput()) {
+					long start = System.nanoTime();
+					int count;
+					try {
+						count = inflater.inflate(inflated, 0, Math.min(inflated.length, dst.remaining()));
+					} catch (DataFormatException e) {
+						throw new IOException("Invalid compressed data received from XMPP server: " + e.getMessage());
+					}
+					long time = System.nanoTime() - start;
+					nanos += time;
+					rawIn += count;
+					UpstreamCompression.inflated(0, count, time);
+					if (count > 0) {
+						dst.put(inflated, 0, count);
+						return count;
+					}
+					if (inflater.finished())
+						return -1; //XMPP server has ended the compressed stream
+					if (!inflater.needsInput())
+						return 0;
+				}
+				netIn.clear();
+				int read = in.read(netIn);
+				if (read <= 0)
+					return read;
+				compressedIn += read;
+				UpstreamCompression.inflated(read, 0, 0);
+				inflater.setInput(netIn.array(), 0, read);
+			}
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[] { src }, 0, 1);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		writeLock.lock();
+		try {
+			if (!open)
+				throw new ClosedChannelException();
+			//compressed data of the previous write comes first
+			if (!flush())
+				return 0;
+			long start = System.nanoTime();
+			int before = netOut.position();
+			long written = 0;
+			for (int i = offset; i < offset + length; i++) {
+				ByteBuffer src = srcs[i];
+				int count = src.remaining();
+				if (count == 0)
+					continue;
+				if (src.hasArray())
+					deflater.setInput(src.array(), src.arrayOffset() + src.position(), count);
+				else {
+					if (chunk == null || chunk.length < count)
+						chunk = new byte[count];
+					src.duplicate().get(chunk, 0, count);
+					deflater.setInput(chunk, 0, count);
+				}
+				while (!deflater.needsInput())
+					deflate(Deflater.NO_FLUSH);
+				src.position(src.limit());
+				written += count;
+			}
+			//end the write at a byte boundary, so the XMPP server can decompress all of it
+			while (deflate(flushMode));
+			long time = System.nanoTime() - start;
+			nanos += time;
+			rawOut += written;
+			compressedOut += netOut.position() - before;
+			UpstreamCompression.deflated(written, netOut.position() - before, time);
+			flush();
+			return written;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean flush() throws IOException {
+		writeLock.lock();
+		try {
+			FilterChannel below = out instanceof FilterChannel ? (FilterChannel) out : null;
+			if (below != null && !below.flush())
+				return false;
+			netOut.flip();
+			try {
+				while (netOut.hasRemaining() && out.write(netOut) > 0);
+			} finally {
+				netOut.compact();
+			}
+			if (netOut.position() > 0)
+				return false;
+			return below == null || below.flush();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean hasPendingOutput() {
+		return netOut.position() > 0 || (out instanceof FilterChannel && ((FilterChannel) out).hasPendingOutput());
+	}
+
+	@Override
+	public boolean hasBufferedInput() {
+		return !inflater.needsInput() || (in instanceof FilterChannel && ((FilterChannel) in).hasBufferedInput());
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Close the compression and the layers below. The deflater and the inflater are returned to the pool
+	 * once no other thread uses them.
+	 */
+	@Override
+	public void close() {
+		writeLock.lock();
+		readLock.lock();
+		try {
+			if (!open)
+				return;
+			open = false;
+			UpstreamCompression.release(deflater, inflater);
+		} finally {
+			readLock.unlock();
+			writeLock.unlock();
+		}
+		if (in instanceof FilterChannel)
+			((FilterChannel) in).close();
+		else if (out instanceof FilterChannel)
+			((FilterChannel) out).close();
+	}
+
+	/**
+	 * Get the statistics of this connection
+	 * @return compression ratio in both directions and the time spent
+	 */
+	public String getStatistics() {
+		return "compressed " + rawOut + " bytes to " + compressedOut + " (" + ratio(rawOut, compressedOut) + ":1), decompressed "
+				+ compressedIn + " bytes to " + rawIn + " (" + ratio(rawIn, compressedIn) + ":1) in " + (nanos / 1000000) + " ms";
+	}
+
+	/**
+	 * Compress into the output buffer, which is grown if it is full
+	 * @return true if the output buffer has been filled and the deflater has to be called again
+	 */
+	private boolean deflate(int flush) {
+		if (!netOut.hasRemaining()) {
+			ByteBuffer grown = ByteBuffer.allocate(netOut.capacity() * 2);
+			netOut.flip();
+			grown.put(netOut);
+			netOut = grown;
+		}
+		int space = netOut.remaining();
+		int count = deflater.deflate(netOut.array(), netOut.arrayOffset() + netOut.position(), space, flush);
+		netOut.position(netOut.position() + count);
+		return count == space;
+	}
+
+	private static String ratio(long raw, long compressed) {
+		if (compressed == 0)
+			return "0";
+		return String.valueOf(Math.round(raw * 10.0 / compressed) / 10.0);
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.upstream;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of deflaters and inflaters of one format, since their native state is expensive to set up for every
+ * connection or message. The compressed and uncompressed bytes and the time spent compressing are summed up
+ * for all users of the pool.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class ZlibPool {
+
+	private static final int MAX_POOLED = 256; //deflaters and inflaters kept for reuse
+
+	private final boolean nowrap;
+	private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+	private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+	private final AtomicInteger pooledDeflaters = new AtomicInteger(0);
+	private final AtomicInteger pooledInflaters = new AtomicInteger(0);
+
+	private final AtomicLong bytesDeflated = new AtomicLong(0);
+	private final AtomicLong bytesDeflatedTo = new AtomicLong(0);
+	private final AtomicLong deflateNanos = new AtomicLong(0);
+	private final AtomicLong bytesInflated = new AtomicLong(0);
+	private final AtomicLong bytesInflatedFrom = new AtomicLong(0);
+	private final AtomicLong inflateNanos = new AtomicLong(0);
+
+	/**
+	 * Creates an empty pool
+	 * @param nowrap true for raw deflate data (e.g. permessage-deflate), false for the zlib format (e.g. XEP-0138)
+	 */
+	public ZlibPool(boolean nowrap) {
+		this.nowrap = nowrap;
+	}
+
+	/**
+	 * Take a deflater from the pool or create a new one
+	 * @param level the compression level from 0 (none) to 9 (best)
+	 * @return the deflater, it has to be returned with {@link #release(Deflater)}
+	 */
+	public Deflater takeDeflater(int level) {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null)
+			return new Deflater(level, nowrap);
+		pooledDeflaters.decrementAndGet();
+		deflater.setLevel(level);
+		return deflater;
+	}
+
+	/**
+	 * Take an inflater from the pool or create a new one
+	 * @return the inflater, it has to be returned with {@link #release(Inflater)}
+	 */
+	public Inflater takeInflater() {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null)
+			return new Inflater(nowrap);
+		pooledInflaters.decrementAndGet();
+		return inflater;
+	}
+
+	/**
+	 * Return a deflater that is not used anymore, it is ended if the pool is full
+	 * @param deflater a deflater taken from this pool
+	 */
+	public void release(Deflater deflater) {
+		if (pooledDeflaters.incrementAndGet() <= MAX_POOLED) {
+			deflater.reset();
+			deflaters.add(deflater);
+		}
+		else {
+			pooledDeflaters.decrementAndGet();
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Return an inflater that is not used anymore, it is ended if the pool is full
+	 * @param inflater an inflater taken from this pool
+	 */
+	public void release(Inflater inflater) {
+		if (pooledInflaters.incrementAndGet() <= MAX_POOLED) {
+			inflater.reset();
+			inflaters.add(inflater);
+		}
+		else {
+			pooledInflaters.decrementAndGet();
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Record compressed data
+	 * @param raw the number of uncompressed bytes
+	 * @param compressed the number of compressed bytes
+	 * @param nanos the time spent compressing in ns
+	 */
+	public void deflated(long raw, long compressed, long nanos) {
+		bytesDeflated.addAndGet(raw);
+		bytesDeflatedTo.addAndGet(compressed);
+		deflateNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Record decompressed data
+	 * @param compressed the number of compressed bytes
+	 * @param raw the number of uncompressed bytes
+	 * @param nanos the time spent decompressing in ns
+	 */
+	public void inflated(long compressed, long raw, long nanos) {
+		bytesInflatedFrom.addAndGet(compressed);
+		bytesInflated.addAndGet(raw);
+		inflateNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Get the number of bytes before compression
+	 * @return the number of uncompressed bytes
+	 */
+	public long getBytesDeflated() {
+		return bytesDeflated.get();
+	}
+
+	/**
+	 * Get the number of bytes after compression
+	 * @return the number of compressed bytes
+	 */
+	public long getBytesDeflatedTo() {
+		return bytesDeflatedTo.get();
+	}
+
+	/**
+	 * Get the time spent compressing
+	 * @return the time spent compressing in ms
+	 */
+	public long getDeflateTime() {
+		return deflateNanos.get() / 1000000;
+	}
+
+	/**
+	 * Get the number of bytes after decompression
+	 * @return the number of uncompressed bytes
+	 */
+	public long getBytesInflated() {
+		return bytesInflated.get();
+	}
+
+	/**
+	 * Get the number of bytes before decompression
+	 * @return the number of compressed bytes
+	 */
+	public long getBytesInflatedFrom() {
+		return bytesInflatedFrom.get();
+	}
+
+	/**
+	 * Get the time spent decompressing
+	 * @return the time spent decompressing in ms
+	 */
+	public long getInflateTime() {
+		return inflateNanos.get() / 1000000;
+	}
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.xml;
+
+import i5.simpleXML.XMLSyntaxException;
+
+/**
+ * Lightweight well-formedness checker for single stanzas. Character data and attribute values are skipped with
+ * String.indexOf(), no document tree is built and no strings are created. Tags have to be balanced, attribute values
+ * quoted and unique and entity references predefined. Comments, processing instructions and DTDs are rejected since they are not allowed in XMPP streams.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class StanzaChecker {
+
+	private static final String CDATA_START = "<![CDATA[";
+	private static final String CDATA_END = "]]>";
+	private static final String[] PREDEFINED_ENTITIES = {"amp", "lt", "gt", "quot", "apos"};
+
+	private final String xml;
+	private int pos = 0;
+	//start offsets and lengths of the names of all open elements
+	private int[] nameStart = new int[16];
+	private int[] nameLength = new int[16];
+	private int depth = 0;
+	//start offsets and lengths of the attribute names of the current start tag
+	private int[] attributeStart = new int[8];
+	private int[] attributeLength = new int[8];
+	private int attributes = 0;
+	//positions of the next '<' and '&' found by String.indexOf(), -1 if there are none left
+	private int nextLt = -2;
+	private int nextAmp = -2;
+
+	private StanzaChecker(String xml) {
+		this.xml = xml;
+	}
+
+	/**
+	 * Check that the given string is a single well-formed element, optionally surrounded by whitespace
+	 * @param xml the stanza to be checked
+	 * @throws XMLSyntaxException if the stanza is not well-formed
+	 */
+	public static void check(String xml) throws XMLSyntaxException {
+		new StanzaChecker(xml).check();
+	}
+
+	private void check() throws XMLSyntaxException {
+		skipWhitespace();
+		if (charAt(pos) != '<')
+			throw new XMLSyntaxException("Stanza must start with a tag");
+		while (pos < xml.length()) {
+			char c = xml.charAt(pos);
+			if (c == '<') {
+				char next = charAt(pos + 1);
+				if (next == '/')
+					endTag();
+				else if (next == '!' && depth > 0 && xml.startsWith(CDATA_START, pos))
+					cdata();
+				else if (next == '!' || next == '?')
+					throw new XMLSyntaxException("Restricted XML (comment, DTD or processing instruction)");
+				else
+					startTag();
+				if (depth == 0) {
+					//stanza is complete, only whitespace may follow
+					skipWhitespace();
+					if (pos < xml.length())
+						throw new XMLSyntaxException("Data after end of stanza");
+					return;
+				}
+			}
+			else {
+				//character data, skip to the next markup or reference
+				int lt = nextLt(pos);
+				if (lt < 0)
+					break;
+				int amp = nextAmp(pos);
+				if (amp >= 0 && amp < lt) {
+					pos = amp;
+					reference();
+				}
+				else
+					pos = lt;
+			}
+		}
+		throw new XMLSyntaxException("Unexpected end of stanza");
+	}
+
+	/**
+	 * Scan a start tag including its attributes. pos points to '<'.
+	 */
+	private void startTag() throws XMLSyntaxException {
+		pos++;
+		int start = pos;
+		name();
+		push(start, pos - start);
+		attributes = 0;
+		while (true) {
+			boolean whitespace = skipWhitespace();
+			char c = charAt(pos);
+			if (c == '>') {
+				pos++;
+				return;
+			}
+			if (c == '/') {
+				if (charAt(pos + 1) != '>')
+					throw new XMLSyntaxException("'>' expected after '/'");
+				pos += 2;
+				depth--;
+				return;
+			}
+			if (!whitespace)
+				throw new XMLSyntaxException("Whitespace expected before attribute");
+			attribute();
+		}
+	}
+
+	/**
+	 * Scan an attribute. pos points to the first character of its name.
+	 */
+	private void attribute() throws XMLSyntaxException {
+		int start = pos;
+		name();
+		addAttribute(start, pos - start);
+		skipWhitespace();
+		if (charAt(pos) != '=')
+			throw new XMLSyntaxException("'=' expected after attribute name");
+		pos++;
+		skipWhitespace();
+		char quote = charAt(pos);
+		if (quote != '"' && quote != '\'')
+			throw new XMLSyntaxException("Attribute value must be quoted");
+		pos++;
+		int end = xml.indexOf(quote, pos);
+		if (end < 0)
+			throw new XMLSyntaxException("Unterminated attribute value");
+		int lt = nextLt(pos);
+		if (lt >= 0 && lt < end)
+			throw new XMLSyntaxException("'<' in attribute value");
+		int amp;
+		while ((amp = nextAmp(pos)) >= 0 && amp < end) {
+			pos = amp;
+			reference();
+		}
+		pos = end + 1;
+	}
+
+	/**
+	 * Scan an end tag and match it with the innermost open element. pos points to '<'.
+	 */
+	private void endTag() throws XMLSyntaxException {
+		pos += 2;
+		int start = pos;
+		name();
+		if (depth == 0)
+			throw new XMLSyntaxException("End tag without start tag");
+		depth--;
+		if (pos - start != nameLength[depth] || !xml.regionMatches(start, xml, nameStart[depth], nameLength[depth]))
+			throw new XMLSyntaxException("End tag does not match start tag");
+		skipWhitespace();
+		if (charAt(pos) != '>')
+			throw new XMLSyntaxException("'>' expected in end tag");
+		pos++;
+	}
+
+	/**
+	 * Skip a CDATA section. pos points to '<'.
+	 */
+	private void cdata() throws XMLSyntaxException {
+		int end = xml.indexOf(CDATA_END, pos + CDATA_START.length());
+		if (end < 0)
+			throw new XMLSyntaxException("Unterminated CDATA section");
+		pos = end + CDATA_END.length();
+	}
+
+	/**
+	 * Scan a character or entity reference. pos points to '&'.
+	 */
+	private void reference() throws XMLSyntaxException {
+		pos++;
+		int start = pos;
+		if (charAt(pos) == '#') {
+			pos++;
+			boolean hex = charAt(pos) == 'x';
+			if (hex)
+				pos++;
+			int digits = pos;
+			while (hex ? isHexDigit(charAt(pos)) : isDigit(charAt(pos)))
+				pos++;
+			if (pos == digits)
+				throw new XMLSyntaxException("Invalid character reference");
+		}
+		else {
+			name();
+			boolean predefined = false;
+			for (String entity : PREDEFINED_ENTITIES)
+				predefined |= entity.length() == pos - start && xml.startsWith(entity, start);
+			if (!predefined)
+				throw new XMLSyntaxException("Undefined entity reference");
+		}
+		if (charAt(pos) != ';')
+			throw new XMLSyntaxException("';' expected after reference");
+		pos++;
+	}
+
+	/**
+	 * Scan a name. pos points to its first character and is advanced behind its last character.
+	 */
+	private void name() throws XMLSyntaxException {
+		char c = charAt(pos);
+		if (!isNameStartChar(c))
+			throw new XMLSyntaxException("Invalid name");
+		pos++;
+		while (pos < xml.length() && isNameChar(xml.charAt(pos)))
+			pos++;
+	}
+
+	/**
+	 * Skip whitespace
+	 * @return true if at least one whitespace character has been skipped
+	 */
+	private boolean skipWhitespace() {
+		int start = pos;
+		while (pos < xml.length() && isWhitespace(xml.charAt(pos)))
+			pos++;
+		return pos > start;
+	}
+
+	/**
+	 * Find the next '<' at or after the given position
+	 * @return its position, -1 if there is none
+	 */
+	private int nextLt(int from) {
+		if (nextLt != -1 && nextLt < from)
+			nextLt = xml.indexOf('<', from);
+		return nextLt;
+	}
+
+	/**
+	 * Find the next '&' at or after the given position
+	 * @return its position, -1 if there is none
+	 */
+	private int nextAmp(int from) {
+		if (nextAmp != -1 && nextAmp < from)
+			nextAmp = xml.indexOf('&', from);
+		return nextAmp;
+	}
+
+	private void push(int start, int length) {
+		if (depth == nameStart.length) {
+			int[] grownStart = new int[depth * 2];
+			int[] grownLength = new int[depth * 2];
+			System.arraycopy(nameStart, 0, grownStart, 0, depth);
+			System.arraycopy(nameLength, 0, grownLength, 0, depth);
+			nameStart = grownStart;
+			nameLength = grownLength;
+		}
+		nameStart[depth] = start;
+		nameLength[depth] = length;
+		depth++;
+	}
+
+	/**
+	 * Remember the name of an attribute of the current start tag
+	 * @throws XMLSyntaxException if the tag already has an attribute of that name
+	 */
+	private void addAttribute(int start, int length) throws XMLSyntaxException {
+		for (int i = 0; i < attributes; i++)
+			if (attributeLength[i] == length && xml.regionMatches(start, xml, attributeStart[i], length))
+				throw new XMLSyntaxException("Duplicate attribute");
+		if (attributes == attributeStart.length) {
+			int[] grownStart = new int[attributes * 2];
+			int[] grownLength = new int[attributes * 2];
+			System.arraycopy(attributeStart, 0, grownStart, 0, attributes);
+			System.arraycopy(attributeLength, 0, grownLength, 0, attributes);
+			attributeStart = grownStart;
+			attributeLength = grownLength;
+		}
+		attributeStart[attributes] = start;
+		attributeLength[attributes] = length;
+		attributes++;
+	}
+
+	private char charAt(int index) throws XMLSyntaxException {
+		if (index >= xml.length())
+			throw new XMLSyntaxException("Unexpected end of stanza");
+		return xml.charAt(index);
+	}
+
+	private static boolean isNameStartChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' || c >= 0x80;
+	}
+
+	private static boolean isNameChar(char c) {
+		return isNameStartChar(c) || isDigit(c) || c == '-' || c == '.';
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isHexDigit(char c) {
+		return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+	}
+}
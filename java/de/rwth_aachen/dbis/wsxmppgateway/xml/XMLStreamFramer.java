@@ -0,0 +1,423 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.xml;
+
+import i5.simpleXML.XMLSyntaxException;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental splitter for XMPP streams. Bytes are fed as they arrive from the network and {@link #next()} reports
+ * the XML header, the opening stream tag, every complete top-level stanza and the closing stream tag as soon as they
+ * are available. Only the structure of the stream is scanned, no document tree is built.
+ * Frames are exposed as slices of the internal buffer. For stanzas the name and the xmlns attribute of the top-level
+ * element are located as well, so they can be inspected without decoding the stanza.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+public class XMLStreamFramer {
+
+	//events reported by next()
+	public static final int NONE = 0;
+	public static final int HEADER = 1;
+	public static final int ROOT_OPENED = 2;
+	public static final int STANZA = 3;
+	public static final int ROOT_CLOSED = 4;
+
+	private static final int DEFAULT_CAPACITY = 4096;
+
+	//scanner states
+	private static final int STATE_TEXT = 0; //character data between tags
+	private static final int STATE_MARKUP = 1; //'<' has been read, kind of markup is not known yet
+	private static final int STATE_START_TAG = 2;
+	private static final int STATE_END_TAG = 3;
+	private static final int STATE_PI = 4; //processing instruction or XML header
+	private static final int STATE_COMMENT = 5;
+	private static final int STATE_CDATA = 6;
+
+	private static final byte[] COMMENT_START = {'!', '-', '-'};
+	private static final byte[] CDATA_START = {'!', '[', 'C', 'D', 'A', 'T', 'A', '['};
+	private static final byte[] XML_HEADER_START = {'?', 'x', 'm', 'l'};
+
+	private byte[] buffer;
+	private int limit = 0; //end of valid data in buffer
+	private int pos = 0; //next byte to scan
+	private int start = 0; //start of the current top-level frame
+	private int markup = 0; //start of the current markup
+	private int state = STATE_TEXT;
+	private int depth = 0; //0 before the opening stream tag, 1 between stanzas
+	private byte quote = 0; //quote character of the attribute value currently scanned, 0 if none
+
+	private int frameOffset = 0;
+	private int frameLength = 0;
+	//location of name and xmlns attribute value of the last stanza, namespaceOffset is -1 if the stanza has no xmlns attribute
+	private int nameOffset = 0;
+	private int nameLength = 0;
+	private int namespaceOffset = -1;
+	private int namespaceLength = 0;
+
+	/**
+	 * Creates a new stream framer
+	 */
+	public XMLStreamFramer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new stream framer
+	 * @param capacity the initial capacity of the internal buffer
+	 */
+	public XMLStreamFramer(int capacity) {
+		buffer = new byte[capacity];
+	}
+
+	/**
+	 * Append bytes received from the network. Invalidates the frame reported by the last call of {@link #next()}.
+	 * @param src the received bytes between position and limit, the position of src is advanced
+	 */
+	public void feed(ByteBuffer src) {
+		int length = src.remaining();
+		ensureCapacity(length);
+		src.get(buffer, limit, length);
+		limit += length;
+	}
+
+	/**
+	 * Append bytes received from the network. Invalidates the frame reported by the last call of {@link #next()}.
+	 * @param src the received bytes
+	 * @param offset the offset of the first received byte
+	 * @param length the number of received bytes
+	 */
+	public void feed(byte[] src, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(src, offset, buffer, limit, length);
+		limit += length;
+	}
+
+	/**
+	 * Scan the buffered bytes for the next event
+	 * @return {@link #HEADER}, {@link #ROOT_OPENED}, {@link #STANZA} or {@link #ROOT_CLOSED} if the corresponding frame is complete,
+	 * {@link #NONE} if more bytes are needed
+	 * @throws XMLSyntaxException if the stream is not well-formed
+	 */
+	public int next() throws XMLSyntaxException {
+		while (pos < limit) {
+			byte b = buffer[pos];
+			switch (state) {
+			case STATE_TEXT:
+				if (b == '<') {
+					markup = pos;
+					if (depth <= 1)
+						start = pos;
+					state = STATE_MARKUP;
+				}
+				else if (depth <= 1 && !isWhitespace(b))
+					throw new XMLSyntaxException("Character data outside of stanza");
+				pos++;
+				break;
+			case STATE_MARKUP:
+				if (b == '?') {
+					state = STATE_PI;
+					pos++;
+				}
+				else if (b == '/') {
+					if (depth == 0)
+						throw new XMLSyntaxException("Closing tag before opening stream tag");
+					state = STATE_END_TAG;
+					pos++;
+				}
+				else if (b == '!') {
+					int comment = matches(COMMENT_START, pos);
+					int cdata = matches(CDATA_START, pos);
+					if (comment < 0 || cdata < 0)
+						return NONE; //wait for more data to decide
+					if (comment > 0) {
+						state = STATE_COMMENT;
+						pos += COMMENT_START.length;
+					}
+					else if (cdata > 0 && depth > 1) {
+						state = STATE_CDATA;
+						pos += CDATA_START.length;
+					}
+					else
+						throw new XMLSyntaxException("Restricted XML (DTD or misplaced CDATA section)");
+				}
+				else {
+					state = STATE_START_TAG;
+					quote = 0;
+					pos++;
+				}
+				break;
+			case STATE_START_TAG:
+				if (quote != 0) {
+					if (b == quote)
+						quote = 0;
+				}
+				else if (b == '"' || b == '\'')
+					quote = b;
+				else if (b == '>') {
+					boolean empty = buffer[pos - 1] == '/';
+					pos++;
+					state = STATE_TEXT;
+					if (depth == 0) {
+						if (empty)
+							throw new XMLSyntaxException("Empty opening stream tag");
+						depth = 1;
+						return frame(ROOT_OPENED, markup);
+					}
+					if (!empty)
+						depth++;
+					else if (depth == 1)
+						return frame(STANZA, start);
+					break;
+				}
+				pos++;
+				break;
+			case STATE_END_TAG:
+				pos++;
+				if (b == '>') {
+					state = STATE_TEXT;
+					depth--;
+					if (depth == 0)
+						return frame(ROOT_CLOSED, markup);
+					if (depth == 1)
+						return frame(STANZA, start);
+				}
+				break;
+			case STATE_PI:
+				pos++;
+				if (b == '>' && buffer[pos - 2] == '?' && pos - 2 > markup + 1) {
+					state = STATE_TEXT;
+					if (depth == 0 && matches(XML_HEADER_START, markup + 1) > 0)
+						return frame(HEADER, markup);
+				}
+				break;
+			case STATE_COMMENT:
+				pos++;
+				if (b == '>' && buffer[pos - 2] == '-' && buffer[pos - 3] == '-' && pos - 3 > markup + 3)
+					state = STATE_TEXT;
+				break;
+			case STATE_CDATA:
+				pos++;
+				if (b == '>' && buffer[pos - 2] == ']' && buffer[pos - 3] == ']' && pos - 3 > markup + 8)
+					state = STATE_TEXT;
+				break;
+			default:
+				throw new IllegalStateException("Illegal state (" + state + ") in stream framer!");
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * Reset the framer after the stream has been restarted, e.g. after SASL authentication.
+	 * Bytes that have not been scanned yet are kept.
+	 */
+	public void reset() {
+		state = STATE_TEXT;
+		depth = 0;
+		quote = 0;
+		start = pos;
+		markup = pos;
+	}
+
+	/**
+	 * Get the buffer that holds the frame reported by the last call of {@link #next()}
+	 * @return the internal buffer
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Get the offset of the frame reported by the last call of {@link #next()}
+	 * @return the offset of the frame in the buffer
+	 */
+	public int getFrameOffset() {
+		return frameOffset;
+	}
+
+	/**
+	 * Get the length of the frame reported by the last call of {@link #next()}
+	 * @return the length of the frame in bytes
+	 */
+	public int getFrameLength() {
+		return frameLength;
+	}
+
+	/**
+	 * Get the frame reported by the last call of {@link #next()}
+	 * @return the UTF-8 decoded frame
+	 */
+	public String getFrame() {
+		return decode(frameOffset, frameLength);
+	}
+
+	/**
+	 * Get the name of the stanza reported by the last call of {@link #next()}
+	 * @return the qualified name of the top-level element of the stanza
+	 */
+	public String getFrameName() {
+		return decode(nameOffset, nameLength);
+	}
+
+	/**
+	 * Get the namespace of the stanza reported by the last call of {@link #next()}
+	 * @return the value of the xmlns attribute of the top-level element as it appears in the stream, null if there is none
+	 */
+	public String getFrameNamespace() {
+		if (namespaceOffset < 0)
+			return null;
+		return decode(namespaceOffset, namespaceLength);
+	}
+
+	/**
+	 * Check the name of the stanza reported by the last call of {@link #next()} without decoding it
+	 * @param name the expected name, must only contain ASCII characters
+	 * @return true if the top-level element of the stanza has the given name
+	 */
+	public boolean isFrameName(String name) {
+		return equalsAscii(nameOffset, nameLength, name);
+	}
+
+	/**
+	 * Check the namespace of the stanza reported by the last call of {@link #next()} without decoding it
+	 * @param namespace the expected value of the xmlns attribute, must only contain ASCII characters
+	 * @return true if the xmlns attribute of the top-level element of the stanza has the given value
+	 */
+	public boolean isFrameNamespace(String namespace) {
+		return namespaceOffset >= 0 && equalsAscii(namespaceOffset, namespaceLength, namespace);
+	}
+
+	/**
+	 * Get the current nesting depth
+	 * @return 0 before the opening stream tag, 1 between stanzas, greater than 1 inside a stanza
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Record the bounds of a complete frame
+	 * @param event the event to be reported
+	 * @param offset the offset of the first byte of the frame, the frame ends at the current scan position
+	 * @return the event
+	 */
+	private int frame(int event, int offset) {
+		frameOffset = offset;
+		frameLength = pos - offset;
+		start = pos;
+		if (event == STANZA)
+			scanStanzaTag();
+		return event;
+	}
+
+	/**
+	 * Locate name and xmlns attribute in the start tag of the current stanza. The tag has already been scanned by {@link #next()},
+	 * so quotes are balanced and the tag is terminated.
+	 */
+	private void scanStanzaTag() {
+		int i = frameOffset + 1;
+		nameOffset = i;
+		while (!isWhitespace(buffer[i]) && buffer[i] != '/' && buffer[i] != '>')
+			i++;
+		nameLength = i - nameOffset;
+		namespaceOffset = -1;
+		while (true) {
+			while (isWhitespace(buffer[i]))
+				i++;
+			if (buffer[i] == '/' || buffer[i] == '>')
+				return;
+			int attribute = i;
+			while (buffer[i] != '=' && !isWhitespace(buffer[i]))
+				i++;
+			boolean xmlns = i - attribute == 5 && equalsAscii(attribute, 5, "xmlns");
+			while (buffer[i] != '"' && buffer[i] != '\'')
+				i++;
+			byte quote = buffer[i++];
+			int value = i;
+			while (buffer[i] != quote)
+				i++;
+			if (xmlns) {
+				namespaceOffset = value;
+				namespaceLength = i - value;
+			}
+			i++;
+		}
+	}
+
+	/**
+	 * Compare buffered bytes with an ASCII string
+	 */
+	private boolean equalsAscii(int offset, int length, String s) {
+		if (length != s.length())
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (buffer[offset + i] != s.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private String decode(int offset, int length) {
+		try {
+			return new String(buffer, offset, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e); //UTF-8 is supported by every JVM
+		}
+	}
+
+	/**
+	 * Compare the buffered bytes at the given position with a pattern
+	 * @param pattern the pattern
+	 * @param at the position in the buffer
+	 * @return 1 if the pattern matches, 0 if it does not match, -1 if more bytes are needed to decide
+	 */
+	private int matches(byte[] pattern, int at) {
+		for (int i = 0; i < pattern.length; i++) {
+			if (at + i >= limit)
+				return -1;
+			if (buffer[at + i] != pattern[i])
+				return 0;
+		}
+		return 1;
+	}
+
+	/**
+	 * Make room for the given number of bytes. Bytes that belong to already reported frames are discarded.
+	 * @param length the number of bytes to be appended
+	 */
+	private void ensureCapacity(int length) {
+		int keep = (state == STATE_TEXT && depth <= 1) ? pos : start;
+		if (keep > 0 && (keep == limit || limit + length > buffer.length)) {
+			System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+			limit -= keep;
+			pos -= keep;
+			start -= keep;
+			markup -= keep;
+		}
+		if (limit + length > buffer.length) {
+			byte[] grown = new byte[Math.max(buffer.length * 2, limit + length)];
+			System.arraycopy(buffer, 0, grown, 0, limit);
+			buffer = grown;
+		}
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.jmh;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import de.rwth_aachen.dbis.wsxmppgateway.bench.JettyStubs;
+
+/**
+ * Test data shared by the benchmarks, the stubs of the Jetty side are those of {@link JettyStubs}
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+class BenchmarkSupport {
+
+	static final String OPENING_TAG = "<stream:stream to='localhost' xmlns='jabber:client' " +
+			"xmlns:stream='http://etherx.jabber.org/streams' version='1.0'>";
+	static final String SERVER_HEADER = "<?xml version='1.0'?><stream:stream xmlns='jabber:client' " +
+			"xmlns:stream='http://etherx.jabber.org/streams' id='bench' from='localhost' version='1.0'>" +
+			"<stream:features><mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><mechanism>PLAIN</mechanism></mechanisms></stream:features>";
+
+	private static final String STANZA_START = "<message to='juliet@localhost/balcony' from='romeo@localhost/orchard' type='chat' id='m1'><body>";
+	private static final String STANZA_END = "</body></message>";
+	private static final String TEXT = "Wherefore art thou, Romeo? Deny thy father &amp; refuse thy name. ";
+
+	/**
+	 * Build a chat message of about the given size
+	 * @param size the size of the stanza in characters
+	 * @return the serialized stanza
+	 */
+	static String stanza(int size) {
+		StringBuilder stanza = new StringBuilder(size + TEXT.length());
+		stanza.append(STANZA_START);
+		while (stanza.length() + STANZA_END.length() < size)
+			stanza.append(TEXT);
+		return stanza.append(STANZA_END).toString();
+	}
+
+	/**
+	 * Create the servlet request that performed the (simulated) upgrade
+	 * @param xmppHost the hostname passed as xmpphost parameter, may be null
+	 * @param xmppPort the port passed as xmppport parameter, 0 to omit it
+	 */
+	static HttpServletRequest newRequest(String xmppHost, int xmppPort) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (xmppHost != null)
+			parameters.put("xmpphost", xmppHost);
+		if (xmppPort > 0)
+			parameters.put("xmppport", String.valueOf(xmppPort));
+		return JettyStubs.newRequest("benchmark", parameters);
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.websocket.WebSocket.FrameConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import de.rwth_aachen.dbis.wsxmppgateway.XMPPConstants;
+import de.rwth_aachen.dbis.wsxmppgateway.bench.JettyStubs;
+import de.rwth_aachen.dbis.wsxmppgateway.bench.StubXMPPServer;
+import de.rwth_aachen.dbis.wsxmppgateway.connection.WsXMPPConnectionHandler;
+import de.rwth_aachen.dbis.wsxmppgateway.error.StreamError;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.UpstreamEngine;
+
+/**
+ * Cost of the connection handler on the Jetty thread: forwarding a stanza of an open stream to the XMPP server
+ * and building a stream error. The XMPP server is a {@link StubXMPPServer} in the same JVM that drops all stanzas,
+ * the WebSocket side is a stub that discards everything sent to the client.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HandlerBenchmark {
+
+	/**
+	 * A session with an open stream to the stub server
+	 */
+	@State(Scope.Benchmark)
+	public static class OpenStream {
+
+		@Param({"128", "1024", "16384"})
+		public int stanzaSize;
+
+		@Param({UpstreamEngine.MODE_NIO, UpstreamEngine.MODE_THREAD})
+		public String upstreamEngine;
+
+		String stanza;
+		StubXMPPServer server;
+		WsXMPPConnectionHandler handler;
+
+		@Setup
+		public void setup() throws IOException, InterruptedException {
+			stanza = BenchmarkSupport.stanza(stanzaSize);
+			server = new StubXMPPServer(0, false);
+			server.start();
+			UpstreamEngine.start(upstreamEngine, 0);
+			handler = new WsXMPPConnectionHandler(BenchmarkSupport.newRequest("127.0.0.1", server.getPort()));
+			FrameConnection connection = JettyStubs.newConnection(null);
+			handler.onHandshake(connection);
+			handler.onOpen(connection);
+			handler.onMessage(BenchmarkSupport.OPENING_TAG);
+			Thread.sleep(500); //let the connect finish
+		}
+
+		@TearDown
+		public void tearDown() {
+			handler.onMessage("</stream:stream>");
+			UpstreamEngine.stop();
+			server.stop();
+		}
+	}
+
+	/**
+	 * A session that has not sent a stream error yet, a stream error is terminal
+	 */
+	@State(Scope.Thread)
+	public static class FreshSession {
+
+		WsXMPPConnectionHandler handler;
+
+		@Setup(Level.Invocation)
+		public void setup() {
+			handler = new WsXMPPConnectionHandler(BenchmarkSupport.newRequest(null, 0));
+			handler.onHandshake(JettyStubs.newConnection(null));
+		}
+	}
+
+	@Benchmark
+	public void forwardStanza(OpenStream session) {
+		session.handler.onMessage(session.stanza);
+	}
+
+	@Benchmark
+	public void streamError(FreshSession session) {
+		session.handler.handleStreamError(new StreamError(XMPPConstants.ERROR_COND_REMOTE_CONNECTION_FAILED, "Connection refused", "en"));
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.jmh;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.Route;
+import de.rwth_aachen.dbis.wsxmppgateway.upstream.RoutingTable;
+
+/**
+ * Cost of the alias lookup of a login, compared to the synchronized map that held the aliases before.
+ * Run with several threads (-t) to see the contention on the map.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RoutingBenchmark {
+
+	private static final int DOMAINS = 1000;
+	private static final int WILDCARDS = 100;
+
+	@Param({"exact", "wildcard", "default"})
+	public String match;
+
+	private String domain;
+	private RoutingTable table;
+	private Map<String, String> aliases;
+
+	@Setup
+	public void setup() {
+		Properties entries = new Properties();
+		aliases = Collections.synchronizedMap(new HashMap<String, String>());
+		for (int i = 0; i < DOMAINS; i++) {
+			entries.setProperty("domain" + i + ".example.org", "xmpp" + i + ".example.org:5222");
+			aliases.put("domain" + i + ".example.org", "xmpp" + i + ".example.org");
+		}
+		for (int i = 0; i < WILDCARDS; i++)
+			entries.setProperty("*.tenant" + i + ".example.com", "xmpp" + i + ".example.com:5222 2, backup.example.com:5222 1");
+		entries.setProperty("*", "default.example.net");
+		table = RoutingTable.parse(entries, null, RoutingTable.EMPTY);
+		if ("exact".equals(match))
+			domain = "Domain500.example.org";
+		else if ("wildcard".equals(match))
+			domain = "chat.users.tenant50.example.com";
+		else
+			domain = "unknown.example.net";
+	}
+
+	@Benchmark
+	public Route routingTable() {
+		return table.lookup(domain);
+	}
+
+	@Benchmark
+	public String synchronizedAliases() {
+		String to = domain;
+		if (aliases.containsKey(to.toLowerCase()))
+			to = aliases.get(to.toLowerCase());
+		return to;
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.jmh;
+
+import i5.simpleXML.Element;
+import i5.simpleXML.XMLSyntaxException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.rwth_aachen.dbis.wsxmppgateway.xml.StanzaChecker;
+
+/**
+ * Cost of the handling of a stanza received from a client: the parse and serialize round-trip of
+ * ClientStanzaMode "parse" and the well-formedness check of mode "check".
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StanzaBenchmark {
+
+	@Param({"128", "1024", "16384"})
+	public int stanzaSize;
+
+	private String stanza;
+
+	@Setup
+	public void setup() {
+		stanza = BenchmarkSupport.stanza(stanzaSize);
+	}
+
+	@Benchmark
+	public String elementRoundTrip() throws XMLSyntaxException {
+		return new Element(stanza).toString(false);
+	}
+
+	@Benchmark
+	public String stanzaCheck() throws XMLSyntaxException {
+		StanzaChecker.check(stanza);
+		return stanza;
+	}
+}
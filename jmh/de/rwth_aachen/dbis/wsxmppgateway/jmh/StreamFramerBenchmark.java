@@ -0,0 +1,99 @@
+/*
+ * Copyright 2011 Christian Hocken, Dominik Renzel,
+ * Chair of Computer Science 5 (Information Systems) at RWTH Aachen University, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rwth_aachen.dbis.wsxmppgateway.jmh;
+
+import i5.simpleXML.Element;
+import i5.simpleXML.XMLStreamParser;
+import i5.simpleXML.XMLSyntaxException;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.rwth_aachen.dbis.wsxmppgateway.xml.XMLStreamFramer;
+
+/**
+ * Cost of splitting a recorded server stream into stanzas, fed in reads of 16 KB like the upstream engines do.
+ * XMLStreamFramer is compared with XMLStreamParser.getNextElement(), which built an element per stanza before it.
+ * The result is the time per stanza.
+ * @author Christian Hocken (hocken@dbis.rwth-aachen.de)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StreamFramerBenchmark {
+
+	private static final int STANZAS = 1000;
+	private static final int READ_SIZE = 16*1024;
+
+	@Param({"128", "1024", "16384"})
+	public int stanzaSize;
+
+	private byte[] stream;
+
+	@Setup
+	public void setup() throws UnsupportedEncodingException {
+		StringBuilder recorded = new StringBuilder(BenchmarkSupport.SERVER_HEADER);
+		String stanza = BenchmarkSupport.stanza(stanzaSize);
+		for (int i = 0; i < STANZAS; i++)
+			recorded.append(stanza);
+		stream = recorded.append("</stream:stream>").toString().getBytes("UTF-8");
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(STANZAS)
+	public void frameStream(Blackhole blackhole) throws XMLSyntaxException {
+		XMLStreamFramer framer = new XMLStreamFramer();
+		for (int offset = 0; offset < stream.length; offset += READ_SIZE) {
+			framer.feed(stream, offset, Math.min(READ_SIZE, stream.length - offset));
+			int event;
+			while ((event = framer.next()) != XMLStreamFramer.NONE) {
+				if (event == XMLStreamFramer.STANZA)
+					blackhole.consume(framer.isFrameName("message"));
+				blackhole.consume(framer.getFrameLength());
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(STANZAS)
+	public void parseStream(Blackhole blackhole) throws Exception {
+		XMLStreamParser parser = new XMLStreamParser(new ByteArrayInputStream(stream));
+		parser.readHeader(true);
+		blackhole.consume(parser.openRoot(true));
+		while (true) {
+			Element stanza = parser.getNextElement(true, true);
+			if (stanza == null) {
+				if (parser.isRootClosed())
+					return;
+				continue;
+			}
+			blackhole.consume("message".equals(stanza.getName()));
+		}
+	}
+}